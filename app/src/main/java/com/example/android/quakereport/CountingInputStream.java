@@ -0,0 +1,62 @@
+package com.example.android.quakereport;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream that counts the bytes read through it, and remembers if it was read to its end
+ */
+final class CountingInputStream extends FilterInputStream {
+
+    private long mCount;
+
+    private boolean mAtEnd;
+
+    CountingInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * @return the number of bytes read so far
+     */
+    long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return true once a read hit the end of the stream
+     */
+    boolean isAtEnd() {
+        return mAtEnd;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            mCount++;
+        } else {
+            mAtEnd = true;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int read = super.read(buffer, offset, length);
+        if (read > 0) {
+            mCount += read;
+        } else if (read < 0) {
+            mAtEnd = true;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        mCount += skipped;
+        return skipped;
+    }
+}
@@ -3,13 +3,13 @@ package com.example.android.quakereport;
 public class Earthquake {
 
     /* Magnitute of the earthquake */
-    private Double mMag;
+    private double mMag;
 
     /* Place where the earthquake happened */
     private String mPlace;
 
     /* Time of the earthquake */
-    private Long mTimeInMilliseconds;
+    private long mTimeInMilliseconds;
 
     /* Url link to find more info about the earthquake */
     private String mUrl;
@@ -21,7 +21,7 @@ public class Earthquake {
      * @param timeInMilliseconds when the earthquake happened
      * @param url the url that leads to more info about the earthquake
      */
-    public Earthquake(Double mag, String place, Long timeInMilliseconds, String url) {
+    public Earthquake(double mag, String place, long timeInMilliseconds, String url) {
         mMag = mag;
         mPlace = place;
         mTimeInMilliseconds = timeInMilliseconds;
@@ -34,7 +34,7 @@ public class Earthquake {
      *
      * @return the magnitude of the earthquake
      */
-    public Double getMag() { return mMag; }
+    public double getMag() { return mMag; }
 
 
     /**
@@ -48,7 +48,7 @@ public class Earthquake {
      *
      * @return the time when the earthquake happened
      */
-    public Long getTimeInMilliseconds() {
+    public long getTimeInMilliseconds() {
         return mTimeInMilliseconds;
     }
 
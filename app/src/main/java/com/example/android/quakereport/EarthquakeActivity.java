@@ -20,109 +20,162 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.Loader;
 import android.content.SharedPreferences;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.Preference;
 import android.preference.PreferenceManager;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
-import java.net.URI;
-import java.util.ArrayList;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.List;
 
 public class EarthquakeActivity extends AppCompatActivity
-        implements LoaderManager.LoaderCallbacks<List<Earthquake>> {
+        implements LoaderManager.LoaderCallbacks<EarthquakeDisplayModel> {
 
     public static final String LOG_TAG = EarthquakeActivity.class.getName();
 
-    /**
-     * Url for earthquake data from USGS dataset
-     */
-    private static final String USGS_URL = "https://earthquake.usgs.gov/fdsnws/event/1/query";
-
     /** Constant value for Loader ID
      * Assigning Explicit ID integers only comes into play when there are multiple Loaders
      * on the same Activity. So doing this is redundant, but it was on the course so I'll do it anyway
      */
     private static final int EARTHQUAKE_LOADER_ID = 1;
+
+    /**
+     * Intent extra of debug builds, the url of a stand-in for the live feed (see tools/live_feed_server.py)
+     */
+    private static final String EXTRA_LIVE_FEED_URL = "live_feed_url";
+
     /** Adapter for list of earthquakes*/
     private EarthquakeAdapter mAdapter;
 
+    /** Pages of the earthquakes shown in the list */
+    private EarthquakePager mPager;
+
     /**
      * Text view that is displayed if there are no earthquakes to display
      */
     private TextView mEmptyStateView;
 
+    /** The list of earthquakes */
+    private RecyclerView mEarthquakeListView;
+
+    /** Polls the feed of the past hour while live mode is on and the activity is started */
+    private EarthquakeLiveFeed mLiveFeed;
+
+    /**
+     * True if the user turned live mode on, it stays on between launches. Read in the background
+     * when the activity is created, false until then
+     */
+    private boolean mLiveModeOn;
+    private boolean mLiveModeRead;
+
+    /** True between onStart and onStop */
+    private boolean mIsStarted;
+
+    /** Measures the launch, and runs the work that waits for its first frame */
+    private EarthquakeStartup mStartup;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        setContentView(R.layout.earthquake_activity);
+        mStartup = new EarthquakeStartup(this, savedInstanceState);
 
-        // Find a reference to the {@link ListView} in the layout
-        ListView earthquakeListView = (ListView) findViewById(R.id.list);
+        // While the layout is inflated, read the live mode setting and get the formatters
+        // ready on a background thread, so the first result is formatted without waiting for them
+        final Context appContext = getApplicationContext();
+        new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                EarthquakeFormatter.prewarm(appContext);
+                return PreferenceManager.getDefaultSharedPreferences(appContext)
+                        .getBoolean(appContext.getString(R.string.live_mode_key), false);
+            }
 
-        // Find reference to the no earthquakes text view in the layout
+            @Override
+            protected void onPostExecute(Boolean liveModeOn) {
+                onLiveModeRead(liveModeOn);
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+
+        setContentView(R.layout.earthquake_activity);
+        mStartup.watchFirstFrame();
+
+        // Find a reference to the {@link RecyclerView} in the layout, and lay its rows out
+        // in a vertical list
+        RecyclerView earthquakeListView = (RecyclerView) findViewById(R.id.list);
+        mEarthquakeListView = earthquakeListView;
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        earthquakeListView.setLayoutManager(layoutManager);
+        earthquakeListView.setHasFixedSize(true);
+
+        // Find reference to the no earthquakes text view in the layout,
+        // it is shown while the list is empty
         mEmptyStateView = (TextView) findViewById(R.id.no_earthquakes);
-        // Set the earthquakeListView's empty state view to mEmptyStateView
-        earthquakeListView.setEmptyView(mEmptyStateView);
-
-        // Query the active network and determine if it has Internet connectivity.
-        // Get a reference to the ConnectivityManager to check state of network connectivity
-        ConnectivityManager connectivityManager = (ConnectivityManager)
-                getApplicationContext().getSystemService(CONNECTIVITY_SERVICE);
-
-        // Get details on the currently active default data network
-        NetworkInfo activeNetwork = connectivityManager.getActiveNetworkInfo();
-        boolean isConnected = activeNetwork != null && activeNetwork.isConnectedOrConnecting();
-
-        // If users phone is connected to the internet
-        if (isConnected){
-            // Get reference to loader manager to interact with loaders
-            LoaderManager loaderManager = getLoaderManager();
-
-            // Initialize loader. Pass in the loader int id, null for the bundle, and this activity for
-            // the loader callbacks so that the data returned comes back here
-            loaderManager.initLoader(EARTHQUAKE_LOADER_ID, null, this).forceLoad();
-        } else {
-            // If the user is NOT connected to the internet,
-            // set mEmptyStateView text to "No Internet Connection"
-            mEmptyStateView.setText(R.string.no_internet);
 
-            // Find resource for progress bar
-            ProgressBar progressBar = (ProgressBar) findViewById(R.id.progress_bar);
-            // and make it invisible
-            progressBar.setVisibility(View.GONE);
+        // Create a new {@link EarthquakePager} that starts without any earthquakes,
+        // and update the list every time its rows change, only re-binding the changed rows
+        mPager = new EarthquakePager(this, EarthquakeCache.getInstance(this), new EarthquakePager.Listener() {
+            @Override
+            public void onPagesChanged() {
+                mAdapter.notifyDataSetChanged();
+                updateEmptyStateView();
+            }
 
-        }
+            @Override
+            public void onRowsInserted(int position, int count) {
+                mAdapter.notifyItemRangeInserted(position, count);
+                updateEmptyStateView();
+            }
 
+            @Override
+            public void onRowsChanged(int position, int count) {
+                mAdapter.notifyItemRangeChanged(position, count);
+            }
 
-        // Create a new {@link EarthquakeArrayAdapter} that takes an empty list as input
-        mAdapter = new EarthquakeAdapter(getBaseContext(), new ArrayList<Earthquake>());
+            @Override
+            public void onRowsReplaced(EarthquakeDiff diff) {
+                diff.dispatchUpdatesTo(mAdapter);
+                updateEmptyStateView();
+            }
 
-        // Set the adapter on the {@link ListView}
-        // so the list can be populated in the user interface
-        earthquakeListView.setAdapter(mAdapter);
+            @Override
+            public void onReloadNeeded() {
+                // Revalidate the query, the loader falls back to a full reload if it has to
+                Loader<EarthquakeDisplayModel> loader = getLoaderManager().getLoader(EARTHQUAKE_LOADER_ID);
+                if (loader != null) {
+                    loader.onContentChanged();
+                }
+            }
+        });
 
-        earthquakeListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        // Create a new {@link EarthquakeAdapter} over the pages of the pager,
+        // that opens the USGS page of an earthquake when it is clicked
+        mAdapter = new EarthquakeAdapter(getBaseContext(), mPager, new EarthquakeAdapter.OnItemClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+            public void onItemClick(int position) {
 
-                // Find the current earthquake that was clicked on
+                // Find the current earthquake that was clicked on,
+                // its page may have been dropped to save memory
                 Earthquake currentEarthquake = mAdapter.getItem(position);
+                if (currentEarthquake == null) {
+                    return;
+                }
+                String earthquakeUrl = currentEarthquake.getUrl();
 
                 // Convert the String URL into a URI object (to pass into the Intent constructor)
-                Uri earthquakeUri = Uri.parse(currentEarthquake.getUrl());
+                Uri earthquakeUri = Uri.parse(earthquakeUrl);
 
                 // Create new Intent to view the earthquake URI
                 Intent websiteIntent = new Intent(Intent.ACTION_VIEW, earthquakeUri);
@@ -133,81 +186,246 @@ public class EarthquakeActivity extends AppCompatActivity
             }
         });
 
+        // Set the adapter on the {@link RecyclerView}
+        // so the list can be populated in the user interface
+        earthquakeListView.setAdapter(mAdapter);
+
+        // Let the pager prefetch the next page as the list is scrolled towards its end
+        earthquakeListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int firstVisibleItem = layoutManager.findFirstVisibleItemPosition();
+                int lastVisibleItem = layoutManager.findLastVisibleItemPosition();
+                if (firstVisibleItem != RecyclerView.NO_POSITION) {
+                    mPager.onScroll(firstVisibleItem, lastVisibleItem - firstVisibleItem + 1);
+                }
+            }
+        });
+
+        // Merge the new and updated earthquakes of the live feed into the list
+        String liveFeedUrl = BuildConfig.DEBUG ? getIntent().getStringExtra(EXTRA_LIVE_FEED_URL) : null;
+        mLiveFeed = new EarthquakeLiveFeed(
+                liveFeedUrl != null ? liveFeedUrl : EarthquakeLiveFeed.PAST_HOUR_URL,
+                new EarthquakeLiveFeed.Listener() {
+                    @Override
+                    public void onEarthquakesChanged(EarthquakeCatalog changes) {
+                        // Matched against the queries of the result shown, which the loader
+                        // built off the main thread. Nothing is shown before its first load
+                        List<String> queryUrls = getLoaderUrls();
+                        if (queryUrls != null) {
+                            mPager.applyLiveChanges(changes, queryUrls);
+                        }
+                    }
+                });
+
+        // Keep the cached earthquakes up to date in the background between launches,
+        // the schedule can wait until the list is on screen
+        mStartup.runAfterFirstFrame(new Runnable() {
+            @Override
+            public void run() {
+                EarthquakeSyncService.schedule(EarthquakeActivity.this);
+            }
+        });
+
+        // Get reference to loader manager to interact with loaders
+        LoaderManager loaderManager = getLoaderManager();
+
+        // Initialize loader. Pass in the loader int id, null for the bundle, and this activity for
+        // the loader callbacks so that the data returned comes back here.
+        // If the user is NOT connected to the internet the loader only loads cached earthquakes.
+        // The loader starts its own load, or delivers its last result after a rotation
+        loaderManager.initLoader(EARTHQUAKE_LOADER_ID, null, this);
+
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        mIsStarted = true;
+
+        // Coming back from the settings, load the new query if the settings changed it.
+        // A loader that did not start loading yet (i.e at launch) reads the settings itself
+        if (getLoaderUrls() != null) {
+            checkQueryChanged();
+        }
+
+        if (mLiveModeOn) {
+            mLiveFeed.start();
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        mIsStarted = false;
+        // Only poll while the list is visible
+        mLiveFeed.stop();
+    }
+
+    /**
+     * @return the query urls of the loader, null until it built them from the settings
+     */
+    private List<String> getLoaderUrls() {
+        EarthquakeLoader loader = (EarthquakeLoader)
+                getLoaderManager().<EarthquakeDisplayModel>getLoader(EARTHQUAKE_LOADER_ID);
+        return loader != null ? loader.getUrls() : null;
+    }
+
+    /**
+     * Build the query urls of the settings off the main thread, and restart the loader if they
+     * are not the ones it loads. The load of the old query is cancelled
+     */
+    private void checkQueryChanged() {
+        final Context appContext = getApplicationContext();
+        new AsyncTask<Void, Void, List<String>>() {
+            @Override
+            protected List<String> doInBackground(Void... params) {
+                return QueryUtils.buildQueryUrls(appContext);
+            }
+
+            @Override
+            protected void onPostExecute(List<String> queryUrls) {
+                // Stopped in the meantime, the next start checks again
+                if (!mIsStarted) {
+                    return;
+                }
+                List<String> loaderUrls = getLoaderUrls();
+                if (loaderUrls != null && !loaderUrls.equals(queryUrls)) {
+                    findViewById(R.id.progress_bar).setVisibility(View.VISIBLE);
+                    getLoaderManager().restartLoader(EARTHQUAKE_LOADER_ID, null, EarthquakeActivity.this);
+                }
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Apply the live mode setting read in the background, unless the user already toggled it
+     */
+    private void onLiveModeRead(boolean liveModeOn) {
+        if (mLiveModeRead) {
+            return;
+        }
+        mLiveModeRead = true;
+        mLiveModeOn = liveModeOn;
+        supportInvalidateOptionsMenu();
+        if (liveModeOn && mIsStarted) {
+            mLiveFeed.start();
+        }
+    }
+
+    /**
+     * Show the empty state view only while there are no earthquakes in the list
+     */
+    private void updateEmptyStateView() {
+        mEmptyStateView.setVisibility(mPager.getCount() == 0 ? View.VISIBLE : View.GONE);
+        mStartup.onRowsChanged(mEarthquakeListView, mPager.getCount());
     }
 
 
     @Override
-    public Loader<List<Earthquake>> onCreateLoader(int id, Bundle args) {
-
-        // Get shared preferences
-        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
-
-        // Create a minimum magnitude string by getting the key and value from the shared preferences
-        String minMagnitude = sharedPreferences.getString(
-                getString(R.string.settings_min_magnitude_key),
-                getString(R.string.settings_min_magnitude_default));
-
-        // create an order by string that holds the selected order by preference option
-        String orderBy = sharedPreferences.getString(
-                getString(R.string.settings_order_by_key),
-                getString(R.string.settings_order_by_default));
-
-        // create an maximum results string that holds the maximum result preference option
-        String maxResults = sharedPreferences.getString(
-                getString(R.string.settings_max_results_key),
-                getString(R.string.settings_max_results_default));
-
-        // create a base uri in order to parse through the basic USGS_URL queury string
-        Uri baseUri = Uri.parse(USGS_URL);
-
-        // Create a uri builder to add query parameter strings onto the base uri
-        Uri.Builder uriBuilder = baseUri.buildUpon();
-
-        // Add the following search params onto uri builder
-        // format to geojson, list item limit is maxResults, minimum magnitude to minMagnitude string,
-        // and order by orderBy preference string
-        uriBuilder.appendQueryParameter("format", "geojson");
-        uriBuilder.appendQueryParameter("limit", maxResults);
-        uriBuilder.appendQueryParameter("minmag", minMagnitude);
-        uriBuilder.appendQueryParameter("orderby", orderBy);
-
-        // Create new loader for the given URL
-        return new EarthquakeLoader(this, uriBuilder.toString());
+    public Loader<EarthquakeDisplayModel> onCreateLoader(int id, Bundle args) {
+
+        // Create new loader for the user's settings
+        // The queries are built from them, one per selected region, when the loader starts loading
+        return new EarthquakeLoader(this);
     }
 
 
     @Override
-    public void onLoadFinished(Loader<List<Earthquake>> loader, List<Earthquake> earthquakes) {
+    public void onLoadFinished(Loader<EarthquakeDisplayModel> loader, EarthquakeDisplayModel earthquakes) {
+
+        EarthquakeLoader earthquakeLoader = (EarthquakeLoader) loader;
+
+        // The earthquakes that are ready while the loader is still running (cached ones, or the
+        // first ones parsed from the response) are shown as they are, the spinner keeps spinning
+        // until there is something to show
+        if (earthquakeLoader.isInterimResult()) {
+            if (earthquakes != null && !earthquakes.isEmpty()) {
+                findViewById(R.id.progress_bar).setVisibility(View.GONE);
+                mPager.setEarthquakes(earthquakes);
+            }
+            return;
+        }
 
         // Find resource for, and hide progress bar
         ProgressBar progressBar = (ProgressBar) findViewById(R.id.progress_bar);
         progressBar.setVisibility(View.GONE);
 
-        // Clear the adapter of previous earthquake data
-        mAdapter.clear();
-
-        //set mEmptyStateView text to "No Earthquakes Found"
-        mEmptyStateView.setText(R.string.no_earthquakes);
+        //set mEmptyStateView text to "No Earthquakes Found",
+        // or "No Internet Connection" if nothing was cached while the user is offline,
+        // or tell the user USGS could not be reached if the load failed with nothing cached
+        if (!earthquakeLoader.isConnected()) {
+            mEmptyStateView.setText(R.string.no_internet);
+        } else {
+            mEmptyStateView.setText(earthquakes != null ? R.string.no_earthquakes
+                    : R.string.earthquakes_unavailable);
+        }
 
-        // If there is a valid list of {@link Earthquake}s, add all data to the adapter.
-        // This will cause the ListView to update
-        if (earthquakes != null && !earthquakes.isEmpty()) {
-            mAdapter.addAll(earthquakes);
+        // Replace the earthquakes in the pager with the new ones, no earthquakes if the
+        // load failed. If only the first page was loaded the pager loads the rest on demand.
+        // This will cause the RecyclerView to update
+        if (earthquakes != null && earthquakeLoader.isFirstPage()) {
+            mPager.setFirstPage(earthquakeLoader.getUrl(), earthquakes);
+        } else {
+            mPager.setEarthquakes(earthquakes != null ? earthquakes : EarthquakeDisplayModel.EMPTY);
         }
 
     }
 
 
     @Override
-    public void onLoaderReset(Loader<List<Earthquake>> loader) {
+    public void onLoaderReset(Loader<EarthquakeDisplayModel> loader) {
         // Clear the adapter of all data
-        mAdapter.clear();
+        mPager.setEarthquakes(EarthquakeDisplayModel.EMPTY);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // Drop the pages of earthquakes that are far away from the visible rows
+        mPager.onTrimMemory(level);
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the Menu
         getMenuInflater().inflate(R.menu.main, menu);
+        // The metrics screen is only for debug builds
+        menu.findItem(R.id.action_metrics).setVisible(BuildConfig.DEBUG);
+        menu.findItem(R.id.action_live).setChecked(mLiveModeOn);
+
+        // Narrow the list to the places that contain the search text, on every keystroke
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        final SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchItem);
+        searchView.setQueryHint(getString(R.string.search_hint));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                // The list is already narrowed, only hide the keyboard
+                searchView.clearFocus();
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                mPager.setSearchQuery(newText);
+                return true;
+            }
+        });
+        MenuItemCompat.setOnActionExpandListener(searchItem, new MenuItemCompat.OnActionExpandListener() {
+            @Override
+            public boolean onMenuItemActionExpand(MenuItem item) {
+                // Index the places while the user starts typing
+                mPager.prepareSearch();
+                return true;
+            }
+
+            @Override
+            public boolean onMenuItemActionCollapse(MenuItem item) {
+                mPager.setSearchQuery("");
+                return true;
+            }
+        });
         return super.onCreateOptionsMenu(menu);
     }
 
@@ -223,7 +441,39 @@ public class EarthquakeActivity extends AppCompatActivity
             startActivity(settingsIntent);
             return true;
         }
+        if (id == R.id.action_live) {
+            boolean liveModeOn = !item.isChecked();
+            SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(this).edit();
+            editor.putBoolean(getString(R.string.live_mode_key), liveModeOn);
+            editor.apply();
+            item.setChecked(liveModeOn);
+            mLiveModeOn = liveModeOn;
+            mLiveModeRead = true;
+            if (liveModeOn) {
+                mLiveFeed.start();
+            } else {
+                mLiveFeed.stop();
+            }
+            return true;
+        }
+        if (id == R.id.action_metrics) {
+            startActivity(new Intent(this, MetricsActivity.class));
+            return true;
+        }
         return super.onOptionsItemSelected(item);
     }
+
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        // "adb shell dumpsys activity com.example.android.quakereport" prints the metrics too
+        writer.print(prefix);
+        writer.println("Earthquake metrics:");
+        for (String line : EarthquakeMetrics.dump().split("\n")) {
+            writer.print(prefix);
+            writer.print("  ");
+            writer.println(line);
+        }
+    }
 }
 
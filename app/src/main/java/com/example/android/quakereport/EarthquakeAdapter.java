@@ -1,224 +1,200 @@
 package com.example.android.quakereport;
 
 import android.content.Context;
-import android.content.Intent;
-import android.net.Uri;
 import android.support.annotation.NonNull;
-import android.support.annotation.Nullable;
-import android.support.v4.content.ContextCompat;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
 import android.widget.TextView;
-import java.text.DecimalFormat;
-import java.util.ArrayList;
-import java.util.Date;
-import java.text.SimpleDateFormat;
 
 import android.graphics.drawable.GradientDrawable;
 
-public class EarthquakeAdapter extends ArrayAdapter<Earthquake> {
+public class EarthquakeAdapter extends RecyclerView.Adapter<EarthquakeAdapter.ViewHolder> {
 
     /**
-     * Custom array adapter. the context is used to inflate the layout file and the list is the data
-     * we want to populate into the list
-     * @param context the current context, used to inflate the layout file
-     * @param earthquakes a list of Earthquake objects to display in a list
+     * Notified when an earthquake of the list is clicked
      */
-    public EarthquakeAdapter(@NonNull Context context, ArrayList<Earthquake> earthquakes) {
-        super(context, 0, earthquakes);
+    public interface OnItemClickListener {
+        void onItemClick(int position);
     }
 
-    @NonNull
-    @Override
-    public View getView(int position, @Nullable View convertView, @NonNull ViewGroup parent) {
-
-        //Check if existing view is being reused, otherwise inflate the view
-        View listItemView = convertView;
-
-        if (listItemView == null){
-            listItemView = LayoutInflater.from(getContext()).inflate(
-                    R.layout.list_item, parent, false);
-
-        }
-
-        // Get the {@link Earthquake} object located at this position in the list
-        final Earthquake currentEarthquake = getItem(position);
-
-        // Create new Date object from  the current earthquakes time in milliseconds
-        Date dateObject = new Date(currentEarthquake.getTimeInMilliseconds());
-
-
-        // Find the eathquake's magnitude TextView by it's ID earthquake_mag
-        TextView mag = (TextView) listItemView.findViewById(R.id.earthquake_mag);
-
-
-        // Set the proper background color on the magnitude circle.
-        // Fetch the background from the TextView, which is a GradientDrawable.
-        GradientDrawable magnitudeCircle = (GradientDrawable) mag.getBackground();
-
-        // Get the appropriate background color based on the current earthquake magnitude
-        int magnitudeColor = getMagnitudeColor(currentEarthquake.getMag());
-
-        // Set the color on the magnitude circle
-        magnitudeCircle.setColor(magnitudeColor);
-
-
-        // Format the current earthquake getMag as a string
-        String formattedMag = formatMagnitude(currentEarthquake.getMag());
-        //and set that number to the  mag TextView as a string
-        mag.setText(formattedMag);
-
+    private final Context mContext;
 
-        // Find the eathquake's location offset TextView by it's ID earthquake_location_offset
-        TextView locationOffset = (TextView) listItemView.findViewById(R.id.earthquake_location_offset);
+    /* Pages of the earthquakes shown in the list */
+    private final EarthquakePager mPager;
 
-        // Find the eathquake's primaryLocation TextView by it's ID earthquake_primary_location
-        TextView primaryLocation = (TextView) listItemView.findViewById(R.id.earthquake_primary_location);
+    private final OnItemClickListener mOnItemClickListener;
 
-        //Create an empty string for the primary location
-        String primaryLocationString;
-
-        // Check if earthquake's place starts with an number
-        // that would mean that it provides the distance from a major city or country
-        if (Character.isDigit(currentEarthquake.getPlace().charAt(0))) {
-
-            // Get the location offset string from the {@link Earthquake} getPlace method
-            // By starting the string at index 0, and ending it after the word "of" (i.e 38km SE of)
-            String locationOffsetString = currentEarthquake.getPlace().substring(0,
-                    currentEarthquake.getPlace().indexOf("of") + 2);
-
-            // Get the primary location string by erasing the locationOffsetString from
-            // the {@link Earthquake} getPlace method string, so that it only shows a city or country
-            primaryLocationString = currentEarthquake.getPlace().replace(locationOffsetString,
-                    "").trim();
-
-            // set the earthquake's location offset, and set it to the location offset TextView
-            locationOffset.setText(locationOffsetString);
-        } else {
-            // Check if earthquake's place does NOT start with an number
-            // which means it only displays a major city or country
-
-            // Set the location offset TextView text to "Near"
-            locationOffset.setText(R.string.near);
-
-            // Use the getPlace method to get the location, and set it to the primaryLocationString
-            primaryLocationString = currentEarthquake.getPlace();
-        }
-
-        // Get the earthquake's primary location, and set it to the TextView
-        primaryLocation.setText(primaryLocationString);
-
-
-        // Find the date of the eathquake TextView by it's ID earthquake_date
-        TextView date = (TextView) listItemView.findViewById(R.id.earthquake_date);
-
-        // Format the date string (i.e March 1, 2018)
-        String formattedDate = formatDate(dateObject);
-
-        // Get the current earthquake's date, and add it to the TextView
-        date.setText(formattedDate);
+    /**
+     * Custom adapter over the pages of an {@link EarthquakePager}. The context is used to inflate
+     * the layout file, the adapter must be notified when the pager's rows change
+     * @param context the current context, used to inflate the layout file
+     * @param pager holds the earthquakes to display
+     * @param onItemClickListener notified when an earthquake is clicked
+     */
+    public EarthquakeAdapter(@NonNull Context context, @NonNull EarthquakePager pager,
+                             @NonNull OnItemClickListener onItemClickListener) {
+        mContext = context;
+        mPager = pager;
+        mOnItemClickListener = onItemClickListener;
+    }
 
-        // Find the time of the eathquake TextView by it's ID earthquake_time
-        TextView time = (TextView) listItemView.findViewById(R.id.earthquake_time);
+    public Context getContext() {
+        return mContext;
+    }
 
-        // Format time string (i.e 3:30 PM)
-        String formattedTime = formatTime(dateObject);
+    @Override
+    public int getItemCount() {
+        return mPager.getCount();
+    }
 
-        // Get the current earthquake's date, and add it to the TextView
-        time.setText(formattedTime);
+    /**
+     * @return a new {@link Earthquake} for the given position,
+     * or null if its page is not in memory right now
+     */
+    public Earthquake getItem(int position) {
+        EarthquakeDisplayModel page = mPager.getPage(position);
+        return page != null ? page.getCatalog().get(mPager.getPositionInPage(position)) : null;
+    }
 
-        // Return the whole list item layout so that it can be shown in the ListView
-        return listItemView;
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        // Inflate the list item and find its views once,
+        // the {@link ViewHolder} keeps them for every later bind
+        View listItemView = LayoutInflater.from(getContext()).inflate(
+                R.layout.list_item, parent, false);
+        return new ViewHolder(listItemView, mOnItemClickListener);
     }
 
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        // Find the page of the earthquake located at this position in the list
+        bindRow(holder, mPager.getPage(position), mPager.getPositionInPage(position));
+    }
 
     /**
-     * @return formatted magnitude string showing 1 decimal place (i.e 3.4)
-     * from a decimal magnitude value.
+     * Show an earthquake of a page in the views of a row, and record the time it took
+     * @param page the page of the earthquake, or null to leave the row empty
      */
-    private String formatMagnitude(double magnitude) {
-        DecimalFormat format = new DecimalFormat("0.0");
-        return format.format(magnitude);
+    static void bindRow(Row row, EarthquakeDisplayModel page, int positionInPage) {
+        long bindStart = EarthquakeMetrics.start();
+        EarthquakeMetrics.beginSection("bind", bindStart);
+        try {
+            // If the page was dropped to save memory, show an empty row while it is loaded again
+            if (page == null) {
+                row.clear();
+                return;
+            }
+
+            // Everything was formatted when the page was loaded, only assign it to the views.
+            // Set the color that corresponds with the magnitude on the magnitude circle
+            row.setMagnitudeColor(page.getMagnitudeColor(positionInPage));
+
+            // Magnitude (i.e 3.4), location offset (i.e 38km SE of) and primary location
+            // (i.e Tokyo, Japan), date (i.e Mar 01, 2018) and time (i.e 3:30 PM)
+            char[] text = page.getText();
+            for (int field = EarthquakeDisplayModel.MAGNITUDE; field <= EarthquakeDisplayModel.TIME; field++) {
+                row.setText(field, text, page.getTextStart(positionInPage, field),
+                        page.getTextLength(positionInPage, field));
+            }
+        } finally {
+            EarthquakeMetrics.endSection(bindStart);
+            EarthquakeMetrics.ROW_BIND.recordSince(bindStart);
+        }
     }
 
 
     /**
-     * @return the color that corresponds with the magnitude of the earthquake
-     * ranging from blue (low magnitude) to red (high magnitude)
+     * The views of a list item, as {@link #bindRow(Row, EarthquakeDisplayModel, int)} fills them
      */
-    private int getMagnitudeColor(double magnitude) {
-
-        //Convert the magnitude which is a double, into an int
-        int magnitudeFloor = (int) Math.floor(magnitude);
-
-        int magnitudeColor;
-
-        switch (magnitudeFloor) {
-
-            case 0:
-            case 1:
-                magnitudeColor = R.color.magnitude1;
-                break;
-
-            case 2:
-                magnitudeColor = R.color.magnitude2;
-                break;
-
-            case 3:
-                magnitudeColor = R.color.magnitude3;
-                break;
-
-            case 4:
-                magnitudeColor = R.color.magnitude4;
-                break;
-
-            case 5:
-                magnitudeColor = R.color.magnitude5;
-                break;
+    interface Row {
 
-            case 6:
-                magnitudeColor = R.color.magnitude6;
-                break;
+        void setMagnitudeColor(int color);
 
-            case 7:
-                magnitudeColor = R.color.magnitude7;
-                break;
+        /**
+         * Show a slice of the model's text
+         * @param field one of the texts of {@link EarthquakeDisplayModel}, i.e MAGNITUDE
+         */
+        void setText(int field, char[] text, int start, int length);
 
-            case 8:
-                magnitudeColor = R.color.magnitude8;
-                break;
-
-            case 9:
-                magnitudeColor = R.color.magnitude9;
-                break;
-
-            default:
-                magnitudeColor = R.color.magnitude10plus;
-
-        }
-
-        return ContextCompat.getColor(getContext(), magnitudeColor);
+        /**
+         * Clear every text, used while the row's page is being loaded
+         */
+        void clear();
     }
 
+
     /**
-     * @return formatted date (i.e March 4th, 2012) string from a Date Object
+     * Holds the views of a list item, so they are only looked up once
      */
-    private String formatDate(Date dateObject) {
+    static final class ViewHolder extends RecyclerView.ViewHolder
+            implements Row, View.OnClickListener {
+
+        private final OnItemClickListener mOnItemClickListener;
+
+        final TextView magnitude;
+        final GradientDrawable magnitudeCircle;
+        final TextView locationOffset;
+        final TextView primaryLocation;
+        final TextView date;
+        final TextView time;
+
+        ViewHolder(View listItemView, OnItemClickListener onItemClickListener) {
+            super(listItemView);
+            mOnItemClickListener = onItemClickListener;
+            listItemView.setOnClickListener(this);
+
+            magnitude = (TextView) listItemView.findViewById(R.id.earthquake_mag);
+            // The background of the magnitude TextView is the magnitude circle
+            magnitudeCircle = (GradientDrawable) magnitude.getBackground();
+            locationOffset = (TextView) listItemView.findViewById(R.id.earthquake_location_offset);
+            primaryLocation = (TextView) listItemView.findViewById(R.id.earthquake_primary_location);
+            date = (TextView) listItemView.findViewById(R.id.earthquake_date);
+            time = (TextView) listItemView.findViewById(R.id.earthquake_time);
+        }
 
-        SimpleDateFormat dateFormat = new SimpleDateFormat("LLL dd, yyyy");
-        return dateFormat.format(dateObject);
-    }
+        @Override
+        public void setMagnitudeColor(int color) {
+            magnitudeCircle.setColor(color);
+        }
 
+        @Override
+        public void setText(int field, char[] text, int start, int length) {
+            getTextView(field).setText(text, start, length);
+        }
 
-    /**
-     * @return formatted time (i.e 3:35pm) string from a Date Object
-     */
-    private String formatTime(Date dateObject) {
+        @Override
+        public void clear() {
+            magnitude.setText("");
+            locationOffset.setText("");
+            primaryLocation.setText("");
+            date.setText("");
+            time.setText("");
+        }
+
+        private TextView getTextView(int field) {
+            switch (field) {
+                case EarthquakeDisplayModel.MAGNITUDE:
+                    return magnitude;
+                case EarthquakeDisplayModel.LOCATION_OFFSET:
+                    return locationOffset;
+                case EarthquakeDisplayModel.PRIMARY_LOCATION:
+                    return primaryLocation;
+                case EarthquakeDisplayModel.DATE:
+                    return date;
+                default:
+                    return time;
+            }
+        }
 
-        SimpleDateFormat timeFormat = new SimpleDateFormat("h:mm a");
-        return timeFormat.format(dateObject);
+        @Override
+        public void onClick(View view) {
+            int position = getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) {
+                mOnItemClickListener.onItemClick(position);
+            }
+        }
     }
 
 }
@@ -0,0 +1,362 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Stores parsed earthquake query results on disk, one {@link EarthquakeSnapshot} file per query.
+ *
+ * Files are keyed by the normalized query url (see {@link #normalizeUrl(String)}) and keep the
+ * ETag and Last-Modified headers of the response they came from, so the next request for the
+ * same query can be revalidated instead of downloaded again. The total size of the cache is
+ * bounded, the least recently used queries are deleted first.
+ *
+ * Every file also keeps the time the server last confirmed its result, apart from the time it
+ * was last used: reading a result marks it as used, only storing a response or a 304 Not
+ * Modified marks it as validated.
+ */
+public final class EarthquakeCache {
+
+    /**
+     * Tag for the Log messages
+     */
+    private static final String LOG_TAG = EarthquakeCache.class.getSimpleName();
+
+    /* Name of the cache directory, inside the app's cache dir */
+    private static final String CACHE_DIRECTORY = "earthquakes";
+
+    /* Default maximum size of all the cached queries together */
+    static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    private static EarthquakeCache sInstance;
+
+    private final File mDirectory;
+
+    private final long mMaxBytes;
+
+    /**
+     * @return the cache shared by the whole app, stored in the app's cache directory
+     */
+    public static synchronized EarthquakeCache getInstance(Context context) {
+        if (sInstance == null) {
+            File directory = new File(context.getApplicationContext().getCacheDir(), CACHE_DIRECTORY);
+            sInstance = new EarthquakeCache(directory, DEFAULT_MAX_BYTES);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a cache in the given directory
+     * @param directory where the cached queries are stored, created if needed
+     * @param maxBytes the maximum size of all the cached queries together
+     */
+    public EarthquakeCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return the cached result of the given query url, or null if it is not cached
+     */
+    public Entry read(String requestUrl) {
+        return read(requestUrl, 0, null);
+    }
+
+    /**
+     * Read the cached result of the given query url, handing the first rows to the listener as
+     * soon as they are decoded, before the rest of the cached result is read.
+     * @param requestUrl the query url
+     * @param firstRowCount how many rows to decode before calling the listener
+     * @param listener called with the first rows, on the calling thread, or null
+     * @return the whole cached result, or null if it is not cached
+     */
+    public Entry read(String requestUrl, int firstRowCount, OnFirstRowsReadListener listener) {
+        String url = normalizeUrl(requestUrl);
+        File file = fileFor(url);
+
+        // Only the lookup holds the lock, so the queries of a fan out decode their results in
+        // parallel. A write replaces the file by a new one and an eviction only unlinks it,
+        // a result that is already being read stays whole
+        synchronized (this) {
+            if (!file.exists()) {
+                return null;
+            }
+            // Mark the query as recently used for the LRU eviction
+            file.setLastModified(System.currentTimeMillis());
+        }
+
+        try {
+            EarthquakeSnapshot.Reader reader = new EarthquakeSnapshot.Reader(file);
+            if (!reader.getUrl().equals(url)) {
+                return null;
+            }
+
+            // Only worth a separate delivery if there are more rows to decode after the first ones
+            if (listener != null && firstRowCount < reader.size()) {
+                listener.onFirstRowsRead(reader.decode(firstRowCount));
+            }
+            return reader.decodeAll();
+        } catch (FileNotFoundException e) {
+            // Evicted since it was looked up
+            return null;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error reading cached earthquakes, dropping them: ", e);
+            synchronized (this) {
+                file.delete();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Store the result of the given query url that the server just sent, replacing any previous
+     * result, then evict the least recently used queries if the cache is over its size limit.
+     */
+    public void write(String requestUrl, Entry entry) {
+        write(requestUrl, entry, System.currentTimeMillis());
+    }
+
+    /**
+     * Store the result of the given query url, replacing any previous result,
+     * then evict the least recently used queries if the cache is over its size limit.
+     * @param validatedTime when the server last confirmed the result, or 0 if it never did
+     *                      (i.e a result answered from other cached results)
+     */
+    public synchronized void write(String requestUrl, Entry entry, long validatedTime) {
+        String url = normalizeUrl(requestUrl);
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(LOG_TAG, "Error creating cache directory " + mDirectory);
+            return;
+        }
+
+        // Write to a temporary file first so a crash never leaves a half written entry behind
+        File file = fileFor(url);
+        File temporaryFile = new File(mDirectory, file.getName() + ".tmp");
+
+        try {
+            EarthquakeSnapshot.write(temporaryFile, url, entry, validatedTime);
+            if (!temporaryFile.renameTo(file)) {
+                Log.e(LOG_TAG, "Error moving cached earthquakes into place");
+                temporaryFile.delete();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error writing cached earthquakes: ", e);
+            temporaryFile.delete();
+        }
+
+        trimToSize();
+    }
+
+    /**
+     * Mark the given query as validated and recently used, when the server confirmed it is
+     * still fresh
+     */
+    public synchronized void touch(String requestUrl) {
+        File file = fileFor(normalizeUrl(requestUrl));
+        if (!file.exists()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            EarthquakeSnapshot.writeValidatedTime(file, now);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error marking cached earthquakes as validated: ", e);
+        }
+        file.setLastModified(now);
+    }
+
+    /**
+     * @return when the server last sent or confirmed the result of the given query url, or 0 if
+     * it is not cached or was never confirmed. Reading the result does not change it
+     */
+    public synchronized long getLastValidatedTime(String requestUrl) {
+        File file = fileFor(normalizeUrl(requestUrl));
+        if (!file.exists()) {
+            return 0;
+        }
+        try {
+            return EarthquakeSnapshot.readValidatedTime(file);
+        } catch (IOException e) {
+            // Files of another format version are dropped when their query is read
+            return 0;
+        }
+    }
+
+    /**
+     * @return the normalized urls of every cached query, read from the headers of their files
+     */
+    public synchronized List<String> getUrls() {
+        List<String> urls = new ArrayList<>();
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return urls;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp")) {
+                continue;
+            }
+            try {
+                urls.add(new EarthquakeSnapshot.Reader(file).getUrl());
+            } catch (IOException e) {
+                // Files of another format version are dropped when their query is read
+                Log.i(LOG_TAG, "Skipping unreadable cached earthquakes " + file.getName());
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Delete the least recently used queries until the cache fits in its size limit
+     */
+    private void trimToSize() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+        if (totalBytes <= mMaxBytes) {
+            return;
+        }
+
+        // Oldest first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+
+        for (int i = 0; i < files.length && totalBytes > mMaxBytes; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                totalBytes -= length;
+            }
+        }
+    }
+
+    /**
+     * @return the file that holds the given normalized query url
+     */
+    private File fileFor(String normalizedUrl) {
+        return new File(mDirectory, hash(normalizedUrl));
+    }
+
+    /**
+     * Normalize a query url so equivalent queries share a cache entry:
+     * the scheme and host are lower cased and the query parameters are sorted.
+     */
+    public static String normalizeUrl(String requestUrl) {
+        int queryStart = requestUrl.indexOf('?');
+        if (queryStart < 0) {
+            return lowerCaseSchemeAndHost(requestUrl);
+        }
+
+        String[] parameters = requestUrl.substring(queryStart + 1).split("&");
+        Arrays.sort(parameters);
+
+        StringBuilder normalized = new StringBuilder(requestUrl.length());
+        normalized.append(lowerCaseSchemeAndHost(requestUrl.substring(0, queryStart)));
+        char separator = '?';
+        for (String parameter : parameters) {
+            if (parameter.isEmpty()) {
+                continue;
+            }
+            normalized.append(separator).append(parameter);
+            separator = '&';
+        }
+        return normalized.toString();
+    }
+
+    private static String lowerCaseSchemeAndHost(String url) {
+        int hostStart = url.indexOf("://");
+        if (hostStart < 0) {
+            return url;
+        }
+        int pathStart = url.indexOf('/', hostStart + 3);
+        if (pathStart < 0) {
+            return url.toLowerCase(Locale.US);
+        }
+        return url.substring(0, pathStart).toLowerCase(Locale.US) + url.substring(pathStart);
+    }
+
+    /**
+     * @return a file name safe hex SHA-1 hash of the given string
+     */
+    private static String hash(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] bytes = digest.digest(value.getBytes(Charset.forName("UTF-8")));
+            StringBuilder hex = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device has SHA-1, fall back to the plain hash code just in case
+            return Integer.toHexString(value.hashCode());
+        }
+    }
+
+    /**
+     * Called with the first rows of a cached result while the rest is still being read
+     */
+    public interface OnFirstRowsReadListener {
+        void onFirstRowsRead(EarthquakeCatalog firstRows);
+    }
+
+
+    /**
+     * A cached query result, with the validators of the response it was parsed from
+     */
+    public static final class Entry {
+
+        private final EarthquakeCatalog mCatalog;
+
+        /* ETag header of the response, null if the server did not send one */
+        private final String mETag;
+
+        /* Last-Modified header of the response, null if the server did not send one */
+        private final String mLastModified;
+
+        /* Bytes downloaded to get this result, 0 if it was read from the cache */
+        private final long mBytesTransferred;
+
+        public Entry(EarthquakeCatalog catalog, String eTag, String lastModified) {
+            this(catalog, eTag, lastModified, 0);
+        }
+
+        public Entry(EarthquakeCatalog catalog, String eTag, String lastModified,
+                     long bytesTransferred) {
+            mCatalog = catalog;
+            mETag = eTag;
+            mLastModified = lastModified;
+            mBytesTransferred = bytesTransferred;
+        }
+
+        public EarthquakeCatalog getCatalog() { return mCatalog; }
+
+        public String getETag() { return mETag; }
+
+        public String getLastModified() { return mLastModified; }
+
+        public long getBytesTransferred() { return mBytesTransferred; }
+    }
+}
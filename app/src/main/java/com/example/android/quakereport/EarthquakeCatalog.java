@@ -0,0 +1,473 @@
+package com.example.android.quakereport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable list of earthquakes stored column by column.
+ *
+ * Instead of one {@link Earthquake} object (with its own fields) per event, every field is kept
+ * in its own primitive array, so a catalog of 20000 events costs a handful of arrays
+ * instead of tens of thousands of objects. Use a {@link Row} to read the events one at a time
+ * without allocating, or {@link #get(int)} when a stand alone {@link Earthquake} is needed.
+ */
+public final class EarthquakeCatalog {
+
+    /** A catalog without any earthquakes */
+    public static final EarthquakeCatalog EMPTY = new Builder().build();
+
+    /* Number of earthquakes in the catalog */
+    private final int mSize;
+
+    /* USGS event ids of the earthquakes */
+    private final String[] mIds;
+
+    /* Magnitudes of the earthquakes */
+    private final double[] mMagnitudes;
+
+    /* Places where the earthquakes happened, decoded when they are first read */
+    private final Utf8Column mPlaces;
+
+    /* Split of the places, worked out once when the earthquakes are added to the catalog.
+     * End of the location offset (i.e "38km SE of"), 0 if there is none */
+    private final int[] mLocationOffsetEnds;
+
+    /* Start of the primary location (i.e "Tokyo, Japan") */
+    private final int[] mPrimaryLocationStarts;
+
+    /* Times of the earthquakes */
+    private final long[] mTimesInMilliseconds;
+
+    /* Times the earthquakes were last updated by USGS */
+    private final long[] mUpdatedInMilliseconds;
+
+    /* Locations of the earthquakes' epicenters, NaN if USGS sent no geometry */
+    private final double[] mLatitudes;
+    private final double[] mLongitudes;
+
+    /* Url links to find more info about the earthquakes, decoded when they are first read */
+    private final Utf8Column mUrls;
+
+    /* Ids of the earthquakes USGS reported as deleted, only sent for incremental queries */
+    private final String[] mDeletedIds;
+
+    /* Latest update time of all the earthquakes */
+    private final long mMaxUpdatedInMilliseconds;
+
+    private EarthquakeCatalog(int size, String[] ids, double[] magnitudes, Utf8Column places,
+                              int[] locationOffsetEnds, int[] primaryLocationStarts,
+                              long[] timesInMilliseconds, long[] updatedInMilliseconds,
+                              double[] latitudes, double[] longitudes,
+                              Utf8Column urls, String[] deletedIds) {
+        mSize = size;
+        mIds = ids;
+        mMagnitudes = magnitudes;
+        mPlaces = places;
+        mLocationOffsetEnds = locationOffsetEnds;
+        mPrimaryLocationStarts = primaryLocationStarts;
+        mTimesInMilliseconds = timesInMilliseconds;
+        mUpdatedInMilliseconds = updatedInMilliseconds;
+        mLatitudes = latitudes;
+        mLongitudes = longitudes;
+        mUrls = urls;
+        mDeletedIds = deletedIds;
+
+        long maxUpdated = 0;
+        for (int i = 0; i < size; i++) {
+            maxUpdated = Math.max(maxUpdated, updatedInMilliseconds[i]);
+        }
+        mMaxUpdatedInMilliseconds = maxUpdated;
+    }
+
+    /**
+     * @return the number of earthquakes in the catalog
+     */
+    public int size() { return mSize; }
+
+    /**
+     * @return true if the catalog has no earthquakes
+     */
+    public boolean isEmpty() { return mSize == 0; }
+
+    /**
+     * @return the USGS event id of the earthquake at the given position
+     */
+    public String getId(int position) { return mIds[position]; }
+
+    /**
+     * @return the magnitude of the earthquake at the given position
+     */
+    public double getMag(int position) { return mMagnitudes[position]; }
+
+    /**
+     * @return the place of the earthquake at the given position
+     */
+    public String getPlace(int position) { return mPlaces.get(position); }
+
+    /**
+     * @return the time of the earthquake at the given position
+     */
+    public long getTimeInMilliseconds(int position) { return mTimesInMilliseconds[position]; }
+
+    /**
+     * @return the time the earthquake at the given position was last updated
+     */
+    public long getUpdatedInMilliseconds(int position) { return mUpdatedInMilliseconds[position]; }
+
+    /**
+     * @return the latitude of the earthquake at the given position, NaN if it is unknown
+     */
+    public double getLatitude(int position) { return mLatitudes[position]; }
+
+    /**
+     * @return the longitude of the earthquake at the given position, NaN if it is unknown
+     */
+    public double getLongitude(int position) { return mLongitudes[position]; }
+
+    /**
+     * @return the url of the earthquake at the given position
+     */
+    public String getUrl(int position) { return mUrls.get(position); }
+
+    /**
+     * @return true if the earthquake at the given position has the same place as the earthquake
+     * at the other position of the other catalog, compared without decoding them when possible
+     */
+    public boolean hasSamePlace(int position, EarthquakeCatalog other, int otherPosition) {
+        return mPlaces.equals(position, other.mPlaces, otherPosition);
+    }
+
+    /**
+     * @return true if the url of the earthquake at the given position is the prefix followed
+     * by the suffix, compared without decoding the url when possible
+     */
+    public boolean hasUrl(int position, String prefix, String suffix) {
+        return mUrls.equals(position, prefix, suffix);
+    }
+
+    /**
+     * @return the latest update time of all the earthquakes, 0 if the catalog is empty
+     */
+    public long getMaxUpdatedInMilliseconds() { return mMaxUpdatedInMilliseconds; }
+
+    /**
+     * @return the ids of the earthquakes USGS reported as deleted
+     */
+    public String[] getDeletedIds() { return mDeletedIds.clone(); }
+
+    /**
+     * @return an estimate of the memory the catalog takes, i.e to weigh it in a cache
+     */
+    public long estimateBytes() {
+        // Id references and Strings, then a double, a long and an int per column
+        long bytes = mIds.length * 4L + mPlaces.estimateBytes() + mUrls.estimateBytes()
+                + mMagnitudes.length * 8L + mLatitudes.length * 8L + mLongitudes.length * 8L
+                + mTimesInMilliseconds.length * 8L + mUpdatedInMilliseconds.length * 8L
+                + mLocationOffsetEnds.length * 4L + mPrimaryLocationStarts.length * 4L;
+        for (int i = 0; i < mSize; i++) {
+            if (mIds[i] != null) {
+                bytes += 40 + mIds[i].length() * 2;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return a new catalog with the earthquakes at the given positions, in that order
+     * @param positions positions of the earthquakes in this catalog
+     * @param count how many of the positions to use
+     */
+    public EarthquakeCatalog select(int[] positions, int count) {
+        Builder builder = new Builder(count);
+        for (int i = 0; i < count; i++) {
+            builder.add(this, positions[i]);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return a new {@link Earthquake} object for the earthquake at the given position
+     */
+    public Earthquake get(int position) {
+        return new Earthquake(mMagnitudes[position], mPlaces.get(position),
+                mTimesInMilliseconds[position], mUrls.get(position));
+    }
+
+    /**
+     * @return a new reusable {@link Row} view over this catalog
+     */
+    public Row newRow() {
+        return new Row(this);
+    }
+
+
+    /**
+     * A flyweight view of one earthquake in a catalog.
+     * Moving it to another position does not allocate, so one Row can bind any number of list items.
+     */
+    public static final class Row {
+
+        private EarthquakeCatalog mCatalog;
+
+        private int mPosition;
+
+        private Row(EarthquakeCatalog catalog) {
+            mCatalog = catalog;
+        }
+
+        /**
+         * Point this row at the earthquake at the given position and return it
+         */
+        public Row moveToPosition(int position) {
+            mPosition = position;
+            return this;
+        }
+
+        /**
+         * Point this row at the earthquake at the given position of another catalog and return it
+         */
+        public Row moveTo(EarthquakeCatalog catalog, int position) {
+            mCatalog = catalog;
+            mPosition = position;
+            return this;
+        }
+
+        public int getPosition() { return mPosition; }
+
+        public String getId() { return mCatalog.mIds[mPosition]; }
+
+        public double getMag() { return mCatalog.mMagnitudes[mPosition]; }
+
+        public String getPlace() { return mCatalog.mPlaces.get(mPosition); }
+
+        /**
+         * @return the end of the location offset in the place (i.e "38km SE of"),
+         * 0 if the earthquake happened near the place
+         */
+        public int getLocationOffsetEnd() { return mCatalog.mLocationOffsetEnds[mPosition]; }
+
+        /**
+         * @return the start of the primary location in the place (i.e "Tokyo, Japan")
+         */
+        public int getPrimaryLocationStart() { return mCatalog.mPrimaryLocationStarts[mPosition]; }
+
+        public long getTimeInMilliseconds() { return mCatalog.mTimesInMilliseconds[mPosition]; }
+
+        public String getUrl() { return mCatalog.mUrls.get(mPosition); }
+    }
+
+
+    /**
+     * Builds up an {@link EarthquakeCatalog} one earthquake at a time.
+     * Repeated place and url strings are pooled, so every distinct value is only kept once.
+     * The parser can also hand over places and urls as UTF-8 bytes, to be decoded on first read.
+     */
+    public static final class Builder {
+
+        /* Capacity of the column arrays of a new builder */
+        private static final int DEFAULT_CAPACITY = 16;
+
+        private int mSize;
+        private String[] mIds;
+        private double[] mMagnitudes;
+        private Utf8Column mPlaces;
+        private int[] mLocationOffsetEnds;
+        private int[] mPrimaryLocationStarts;
+        private long[] mTimesInMilliseconds;
+        private long[] mUpdatedInMilliseconds;
+        private double[] mLatitudes;
+        private double[] mLongitudes;
+        private Utf8Column mUrls;
+        private final List<String> mDeletedIds = new ArrayList<>();
+
+        /* Pool of the strings already stored in the catalog */
+        private final Map<String, String> mStringPool = new HashMap<>();
+
+        public Builder() {
+            this(DEFAULT_CAPACITY);
+        }
+
+        /**
+         * @param capacity the number of earthquakes expected, used to size the column arrays
+         */
+        public Builder(int capacity) {
+            capacity = Math.max(capacity, 1);
+            mIds = new String[capacity];
+            mMagnitudes = new double[capacity];
+            mPlaces = new Utf8Column(capacity);
+            mLocationOffsetEnds = new int[capacity];
+            mPrimaryLocationStarts = new int[capacity];
+            mTimesInMilliseconds = new long[capacity];
+            mUpdatedInMilliseconds = new long[capacity];
+            mLatitudes = new double[capacity];
+            mLongitudes = new double[capacity];
+            mUrls = new Utf8Column(capacity);
+        }
+
+        /**
+         * @return the number of earthquakes added so far
+         */
+        public int size() { return mSize; }
+
+        /**
+         * Add an earthquake without a known location to the end of the catalog
+         * @see #add(String, double, String, long, long, double, double, String)
+         */
+        public Builder add(String id, double mag, String place, long timeInMilliseconds,
+                           long updatedInMilliseconds, String url) {
+            return add(id, mag, place, timeInMilliseconds, updatedInMilliseconds,
+                    Double.NaN, Double.NaN, url);
+        }
+
+        /**
+         * Add an earthquake to the end of the catalog
+         * @param id is the USGS event id of the earthquake
+         * @param mag is the magnitude of the earthquake
+         * @param place where the earthquake happened
+         * @param timeInMilliseconds when the earthquake happened
+         * @param updatedInMilliseconds when the earthquake was last updated by USGS
+         * @param latitude latitude of the epicenter, NaN if it is unknown
+         * @param longitude longitude of the epicenter, NaN if it is unknown
+         * @param url the url that leads to more info about the earthquake
+         */
+        public Builder add(String id, double mag, String place, long timeInMilliseconds,
+                           long updatedInMilliseconds, double latitude, double longitude,
+                           String url) {
+            // Split the place here, once, instead of every time it is shown
+            int locationOffsetEnd = EarthquakeFormatter.findLocationOffsetEnd(place);
+            int primaryLocationStart = EarthquakeFormatter.findPrimaryLocationStart(place, locationOffsetEnd);
+            int position = append(id, mag, locationOffsetEnd, primaryLocationStart,
+                    timeInMilliseconds, updatedInMilliseconds, latitude, longitude);
+            mPlaces.set(position, pool(place));
+            mUrls.set(position, pool(url));
+            return this;
+        }
+
+        /**
+         * Add the earthquake at the given position of another catalog to the end of this catalog
+         */
+        public Builder add(EarthquakeCatalog catalog, int position) {
+            int added = append(catalog.mIds[position], catalog.mMagnitudes[position],
+                    catalog.mLocationOffsetEnds[position], catalog.mPrimaryLocationStarts[position],
+                    catalog.mTimesInMilliseconds[position], catalog.mUpdatedInMilliseconds[position],
+                    catalog.mLatitudes[position], catalog.mLongitudes[position]);
+            // The place and url are copied as they are, bytes stay bytes
+            mPlaces.copy(added, catalog.mPlaces, position);
+            mUrls.copy(added, catalog.mUrls, position);
+            return this;
+        }
+
+        /**
+         * Add every earthquake of another catalog, and its deleted ids, to the end of this catalog
+         */
+        public Builder addAll(EarthquakeCatalog catalog) {
+            for (int i = 0; i < catalog.mSize; i++) {
+                add(catalog, i);
+            }
+            mDeletedIds.addAll(Arrays.asList(catalog.mDeletedIds));
+            return this;
+        }
+
+        /**
+         * Replace the place of the last earthquake added by its UTF-8 bytes, decoded on first read
+         * @param locationOffsetEnd the end of the location offset, in characters
+         * @param primaryLocationStart the start of the primary location, in characters
+         */
+        void setLastPlace(byte[] source, int offset, int length,
+                          int locationOffsetEnd, int primaryLocationStart) {
+            mPlaces.setEncoded(mSize - 1, source, offset, length);
+            mLocationOffsetEnds[mSize - 1] = locationOffsetEnd;
+            mPrimaryLocationStarts[mSize - 1] = primaryLocationStart;
+        }
+
+        /**
+         * Replace the url of the last earthquake added by its UTF-8 bytes, decoded on first read
+         */
+        void setLastUrl(byte[] source, int offset, int length) {
+            mUrls.setEncoded(mSize - 1, source, offset, length);
+        }
+
+        /**
+         * Add the fields of an earthquake that are not strings
+         * @return the position of the earthquake
+         */
+        private int append(String id, double mag, int locationOffsetEnd,
+                           int primaryLocationStart, long timeInMilliseconds,
+                           long updatedInMilliseconds, double latitude, double longitude) {
+            if (mSize == mMagnitudes.length) {
+                grow();
+            }
+            mIds[mSize] = id;
+            mMagnitudes[mSize] = mag;
+            mLocationOffsetEnds[mSize] = locationOffsetEnd;
+            mPrimaryLocationStarts[mSize] = primaryLocationStart;
+            mTimesInMilliseconds[mSize] = timeInMilliseconds;
+            mUpdatedInMilliseconds[mSize] = updatedInMilliseconds;
+            mLatitudes[mSize] = latitude;
+            mLongitudes[mSize] = longitude;
+            return mSize++;
+        }
+
+        /**
+         * Record that USGS deleted the earthquake with the given id
+         */
+        public Builder addDeleted(String id) {
+            mDeletedIds.add(id);
+            return this;
+        }
+
+        /**
+         * @return a catalog of every earthquake added so far.
+         * The columns are copied, so more earthquakes can still be added to the builder afterwards.
+         */
+        public EarthquakeCatalog build() {
+            return new EarthquakeCatalog(mSize,
+                    Arrays.copyOf(mIds, mSize),
+                    Arrays.copyOf(mMagnitudes, mSize),
+                    mPlaces.copyOf(mSize),
+                    Arrays.copyOf(mLocationOffsetEnds, mSize),
+                    Arrays.copyOf(mPrimaryLocationStarts, mSize),
+                    Arrays.copyOf(mTimesInMilliseconds, mSize),
+                    Arrays.copyOf(mUpdatedInMilliseconds, mSize),
+                    Arrays.copyOf(mLatitudes, mSize),
+                    Arrays.copyOf(mLongitudes, mSize),
+                    mUrls.copyOf(mSize),
+                    mDeletedIds.toArray(new String[mDeletedIds.size()]));
+        }
+
+        /**
+         * Double the capacity of every column
+         */
+        private void grow() {
+            int capacity = mMagnitudes.length * 2;
+            mIds = Arrays.copyOf(mIds, capacity);
+            mMagnitudes = Arrays.copyOf(mMagnitudes, capacity);
+            mPlaces.grow(capacity);
+            mLocationOffsetEnds = Arrays.copyOf(mLocationOffsetEnds, capacity);
+            mPrimaryLocationStarts = Arrays.copyOf(mPrimaryLocationStarts, capacity);
+            mTimesInMilliseconds = Arrays.copyOf(mTimesInMilliseconds, capacity);
+            mUpdatedInMilliseconds = Arrays.copyOf(mUpdatedInMilliseconds, capacity);
+            mLatitudes = Arrays.copyOf(mLatitudes, capacity);
+            mLongitudes = Arrays.copyOf(mLongitudes, capacity);
+            mUrls.grow(capacity);
+        }
+
+        /**
+         * @return the pooled instance of the given string
+         */
+        private String pool(String value) {
+            if (value == null) {
+                return null;
+            }
+            String pooled = mStringPool.get(value);
+            if (pooled == null) {
+                mStringPool.put(value, value);
+                pooled = value;
+            }
+            return pooled;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.example.android.quakereport;
+
+import android.support.v7.widget.RecyclerView;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The changes that turn one list of earthquakes into another, keyed by USGS event id.
+ *
+ * Earthquakes whose id is gone are removed, new ids are inserted, earthquakes that moved are
+ * moved and earthquakes USGS updated are changed. The diff is computed on a background thread by
+ * {@link #compute(EarthquakeCatalog, EarthquakeCatalog)} and then dispatched to the adapter on
+ * the main thread, so a refresh only re-binds the rows that actually changed.
+ */
+public final class EarthquakeDiff {
+
+    /* Operation types, every operation takes 3 ints: type, position and count (or target) */
+    private static final int REMOVE = 0;
+    private static final int INSERT = 1;
+    private static final int MOVE = 2;
+    private static final int CHANGE = 3;
+
+    /* Past this many moves (i.e after the sort order changed) the diff is not worth computing */
+    private static final int MAX_MOVES = 256;
+
+    private int[] mOperations = new int[3 * 16];
+
+    private int mOperationCount;
+
+    private EarthquakeDiff() {
+    }
+
+    /**
+     * Compute the changes from the old earthquakes to the new ones, meant to be called on a
+     * background thread
+     * @return the diff, or null if too many earthquakes moved and the whole list should be
+     * refreshed instead
+     */
+    public static EarthquakeDiff compute(EarthquakeCatalog oldCatalog, EarthquakeCatalog newCatalog) {
+        int oldSize = oldCatalog.size();
+        int newSize = newCatalog.size();
+
+        Map<String, Integer> newPositions = new HashMap<>(newSize * 2);
+        for (int j = 0; j < newSize; j++) {
+            if (newCatalog.getId(j) != null) {
+                newPositions.put(newCatalog.getId(j), j);
+            }
+        }
+
+        // Match the old earthquakes to the new ones by id
+        int[] oldToNew = new int[oldSize];
+        int[] newToOld = new int[newSize];
+        Arrays.fill(newToOld, -1);
+        for (int i = 0; i < oldSize; i++) {
+            Integer j = oldCatalog.getId(i) != null ? newPositions.get(oldCatalog.getId(i)) : null;
+            if (j != null && newToOld[j] < 0) {
+                oldToNew[i] = j;
+                newToOld[j] = i;
+            } else {
+                oldToNew[i] = -1;
+            }
+        }
+
+        // Rank of every kept earthquake in the new order
+        int[] newRanks = new int[newSize];
+        int keptCount = 0;
+        for (int j = 0; j < newSize; j++) {
+            newRanks[j] = newToOld[j] >= 0 ? keptCount++ : -1;
+        }
+
+        // Ranks of the kept earthquakes in the old order. The longest increasing run of ranks
+        // stays in place, every other kept earthquake is moved
+        int[] ranks = new int[keptCount];
+        int k = 0;
+        for (int i = 0; i < oldSize; i++) {
+            if (oldToNew[i] >= 0) {
+                ranks[k++] = newRanks[oldToNew[i]];
+            }
+        }
+        boolean[] staysInPlace = longestIncreasingSubsequence(ranks);
+        int moveCount = 0;
+        for (boolean stays : staysInPlace) {
+            if (!stays) {
+                moveCount++;
+            }
+        }
+        if (moveCount > MAX_MOVES) {
+            return null;
+        }
+
+        EarthquakeDiff diff = new EarthquakeDiff();
+
+        // Removals, from the end so the positions of the rows before stay valid
+        for (int i = oldSize - 1; i >= 0; i--) {
+            if (oldToNew[i] < 0) {
+                diff.addRange(REMOVE, i, true);
+            }
+        }
+
+        // Moves, each moved earthquake goes right after the one before it in the new order
+        if (moveCount > 0) {
+            boolean[] moved = new boolean[keptCount];
+            for (int i = 0; i < keptCount; i++) {
+                moved[ranks[i]] = !staysInPlace[i];
+            }
+            for (int rank = 0; rank < keptCount; rank++) {
+                if (!moved[rank]) {
+                    continue;
+                }
+                int from = indexOf(ranks, rank);
+                int to = rank == 0 ? 0 : indexOf(ranks, rank - 1) + 1;
+                if (from < to) {
+                    to--;
+                }
+                if (from != to) {
+                    move(ranks, from, to);
+                    diff.add(MOVE, from, to);
+                }
+            }
+        }
+
+        // Insertions, in the new order so every position is already final
+        for (int j = 0; j < newSize; j++) {
+            if (newToOld[j] < 0) {
+                diff.addRange(INSERT, j, false);
+            }
+        }
+
+        // Changes of the earthquakes USGS updated, at their final positions
+        for (int j = 0; j < newSize; j++) {
+            int i = newToOld[j];
+            if (i >= 0 && isChanged(oldCatalog, i, newCatalog, j)) {
+                diff.addRange(CHANGE, j, false);
+            }
+        }
+        return diff;
+    }
+
+    /**
+     * @return true if the diff has no changes at all
+     */
+    public boolean isEmpty() {
+        return mOperationCount == 0;
+    }
+
+    /**
+     * Notify the adapter of every change, in order. Must be called on the main thread,
+     * right after the adapter's data was replaced by the new earthquakes
+     */
+    public void dispatchUpdatesTo(RecyclerView.Adapter adapter) {
+        for (int i = 0; i < mOperationCount; i++) {
+            int position = mOperations[3 * i + 1];
+            int value = mOperations[3 * i + 2];
+            switch (mOperations[3 * i]) {
+                case REMOVE:
+                    adapter.notifyItemRangeRemoved(position, value);
+                    break;
+                case INSERT:
+                    adapter.notifyItemRangeInserted(position, value);
+                    break;
+                case MOVE:
+                    adapter.notifyItemMoved(position, value);
+                    break;
+                default:
+                    adapter.notifyItemRangeChanged(position, value);
+            }
+        }
+    }
+
+    /**
+     * @return true if the earthquake needs to be bound again
+     */
+    private static boolean isChanged(EarthquakeCatalog oldCatalog, int i,
+                                     EarthquakeCatalog newCatalog, int j) {
+        // Magnitudes compared as bits, so an unknown (NaN) magnitude equals itself
+        return oldCatalog.getUpdatedInMilliseconds(i) != newCatalog.getUpdatedInMilliseconds(j)
+                || Double.compare(oldCatalog.getMag(i), newCatalog.getMag(j)) != 0
+                || oldCatalog.getTimeInMilliseconds(i) != newCatalog.getTimeInMilliseconds(j)
+                || !oldCatalog.hasSamePlace(i, newCatalog, j);
+    }
+
+    /**
+     * Add a one row operation, merged into the previous operation if it is of the same type
+     * and right next to it
+     * @param descending true if the positions are added from the end of the list
+     */
+    private void addRange(int type, int position, boolean descending) {
+        if (mOperationCount > 0) {
+            int last = 3 * (mOperationCount - 1);
+            if (mOperations[last] == type) {
+                if (descending && mOperations[last + 1] == position + 1) {
+                    mOperations[last + 1] = position;
+                    mOperations[last + 2]++;
+                    return;
+                }
+                if (!descending && mOperations[last + 1] + mOperations[last + 2] == position) {
+                    mOperations[last + 2]++;
+                    return;
+                }
+            }
+        }
+        add(type, position, 1);
+    }
+
+    private void add(int type, int position, int value) {
+        if (3 * (mOperationCount + 1) > mOperations.length) {
+            mOperations = Arrays.copyOf(mOperations, mOperations.length * 2);
+        }
+        mOperations[3 * mOperationCount] = type;
+        mOperations[3 * mOperationCount + 1] = position;
+        mOperations[3 * mOperationCount + 2] = value;
+        mOperationCount++;
+    }
+
+    /**
+     * @return which values belong to a longest strictly increasing subsequence of the values
+     */
+    private static boolean[] longestIncreasingSubsequence(int[] values) {
+        int n = values.length;
+        // tails[l] is the index of the smallest value ending an increasing run of length l + 1
+        int[] tails = new int[n];
+        int[] previous = new int[n];
+        int length = 0;
+        for (int i = 0; i < n; i++) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (values[tails[middle]] < values[i]) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            previous[i] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+            if (low == length) {
+                length++;
+            }
+        }
+
+        boolean[] inSubsequence = new boolean[n];
+        for (int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = previous[i]) {
+            inSubsequence[i] = true;
+        }
+        return inSubsequence;
+    }
+
+    private static int indexOf(int[] values, int value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Move the value at one index of the array to another, shifting the values in between
+     */
+    private static void move(int[] values, int from, int to) {
+        int value = values[from];
+        if (from < to) {
+            System.arraycopy(values, from + 1, values, from, to - from);
+        } else {
+            System.arraycopy(values, to, values, to + 1, from - to);
+        }
+        values[to] = value;
+    }
+}
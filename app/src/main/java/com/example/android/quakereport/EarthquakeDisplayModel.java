@@ -0,0 +1,212 @@
+package com.example.android.quakereport;
+
+import java.util.Arrays;
+
+/**
+ * The earthquakes of a catalog, ready to be shown in the list.
+ *
+ * Every text of a row (magnitude, location offset, primary location, date and time) is
+ * formatted once, on a background thread, and stored in one shared char array, along with the
+ * resolved color of the magnitude circle. Binding a list item then only hands slices of that
+ * array to TextView#setText(char[], int, int), nothing is formatted on the main thread.
+ *
+ * The model is immutable, so it can be built on the loader's thread and read on the main thread.
+ */
+public final class EarthquakeDisplayModel {
+
+    /** Texts of a row, passed to {@link #getTextStart(int, int)} and {@link #getTextLength(int, int)} */
+    public static final int MAGNITUDE = 0;
+    public static final int LOCATION_OFFSET = 1;
+    public static final int PRIMARY_LOCATION = 2;
+    public static final int DATE = 3;
+    public static final int TIME = 4;
+
+    /* Number of texts of a row */
+    private static final int TEXT_COUNT = 5;
+
+    /** A model without any earthquakes */
+    public static final EarthquakeDisplayModel EMPTY =
+            new EarthquakeDisplayModel(EarthquakeCatalog.EMPTY, new char[0], new int[1], new int[0]);
+
+    /* The earthquakes the model was built from */
+    private final EarthquakeCatalog mCatalog;
+
+    /* Every text of every row, one after the other */
+    private final char[] mText;
+
+    /* Start of every text in mText, by row and then text, followed by the end of the last one */
+    private final int[] mTextStarts;
+
+    /* Color of the magnitude circle of every row */
+    private final int[] mMagnitudeColors;
+
+    private EarthquakeDisplayModel(EarthquakeCatalog catalog, char[] text, int[] textStarts,
+                                   int[] magnitudeColors) {
+        mCatalog = catalog;
+        mText = text;
+        mTextStarts = textStarts;
+        mMagnitudeColors = magnitudeColors;
+    }
+
+    /**
+     * Format every earthquake of the catalog, meant to be called on a background thread
+     * @param catalog the earthquakes to show
+     * @param formatter a formatter only used by the calling thread
+     */
+    static EarthquakeDisplayModel build(EarthquakeCatalog catalog, EarthquakeFormatter formatter) {
+        int size = catalog.size();
+        int[] textStarts = new int[size * TEXT_COUNT + 1];
+        int[] magnitudeColors = new int[size];
+
+        // A row takes about 60 chars, the text grows if the places are longer
+        char[] text = new char[size * 64];
+        char[] scratch = new char[EarthquakeFormatter.MAX_LENGTH];
+        String nearText = formatter.getNearText();
+        int length = 0;
+
+        EarthquakeCatalog.Row row = catalog.newRow();
+        for (int i = 0; i < size; i++) {
+            row.moveToPosition(i);
+            magnitudeColors[i] = formatter.getMagnitudeColor(row.getMag());
+
+            String place = row.getPlace() != null ? row.getPlace() : "";
+            int locationOffsetEnd = row.getLocationOffsetEnd();
+            int placeLength = place.length() + nearText.length();
+            if (text.length - length < placeLength + 3 * EarthquakeFormatter.MAX_LENGTH) {
+                text = Arrays.copyOf(text, Math.max(text.length * 2, length + placeLength
+                        + 3 * EarthquakeFormatter.MAX_LENGTH));
+            }
+
+            int textIndex = i * TEXT_COUNT;
+            textStarts[textIndex + MAGNITUDE] = length;
+            int magnitudeLength = formatter.formatMagnitude(row.getMag(), scratch);
+            System.arraycopy(scratch, 0, text, length, magnitudeLength);
+            length += magnitudeLength;
+
+            // The place was split when the earthquake was added to the catalog. A place that
+            // does not start with a distance only displays a major city or country
+            textStarts[textIndex + LOCATION_OFFSET] = length;
+            if (locationOffsetEnd > 0) {
+                length = appendTrimmed(place, 0, locationOffsetEnd, text, length);
+            } else {
+                nearText.getChars(0, nearText.length(), text, length);
+                length += nearText.length();
+            }
+
+            textStarts[textIndex + PRIMARY_LOCATION] = length;
+            length = appendTrimmed(place, row.getPrimaryLocationStart(), place.length(), text, length);
+
+            textStarts[textIndex + DATE] = length;
+            int dateLength = formatter.formatDate(row.getTimeInMilliseconds(), scratch);
+            System.arraycopy(scratch, 0, text, length, dateLength);
+            length += dateLength;
+
+            textStarts[textIndex + TIME] = length;
+            int timeLength = formatter.formatTime(row.getTimeInMilliseconds(), scratch);
+            System.arraycopy(scratch, 0, text, length, timeLength);
+            length += timeLength;
+        }
+        textStarts[size * TEXT_COUNT] = length;
+
+        return new EarthquakeDisplayModel(catalog, Arrays.copyOf(text, length), textStarts,
+                magnitudeColors);
+    }
+
+    /**
+     * @return a new model with the rows at the given positions, in that order. The rows are
+     * copied as they were formatted
+     * @param positions positions of the rows in this model
+     * @param count how many of the positions to use
+     */
+    EarthquakeDisplayModel select(int[] positions, int count) {
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            int position = positions[i];
+            length += mTextStarts[(position + 1) * TEXT_COUNT] - mTextStarts[position * TEXT_COUNT];
+        }
+
+        char[] text = new char[length];
+        int[] textStarts = new int[count * TEXT_COUNT + 1];
+        int[] magnitudeColors = new int[count];
+        length = 0;
+        for (int i = 0; i < count; i++) {
+            int position = positions[i];
+            // The texts of a row are one after the other, the next row's start where it ends
+            int rowStart = mTextStarts[position * TEXT_COUNT];
+            int rowEnd = mTextStarts[(position + 1) * TEXT_COUNT];
+            for (int textIndex = 0; textIndex < TEXT_COUNT; textIndex++) {
+                textStarts[i * TEXT_COUNT + textIndex] =
+                        length + mTextStarts[position * TEXT_COUNT + textIndex] - rowStart;
+            }
+            System.arraycopy(mText, rowStart, text, length, rowEnd - rowStart);
+            length += rowEnd - rowStart;
+            magnitudeColors[i] = mMagnitudeColors[position];
+        }
+        textStarts[count * TEXT_COUNT] = length;
+
+        return new EarthquakeDisplayModel(mCatalog.select(positions, count), text, textStarts,
+                magnitudeColors);
+    }
+
+    /**
+     * @return the earthquakes the model was built from
+     */
+    public EarthquakeCatalog getCatalog() { return mCatalog; }
+
+    /**
+     * @return the number of earthquakes in the model
+     */
+    public int size() { return mCatalog.size(); }
+
+    /**
+     * @return true if the model has no earthquakes
+     */
+    public boolean isEmpty() { return mCatalog.isEmpty(); }
+
+    /**
+     * @return the chars of every text of the model, which must not be changed
+     */
+    public char[] getText() { return mText; }
+
+    /**
+     * @return where the given text of the earthquake at the given position starts in {@link #getText()}
+     * @param text one of {@link #MAGNITUDE}, {@link #LOCATION_OFFSET}, {@link #PRIMARY_LOCATION},
+     *             {@link #DATE} or {@link #TIME}
+     */
+    public int getTextStart(int position, int text) {
+        return mTextStarts[position * TEXT_COUNT + text];
+    }
+
+    /**
+     * @return the length of the given text of the earthquake at the given position
+     */
+    public int getTextLength(int position, int text) {
+        int index = position * TEXT_COUNT + text;
+        return mTextStarts[index + 1] - mTextStarts[index];
+    }
+
+    /**
+     * @return the color of the magnitude circle of the earthquake at the given position
+     */
+    public int getMagnitudeColor(int position) { return mMagnitudeColors[position]; }
+
+    /**
+     * @return an estimate of the memory the model takes, its catalog included
+     */
+    public long estimateBytes() {
+        return mCatalog.estimateBytes() + mText.length * 2L
+                + mTextStarts.length * 4L + mMagnitudeColors.length * 4L;
+    }
+
+    /**
+     * Copy the given part of a string, without trailing spaces, to the text
+     * @return the end of the copied chars in the text
+     */
+    private static int appendTrimmed(String value, int start, int end, char[] text, int length) {
+        while (end > start && Character.isWhitespace(value.charAt(end - 1))) {
+            end--;
+        }
+        value.getChars(start, end, text, length);
+        return length + end - start;
+    }
+}
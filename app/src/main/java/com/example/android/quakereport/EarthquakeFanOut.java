@@ -0,0 +1,207 @@
+package com.example.android.quakereport;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches several USGS queries at the same time (i.e one per region selected in the settings)
+ * and merges them into a single list.
+ *
+ * Every query is fetched and parsed on its own worker of a small, bounded thread pool, through
+ * the same cached {@link QueryUtils} path as a single query. The number of connections open to
+ * one host at a time is limited, all the queries go to USGS. The results are merged by event id,
+ * an earthquake that is in more than one region is only listed once, and sorted by the queries'
+ * "orderby", so loading every query takes about as long as the slowest one.
+ */
+final class EarthquakeFanOut {
+
+    /**
+     * Tag for the Log messages
+     */
+    private static final String LOG_TAG = EarthquakeFanOut.class.getSimpleName();
+
+    /* Queries fetched at the same time, the others wait in the executor's queue */
+    private static final int MAX_CONCURRENT_QUERIES = 4;
+
+    /* Connections open to the same host at the same time */
+    private static final int MAX_CONNECTIONS_PER_HOST = 2;
+
+    /* Idle workers are stopped after this long */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final ExecutorService sExecutor = createExecutor();
+
+    /* Connection permits of every host */
+    private static final Map<String, Semaphore> sHostPermits = new HashMap<>();
+
+    private EarthquakeFanOut() {
+    }
+
+    /**
+     * Fetch every query url at the same time, bringing their cached results up to date,
+     * and merge them. Blocks until every query is done
+     * @param cache the cache of the query results, or null
+     * @param cachedEntries the cached result of every query (null if it is not cached),
+     *                      or null to read them from the cache on the workers
+     * @param cancellation cancels every query, or null
+     * @return the merged earthquakes, or null if every query failed without a cached result
+     * or the fetch was cancelled
+     */
+    static EarthquakeCatalog fetchAll(List<String> requestUrls, final EarthquakeCache cache,
+                                      final List<EarthquakeCache.Entry> cachedEntries,
+                                      final FetchCancellation cancellation) {
+        long startTime = System.nanoTime();
+
+        List<Future<EarthquakeCatalog>> results = new ArrayList<>(requestUrls.size());
+        final long[] queryNanos = new long[requestUrls.size()];
+        for (int i = 0; i < requestUrls.size(); i++) {
+            final String requestUrl = requestUrls.get(i);
+            final int index = i;
+            results.add(sExecutor.submit(new Callable<EarthquakeCatalog>() {
+                @Override
+                public EarthquakeCatalog call() throws InterruptedException {
+                    Semaphore permits = getHostPermits(requestUrl);
+                    permits.acquire();
+                    long queryStartTime = System.nanoTime();
+                    try {
+                        EarthquakeCache.Entry cached = cachedEntries != null ? cachedEntries.get(index)
+                                : (cache != null ? cache.read(requestUrl) : null);
+                        // Joins the request of the query if it is already running
+                        EarthquakeCatalog result = EarthquakeRequests.fetch(requestUrl, cache, cached,
+                                null, cancellation);
+                        if (cancellation != null && cancellation.isCancelled()) {
+                            return null;
+                        }
+                        // A failed query still contributes its cached earthquakes
+                        return result != null ? result : (cached != null ? cached.getCatalog() : null);
+                    } finally {
+                        queryNanos[index] = System.nanoTime() - queryStartTime;
+                        permits.release();
+                    }
+                }
+            }));
+        }
+
+        List<EarthquakeCatalog> catalogs = new ArrayList<>(results.size());
+        try {
+            for (Future<EarthquakeCatalog> result : results) {
+                try {
+                    EarthquakeCatalog catalog = result.get();
+                    if (catalog != null) {
+                        catalogs.add(catalog);
+                    }
+                } catch (ExecutionException e) {
+                    Log.e(LOG_TAG, "Problem fetching an earthquake query", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            // The load was cancelled, so are the queries that are still running
+            for (Future<EarthquakeCatalog> result : results) {
+                result.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        if (catalogs.isEmpty() || (cancellation != null && cancellation.isCancelled())) {
+            return null;
+        }
+        EarthquakeCatalog merged = merge(catalogs, EarthquakeSync.getParameter(requestUrls.get(0), "orderby"));
+
+        long slowestNanos = 0;
+        long totalNanos = 0;
+        for (long nanos : queryNanos) {
+            slowestNanos = Math.max(slowestNanos, nanos);
+            totalNanos += nanos;
+        }
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%d queries in %.1f ms, the slowest took %.1f ms and all of them %.1f ms",
+                requestUrls.size(), (System.nanoTime() - startTime) / 1e6,
+                slowestNanos / 1e6, totalNanos / 1e6));
+        return merged;
+    }
+
+    /**
+     * Merge the results of several queries, keeping the most recently updated copy of every
+     * event id, and sort them by the given USGS "orderby" value
+     */
+    static EarthquakeCatalog merge(List<EarthquakeCatalog> catalogs, String orderBy) {
+        int capacity = 0;
+        for (EarthquakeCatalog catalog : catalogs) {
+            capacity += catalog.size();
+        }
+
+        // Position of every event id in the merged catalog
+        Map<String, Integer> positions = new HashMap<>(capacity * 2);
+        List<EarthquakeCatalog> sources = new ArrayList<>(capacity);
+        List<Integer> sourcePositions = new ArrayList<>(capacity);
+        for (EarthquakeCatalog catalog : catalogs) {
+            for (int i = 0; i < catalog.size(); i++) {
+                String id = catalog.getId(i);
+                Integer position = id != null ? positions.get(id) : null;
+                if (position == null) {
+                    if (id != null) {
+                        positions.put(id, sources.size());
+                    }
+                    sources.add(catalog);
+                    sourcePositions.add(i);
+                } else if (catalog.getUpdatedInMilliseconds(i)
+                        > sources.get(position).getUpdatedInMilliseconds(sourcePositions.get(position))) {
+                    sources.set(position, catalog);
+                    sourcePositions.set(position, i);
+                }
+            }
+        }
+
+        EarthquakeCatalog.Builder builder = new EarthquakeCatalog.Builder(sources.size());
+        for (int i = 0; i < sources.size(); i++) {
+            builder.add(sources.get(i), sourcePositions.get(i));
+        }
+        EarthquakeCatalog merged = builder.build();
+        int[] order = EarthquakeSync.sortOrder(merged, orderBy);
+        return merged.select(order, order.length);
+    }
+
+    private static Semaphore getHostPermits(String requestUrl) {
+        String host = Uri.parse(requestUrl).getHost();
+        synchronized (sHostPermits) {
+            Semaphore permits = sHostPermits.get(host);
+            if (permits == null) {
+                permits = new Semaphore(MAX_CONNECTIONS_PER_HOST);
+                sHostPermits.put(host, permits);
+            }
+            return permits;
+        }
+    }
+
+    private static ExecutorService createExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_CONCURRENT_QUERIES,
+                MAX_CONCURRENT_QUERIES, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, LOG_TAG + " #" + mCount.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
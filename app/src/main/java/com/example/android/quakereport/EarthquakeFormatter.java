@@ -0,0 +1,302 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.content.res.Configuration;
+import android.support.v4.content.ContextCompat;
+
+import java.text.DateFormatSymbols;
+import java.text.DecimalFormat;
+import java.text.FieldPosition;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Calendar;
+
+/**
+ * Formats the fields of an earthquake for the list without allocating.
+ *
+ * Text is written into char arrays handed in by the caller, see {@link EarthquakeDisplayModel}.
+ * Everything that depends on the locale or the resources (month names, AM/PM markers,
+ * magnitude colors, the "Near" text) is looked up once per configuration into {@link Tables}
+ * that every formatter shares, along with the text of every magnitude from 0.0 to 10.0, so
+ * formatting a row is mostly array lookups.
+ *
+ * A formatter is not thread safe, use one per thread.
+ */
+final class EarthquakeFormatter {
+
+    /** Length of a char array that can hold any formatted magnitude, date or time */
+    static final int MAX_LENGTH = 32;
+
+    /* Colors of the magnitude circle, by the magnitude's floor */
+    private static final int[] MAGNITUDE_COLOR_IDS = {
+            R.color.magnitude1, R.color.magnitude1, R.color.magnitude2, R.color.magnitude3,
+            R.color.magnitude4, R.color.magnitude5, R.color.magnitude6, R.color.magnitude7,
+            R.color.magnitude8, R.color.magnitude9
+    };
+
+    /* The tables of the last configuration, and a copy of it. Guarded by EarthquakeFormatter.class */
+    private static Tables sTables;
+    private static Configuration sTablesConfiguration;
+
+    private final Tables mTables;
+
+    /* Reused to split times into fields, in the default time zone */
+    private final Calendar mCalendar = Calendar.getInstance();
+
+    /* Only used for magnitudes that can't be rounded by hand, see formatMagnitude */
+    private final DecimalFormat mMagnitudeFormat = new DecimalFormat("0.0");
+    private final StringBuffer mMagnitudeBuffer = new StringBuffer(MAX_LENGTH);
+    private final FieldPosition mFieldPosition = new FieldPosition(0);
+
+    EarthquakeFormatter(Context context) {
+        this(getTables(context));
+    }
+
+    /**
+     * Create a formatter from resources that were already looked up, so it can also be used
+     * without a Context (i.e by the benchmarks, on a plain JVM)
+     * @param magnitudeColors the colors of the magnitudes from 0 to 9, by their floor
+     */
+    EarthquakeFormatter(int[] magnitudeColors, int magnitude10PlusColor, String nearText) {
+        this(new Tables(magnitudeColors, magnitude10PlusColor, nearText));
+    }
+
+    private EarthquakeFormatter(Tables tables) {
+        mTables = tables;
+    }
+
+    /**
+     * @return the tables of the context's current configuration, built on the first call
+     * after the configuration changed (i.e the locale or the night mode). Call it off the
+     * main thread, building them takes a few milliseconds
+     */
+    static Tables getTables(Context context) {
+        Configuration configuration = context.getResources().getConfiguration();
+        synchronized (EarthquakeFormatter.class) {
+            if (sTables == null || !configuration.equals(sTablesConfiguration)) {
+                int[] magnitudeColors = new int[MAGNITUDE_COLOR_IDS.length];
+                for (int i = 0; i < MAGNITUDE_COLOR_IDS.length; i++) {
+                    magnitudeColors[i] = ContextCompat.getColor(context, MAGNITUDE_COLOR_IDS[i]);
+                }
+                sTables = new Tables(magnitudeColors,
+                        ContextCompat.getColor(context, R.color.magnitude10plus),
+                        context.getString(R.string.near));
+                sTablesConfiguration = new Configuration(configuration);
+            }
+            return sTables;
+        }
+    }
+
+    /**
+     * Build the tables of the context's current configuration and load what formatting a row
+     * needs (the calendar, the number format and their locale data), so the first result of a
+     * launch is formatted without waiting for them. Call it off the main thread
+     */
+    static void prewarm(Context context) {
+        EarthquakeFormatter formatter = new EarthquakeFormatter(context);
+        char[] text = new char[MAX_LENGTH];
+        long now = System.currentTimeMillis();
+        formatter.formatDate(now, text);
+        formatter.formatTime(now, text);
+        // Not a table magnitude, goes through the DecimalFormat
+        formatter.formatMagnitude(0.05, text);
+    }
+
+    /**
+     * @return true if the formatter formats like the other one, with the tables of the same
+     * configuration, so the text it formatted can be shown as it is
+     */
+    boolean hasSameTables(EarthquakeFormatter other) {
+        return mTables == other.mTables;
+    }
+
+    /**
+     * @return the color that corresponds with the magnitude of the earthquake
+     * ranging from blue (low magnitude) to red (high magnitude)
+     */
+    int getMagnitudeColor(double magnitude) {
+        int magnitudeFloor = (int) Math.floor(magnitude);
+        int[] magnitudeColors = mTables.mMagnitudeColors;
+        if (magnitudeFloor < 0 || magnitudeFloor >= magnitudeColors.length) {
+            return mTables.mMagnitude10PlusColor;
+        }
+        return magnitudeColors[magnitudeFloor];
+    }
+
+    /**
+     * @return the location offset shown for an earthquake that happened near a place
+     */
+    String getNearText() {
+        return mTables.mNearText;
+    }
+
+    /**
+     * Write the magnitude with 1 decimal place (i.e 3.4), rounded half to even like
+     * DecimalFormat("0.0")
+     * @return the number of chars written
+     */
+    int formatMagnitude(double magnitude, char[] out) {
+        long hundredths = Math.round(magnitude * 100);
+        // Only round by hand when the result can't depend on how the double is rounded:
+        // magnitudes with up to 2 decimals, that are not halfway between two tenths, or exactly
+        // halfway in binary too (x.25 and x.75). Let DecimalFormat do the rest
+        if (hundredths / 100.0 != magnitude || Math.abs(hundredths) >= 1000000
+                || (Math.abs(hundredths) % 10 == 5 && hundredths % 25 != 0)) {
+            mMagnitudeBuffer.setLength(0);
+            mMagnitudeFormat.format(magnitude, mMagnitudeBuffer, mFieldPosition);
+            int length = Math.min(mMagnitudeBuffer.length(), out.length);
+            mMagnitudeBuffer.getChars(0, length, out, 0);
+            return length;
+        }
+
+        int length = 0;
+        // The sign bit, so -0.0 keeps its minus sign like in DecimalFormat
+        if (Double.doubleToRawLongBits(magnitude) < 0) {
+            out[length++] = '-';
+            hundredths = -hundredths;
+        }
+        long tenths = hundredths / 10;
+        long rest = hundredths % 10;
+        if (rest > 5 || (rest == 5 && tenths % 2 == 1)) {
+            tenths++;
+        }
+
+        // Every magnitude USGS reports is in the table
+        if (tenths < mTables.mMagnitudeTexts.length) {
+            char[] text = mTables.mMagnitudeTexts[(int) tenths];
+            System.arraycopy(text, 0, out, length, text.length);
+            return length + text.length;
+        }
+        length = appendNumber(out, length, tenths / 10, 1);
+        out[length++] = '.';
+        out[length++] = (char) ('0' + tenths % 10);
+        return length;
+    }
+
+    /**
+     * Write the date of the given time (i.e Mar 04, 2012), like SimpleDateFormat("LLL dd, yyyy")
+     * @return the number of chars written
+     */
+    int formatDate(long timeInMilliseconds, char[] out) {
+        mCalendar.setTimeInMillis(timeInMilliseconds);
+
+        String month = mTables.mMonthNames[mCalendar.get(Calendar.MONTH)];
+        month.getChars(0, month.length(), out, 0);
+        int length = month.length();
+        out[length++] = ' ';
+        length = appendNumber(out, length, mCalendar.get(Calendar.DAY_OF_MONTH), 2);
+        out[length++] = ',';
+        out[length++] = ' ';
+        return appendNumber(out, length, mCalendar.get(Calendar.YEAR), 4);
+    }
+
+    /**
+     * Write the time of day of the given time (i.e 3:35 PM), like SimpleDateFormat("h:mm a")
+     * @return the number of chars written
+     */
+    int formatTime(long timeInMilliseconds, char[] out) {
+        mCalendar.setTimeInMillis(timeInMilliseconds);
+
+        int hour = mCalendar.get(Calendar.HOUR);
+        int length = appendNumber(out, 0, hour == 0 ? 12 : hour, 1);
+        out[length++] = ':';
+        length = appendNumber(out, length, mCalendar.get(Calendar.MINUTE), 2);
+        out[length++] = ' ';
+
+        String marker = mTables.mAmPmMarkers[mCalendar.get(Calendar.AM_PM)];
+        marker.getChars(0, marker.length(), out, length);
+        return length + marker.length();
+    }
+
+    /**
+     * @return the end of the location offset of a USGS place (i.e the end of "38km SE of" in
+     * "38km SE of Tokyo, Japan"), or 0 if the place does not start with a distance,
+     * in which case the earthquake happened near the place
+     */
+    static int findLocationOffsetEnd(String place) {
+        if (place == null || place.isEmpty() || !Character.isDigit(place.charAt(0))) {
+            return 0;
+        }
+        int of = place.indexOf("of");
+        return of < 0 ? 0 : of + 2;
+    }
+
+    /**
+     * @return the start of the primary location of a USGS place (i.e "Tokyo, Japan"),
+     * right after the location offset and the spaces following it
+     */
+    static int findPrimaryLocationStart(String place, int locationOffsetEnd) {
+        int start = locationOffsetEnd;
+        while (place != null && start < place.length() && Character.isWhitespace(place.charAt(start))) {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * Write a positive number, padded with zeros to the given number of digits
+     * @return the position right after the number
+     */
+    private static int appendNumber(char[] out, int position, long value, int minDigits) {
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        digits = Math.max(digits, minDigits);
+        for (int i = position + digits - 1; i >= position; i--) {
+            out[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return position + digits;
+    }
+
+
+    /**
+     * Everything a formatter looks up from the resources and the locale, shared by every
+     * formatter of the same configuration. Immutable
+     */
+    static final class Tables {
+
+        /* Magnitudes up to this many tenths have their text in the table */
+        private static final int MAX_TABLE_TENTHS = 100;
+
+        /* Colors of the magnitude circle, by the magnitude's floor */
+        private final int[] mMagnitudeColors;
+        private final int mMagnitude10PlusColor;
+
+        /* Shown as the location offset of the earthquakes that happened near a place */
+        private final String mNearText;
+
+        /* Text of every magnitude from 0.0 to 10.0, by its number of tenths (i.e "3.4") */
+        private final char[][] mMagnitudeTexts = new char[MAX_TABLE_TENTHS + 1][];
+
+        /* Short stand alone month names (i.e Mar), as formatted by the "LLL" pattern */
+        private final String[] mMonthNames = new String[12];
+
+        /* AM and PM markers, as formatted by the "a" pattern */
+        private final String[] mAmPmMarkers;
+
+        Tables(int[] magnitudeColors, int magnitude10PlusColor, String nearText) {
+            mMagnitudeColors = magnitudeColors.clone();
+            mMagnitude10PlusColor = magnitude10PlusColor;
+            mNearText = nearText;
+
+            char[] text = new char[MAX_LENGTH];
+            for (int tenths = 0; tenths <= MAX_TABLE_TENTHS; tenths++) {
+                int length = appendNumber(text, 0, tenths / 10, 1);
+                text[length++] = '.';
+                text[length++] = (char) ('0' + tenths % 10);
+                mMagnitudeTexts[tenths] = Arrays.copyOf(text, length);
+            }
+
+            SimpleDateFormat monthFormat = new SimpleDateFormat("LLL");
+            Calendar calendar = Calendar.getInstance();
+            calendar.set(Calendar.DAY_OF_MONTH, 1);
+            for (int month = 0; month < mMonthNames.length; month++) {
+                calendar.set(Calendar.MONTH, month);
+                mMonthNames[month] = monthFormat.format(calendar.getTime());
+            }
+            mAmPmMarkers = new DateFormatSymbols().getAmPmStrings();
+        }
+    }
+}
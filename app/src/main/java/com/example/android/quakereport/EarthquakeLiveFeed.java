@@ -0,0 +1,390 @@
+package com.example.android.quakereport;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Live mode: polls a USGS summary feed (the earthquakes of the past hour, regenerated by USGS
+ * every minute) and reports the earthquakes that are new or were updated since the last poll.
+ *
+ * Every poll is a conditional request, so an unchanged feed only costs a 304 without a body.
+ * A changed feed is parsed with the byte scanner of {@link QueryUtils}, then compared with the
+ * previous poll by event id and update time, so only the new and updated earthquakes are
+ * reported, and the list only re-binds their rows, see {@link EarthquakePager#applyLiveChanges}.
+ *
+ * The poll interval adapts to the feed: it drops to {@link #MIN_INTERVAL} as soon as a poll
+ * brings changes, and grows by half after every poll that brings none, up to
+ * {@link #MAX_INTERVAL}. It is also stretched to keep the share of time spent polling (the duty
+ * cycle) under {@link #MAX_DUTY_CYCLE}, and kept at {@link #MAX_INTERVAL} while the bytes of the
+ * past hour are over {@link #MAX_BYTES_PER_HOUR}.
+ *
+ * Polls run on a thread of their own, the listener is called on the main thread.
+ * start and stop must be called on the main thread.
+ */
+public final class EarthquakeLiveFeed {
+
+    /**
+     * Tag for the Log messages
+     */
+    private static final String LOG_TAG = EarthquakeLiveFeed.class.getSimpleName();
+
+    /** The summary feed of every earthquake of the past hour */
+    public static final String PAST_HOUR_URL =
+            "https://earthquake.usgs.gov/earthquakes/feed/v1.0/summary/all_hour.geojson";
+
+    /** Shortest and longest time between two polls */
+    static final long MIN_INTERVAL = TimeUnit.SECONDS.toMillis(15);
+    static final long MAX_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+
+    /* The interval grows by this factor after a poll without changes */
+    private static final double BACKOFF_MULTIPLIER = 1.5;
+
+    /** Most share of the time spent polling */
+    static final double MAX_DUTY_CYCLE = 0.02;
+
+    /** Most bytes downloaded in an hour before the interval is pushed to its longest */
+    static final long MAX_BYTES_PER_HOUR = 2 * 1024 * 1024;
+
+    /* The bytes of the past hour are counted in one minute buckets */
+    private static final int MINUTES_PER_HOUR = 60;
+
+    /**
+     * Notified of the earthquakes the feed brought
+     */
+    public interface Listener {
+        /**
+         * Called on the main thread with the earthquakes that are new or were updated since the
+         * last poll, every earthquake of the feed after the first poll
+         */
+        void onEarthquakesChanged(EarthquakeCatalog changes);
+    }
+
+    /* The running feed, for the metrics screen */
+    private static volatile EarthquakeLiveFeed sRunningFeed;
+
+    private final String mFeedUrl;
+
+    private final Listener mListener;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /* The polling thread, only used on the main thread */
+    private HandlerThread mPollThread;
+    private Handler mPollHandler;
+
+    /* True between start and stop, only used on the main thread */
+    private boolean mRunning;
+
+    /* Cancels the running poll */
+    private volatile FetchCancellation mCancellation;
+
+    /* Validators of the last feed, only used on the polling thread */
+    private String mETag;
+    private String mLastModified;
+
+    /* Update time of every event id of the last feed, only used on the polling thread */
+    private Map<String, Long> mUpdatedById = new HashMap<>();
+
+    /* Time until the next poll */
+    private volatile long mInterval = MIN_INTERVAL;
+
+    /* Counters of the polls, guarded by this */
+    private long mStartNanos;
+    private long mPollingNanos;
+    private int mPolls;
+    private int mNotModifiedPolls;
+    private int mFailedPolls;
+    private int mChangedEarthquakes;
+
+    /* Bytes received in every minute of the past hour, and the minute of the latest bucket,
+     * guarded by this */
+    private final long[] mMinuteBytes = new long[MINUTES_PER_HOUR];
+    private long mLatestMinute;
+
+    private final Runnable mPoll = new Runnable() {
+        @Override
+        public void run() {
+            poll();
+        }
+    };
+
+    /**
+     * @param feedUrl the summary feed to poll, i.e {@link #PAST_HOUR_URL}, or a stand-in server
+     * @param listener notified of the new and updated earthquakes
+     */
+    public EarthquakeLiveFeed(String feedUrl, Listener listener) {
+        mFeedUrl = feedUrl;
+        mListener = listener;
+    }
+
+    /**
+     * Start polling, the first poll is sent right away
+     */
+    public void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        synchronized (this) {
+            mStartNanos = System.nanoTime();
+        }
+        mPollThread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mPollThread.start();
+        mPollHandler = new Handler(mPollThread.getLooper());
+        mPollHandler.post(mPoll);
+        sRunningFeed = this;
+    }
+
+    /**
+     * Stop polling, a poll that is running is aborted and its changes are dropped
+     */
+    public void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mPollHandler.removeCallbacks(mPoll);
+        FetchCancellation cancellation = mCancellation;
+        if (cancellation != null) {
+            cancellation.cancel();
+        }
+        mPollThread.quit();
+        if (sRunningFeed == this) {
+            sRunningFeed = null;
+        }
+    }
+
+    /**
+     * Send one conditional request for the feed, report its changes and schedule the next poll
+     */
+    private void poll() {
+        long pollStart = System.nanoTime();
+        FetchCancellation cancellation = new FetchCancellation();
+        mCancellation = cancellation;
+
+        boolean changed = false;
+        boolean failed = false;
+        boolean notModified = false;
+        long bytes = 0;
+        HttpTransport.Response response = null;
+        try {
+            Map<String, String> requestHeaders = new HashMap<>();
+            if (mETag != null) {
+                requestHeaders.put("If-None-Match", mETag);
+            }
+            if (mLastModified != null) {
+                requestHeaders.put("If-Modified-Since", mLastModified);
+            }
+            response = QueryUtils.getTransport().get(new URL(mFeedUrl), requestHeaders, cancellation);
+
+            int responseCode = response.getCode();
+            if (responseCode == 200) {
+                EarthquakeCatalog feed = QueryUtils.extractFeatureFromStream(response.getBody(),
+                        null, cancellation);
+                mETag = response.getHeader("ETag");
+                mLastModified = response.getHeader("Last-Modified");
+                EarthquakeCatalog changes = findChanges(feed);
+                if (!changes.isEmpty()) {
+                    changed = true;
+                    deliver(changes);
+                }
+            } else if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                notModified = true;
+            } else {
+                failed = true;
+                Log.e(LOG_TAG, "Error Response code is: " + responseCode);
+            }
+        } catch (IOException e) {
+            failed = true;
+            if (!cancellation.isCancelled()) {
+                Log.e(LOG_TAG, "Problem polling the live feed", e);
+            }
+        } finally {
+            cancellation.setResponse(null);
+            if (response != null) {
+                bytes = response.getBytesReceived();
+                response.close();
+            }
+        }
+
+        long pollNanos = System.nanoTime() - pollStart;
+        record(pollNanos, bytes, notModified, failed);
+        if (cancellation.isCancelled()) {
+            return;
+        }
+
+        mInterval = nextInterval(mInterval, changed, TimeUnit.NANOSECONDS.toMillis(pollNanos),
+                getBytesInPastHour());
+        mPollHandler.postDelayed(mPoll, mInterval);
+    }
+
+    /**
+     * @return the earthquakes of the feed that are not in the last feed, or that were updated
+     * since, and remember the feed for the next poll
+     */
+    private EarthquakeCatalog findChanges(EarthquakeCatalog feed) {
+        Map<String, Long> updatedById = new HashMap<>(feed.size() * 2);
+        EarthquakeCatalog.Builder changes = new EarthquakeCatalog.Builder();
+        for (int i = 0; i < feed.size(); i++) {
+            String id = feed.getId(i);
+            long updated = feed.getUpdatedInMilliseconds(i);
+            updatedById.put(id, updated);
+            Long lastUpdated = mUpdatedById.get(id);
+            if (lastUpdated == null || lastUpdated != updated) {
+                changes.add(feed, i);
+            }
+        }
+        mUpdatedById = updatedById;
+        return changes.build();
+    }
+
+    /**
+     * Hand the changes to the listener on the main thread, unless the feed was stopped
+     */
+    private void deliver(final EarthquakeCatalog changes) {
+        synchronized (this) {
+            mChangedEarthquakes += changes.size();
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mRunning) {
+                    mListener.onEarthquakesChanged(changes);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the time until the next poll
+     * @param interval the time before the last poll
+     * @param changed true if the last poll brought changes
+     * @param pollMillis how long the last poll took
+     * @param bytesInPastHour the bytes received by the polls of the past hour
+     */
+    static long nextInterval(long interval, boolean changed, long pollMillis, long bytesInPastHour) {
+        long next = changed ? MIN_INTERVAL
+                : Math.min((long) (interval * BACKOFF_MULTIPLIER), MAX_INTERVAL);
+        // Slow polls (i.e on a poor network) are spread out so they take a bounded share of time
+        next = Math.max(next, (long) (pollMillis / MAX_DUTY_CYCLE));
+        if (bytesInPastHour >= MAX_BYTES_PER_HOUR) {
+            next = Math.max(next, MAX_INTERVAL);
+        }
+        return next;
+    }
+
+    private synchronized void record(long pollNanos, long bytes, boolean notModified, boolean failed) {
+        mPolls++;
+        mPollingNanos += pollNanos;
+        if (notModified) {
+            mNotModifiedPolls++;
+        }
+        if (failed) {
+            mFailedPolls++;
+        }
+        long minute = TimeUnit.NANOSECONDS.toMinutes(System.nanoTime());
+        advanceTo(minute);
+        mMinuteBytes[(int) (minute % MINUTES_PER_HOUR)] += bytes;
+    }
+
+    /**
+     * @return the bytes received in the past hour
+     */
+    synchronized long getBytesInPastHour() {
+        advanceTo(TimeUnit.NANOSECONDS.toMinutes(System.nanoTime()));
+        long bytes = 0;
+        for (long minuteBytes : mMinuteBytes) {
+            bytes += minuteBytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Clear the buckets of the minutes that passed since the latest bucket
+     */
+    private void advanceTo(long minute) {
+        if (minute - mLatestMinute >= MINUTES_PER_HOUR) {
+            Arrays.fill(mMinuteBytes, 0);
+        } else {
+            for (long m = mLatestMinute + 1; m <= minute; m++) {
+                mMinuteBytes[(int) (m % MINUTES_PER_HOUR)] = 0;
+            }
+        }
+        mLatestMinute = Math.max(mLatestMinute, minute);
+    }
+
+    /**
+     * @return the share of the time since the feed started that was spent polling
+     */
+    synchronized double getDutyCycle() {
+        long elapsedNanos = System.nanoTime() - mStartNanos;
+        return elapsedNanos > 0 ? (double) mPollingNanos / elapsedNanos : 0;
+    }
+
+    /**
+     * @return the polls, bytes and duty cycle of the running feed
+     */
+    static String getSummary() {
+        EarthquakeLiveFeed feed = sRunningFeed;
+        if (feed == null) {
+            return "Live feed off";
+        }
+        long bytesInPastHour = feed.getBytesInPastHour();
+        double dutyCycle = feed.getDutyCycle();
+        synchronized (feed) {
+            return String.format(Locale.US,
+                    "Live feed: %d polls, %d not modified, %d failed, %d changed earthquakes,"
+                            + " %d bytes in the past hour, %.2f%% duty cycle, polling every %d s",
+                    feed.mPolls, feed.mNotModifiedPolls, feed.mFailedPolls,
+                    feed.mChangedEarthquakes, bytesInPastHour, dutyCycle * 100,
+                    TimeUnit.MILLISECONDS.toSeconds(feed.mInterval));
+        }
+    }
+
+    /**
+     * Merge the changes of the feed into the earthquakes shown for the given query urls.
+     * Only the changes that match one of the queries are kept, a feed holds every earthquake
+     * @return the merged earthquakes, the shown ones if none of the changes match, or null if
+     * the query has to be loaded again to show them (see {@link EarthquakeSync#merge})
+     */
+    static EarthquakeCatalog merge(EarthquakeCatalog shown, EarthquakeCatalog changes,
+                                   List<String> queryUrls) {
+        EarthquakeQueryEngine.Query[] queries = new EarthquakeQueryEngine.Query[queryUrls.size()];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = EarthquakeQueryEngine.Query.fromUrl(queryUrls.get(i));
+        }
+        EarthquakeCatalog.Builder matching = new EarthquakeCatalog.Builder();
+        for (int i = 0; i < changes.size(); i++) {
+            for (EarthquakeQueryEngine.Query query : queries) {
+                if (query.matches(changes, i)) {
+                    matching.add(changes, i);
+                    break;
+                }
+            }
+        }
+        if (matching.size() == 0) {
+            return shown;
+        }
+
+        // A single query is merged like an incremental sync, sorted and cut to its limit.
+        // The results of several queries are merged like the queries themselves, see EarthquakeFanOut
+        if (queryUrls.size() == 1) {
+            return EarthquakeSync.merge(queryUrls.get(0), shown, matching.build());
+        }
+        return EarthquakeFanOut.merge(Arrays.asList(shown, matching.build()),
+                EarthquakeSync.getParameter(queryUrls.get(0), "orderby"));
+    }
+}
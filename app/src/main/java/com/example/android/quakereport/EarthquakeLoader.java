@@ -2,36 +2,476 @@ package com.example.android.quakereport;
 
 import android.content.AsyncTaskLoader;
 import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Returns a list of Earthquakes by using AsyncTask to preform a http request on the given URL
+ * Returns the Earthquakes of the given URL, by using AsyncTask to preform a http request,
+ * formatted into an {@link EarthquakeDisplayModel} on the loader's thread
+ *
+ * The last result of the url is kept in the {@link EarthquakeCache}. Cached earthquakes are
+ * delivered straight away, before the cached result is revalidated with the server.
+ * If nothing is cached only the first page of the url is loaded, see {@link #isFirstPage()},
+ * and its earthquakes are delivered in growing batches while the response is still downloading.
+ * Results delivered before the load is done are flagged by {@link #isInterimResult()}.
+ *
+ * With more than one query url (one per region selected in the settings) every query is
+ * loaded at the same time and their results are merged, see {@link EarthquakeFanOut}.
+ *
+ * Fetches of a query that is already being fetched join its running request, see
+ * {@link EarthquakeRequests}. A cancelled or restarted load aborts its connection and stops
+ * parsing. The last result is kept in memory and delivered again when the loader is restarted,
+ * i.e after a rotation, instead of being loaded again. The complete results of every loader
+ * are also kept in the {@link EarthquakeResultCache}, so a new loader of a query that was just
+ * loaded (i.e once the settings are toggled back) shows it without loading it again.
+ *
+ * A loader created without urls builds them from the user's settings, and checks whether the
+ * device is online, on its own thread when the load starts, so reading the settings and asking
+ * the system for the network state stay out of the activity's launch. The network state is only
+ * needed once the cached earthquakes are delivered.
+ *
+ * The time to the first delivered row and to the complete result are logged for every load.
  */
-public class EarthquakeLoader extends AsyncTaskLoader<List<Earthquake>> {
+public class EarthquakeLoader extends AsyncTaskLoader<EarthquakeDisplayModel> {
 
-    private String mUrls;
+    /**
+     * Tag for the Log messages
+     */
+    private static final String LOG_TAG = EarthquakeLoader.class.getSimpleName();
+
+    /* Number of cached rows decoded and shown before the rest, enough to fill the first screen */
+    private static final int FIRST_SCREEN_ROWS = 30;
+
+    /* A result kept in memory is loaded again once it is older than this */
+    private static final long MAX_RESULT_AGE = 5 * 60 * 1000;
+
+    private volatile String mUrls;
+
+    /* Every query url of the loader, mUrls is the first one. Null until the first load of a
+     * loader that builds them from the settings */
+    private volatile List<String> mQueryUrls;
+
+    /* True if the device is online, otherwise only cached earthquakes are loaded */
+    private volatile boolean mIsConnected;
+
+    /* True to check the network state at every load instead of using mIsConnected as given */
+    private final boolean mChecksConnectivity;
+
+    private final EarthquakeCache mCache;
+
+    /* The results of the last queries of the whole app, formatted */
+    private final EarthquakeResultCache mResultCache;
+
+    /* True if the last result is only the first page of the url */
+    private volatile boolean mIsFirstPage;
+
+    /* Used to deliver cached earthquakes on the main thread while the load is still running */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /* True while an interim result is being delivered, only used on the main thread */
+    private boolean mIsInterimResult;
+
+    /* System.nanoTime() when the running load started, 0 once its result was delivered */
+    private volatile long mLoadStartNanos;
+
+    /* EarthquakeMetrics start time of the load that was queued last, 0 if it is not measured */
+    private volatile long mQueuedMetricsStart;
+
+    /* True once the running load delivered its first earthquake */
+    private volatile boolean mFirstRowDelivered;
+
+    /* True if the next load has to revalidate the query, not show the result kept in memory */
+    private volatile boolean mRevalidate;
+
+    /* True once the first load recorded whether the query was cached at launch */
+    private boolean mLaunchRecorded;
+
+    /* Cancels the fetch of the running load */
+    private volatile FetchCancellation mCancellation;
+
+    /* The last complete result and SystemClock.elapsedRealtime() when it was delivered,
+     * only used on the main thread */
+    private EarthquakeDisplayModel mResult;
+    private long mResultTime;
+
+    /* Latency counters of every load, averaged in the log */
+    private static final AtomicLong sLoads = new AtomicLong();
+    private static final AtomicLong sFirstRowLoads = new AtomicLong();
+    private static final AtomicLong sFirstRowNanos = new AtomicLong();
+    private static final AtomicLong sCompleteNanos = new AtomicLong();
 
     public EarthquakeLoader(Context context, String urls) {
+        this(context, urls, true);
+    }
+
+    /**
+     * @param context the context of the loader
+     * @param urls the USGS query url
+     * @param isConnected false to only load the cached earthquakes of the url
+     */
+    public EarthquakeLoader(Context context, String urls, boolean isConnected) {
+        this(context, Collections.singletonList(urls), isConnected);
+    }
+
+    /**
+     * @param context the context of the loader
+     * @param urls the USGS query urls, loaded at the same time and merged into one result
+     * @param isConnected false to only load the cached earthquakes of the urls
+     */
+    public EarthquakeLoader(Context context, List<String> urls, boolean isConnected) {
+        super(context);
+        mUrls = urls.get(0);
+        mQueryUrls = urls;
+        mIsConnected = isConnected;
+        mChecksConnectivity = false;
+        mCache = EarthquakeCache.getInstance(context);
+        mResultCache = EarthquakeResultCache.getInstance(context);
+    }
+
+    /**
+     * Create a loader of the queries of the user's settings, one per selected region. The
+     * settings are read and the network state is checked off the main thread, when loading
+     * @param context the context of the loader
+     */
+    public EarthquakeLoader(Context context) {
         super(context);
-        mUrls = urls;
+        // Online until a load finds out otherwise, results from memory don't need to know
+        mIsConnected = true;
+        mChecksConnectivity = true;
+        mCache = EarthquakeCache.getInstance(context);
+        mResultCache = EarthquakeResultCache.getInstance(context);
     }
 
     @Override
-    public List<Earthquake> loadInBackground() {
+    public EarthquakeDisplayModel loadInBackground() {
+        if (mQueryUrls == null) {
+            List<String> queryUrls = QueryUtils.buildQueryUrls(getContext());
+            mUrls = queryUrls.get(0);
+            mQueryUrls = queryUrls;
+        }
+
         // Checks if there is no url or if the url is null
         // Then there is no data to fetch from the internet. Do nothing
         if (mUrls == null) {
             return null;
         }
 
-        // Create a list of {@link Earthquake}s.
-        List<Earthquake> result = QueryUtils.fetchEarthquakeData(mUrls);
-        return result;
+        mFirstRowDelivered = false;
+        mLoadStartNanos = System.nanoTime();
+        EarthquakeMetrics.LOADER_QUEUE_WAIT.recordSince(mQueuedMetricsStart);
+        FetchCancellation cancellation = new FetchCancellation();
+        mCancellation = cancellation;
+
+        // Every result is formatted here, off the main thread, so the adapter only assigns texts
+        final EarthquakeFormatter formatter = new EarthquakeFormatter(getContext());
+
+        // A query loaded a moment ago, i.e before the settings were toggled back to it,
+        // is shown again without a request or a parse
+        boolean revalidate = mRevalidate;
+        mRevalidate = false;
+        EarthquakeDisplayModel remembered = revalidate ? null
+                : mResultCache.get(mQueryUrls, formatter, MAX_RESULT_AGE);
+        if (remembered != null) {
+            mIsFirstPage = false;
+            return remembered;
+        }
+
+        if (mQueryUrls.size() > 1) {
+            return loadAll(formatter, cancellation);
+        }
+
+        // Show the cached earthquakes right away, if there are any,
+        // starting with the first screen of them while the rest are still being decoded
+        EarthquakeCache.Entry cached = mCache.read(mUrls, FIRST_SCREEN_ROWS,
+                new EarthquakeCache.OnFirstRowsReadListener() {
+                    @Override
+                    public void onFirstRowsRead(EarthquakeCatalog firstRows) {
+                        deliverInterimResult(EarthquakeDisplayModel.build(firstRows, formatter));
+                    }
+                });
+        if (!mLaunchRecorded) {
+            mLaunchRecorded = true;
+            EarthquakeSyncService.recordLaunch(getContext(), cached != null);
+        }
+
+        // A query that only changed its minimum magnitude, order or limit in the settings
+        // is answered from the cached result of a broader query, without going to the network.
+        // It is cached under its own url, so the next load revalidates it like any other query
+        if (cached == null) {
+            long answerStart = System.nanoTime();
+            EarthquakeCatalog answer = EarthquakeQueryEngine.answerFromCache(mCache, mUrls);
+            if (answer != null) {
+                Log.i(LOG_TAG, String.format(Locale.US, "Answered %s from a cached query in %.1f ms",
+                        mUrls, (System.nanoTime() - answerStart) / 1e6));
+                mCache.write(mUrls, new EarthquakeCache.Entry(answer, null, null), 0);
+                mIsFirstPage = false;
+                return remember(EarthquakeDisplayModel.build(answer, formatter), formatter);
+            }
+        }
+
+        EarthquakeDisplayModel cachedModel = null;
+        if (cached != null) {
+            cachedModel = EarthquakeDisplayModel.build(cached.getCatalog(), formatter);
+            deliverInterimResult(cachedModel);
+        }
+
+        // Without a connection the cached earthquakes are all we have
+        if (!checkConnectivity()) {
+            mIsFirstPage = false;
+            return cachedModel;
+        }
+
+        // Nothing cached, only load the first page so it shows up as soon as possible,
+        // and show its earthquakes while they are parsed instead of waiting for the whole page.
+        // The {@link EarthquakePager} loads the rest while the list is scrolled
+        if (cached == null) {
+            mIsFirstPage = true;
+            EarthquakeCatalog firstPage = EarthquakeRequests.fetch(
+                    EarthquakePager.buildPageUrl(mUrls, 0), null, null,
+                    new QueryUtils.OnBatchParsedListener() {
+                        @Override
+                        public void onBatchParsed(EarthquakeCatalog earthquakesSoFar) {
+                            deliverInterimResult(EarthquakeDisplayModel.build(earthquakesSoFar, formatter));
+                        }
+                    }, cancellation);
+            return firstPage != null ? EarthquakeDisplayModel.build(firstPage, formatter) : null;
+        }
+        mIsFirstPage = false;
+
+        // Create a catalog of {@link Earthquake}s, revalidating the cached ones
+        EarthquakeCatalog result = EarthquakeRequests.fetch(mUrls, mCache, cached, null, cancellation);
+
+        // The cached earthquakes are still up to date, they are already formatted
+        if (result == cached.getCatalog()) {
+            return remember(cachedModel, formatter);
+        }
+        return result != null ? remember(EarthquakeDisplayModel.build(result, formatter), formatter) : null;
+    }
+
+    /**
+     * Load every query url of the loader at the same time and merge their results. The cached
+     * results of the urls are merged and delivered first
+     */
+    private EarthquakeDisplayModel loadAll(EarthquakeFormatter formatter,
+                                           FetchCancellation cancellation) {
+        mIsFirstPage = false;
+
+        List<EarthquakeCache.Entry> cachedEntries = new ArrayList<>(mQueryUrls.size());
+        List<EarthquakeCatalog> cachedCatalogs = new ArrayList<>(mQueryUrls.size());
+        for (String url : mQueryUrls) {
+            EarthquakeCache.Entry cached = mCache.read(url);
+            cachedEntries.add(cached);
+            if (cached != null) {
+                cachedCatalogs.add(cached.getCatalog());
+            }
+        }
+        if (!mLaunchRecorded) {
+            mLaunchRecorded = true;
+            EarthquakeSyncService.recordLaunch(getContext(), cachedCatalogs.size() == mQueryUrls.size());
+        }
+
+        EarthquakeDisplayModel cachedModel = null;
+        if (!cachedCatalogs.isEmpty()) {
+            cachedModel = EarthquakeDisplayModel.build(EarthquakeFanOut.merge(cachedCatalogs,
+                    EarthquakeSync.getParameter(mUrls, "orderby")), formatter);
+            deliverInterimResult(cachedModel);
+        }
+
+        // Without a connection the cached earthquakes are all we have
+        if (!checkConnectivity()) {
+            return cachedModel;
+        }
+
+        EarthquakeCatalog result = EarthquakeFanOut.fetchAll(mQueryUrls, mCache, cachedEntries,
+                cancellation);
+        return result != null ? remember(EarthquakeDisplayModel.build(result, formatter), formatter)
+                : cachedModel;
+    }
+
+    /**
+     * @return true if the device is online, checked again for every load of a loader that
+     * builds its queries from the settings
+     */
+    private boolean checkConnectivity() {
+        if (mChecksConnectivity) {
+            // Get details on the currently active default data network
+            ConnectivityManager connectivityManager = (ConnectivityManager)
+                    getContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo activeNetwork = connectivityManager.getActiveNetworkInfo();
+            mIsConnected = activeNetwork != null && activeNetwork.isConnectedOrConnecting();
+        }
+        return mIsConnected;
+    }
+
+    /**
+     * Keep a complete result that is up to date with the server in the {@link EarthquakeResultCache}
+     * @return the result
+     */
+    private EarthquakeDisplayModel remember(EarthquakeDisplayModel earthquakes,
+                                            EarthquakeFormatter formatter) {
+        mResultCache.put(mQueryUrls, earthquakes, formatter);
+        return earthquakes;
+    }
+
+    /**
+     * @return the query url of the loader
+     */
+    public String getUrl() {
+        return mUrls;
+    }
+
+    /**
+     * @return true if the last result delivered by {@link #loadInBackground()} is only the
+     * first {@link EarthquakePager#PAGE_SIZE} earthquakes of the url, not the whole result
+     */
+    public boolean isFirstPage() {
+        return mIsFirstPage;
+    }
+
+    /**
+     * @return true while a result is delivered before the load is done: the cached earthquakes,
+     * or the earthquakes of the first page parsed so far. Only valid in onLoadFinished
+     */
+    public boolean isInterimResult() {
+        return mIsInterimResult;
+    }
+
+    /**
+     * @return true if the device was online during the last load, only meaningful once a
+     * result was delivered
+     */
+    public boolean isConnected() {
+        return mIsConnected;
+    }
+
+    /**
+     * @return every query url of the loader, null until the first load of a loader that
+     * builds them from the settings
+     */
+    public List<String> getUrls() {
+        return mQueryUrls;
     }
 
     @Override
     protected void onStartLoading() {
-        forceLoad();
+        // Deliver the result kept in memory right away, and only load again if it is stale
+        if (mResult != null) {
+            deliverResult(mResult);
+        }
+        if (mResult == null || takeContentChanged()
+                || SystemClock.elapsedRealtime() - mResultTime > MAX_RESULT_AGE) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    public void onContentChanged() {
+        // The result in memory is out of date, i.e the live feed changed it
+        mRevalidate = true;
+        super.onContentChanged();
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        mResult = null;
+    }
+
+    @Override
+    protected void onForceLoad() {
+        // The load waits in the executor of the loaders until it starts
+        mQueuedMetricsStart = EarthquakeMetrics.start();
+        super.onForceLoad();
+    }
+
+    @Override
+    public void cancelLoadInBackground() {
+        // Abort the connection and the parse of the running load
+        FetchCancellation cancellation = mCancellation;
+        if (cancellation != null) {
+            cancellation.cancel();
+        }
+    }
+
+    @Override
+    public void deliverResult(EarthquakeDisplayModel earthquakes) {
+        if (isReset()) {
+            return;
+        }
+        if (!mIsInterimResult && earthquakes != null) {
+            mResult = earthquakes;
+            mResultTime = SystemClock.elapsedRealtime();
+        }
+        super.deliverResult(earthquakes);
+
+        long loadStartNanos = mLoadStartNanos;
+        if (loadStartNanos == 0) {
+            return;
+        }
+        long elapsedNanos = System.nanoTime() - loadStartNanos;
+        if (!mFirstRowDelivered && earthquakes != null && !earthquakes.isEmpty()) {
+            mFirstRowDelivered = true;
+            sFirstRowLoads.incrementAndGet();
+            sFirstRowNanos.addAndGet(elapsedNanos);
+            Log.i(LOG_TAG, String.format(Locale.US, "Time to first row: %.1f ms",
+                    elapsedNanos / 1e6));
+        }
+        if (!mIsInterimResult) {
+            mLoadStartNanos = 0;
+            EarthquakeMetrics.LOADER_QUEUE_TO_DELIVERY.recordSince(mQueuedMetricsStart);
+            sLoads.incrementAndGet();
+            sCompleteNanos.addAndGet(elapsedNanos);
+            Log.i(LOG_TAG, String.format(Locale.US, "Time to complete: %.1f ms. %s",
+                    elapsedNanos / 1e6, getSummary()));
+        }
+    }
+
+    /**
+     * @return the average time to the first row and to the complete result of every load
+     */
+    static String getSummary() {
+        long loads = sLoads.get();
+        long firstRowLoads = sFirstRowLoads.get();
+        return String.format(Locale.US,
+                "%d loads averaging %.1f ms to the first row and %.1f ms to complete",
+                loads, firstRowLoads == 0 ? 0 : sFirstRowNanos.get() / 1e6 / firstRowLoads,
+                loads == 0 ? 0 : sCompleteNanos.get() / 1e6 / loads);
+    }
+
+    /**
+     * Deliver a result to the loader's callbacks before loadInBackground has returned
+     */
+    private void deliverInterimResult(final EarthquakeDisplayModel earthquakes) {
+        // Results of a load that was restarted in the meantime are dropped
+        final long loadStartNanos = mLoadStartNanos;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isStarted() && loadStartNanos == mLoadStartNanos) {
+                    mIsInterimResult = true;
+                    try {
+                        deliverResult(earthquakes);
+                    } finally {
+                        mIsInterimResult = false;
+                    }
+                }
+            }
+        });
     }
 }
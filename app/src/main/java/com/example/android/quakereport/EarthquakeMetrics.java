@@ -0,0 +1,364 @@
+package com.example.android.quakereport;
+
+import android.os.Build;
+import android.os.Trace;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the hot paths: fetching, parsing, loading, binding
+ * and launching.
+ *
+ * Measuring is on in debug builds and can be turned on and off from {@link MetricsActivity}.
+ * While it is off {@link #start()} returns 0 and every record call returns right away, so an
+ * instrumented path only pays for a volatile read. Recording is lock free, a histogram is an
+ * array of atomic bucket counts. The measured spans also show up as trace sections in systrace,
+ * from API 18.
+ *
+ * The values can be read as text or as JSON, from the debug screen, or with
+ * "adb shell dumpsys activity com.example.android.quakereport" while the app is in front.
+ */
+public final class EarthquakeMetrics {
+
+    private static volatile boolean sEnabled = BuildConfig.DEBUG;
+
+    /* Fetching, see UrlConnectionTransport */
+    public static final Histogram DNS = new Histogram("fetch.dns", "ms");
+    public static final Histogram CONNECT = new Histogram("fetch.connect", "ms");
+    public static final Histogram TIME_TO_FIRST_BYTE = new Histogram("fetch.ttfb", "ms");
+    public static final Histogram DOWNLOAD = new Histogram("fetch.download", "ms");
+    public static final Counter REQUESTS = new Counter("fetch.requests");
+    public static final Counter FAILED_REQUESTS = new Counter("fetch.failed_requests");
+    public static final Counter WIRE_BYTES = new Counter("fetch.wire_bytes");
+
+    /* Parsing, see QueryUtils. The stream parse includes the download it waits for */
+    public static final Histogram PARSE = new Histogram("parse.time", "ms");
+    public static final Histogram PARSE_RATE = new Histogram("parse.events_per_second", "/s");
+    public static final Counter PARSED_EVENTS = new Counter("parse.events");
+
+    /* Loading, see EarthquakeLoader: from the load being queued until it started, and until
+     * its final result was delivered */
+    public static final Histogram LOADER_QUEUE_WAIT = new Histogram("loader.queue_wait", "ms");
+    public static final Histogram LOADER_QUEUE_TO_DELIVERY = new Histogram("loader.queue_to_delivery", "ms");
+
+    /* Binding, see EarthquakeAdapter */
+    public static final Histogram ROW_BIND = new Histogram("bind.row", "us");
+
+    /* Searching the places of a result, see EarthquakePager */
+    public static final Histogram SEARCH = new Histogram("search.places", "us");
+
+    /* Launching, see EarthquakeStartup: from onCreate until the first frame, and until the
+     * first frame with earthquakes */
+    public static final Histogram STARTUP_FIRST_FRAME = new Histogram("startup.first_frame", "ms");
+    public static final Histogram STARTUP_FIRST_ROW = new Histogram("startup.first_row", "ms");
+
+    private static final Histogram[] HISTOGRAMS = {
+            DNS, CONNECT, TIME_TO_FIRST_BYTE, DOWNLOAD, PARSE, PARSE_RATE,
+            LOADER_QUEUE_WAIT, LOADER_QUEUE_TO_DELIVERY, ROW_BIND, SEARCH,
+            STARTUP_FIRST_FRAME, STARTUP_FIRST_ROW
+    };
+
+    private static final Counter[] COUNTERS = {
+            REQUESTS, FAILED_REQUESTS, WIRE_BYTES, PARSED_EVENTS
+    };
+
+    private EarthquakeMetrics() {
+    }
+
+    /**
+     * @return true while the metrics are recorded
+     */
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * Start measuring a span
+     * @return the start time to hand to {@link Histogram#recordSince(long)}, or 0 if the
+     * metrics are off
+     */
+    public static long start() {
+        return sEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Start a trace section of the span, shown in systrace. Must be ended on the same thread
+     * with {@link #endSection(long)}
+     * @param start the start time returned by {@link #start()}
+     */
+    public static void beginSection(String name, long start) {
+        if (start != 0 && Build.VERSION.SDK_INT >= 18) {
+            Trace.beginSection(name);
+        }
+    }
+
+    /**
+     * End the trace section started with {@link #beginSection(String, long)}
+     */
+    public static void endSection(long start) {
+        if (start != 0 && Build.VERSION.SDK_INT >= 18) {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Record the parse of a response that started at the given time
+     * @param start the start time returned by {@link #start()}
+     * @param events the number of earthquakes parsed
+     */
+    static void recordParse(long start, int events) {
+        if (start == 0) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        PARSE.recordNanos(nanos);
+        PARSED_EVENTS.add(events);
+        if (nanos > 0) {
+            PARSE_RATE.record(events * 1000000000L / nanos);
+        }
+    }
+
+    /**
+     * Clear every counter and histogram
+     */
+    public static void reset() {
+        for (Histogram histogram : HISTOGRAMS) {
+            histogram.reset();
+        }
+        for (Counter counter : COUNTERS) {
+            counter.reset();
+        }
+    }
+
+    /**
+     * @return every counter and histogram, one per line, followed by the summaries of the
+     * transport, of the request coalescing, of the live feed and of the result cache
+     */
+    public static String dump() {
+        StringBuilder text = new StringBuilder();
+        text.append("Metrics ").append(sEnabled ? "on" : "off").append('\n');
+        for (Counter counter : COUNTERS) {
+            text.append(String.format(Locale.US, "%-26s %d%n", counter.mName, counter.get()));
+        }
+        for (Histogram histogram : HISTOGRAMS) {
+            text.append(String.format(Locale.US, "%-26s n=%d p50=%d p90=%d p99=%d max=%d %s%n",
+                    histogram.mName, histogram.getCount(), histogram.getPercentile(0.5),
+                    histogram.getPercentile(0.9), histogram.getPercentile(0.99),
+                    histogram.getMax(), histogram.mUnit));
+        }
+        HttpTransport transport = QueryUtils.getTransport();
+        if (transport instanceof ResilientTransport) {
+            text.append(((ResilientTransport) transport).getSummary()).append('\n');
+            transport = ((ResilientTransport) transport).getTransport();
+        }
+        if (transport instanceof UrlConnectionTransport) {
+            text.append(((UrlConnectionTransport) transport).getSummary()).append('\n');
+        }
+        text.append(EarthquakeRequests.getSummary()).append('\n');
+        text.append(EarthquakeLiveFeed.getSummary()).append('\n');
+        EarthquakeResultCache resultCache = EarthquakeResultCache.peekInstance();
+        if (resultCache != null) {
+            text.append(resultCache.getSummary()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * @return every counter and histogram as a JSON object, keyed by name
+     */
+    public static JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("enabled", sEnabled);
+            for (Counter counter : COUNTERS) {
+                json.put(counter.mName, counter.get());
+            }
+            for (Histogram histogram : HISTOGRAMS) {
+                JSONObject values = new JSONObject();
+                values.put("unit", histogram.mUnit);
+                values.put("count", histogram.getCount());
+                values.put("mean", histogram.getMean());
+                values.put("p50", histogram.getPercentile(0.5));
+                values.put("p90", histogram.getPercentile(0.9));
+                values.put("p99", histogram.getPercentile(0.99));
+                values.put("max", histogram.getMax());
+                json.put(histogram.mName, values);
+            }
+        } catch (JSONException e) {
+            // Only thrown for NaN and infinite numbers, there are none
+            throw new IllegalStateException(e);
+        }
+        return json;
+    }
+
+
+    /**
+     * A count that only goes up
+     */
+    public static final class Counter {
+
+        private final String mName;
+        private final AtomicLong mValue = new AtomicLong();
+
+        Counter(String name) {
+            mName = name;
+        }
+
+        public void add(long delta) {
+            if (sEnabled) {
+                mValue.addAndGet(delta);
+            }
+        }
+
+        public void increment() {
+            add(1);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+
+        void reset() {
+            mValue.set(0);
+        }
+    }
+
+
+    /**
+     * A distribution of values, in buckets whose bounds grow by about 19% each (4 per power of
+     * 2), so a percentile is within about 10% of the exact value
+     */
+    public static final class Histogram {
+
+        /* Buckets of every power of 2, and the number of powers of 2 covered */
+        private static final int SUB_BUCKETS = 4;
+        private static final int MAX_EXPONENT = 40;
+
+        private final String mName;
+        private final String mUnit;
+        private final AtomicLongArray mBuckets = new AtomicLongArray(MAX_EXPONENT * SUB_BUCKETS + 1);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        Histogram(String name, String unit) {
+            mName = name;
+            mUnit = unit;
+        }
+
+        /**
+         * Record the time since the span started, in the unit of the histogram
+         * @param start the start time returned by {@link EarthquakeMetrics#start()}, nothing
+         *              is recorded if it is 0
+         */
+        public void recordSince(long start) {
+            if (start != 0) {
+                recordNanos(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Record a duration, in the unit of the histogram
+         */
+        public void recordNanos(long nanos) {
+            if ("us".equals(mUnit)) {
+                record(nanos / 1000);
+            } else {
+                record(nanos / 1000000);
+            }
+        }
+
+        /**
+         * Record a value, negative values count as 0
+         */
+        public void record(long value) {
+            if (!sEnabled) {
+                return;
+            }
+            value = Math.max(value, 0);
+            mBuckets.incrementAndGet(getBucket(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max = mMax.get();
+            while (value > max && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getMax() {
+            return mMax.get();
+        }
+
+        public double getMean() {
+            long count = mCount.get();
+            return count > 0 ? (double) mSum.get() / count : 0;
+        }
+
+        /**
+         * @return the upper bound of the bucket of the given percentile, at most the maximum,
+         * or 0 if nothing was recorded
+         */
+        public long getPercentile(double percentile) {
+            long count = 0;
+            for (int i = 0; i < mBuckets.length(); i++) {
+                count += mBuckets.get(i);
+            }
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile * count);
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length(); i++) {
+                seen += mBuckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(getUpperBound(i), mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+
+        void reset() {
+            for (int i = 0; i < mBuckets.length(); i++) {
+                mBuckets.set(i, 0);
+            }
+            mCount.set(0);
+            mSum.set(0);
+            mMax.set(0);
+        }
+
+        /**
+         * Values below SUB_BUCKETS have a bucket each, the others go by their highest bit and
+         * the SUB_BUCKETS bits below it
+         */
+        private static int getBucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+            return Math.min((exponent - 1) * SUB_BUCKETS + subBucket, MAX_EXPONENT * SUB_BUCKETS);
+        }
+
+        private static long getUpperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + 1;
+            int subBucket = bucket % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - 2)) - 1;
+        }
+    }
+}
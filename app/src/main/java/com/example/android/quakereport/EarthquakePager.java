@@ -0,0 +1,499 @@
+package com.example.android.quakereport;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.SparseArray;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Holds the earthquakes shown in the list, one page of {@link #PAGE_SIZE} rows at a time.
+ *
+ * Pages are requested from USGS with offset/limit windows of the query. Only the first page is
+ * loaded up front (by the {@link EarthquakeLoader}), the next one is prefetched when the list is
+ * scrolled close to the end of the loaded rows. At most {@link #MAX_PAGES_IN_MEMORY} pages are
+ * kept, pages far away from the visible rows are dropped first, and loaded again if they are
+ * scrolled back into view.
+ *
+ * A query result that is already complete (i.e read from the {@link EarthquakeCache}) is kept
+ * as a single page and never paged. Pages are kept as {@link EarthquakeDisplayModel}s, the pages
+ * loaded by the pager are formatted on the thread that loads them.
+ *
+ * A complete result can be narrowed to the earthquakes whose place contains a search text,
+ * see {@link #setSearchQuery(String)}. The search runs in the background on an
+ * {@link EarthquakePlaceIndex}, a paged query is not searched.
+ *
+ * All the methods must be called on the main thread.
+ */
+public class EarthquakePager {
+
+    /** Number of earthquakes in a page */
+    static final int PAGE_SIZE = 50;
+
+    /* The next page is loaded when the last visible row is this close to the end of the loaded rows */
+    private static final int PREFETCH_DISTANCE = PAGE_SIZE / 2;
+
+    /* Maximum number of pages kept in memory */
+    private static final int MAX_PAGES_IN_MEMORY = 8;
+
+    /**
+     * Notified when rows are added to the pager or replaced
+     */
+    public interface Listener {
+        /** Any row may have changed */
+        void onPagesChanged();
+
+        /** Rows were added at the given position */
+        void onRowsInserted(int position, int count);
+
+        /** The rows at the given position were loaded again */
+        void onRowsChanged(int position, int count);
+
+        /** The rows were replaced by new ones, the diff holds the changes */
+        void onRowsReplaced(EarthquakeDiff diff);
+
+        /** Changes of the live feed can't be merged into the rows, the query has to be loaded again */
+        void onReloadNeeded();
+    }
+
+    private final Context mContext;
+
+    private final EarthquakeCache mCache;
+
+    private final Listener mListener;
+
+    /* Url of the whole query, null until the first page is set */
+    private String mQueryUrl;
+
+    /* The "limit" of the whole query */
+    private int mMaxResults;
+
+    /* Pages in memory, by page index */
+    private final SparseArray<EarthquakeDisplayModel> mPages = new SparseArray<>();
+
+    /* Indexes of the pages being loaded */
+    private final Set<Integer> mLoadingPages = new HashSet<>();
+
+    /* Number of rows loaded so far, including the rows of dropped pages */
+    private int mCount;
+
+    /* True once the last page of the query was loaded */
+    private boolean mComplete;
+
+    /* True if a page was dropped, so the pages can't be put back together for the cache */
+    private boolean mDroppedPages;
+
+    /* Incremented on every reset, so pages of a previous query are ignored */
+    private int mGeneration;
+
+    private int mFirstVisiblePosition;
+
+    /* The complete result, before the search narrows it. Null while a query is paged */
+    private EarthquakeDisplayModel mAllEarthquakes;
+
+    /* Text the places of the shown earthquakes must contain, empty to show them all */
+    private String mSearchQuery = "";
+
+    /* Index of the places of the complete result, only used in the background, guarded by itself */
+    private final EarthquakePlaceIndex mPlaceIndex = new EarthquakePlaceIndex();
+
+    /**
+     * @param context used to format the pages that are loaded
+     * @param cache where the complete query result is stored once every page is loaded
+     * @param listener notified when the pages change
+     */
+    public EarthquakePager(Context context, EarthquakeCache cache, Listener listener) {
+        mContext = context.getApplicationContext();
+        mCache = cache;
+        mListener = listener;
+    }
+
+    /**
+     * Show a complete query result, without paging.
+     *
+     * If a complete result is already shown, the changes between the two are worked out on a
+     * background thread first (see {@link EarthquakeDiff}), so only the rows that changed are
+     * updated. The result is searched there too while there is a search text. Until then the
+     * current rows stay on screen.
+     */
+    public void setEarthquakes(final EarthquakeDisplayModel earthquakes) {
+        // Drops the pages being loaded, and the diffs of earlier results
+        final int generation = ++mGeneration;
+        mAllEarthquakes = earthquakes;
+
+        EarthquakeDisplayModel current = mPages.get(0);
+        final EarthquakeCatalog oldCatalog = mQueryUrl == null && current != null && !current.isEmpty()
+                ? current.getCatalog() : null;
+        final String searchQuery = mSearchQuery;
+        if (searchQuery.isEmpty() && (oldCatalog == null || earthquakes.isEmpty())) {
+            showEarthquakes(earthquakes, null);
+            return;
+        }
+
+        new AsyncTask<Void, Void, Update>() {
+            @Override
+            protected Update doInBackground(Void... params) {
+                EarthquakeDisplayModel shown = searchQuery.isEmpty() ? earthquakes
+                        : search(earthquakes, searchQuery);
+                EarthquakeDiff diff = oldCatalog != null && !shown.isEmpty()
+                        ? EarthquakeDiff.compute(oldCatalog, shown.getCatalog()) : null;
+                return new Update(shown, diff);
+            }
+
+            @Override
+            protected void onPostExecute(Update update) {
+                if (generation == mGeneration) {
+                    showEarthquakes(update.mEarthquakes, update.mDiff);
+                }
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Only show the earthquakes of the complete result whose place contains the given text,
+     * ignoring case. The rows that are hidden or shown again are animated like any other change
+     * @param query the text to search, empty to show every earthquake
+     */
+    public void setSearchQuery(String query) {
+        String searchQuery = query != null ? query.trim() : "";
+        if (searchQuery.equals(mSearchQuery)) {
+            return;
+        }
+        mSearchQuery = searchQuery;
+        if (mAllEarthquakes != null) {
+            setEarthquakes(mAllEarthquakes);
+        }
+    }
+
+    /**
+     * Index the places of the complete result in the background, i.e when the search is opened,
+     * so the first search does not wait for it
+     */
+    public void prepareSearch() {
+        final EarthquakeDisplayModel earthquakes = mAllEarthquakes;
+        if (earthquakes == null) {
+            return;
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mPlaceIndex) {
+                    mPlaceIndex.attach(earthquakes);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the earthquakes of the result whose place contains the search text,
+     * called on a background thread
+     */
+    private EarthquakeDisplayModel search(EarthquakeDisplayModel earthquakes, String searchQuery) {
+        synchronized (mPlaceIndex) {
+            mPlaceIndex.attach(earthquakes);
+            long searchStart = EarthquakeMetrics.start();
+            int[] positions = mPlaceIndex.search(searchQuery);
+            EarthquakeMetrics.SEARCH.recordSince(searchStart);
+            return earthquakes.select(positions, positions.length);
+        }
+    }
+
+    /**
+     * Merge the earthquakes of a live feed into the complete query result that is shown,
+     * see {@link EarthquakeLiveFeed}. Only the rows of the new and updated earthquakes change.
+     *
+     * A paged query is left as it is: its rows come from USGS one window at a time, and an
+     * earthquake inserted at the top would shift every window. It picks up the changes on its
+     * next load.
+     * @param changes the new and updated earthquakes of the feed
+     * @param queryUrls the urls of the queries shown, only the changes they match are merged
+     */
+    public void applyLiveChanges(final EarthquakeCatalog changes, final List<String> queryUrls) {
+        // The changes are merged into the whole result, not the part the search shows
+        final EarthquakeDisplayModel current = mAllEarthquakes;
+        if (current == null || queryUrls.isEmpty()) {
+            return;
+        }
+
+        final int generation = mGeneration;
+        new AsyncTask<Void, Void, EarthquakeDisplayModel>() {
+
+            /* True if the merge would leave out earthquakes the list does not have */
+            private boolean mReloadNeeded;
+
+            @Override
+            protected EarthquakeDisplayModel doInBackground(Void... params) {
+                EarthquakeCatalog shown = current.getCatalog();
+                EarthquakeCatalog merged = EarthquakeLiveFeed.merge(shown, changes, queryUrls);
+                if (merged == null) {
+                    mReloadNeeded = true;
+                    return null;
+                }
+                if (merged == shown) {
+                    return null;
+                }
+                return EarthquakeDisplayModel.build(merged, new EarthquakeFormatter(mContext));
+            }
+
+            @Override
+            protected void onPostExecute(EarthquakeDisplayModel earthquakes) {
+                // Dropped if another result was shown in the meantime
+                if (generation != mGeneration) {
+                    return;
+                }
+                if (mReloadNeeded) {
+                    mListener.onReloadNeeded();
+                } else if (earthquakes != null) {
+                    setEarthquakes(earthquakes);
+                }
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Replace the rows by a complete query result
+     * @param diff the changes from the current rows, or null to refresh every row
+     */
+    private void showEarthquakes(EarthquakeDisplayModel earthquakes, EarthquakeDiff diff) {
+        reset(null, 0);
+        mPages.put(0, earthquakes);
+        mCount = earthquakes.size();
+        mComplete = true;
+        if (diff == null) {
+            mListener.onPagesChanged();
+        } else if (!diff.isEmpty()) {
+            mListener.onRowsReplaced(diff);
+        }
+    }
+
+    /**
+     * Show the first page of a query, the next pages are loaded while the list is scrolled
+     * @param queryUrl the url of the whole query, with its "limit"
+     * @param firstPage the first {@link #PAGE_SIZE} earthquakes of the query
+     */
+    public void setFirstPage(String queryUrl, EarthquakeDisplayModel firstPage) {
+        reset(queryUrl, parseLimit(queryUrl));
+        mAllEarthquakes = null;
+        mPages.put(0, firstPage);
+        mCount = firstPage.size();
+        mComplete = firstPage.size() < PAGE_SIZE || mCount >= mMaxResults;
+        mListener.onPagesChanged();
+    }
+
+    /**
+     * @return the number of rows loaded so far
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the page holding the given row, or null if it was dropped and is being loaded again
+     */
+    public EarthquakeDisplayModel getPage(int position) {
+        EarthquakeDisplayModel page = mPages.get(pageIndexOf(position));
+        if (page == null) {
+            loadPage(pageIndexOf(position));
+        }
+        return page;
+    }
+
+    /**
+     * @return the position of the given row inside its page
+     */
+    public int getPositionInPage(int position) {
+        return mQueryUrl == null ? position : position % PAGE_SIZE;
+    }
+
+    /**
+     * Called when the list is scrolled, prefetches the next page when the end is near
+     */
+    public void onScroll(int firstVisiblePosition, int visibleCount) {
+        mFirstVisiblePosition = firstVisiblePosition;
+        if (!mComplete && firstVisiblePosition + visibleCount >= mCount - PREFETCH_DISTANCE) {
+            loadPage(mCount / PAGE_SIZE);
+        }
+    }
+
+    /**
+     * Called when the system is low on memory, drops every page but the visible ones
+     * @param level the {@link ComponentCallbacks2} trim level
+     */
+    public void onTrimMemory(int level) {
+        if (mQueryUrl == null || level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return;
+        }
+        int visiblePage = pageIndexOf(mFirstVisiblePosition);
+        dropPagesFartherThan(visiblePage, 1);
+    }
+
+    private void reset(String queryUrl, int maxResults) {
+        mGeneration++;
+        mQueryUrl = queryUrl;
+        mMaxResults = maxResults;
+        mPages.clear();
+        mLoadingPages.clear();
+        mCount = 0;
+        mComplete = false;
+        mDroppedPages = false;
+        mFirstVisiblePosition = 0;
+    }
+
+    private int pageIndexOf(int position) {
+        return mQueryUrl == null ? 0 : position / PAGE_SIZE;
+    }
+
+    /**
+     * Load the page with the given index in the background, unless it is loaded or being loaded
+     */
+    private void loadPage(final int pageIndex) {
+        if (mQueryUrl == null || mPages.get(pageIndex) != null || mLoadingPages.contains(pageIndex)) {
+            return;
+        }
+        mLoadingPages.add(pageIndex);
+
+        final int generation = mGeneration;
+        final String pageUrl = buildPageUrl(mQueryUrl, pageIndex);
+        new AsyncTask<Void, Void, EarthquakeDisplayModel>() {
+            @Override
+            protected EarthquakeDisplayModel doInBackground(Void... params) {
+                // Joins the request of the same page if it is already running
+                EarthquakeCatalog page = EarthquakeRequests.fetch(pageUrl, null, null, null, null);
+                if (page == null) {
+                    return null;
+                }
+                // Format the page here, off the main thread
+                return EarthquakeDisplayModel.build(page, new EarthquakeFormatter(mContext));
+            }
+
+            @Override
+            protected void onPostExecute(EarthquakeDisplayModel page) {
+                if (generation == mGeneration) {
+                    onPageLoaded(pageIndex, page);
+                }
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void onPageLoaded(int pageIndex, EarthquakeDisplayModel page) {
+        mLoadingPages.remove(pageIndex);
+        if (page == null) {
+            // The request failed, the page is requested again the next time it is needed
+            return;
+        }
+        mPages.put(pageIndex, page);
+
+        // A page past the loaded rows extends the list,
+        // a page that was dropped and loaded again only fills in its rows
+        int pageStart = pageIndex * PAGE_SIZE;
+        if (pageStart == mCount) {
+            mCount += page.size();
+            mComplete = page.size() < PAGE_SIZE || mCount >= mMaxResults;
+            mListener.onRowsInserted(pageStart, page.size());
+        } else {
+            mListener.onRowsChanged(pageStart, Math.min(page.size(), mCount - pageStart));
+        }
+
+        dropPagesFartherThan(pageIndexOf(mFirstVisiblePosition), MAX_PAGES_IN_MEMORY / 2);
+
+        if (mComplete && !mDroppedPages) {
+            cacheQueryResult();
+        }
+    }
+
+    /**
+     * Drop the pages more than the given number of pages away from the visible page,
+     * and then the farthest pages until at most {@link #MAX_PAGES_IN_MEMORY} are left
+     */
+    private void dropPagesFartherThan(int visiblePage, int distance) {
+        for (int i = mPages.size() - 1; i >= 0; i--) {
+            if (Math.abs(mPages.keyAt(i) - visiblePage) > distance && mPages.size() > 1) {
+                mPages.remove(mPages.keyAt(i));
+                mDroppedPages = true;
+            }
+        }
+        while (mPages.size() > MAX_PAGES_IN_MEMORY) {
+            int first = mPages.keyAt(0);
+            int last = mPages.keyAt(mPages.size() - 1);
+            mPages.remove(visiblePage - first > last - visiblePage ? first : last);
+            mDroppedPages = true;
+        }
+    }
+
+    /**
+     * Put every page of the query back together and store them in the cache,
+     * so the next launch can show the whole result without paging
+     */
+    private void cacheQueryResult() {
+        final String queryUrl = mQueryUrl;
+        final EarthquakeCatalog[] pages = new EarthquakeCatalog[mPages.size()];
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = mPages.valueAt(i).getCatalog();
+        }
+
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                EarthquakeCatalog.Builder builder = new EarthquakeCatalog.Builder(pages.length * PAGE_SIZE);
+                for (EarthquakeCatalog page : pages) {
+                    for (int i = 0; i < page.size(); i++) {
+                        builder.add(page, i);
+                    }
+                }
+                mCache.write(queryUrl, new EarthquakeCache.Entry(builder.build(), null, null));
+                return null;
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * @return the url of the given page of a query: the query's "limit" is replaced by the
+     * page size and an "offset" (which starts at 1 for USGS) is added
+     */
+    static String buildPageUrl(String queryUrl, int pageIndex) {
+        int limit = parseLimit(queryUrl);
+        int offset = pageIndex * PAGE_SIZE;
+        int pageLimit = Math.max(1, Math.min(PAGE_SIZE, limit - offset));
+
+        StringBuilder url = new StringBuilder(queryUrl.length() + 24);
+        int queryStart = queryUrl.indexOf('?');
+        if (queryStart < 0) {
+            url.append(queryUrl).append('?');
+        } else {
+            url.append(queryUrl, 0, queryStart + 1);
+            for (String parameter : queryUrl.substring(queryStart + 1).split("&")) {
+                if (!parameter.isEmpty() && !parameter.startsWith("limit=")
+                        && !parameter.startsWith("offset=")) {
+                    url.append(parameter).append('&');
+                }
+            }
+        }
+        return url.append("limit=").append(pageLimit)
+                .append("&offset=").append(offset + 1)
+                .toString();
+    }
+
+    private static int parseLimit(String queryUrl) {
+        return EarthquakeSync.getIntParameter(queryUrl, "limit", Integer.MAX_VALUE);
+    }
+
+
+    /**
+     * The rows to show once a complete result was searched and compared with the current rows
+     */
+    private static final class Update {
+
+        private final EarthquakeDisplayModel mEarthquakes;
+
+        /* The changes from the current rows, or null to refresh every row */
+        private final EarthquakeDiff mDiff;
+
+        Update(EarthquakeDisplayModel earthquakes, EarthquakeDiff diff) {
+            mEarthquakes = earthquakes;
+            mDiff = diff;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.example.android.quakereport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parses a USGS response that is already in memory on every core.
+ *
+ * A first pass finds where each feature starts and ends, only following brackets and quotes.
+ * The features are then split into runs of consecutive features (chunks), which the calling
+ * thread and the workers take one at a time and parse into catalogs of their own. The chunks'
+ * catalogs are stitched back together in the order of the response.
+ *
+ * ForkJoinPool is only available from API 21, so the chunks are shared out through a counter
+ * instead, on a plain pool of one worker per extra core.
+ */
+final class EarthquakeParallelParser {
+
+    /**
+     * Tag for the Log messages
+     */
+    private static final String LOG_TAG = EarthquakeParallelParser.class.getSimpleName();
+
+    /* Responses smaller than this are parsed on the calling thread, splitting them up costs
+     * more than it saves */
+    static final int PARALLEL_MIN_BYTES = 256 * 1024;
+
+    /* Number of cores, the calling thread and one worker per extra core parse at the same time */
+    static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    /* Chunks per thread, so a thread that is done early can take the chunks of a slower one */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /* Fewest features in a chunk */
+    private static final int MIN_CHUNK_FEATURES = 128;
+
+    /* Idle workers are stopped after this long */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /* The workers, created on first use. Guarded by EarthquakeParallelParser.class */
+    private static ExecutorService sExecutor;
+
+    private EarthquakeParallelParser() {
+    }
+
+    /**
+     * @return the workers shared by every parse, one per extra core
+     */
+    static ExecutorService getExecutor() {
+        synchronized (EarthquakeParallelParser.class) {
+            if (sExecutor == null) {
+                int workers = Math.max(PARALLELISM - 1, 1);
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers,
+                        KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                        new ThreadFactory() {
+                            private final AtomicInteger mCount = new AtomicInteger();
+
+                            @Override
+                            public Thread newThread(Runnable runnable) {
+                                return new Thread(runnable, LOG_TAG + " #" + mCount.incrementAndGet());
+                            }
+                        });
+                executor.allowCoreThreadTimeOut(true);
+                sExecutor = executor;
+            }
+            return sExecutor;
+        }
+    }
+
+    /**
+     * Parse the earthquakes of a response
+     * @param executor runs the workers, each of them parses chunks until there are none left
+     * @param parallelism number of threads parsing at the same time, the calling thread included
+     * @param cancellation checked between two chunks, may be null
+     * @throws IllegalStateException or NumberFormatException if the response is malformed
+     */
+    static EarthquakeCatalog parse(byte[] response, int length, ExecutorService executor,
+                                   int parallelism, FetchCancellation cancellation)
+            throws IOException {
+
+        int[] bounds = new EarthquakeScanner(response, length).findFeatures();
+        int featureCount = bounds.length / 2;
+
+        int chunkCount = Math.min(parallelism * CHUNKS_PER_THREAD,
+                Math.max(featureCount / MIN_CHUNK_FEATURES, 1));
+        ChunkParser parser = new ChunkParser(response, length, bounds, chunkCount, cancellation);
+
+        // The calling thread parses chunks too, so one fewer worker is needed
+        int workerCount = Math.min(parallelism, chunkCount) - 1;
+        List<Future<Void>> workers = new ArrayList<>(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            workers.add(executor.submit(parser));
+        }
+        try {
+            parser.call();
+        } finally {
+            waitFor(workers);
+        }
+
+        // Stitch the chunks back together in order
+        EarthquakeCatalog.Builder earthquakes = new EarthquakeCatalog.Builder(featureCount);
+        for (EarthquakeCatalog chunk : parser.mChunks) {
+            earthquakes.addAll(chunk);
+        }
+        return earthquakes.build();
+    }
+
+    /**
+     * Wait until every worker is done, rethrowing the first failure
+     */
+    private static void waitFor(List<Future<Void>> workers) throws IOException {
+        Throwable failure = null;
+        boolean interrupted = false;
+        for (Future<Void> worker : workers) {
+            while (true) {
+                try {
+                    worker.get();
+                    break;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                    break;
+                } catch (InterruptedException e) {
+                    // The chunks are short, finish waiting for them and interrupt again after
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+    }
+
+
+    /**
+     * Parses chunks, on any number of threads, until there are none left
+     */
+    private static final class ChunkParser implements Callable<Void> {
+
+        private final byte[] mResponse;
+        private final int mLength;
+        private final int[] mBounds;
+        private final int mChunkSize;
+        private final FetchCancellation mCancellation;
+
+        /* The catalog of every chunk, set by the thread that parsed it */
+        final EarthquakeCatalog[] mChunks;
+
+        /* The next chunk to parse */
+        private final AtomicInteger mNextChunk = new AtomicInteger();
+
+        ChunkParser(byte[] response, int length, int[] bounds, int chunkCount,
+                    FetchCancellation cancellation) {
+            mResponse = response;
+            mLength = length;
+            mBounds = bounds;
+            mChunkSize = (bounds.length / 2 + chunkCount - 1) / chunkCount;
+            mCancellation = cancellation;
+            mChunks = new EarthquakeCatalog[chunkCount];
+        }
+
+        @Override
+        public Void call() throws IOException {
+            EarthquakeScanner scanner = new EarthquakeScanner(mResponse, mLength);
+            int chunk;
+            while ((chunk = mNextChunk.getAndIncrement()) < mChunks.length) {
+                if (mCancellation != null) {
+                    mCancellation.throwIfCancelled();
+                }
+                int first = chunk * mChunkSize;
+                int last = Math.min(first + mChunkSize, mBounds.length / 2);
+                EarthquakeCatalog.Builder builder = new EarthquakeCatalog.Builder(last - first);
+                try {
+                    scanner.scanFeatures(mBounds, first, last, builder);
+                } catch (RuntimeException e) {
+                    // The others can stop too, the whole parse has failed
+                    mNextChunk.set(mChunks.length);
+                    throw e;
+                }
+                mChunks[chunk] = builder.build();
+            }
+            return null;
+        }
+    }
+}
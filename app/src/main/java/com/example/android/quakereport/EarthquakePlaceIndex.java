@@ -0,0 +1,262 @@
+package com.example.android.quakereport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Finds the earthquakes whose place contains a search text, as the user types it.
+ *
+ * The place is searched as the list shows it: the location offset (i.e "38km SE of", or "Near
+ * the" if there is none) followed by the primary location (i.e "Tokyo, Japan"), the texts
+ * {@link EarthquakeDisplayModel} already split and formatted. Searches ignore case.
+ *
+ * Every distinct place text is only indexed once, with the trigrams (runs of 3 chars) it holds.
+ * A search looks up the trigrams of the search text and only checks the places of its rarest
+ * trigram, instead of every earthquake. Searches shorter than a trigram check every distinct
+ * place. The index grows as new results are attached, so the places of an updated result
+ * (i.e after a sync or a live feed poll) that were already seen are not indexed again. Once more
+ * places are no longer in the attached result than are still in it, the places still in it are
+ * indexed again from scratch, so a live feed polled for hours does not grow the index forever.
+ *
+ * Building the index takes a while, attach results on a background thread.
+ * The index is not thread safe, use it from one thread at a time.
+ */
+final class EarthquakePlaceIndex {
+
+    /* Length of the runs of chars that are indexed */
+    private static final int GRAM_LENGTH = 3;
+
+    private static final int[] NO_POSITIONS = new int[0];
+
+    /* The fewest places no longer in the attached result that are worth indexing again for */
+    private static final int MIN_STALE_PLACES = 1024;
+
+    /* Id of every distinct place text, as shown */
+    private final Map<String, Integer> mPlaceIds = new HashMap<>();
+
+    /* Lower cased text of every place, by place id */
+    private final List<String> mPlaceTexts = new ArrayList<>();
+
+    /* Ids of the places that hold each trigram, in increasing order */
+    private final Map<Long, Postings> mPostings = new HashMap<>();
+
+    /* The attached result, and the place id of each of its earthquakes */
+    private EarthquakeDisplayModel mEarthquakes;
+    private int[] mPlaceIdOfPosition = NO_POSITIONS;
+
+    /* Reused to mark the places that match a search */
+    private boolean[] mMatchingPlaces = new boolean[0];
+
+    /**
+     * Search the given result from now on, indexing the places that are new to the index
+     */
+    void attach(EarthquakeDisplayModel earthquakes) {
+        if (earthquakes == mEarthquakes) {
+            return;
+        }
+        char[] text = earthquakes.getText();
+        int[] placeIdOfPosition = new int[earthquakes.size()];
+        StringBuilder place = new StringBuilder();
+        for (int i = 0; i < placeIdOfPosition.length; i++) {
+            // The offset and the primary location are shown on two lines, searched as one
+            int offsetStart = earthquakes.getTextStart(i, EarthquakeDisplayModel.LOCATION_OFFSET);
+            int primaryStart = earthquakes.getTextStart(i, EarthquakeDisplayModel.PRIMARY_LOCATION);
+            place.setLength(0);
+            place.append(text, offsetStart, primaryStart - offsetStart).append(' ')
+                    .append(text, primaryStart,
+                            earthquakes.getTextLength(i, EarthquakeDisplayModel.PRIMARY_LOCATION));
+
+            String key = place.toString();
+            Integer placeId = mPlaceIds.get(key);
+            if (placeId == null) {
+                placeId = addPlace(key);
+            }
+            placeIdOfPosition[i] = placeId;
+        }
+        mEarthquakes = earthquakes;
+        mPlaceIdOfPosition = placeIdOfPosition;
+        dropStalePlaces();
+    }
+
+    /**
+     * @return the attached result the index searches, or null
+     */
+    EarthquakeDisplayModel getEarthquakes() {
+        return mEarthquakes;
+    }
+
+    /**
+     * @return the positions of the attached result's earthquakes whose place contains the
+     * search text, in the order of the result. Every position for an empty search text
+     */
+    int[] search(String query) {
+        String searchText = query.trim().toLowerCase(Locale.US);
+        int size = mPlaceIdOfPosition.length;
+        if (searchText.isEmpty()) {
+            int[] positions = new int[size];
+            for (int i = 0; i < size; i++) {
+                positions[i] = i;
+            }
+            return positions;
+        }
+
+        if (mMatchingPlaces.length < mPlaceTexts.size()) {
+            mMatchingPlaces = new boolean[mPlaceTexts.size()];
+        } else {
+            Arrays.fill(mMatchingPlaces, false);
+        }
+        if (!markMatchingPlaces(searchText)) {
+            return NO_POSITIONS;
+        }
+
+        int[] positions = new int[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (mMatchingPlaces[mPlaceIdOfPosition[i]]) {
+                positions[count++] = i;
+            }
+        }
+        return Arrays.copyOf(positions, count);
+    }
+
+    /**
+     * @return the number of distinct places indexed so far
+     */
+    int getPlaceCount() {
+        return mPlaceTexts.size();
+    }
+
+    /**
+     * Mark the places that contain the lower cased search text
+     * @return false if no place can contain it
+     */
+    private boolean markMatchingPlaces(String searchText) {
+        boolean found = false;
+        if (searchText.length() < GRAM_LENGTH) {
+            for (int placeId = 0; placeId < mPlaceTexts.size(); placeId++) {
+                if (mPlaceTexts.get(placeId).contains(searchText)) {
+                    mMatchingPlaces[placeId] = true;
+                    found = true;
+                }
+            }
+            return found;
+        }
+
+        // Only the places holding the rarest trigram of the search text can match,
+        // and none can if one of its trigrams is nowhere
+        Postings rarest = null;
+        for (int i = 0; i + GRAM_LENGTH <= searchText.length(); i++) {
+            Postings postings = mPostings.get(gramAt(searchText, i));
+            if (postings == null) {
+                return false;
+            }
+            if (rarest == null || postings.mSize < rarest.mSize) {
+                rarest = postings;
+            }
+        }
+        for (int i = 0; i < rarest.mSize; i++) {
+            int placeId = rarest.mPlaceIds[i];
+            if (mPlaceTexts.get(placeId).contains(searchText)) {
+                mMatchingPlaces[placeId] = true;
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Index the places of the attached result again, without the ones no longer in it, if
+     * there are enough of those. The ids of the places change
+     */
+    private void dropStalePlaces() {
+        int placeCount = mPlaceTexts.size();
+        boolean[] inUse = new boolean[placeCount];
+        int inUseCount = 0;
+        for (int placeId : mPlaceIdOfPosition) {
+            if (!inUse[placeId]) {
+                inUse[placeId] = true;
+                inUseCount++;
+            }
+        }
+        int staleCount = placeCount - inUseCount;
+        if (staleCount < MIN_STALE_PLACES || staleCount <= inUseCount) {
+            return;
+        }
+
+        String[] places = new String[placeCount];
+        for (Map.Entry<String, Integer> entry : mPlaceIds.entrySet()) {
+            places[entry.getValue()] = entry.getKey();
+        }
+        mPlaceIds.clear();
+        mPlaceTexts.clear();
+        mPostings.clear();
+        mMatchingPlaces = new boolean[0];
+
+        // New ids in the order of the result, the postings stay in increasing order
+        int[] newIds = new int[placeCount];
+        Arrays.fill(newIds, -1);
+        for (int i = 0; i < mPlaceIdOfPosition.length; i++) {
+            int placeId = mPlaceIdOfPosition[i];
+            if (newIds[placeId] < 0) {
+                newIds[placeId] = addPlace(places[placeId]);
+            }
+            mPlaceIdOfPosition[i] = newIds[placeId];
+        }
+    }
+
+    /**
+     * Index a place text that is new to the index
+     * @return its id
+     */
+    private int addPlace(String place) {
+        int placeId = mPlaceTexts.size();
+        String placeText = place.toLowerCase(Locale.US);
+        mPlaceIds.put(place, placeId);
+        mPlaceTexts.add(placeText);
+        for (int i = 0; i + GRAM_LENGTH <= placeText.length(); i++) {
+            Long gram = gramAt(placeText, i);
+            Postings postings = mPostings.get(gram);
+            if (postings == null) {
+                postings = new Postings();
+                mPostings.put(gram, postings);
+            }
+            postings.add(placeId);
+        }
+        return placeId;
+    }
+
+    /**
+     * @return the trigram starting at the given index of the text, as a number
+     */
+    private static long gramAt(String text, int index) {
+        return ((long) text.charAt(index) << 32) | ((long) text.charAt(index + 1) << 16)
+                | text.charAt(index + 2);
+    }
+
+
+    /**
+     * The ids of the places that hold a trigram
+     */
+    private static final class Postings {
+
+        private int[] mPlaceIds = new int[4];
+        private int mSize;
+
+        /**
+         * Add a place, once even if it holds the trigram more than once
+         */
+        void add(int placeId) {
+            if (mSize > 0 && mPlaceIds[mSize - 1] == placeId) {
+                return;
+            }
+            if (mSize == mPlaceIds.length) {
+                mPlaceIds = Arrays.copyOf(mPlaceIds, mSize * 2);
+            }
+            mPlaceIds[mSize++] = placeId;
+        }
+    }
+}
@@ -0,0 +1,662 @@
+package com.example.android.quakereport;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Answers queries over a catalog of earthquakes on the device, without going to the network.
+ *
+ * Three indexes are built when the engine is created: the positions of the earthquakes sorted
+ * by magnitude, sorted by time, and grouped by the one degree grid cell of their epicenter.
+ * A {@link Query} starts from whichever index leaves the fewest candidates (a magnitude range,
+ * a time range or the grid cells under an area), filters them on the rest of its constraints,
+ * then sorts them and cuts them to its limit. When the query is ordered by the index it started
+ * from, the candidates are walked in that order and the walk stops at the limit.
+ *
+ * The engine never changes once it is built, so it can be queried from any thread.
+ */
+public final class EarthquakeQueryEngine {
+
+    /**
+     * Tag for the Log messages
+     */
+    private static final String LOG_TAG = EarthquakeQueryEngine.class.getSimpleName();
+
+    /** Sort orders, the values of the USGS "orderby" parameter */
+    public static final String ORDER_BY_TIME = "time";
+    public static final String ORDER_BY_TIME_ASC = "time-asc";
+    public static final String ORDER_BY_MAGNITUDE = "magnitude";
+    public static final String ORDER_BY_MAGNITUDE_ASC = "magnitude-asc";
+
+    /* Query parameters the engine can answer locally, every other parameter must match */
+    private static final String PARAMETER_MIN_MAGNITUDE = "minmag";
+    private static final String PARAMETER_ORDER_BY = "orderby";
+    private static final String PARAMETER_LIMIT = "limit";
+
+    /* Mean radius of the earth */
+    private static final double EARTH_RADIUS_KM = 6371.0;
+
+    /* The grid has one degree cells, from the south pole and the antimeridian */
+    private static final int GRID_ROWS = 180;
+    private static final int GRID_COLUMNS = 360;
+
+    /* Candidate sources of a query */
+    private static final int SOURCE_MAGNITUDE = 0;
+    private static final int SOURCE_TIME = 1;
+    private static final int SOURCE_GRID = 2;
+
+    /* The earthquakes being queried */
+    private final EarthquakeCatalog mCatalog;
+
+    /* Positions sorted by ascending magnitude, with their magnitudes for binary searches */
+    private final int[] mByMagnitude;
+    private final double[] mSortedMagnitudes;
+
+    /* Rank of every position in mByMagnitude */
+    private final int[] mMagnitudeRanks;
+
+    /* Positions sorted by ascending time, with their times for binary searches */
+    private final int[] mByTime;
+    private final long[] mSortedTimes;
+
+    /* Rank of every position in mByTime */
+    private final int[] mTimeRanks;
+
+    /* Positions of the earthquakes with a known epicenter, grouped by grid cell. The positions
+     * in cell c are mCellPositions[mCellStarts[c]] up to mCellPositions[mCellStarts[c + 1]] */
+    private final int[] mCellStarts;
+    private final int[] mCellPositions;
+
+    /**
+     * Build the indexes of the catalog, meant to be called on a background thread
+     */
+    public EarthquakeQueryEngine(EarthquakeCatalog catalog) {
+        mCatalog = catalog;
+        int size = catalog.size();
+
+        // Doubles are sorted by the bits of a long that orders like them
+        long[] magnitudeKeys = new long[size];
+        long[] times = new long[size];
+        for (int i = 0; i < size; i++) {
+            magnitudeKeys[i] = sortableBits(catalog.getMag(i));
+            times[i] = catalog.getTimeInMilliseconds(i);
+        }
+
+        mByMagnitude = sortPositions(magnitudeKeys);
+        mSortedMagnitudes = new double[size];
+        mMagnitudeRanks = new int[size];
+        for (int rank = 0; rank < size; rank++) {
+            mSortedMagnitudes[rank] = catalog.getMag(mByMagnitude[rank]);
+            mMagnitudeRanks[mByMagnitude[rank]] = rank;
+        }
+
+        mByTime = sortPositions(times);
+        mSortedTimes = new long[size];
+        mTimeRanks = new int[size];
+        for (int rank = 0; rank < size; rank++) {
+            mSortedTimes[rank] = times[mByTime[rank]];
+            mTimeRanks[mByTime[rank]] = rank;
+        }
+
+        // Count the earthquakes of every cell, then lay the cells out one after the other
+        int[] cells = new int[size];
+        mCellStarts = new int[GRID_ROWS * GRID_COLUMNS + 1];
+        int locatedCount = 0;
+        for (int i = 0; i < size; i++) {
+            cells[i] = cellOf(catalog.getLatitude(i), catalog.getLongitude(i));
+            if (cells[i] >= 0) {
+                mCellStarts[cells[i] + 1]++;
+                locatedCount++;
+            }
+        }
+        for (int cell = 0; cell < GRID_ROWS * GRID_COLUMNS; cell++) {
+            mCellStarts[cell + 1] += mCellStarts[cell];
+        }
+        mCellPositions = new int[locatedCount];
+        int[] cellEnds = Arrays.copyOf(mCellStarts, GRID_ROWS * GRID_COLUMNS);
+        for (int i = 0; i < size; i++) {
+            if (cells[i] >= 0) {
+                mCellPositions[cellEnds[cells[i]]++] = i;
+            }
+        }
+    }
+
+    /**
+     * @return the earthquakes being queried
+     */
+    public EarthquakeCatalog getCatalog() { return mCatalog; }
+
+    /**
+     * @return the earthquakes that match the query, sorted and limited by it
+     */
+    public EarthquakeCatalog query(Query query) {
+        // Magnitude and time ranges of the sorted indexes
+        int magnitudeStart = lowerBound(mSortedMagnitudes, query.mMinMagnitude);
+        int magnitudeEnd = upperBound(mSortedMagnitudes, query.mMaxMagnitude);
+        int timeStart = lowerBound(mSortedTimes, query.mStartTime);
+        int timeEnd = upperBound(mSortedTimes, query.mEndTime);
+
+        // Grid cells under the area of the query, as row and column ranges
+        double[] area = query.getArea();
+        int rowStart = 0;
+        int rowEnd = 0;
+        int[] columnRanges = null;
+        int gridCount = Integer.MAX_VALUE;
+        if (area != null) {
+            rowStart = rowOf(area[0]);
+            rowEnd = rowOf(area[1]) + 1;
+            columnRanges = area[2] <= area[3]
+                    ? new int[]{columnOf(area[2]), columnOf(area[3]) + 1}
+                    : new int[]{columnOf(area[2]), GRID_COLUMNS, 0, columnOf(area[3]) + 1};
+            gridCount = 0;
+            for (int row = rowStart; row < rowEnd; row++) {
+                for (int range = 0; range < columnRanges.length; range += 2) {
+                    gridCount += mCellStarts[row * GRID_COLUMNS + columnRanges[range + 1]]
+                            - mCellStarts[row * GRID_COLUMNS + columnRanges[range]];
+                }
+            }
+        }
+
+        // Start from the index of the query's order if its walk is expected to reach the limit
+        // within as few candidates: with the other constraints keeping a fraction of the
+        // earthquakes, it takes about limit / fraction of them. Otherwise start from the index
+        // that leaves the fewest candidates
+        boolean byMagnitude = query.mOrderBy.startsWith(ORDER_BY_MAGNITUDE);
+        boolean ascending = query.mOrderBy.endsWith("-asc");
+        int magnitudeCount = Math.max(0, magnitudeEnd - magnitudeStart);
+        int timeCount = Math.max(0, timeEnd - timeStart);
+        int orderCount = byMagnitude ? magnitudeCount : timeCount;
+        int source = byMagnitude ? SOURCE_TIME : SOURCE_MAGNITUDE;
+        int candidateCount = byMagnitude ? timeCount : magnitudeCount;
+        if (gridCount < candidateCount) {
+            source = SOURCE_GRID;
+            candidateCount = gridCount;
+        }
+        long orderedWalk = Math.min(orderCount,
+                (long) query.mLimit * mCatalog.size() / Math.max(1, candidateCount));
+        if (orderedWalk <= candidateCount) {
+            source = byMagnitude ? SOURCE_MAGNITUDE : SOURCE_TIME;
+            candidateCount = orderCount;
+        }
+
+        int[] matches = new int[Math.min(candidateCount, query.mLimit)];
+        int matchCount = 0;
+
+        if ((source == SOURCE_MAGNITUDE && byMagnitude) || (source == SOURCE_TIME && !byMagnitude)) {
+            // The candidates are already in the order of the query, stop at the limit
+            int[] positions = byMagnitude ? mByMagnitude : mByTime;
+            int start = byMagnitude ? magnitudeStart : timeStart;
+            int end = byMagnitude ? magnitudeEnd : timeEnd;
+            for (int k = 0; k < end - start && matchCount < query.mLimit; k++) {
+                int position = positions[ascending ? start + k : end - 1 - k];
+                if (query.matches(mCatalog, position)) {
+                    matches[matchCount++] = position;
+                }
+            }
+            return mCatalog.select(matches, matchCount);
+        }
+
+        // Otherwise collect every match, then sort them by their rank in the sorted index
+        matches = new int[candidateCount];
+        if (source == SOURCE_GRID) {
+            for (int row = rowStart; row < rowEnd; row++) {
+                for (int range = 0; range < columnRanges.length; range += 2) {
+                    int end = mCellStarts[row * GRID_COLUMNS + columnRanges[range + 1]];
+                    for (int k = mCellStarts[row * GRID_COLUMNS + columnRanges[range]]; k < end; k++) {
+                        if (query.matches(mCatalog, mCellPositions[k])) {
+                            matches[matchCount++] = mCellPositions[k];
+                        }
+                    }
+                }
+            }
+        } else {
+            int[] positions = source == SOURCE_MAGNITUDE ? mByMagnitude : mByTime;
+            int start = source == SOURCE_MAGNITUDE ? magnitudeStart : timeStart;
+            int end = source == SOURCE_MAGNITUDE ? magnitudeEnd : timeEnd;
+            for (int k = start; k < end; k++) {
+                if (query.matches(mCatalog, positions[k])) {
+                    matches[matchCount++] = positions[k];
+                }
+            }
+        }
+
+        int[] ranks = byMagnitude ? mMagnitudeRanks : mTimeRanks;
+        int[] sortedPositions = byMagnitude ? mByMagnitude : mByTime;
+        int[] matchRanks = new int[matchCount];
+        for (int k = 0; k < matchCount; k++) {
+            matchRanks[k] = ranks[matches[k]];
+        }
+        Arrays.sort(matchRanks);
+
+        int resultCount = Math.min(matchCount, query.mLimit);
+        int[] result = new int[resultCount];
+        for (int k = 0; k < resultCount; k++) {
+            result[k] = sortedPositions[matchRanks[ascending ? k : matchCount - 1 - k]];
+        }
+        return mCatalog.select(result, resultCount);
+    }
+
+    /**
+     * Answer a USGS query url from the cached result of a broader query, i.e after the minimum
+     * magnitude, the order or the number of results was changed in the settings.
+     *
+     * A cached result can answer the query if its other parameters are the same and its minimum
+     * magnitude is not higher. If the cached result was cut off by its own limit, it must also be
+     * in the same order and hold at least as many matches as the query's limit, otherwise some
+     * earthquakes of the answer may be missing from it.
+     * @return the earthquakes of the query, or null if no cached result can answer it
+     */
+    static EarthquakeCatalog answerFromCache(EarthquakeCache cache, String requestUrl) {
+        String url = EarthquakeCache.normalizeUrl(requestUrl);
+        Map<String, String> parameters = getParameters(url);
+        double minMagnitude = parseMagnitude(parameters.get(PARAMETER_MIN_MAGNITUDE));
+        String orderBy = getOrderBy(parameters);
+        int limit = EarthquakeSync.getIntParameter(url, PARAMETER_LIMIT, Integer.MAX_VALUE);
+
+        for (String cachedUrl : cache.getUrls()) {
+            if (cachedUrl.equals(url) || !isBroaderQuery(cachedUrl, url, minMagnitude)) {
+                continue;
+            }
+            int cachedLimit = EarthquakeSync.getIntParameter(cachedUrl, PARAMETER_LIMIT, Integer.MAX_VALUE);
+            String cachedOrderBy = getOrderBy(getParameters(cachedUrl));
+
+            EarthquakeCache.Entry cached = cache.read(cachedUrl);
+            if (cached == null) {
+                continue;
+            }
+            EarthquakeCatalog catalog = cached.getCatalog();
+            boolean truncated = catalog.size() >= cachedLimit;
+            if (truncated && !cachedOrderBy.equals(orderBy)) {
+                continue;
+            }
+
+            Query query = new Query()
+                    .setMinMagnitude(minMagnitude)
+                    .setOrderBy(orderBy)
+                    .setLimit(limit);
+            // Without a starttime USGS only returns the last 30 days
+            if (parameters.get("starttime") == null) {
+                query.setTimeRange(System.currentTimeMillis() - EarthquakeSync.DEFAULT_QUERY_WINDOW,
+                        Long.MAX_VALUE);
+            }
+            EarthquakeCatalog result = new EarthquakeQueryEngine(catalog).query(query);
+            if (truncated && result.size() < limit) {
+                continue;
+            }
+            return result;
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the cached query url has the same parameters as the query url, apart from
+     * the ones the engine answers locally, and a minimum magnitude that is not higher
+     */
+    private static boolean isBroaderQuery(String cachedUrl, String url, double minMagnitude) {
+        int queryStart = url.indexOf('?');
+        if (queryStart < 0 || !cachedUrl.regionMatches(0, url, 0, queryStart + 1)) {
+            return false;
+        }
+        Map<String, String> parameters = getParameters(url);
+        Map<String, String> cachedParameters = getParameters(cachedUrl);
+        for (String name : new String[]{PARAMETER_MIN_MAGNITUDE, PARAMETER_ORDER_BY, PARAMETER_LIMIT}) {
+            parameters.remove(name);
+            cachedParameters.remove(name);
+        }
+        return parameters.equals(cachedParameters)
+                && parseMagnitude(getParameters(cachedUrl).get(PARAMETER_MIN_MAGNITUDE)) <= minMagnitude;
+    }
+
+    private static Map<String, String> getParameters(String url) {
+        Map<String, String> parameters = new HashMap<>();
+        int queryStart = url.indexOf('?');
+        if (queryStart < 0) {
+            return parameters;
+        }
+        for (String parameter : url.substring(queryStart + 1).split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator > 0) {
+                parameters.put(parameter.substring(0, separator), parameter.substring(separator + 1));
+            }
+        }
+        return parameters;
+    }
+
+    private static String getOrderBy(Map<String, String> parameters) {
+        // USGS orders by "time", most recent first, by default
+        String orderBy = parameters.get(PARAMETER_ORDER_BY);
+        return orderBy != null ? orderBy : ORDER_BY_TIME;
+    }
+
+    private static double parseMagnitude(String value) {
+        if (value == null) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return Double.NEGATIVE_INFINITY;
+        }
+    }
+
+    /**
+     * @return the grid cell of an epicenter, or -1 if it is unknown
+     */
+    private static int cellOf(double latitude, double longitude) {
+        if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+            return -1;
+        }
+        return rowOf(latitude) * GRID_COLUMNS + columnOf(longitude);
+    }
+
+    private static int rowOf(double latitude) {
+        return Math.max(0, Math.min(GRID_ROWS - 1, (int) Math.floor(latitude + 90)));
+    }
+
+    private static int columnOf(double longitude) {
+        return Math.max(0, Math.min(GRID_COLUMNS - 1, (int) Math.floor(longitude + 180)));
+    }
+
+    /**
+     * @return the great circle distance between two points, in kilometers
+     */
+    static double distanceKm(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double sinLatitude = Math.sin(Math.toRadians(latitude2 - latitude1) / 2);
+        double sinLongitude = Math.sin(Math.toRadians(longitude2 - longitude1) / 2);
+        double a = sinLatitude * sinLatitude + Math.cos(Math.toRadians(latitude1))
+                * Math.cos(Math.toRadians(latitude2)) * sinLongitude * sinLongitude;
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * @return a long that sorts like the given double
+     */
+    private static long sortableBits(double value) {
+        long bits = Double.doubleToLongBits(value);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    /**
+     * @return the positions of the keys, sorted by ascending key. Equal keys keep their order
+     */
+    private static int[] sortPositions(long[] keys) {
+        int size = keys.length;
+        int[] positions = new int[size];
+        for (int i = 0; i < size; i++) {
+            positions[i] = i;
+        }
+        // Bottom up merge sort, between the positions and a scratch array
+        int[] scratch = new int[size];
+        for (int width = 1; width < size; width *= 2) {
+            for (int start = 0; start < size; start += 2 * width) {
+                int middle = Math.min(start + width, size);
+                int end = Math.min(start + 2 * width, size);
+                int left = start;
+                int right = middle;
+                for (int k = start; k < end; k++) {
+                    if (left < middle && (right >= end || keys[positions[left]] <= keys[positions[right]])) {
+                        scratch[k] = positions[left++];
+                    } else {
+                        scratch[k] = positions[right++];
+                    }
+                }
+            }
+            int[] swap = positions;
+            positions = scratch;
+            scratch = swap;
+        }
+        return positions;
+    }
+
+    /**
+     * @return the index of the first value not lower than the given value
+     */
+    private static int lowerBound(double[] values, double value) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the index of the first value higher than the given value
+     */
+    private static int upperBound(double[] values, double value) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] <= value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int lowerBound(long[] values, long value) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int upperBound(long[] values, long value) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] <= value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+
+    /**
+     * The constraints, order and limit of a local query. Every constraint is optional,
+     * a new query matches every earthquake, most recent first
+     */
+    public static final class Query {
+
+        private double mMinMagnitude = Double.NEGATIVE_INFINITY;
+        private double mMaxMagnitude = Double.POSITIVE_INFINITY;
+
+        private long mStartTime = Long.MIN_VALUE;
+        private long mEndTime = Long.MAX_VALUE;
+
+        /* Bounding box, its longitudes wrap around the antimeridian if min is east of max */
+        private boolean mHasBoundingBox;
+        private double mMinLatitude;
+        private double mMaxLatitude;
+        private double mMinLongitude;
+        private double mMaxLongitude;
+
+        /* Circle around a point */
+        private boolean mHasRadius;
+        private double mLatitude;
+        private double mLongitude;
+        private double mRadiusKm;
+
+        private String mOrderBy = ORDER_BY_TIME;
+        private int mLimit = Integer.MAX_VALUE;
+
+        /**
+         * @return the query matching the earthquakes a USGS query url asks for: its minimum
+         * magnitude, bounding box and order. Its limit is left out, so a single earthquake
+         * (i.e one of a live feed) can be matched against it
+         */
+        static Query fromUrl(String requestUrl) {
+            Map<String, String> parameters = getParameters(requestUrl);
+            Query query = new Query()
+                    .setMinMagnitude(parseMagnitude(parameters.get(PARAMETER_MIN_MAGNITUDE)))
+                    .setOrderBy(getOrderBy(parameters));
+            String minLatitude = parameters.get("minlatitude");
+            String maxLatitude = parameters.get("maxlatitude");
+            String minLongitude = parameters.get("minlongitude");
+            String maxLongitude = parameters.get("maxlongitude");
+            if (minLatitude != null && maxLatitude != null && minLongitude != null && maxLongitude != null) {
+                try {
+                    query.setBoundingBox(Double.parseDouble(minLatitude), Double.parseDouble(maxLatitude),
+                            Double.parseDouble(minLongitude), Double.parseDouble(maxLongitude));
+                } catch (NumberFormatException e) {
+                    Log.e(LOG_TAG, "Problem parsing the bounding box of " + requestUrl, e);
+                }
+            }
+            return query;
+        }
+
+        /**
+         * Only match earthquakes of at least the given magnitude
+         */
+        public Query setMinMagnitude(double minMagnitude) {
+            mMinMagnitude = minMagnitude;
+            return this;
+        }
+
+        /**
+         * Only match earthquakes of at most the given magnitude
+         */
+        public Query setMaxMagnitude(double maxMagnitude) {
+            mMaxMagnitude = maxMagnitude;
+            return this;
+        }
+
+        /**
+         * Only match earthquakes between the given times, both included
+         */
+        public Query setTimeRange(long startTimeInMilliseconds, long endTimeInMilliseconds) {
+            mStartTime = startTimeInMilliseconds;
+            mEndTime = endTimeInMilliseconds;
+            return this;
+        }
+
+        /**
+         * Only match earthquakes with an epicenter in the given box. The box crosses the
+         * antimeridian if minLongitude is greater than maxLongitude
+         */
+        public Query setBoundingBox(double minLatitude, double maxLatitude,
+                                    double minLongitude, double maxLongitude) {
+            mHasBoundingBox = true;
+            mMinLatitude = minLatitude;
+            mMaxLatitude = maxLatitude;
+            mMinLongitude = minLongitude;
+            mMaxLongitude = maxLongitude;
+            return this;
+        }
+
+        /**
+         * Only match earthquakes with an epicenter at most radiusKm away from the given point
+         */
+        public Query setRadius(double latitude, double longitude, double radiusKm) {
+            mHasRadius = true;
+            mLatitude = latitude;
+            mLongitude = longitude;
+            mRadiusKm = radiusKm;
+            return this;
+        }
+
+        /**
+         * Sort the matches by one of {@link #ORDER_BY_TIME}, {@link #ORDER_BY_TIME_ASC},
+         * {@link #ORDER_BY_MAGNITUDE} or {@link #ORDER_BY_MAGNITUDE_ASC}
+         */
+        public Query setOrderBy(String orderBy) {
+            mOrderBy = orderBy;
+            return this;
+        }
+
+        /**
+         * Keep at most the given number of matches
+         */
+        public Query setLimit(int limit) {
+            mLimit = Math.max(0, limit);
+            return this;
+        }
+
+        /**
+         * @return the box that holds the area of the query as min and max latitude, then min and
+         * max longitude, or null if the query has no area
+         */
+        double[] getArea() {
+            if (mHasBoundingBox) {
+                return new double[]{mMinLatitude, mMaxLatitude, mMinLongitude, mMaxLongitude};
+            }
+            if (!mHasRadius) {
+                return null;
+            }
+
+            // The circle's latitudes span its angular radius, its longitudes widen towards the
+            // poles. A circle over a pole covers every longitude
+            double angularRadius = mRadiusKm / EARTH_RADIUS_KM;
+            double latitudeSpan = Math.toDegrees(angularRadius);
+            double minLatitude = mLatitude - latitudeSpan;
+            double maxLatitude = mLatitude + latitudeSpan;
+            double sinLongitudeSpan = Math.sin(angularRadius) / Math.cos(Math.toRadians(mLatitude));
+            if (minLatitude <= -90 || maxLatitude >= 90 || sinLongitudeSpan >= 1
+                    || angularRadius >= Math.PI / 2) {
+                return new double[]{Math.max(-90, minLatitude), Math.min(90, maxLatitude), -180, 180};
+            }
+            double longitudeSpan = Math.toDegrees(Math.asin(sinLongitudeSpan));
+            double minLongitude = mLongitude - longitudeSpan;
+            double maxLongitude = mLongitude + longitudeSpan;
+            if (minLongitude < -180) {
+                minLongitude += 360;
+            }
+            if (maxLongitude > 180) {
+                maxLongitude -= 360;
+            }
+            return new double[]{minLatitude, maxLatitude, minLongitude, maxLongitude};
+        }
+
+        /**
+         * @return true if the earthquake at the given position of the catalog matches the query
+         */
+        boolean matches(EarthquakeCatalog catalog, int position) {
+            double magnitude = catalog.getMag(position);
+            long time = catalog.getTimeInMilliseconds(position);
+            if (magnitude < mMinMagnitude || magnitude > mMaxMagnitude
+                    || time < mStartTime || time > mEndTime) {
+                return false;
+            }
+            if (!mHasBoundingBox && !mHasRadius) {
+                return true;
+            }
+
+            double latitude = catalog.getLatitude(position);
+            double longitude = catalog.getLongitude(position);
+            if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+                return false;
+            }
+            if (mHasBoundingBox) {
+                boolean inLongitudes = mMinLongitude <= mMaxLongitude
+                        ? longitude >= mMinLongitude && longitude <= mMaxLongitude
+                        : longitude >= mMinLongitude || longitude <= mMaxLongitude;
+                if (!inLongitudes || latitude < mMinLatitude || latitude > mMaxLatitude) {
+                    return false;
+                }
+            }
+            return !mHasRadius || distanceKm(mLatitude, mLongitude, latitude, longitude) <= mRadiusKm;
+        }
+    }
+}
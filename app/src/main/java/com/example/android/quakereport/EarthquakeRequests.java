@@ -0,0 +1,259 @@
+package com.example.android.quakereport;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces the fetches of the same query that are running at the same time into one request.
+ *
+ * Fetches are keyed by normalized query url. The first fetch of a query starts the request on a
+ * worker thread, every later fetch of the same query while it is running waits for the same
+ * result instead of starting another download and parse (i.e after a rotation, or when the
+ * loader and the background sync ask for the same query). Every caller waits with its own
+ * {@link FetchCancellation}: a cancelled caller stops waiting right away, and the request itself
+ * is only aborted once every caller waiting for it was cancelled.
+ */
+final class EarthquakeRequests {
+
+    /**
+     * Tag for the Log messages
+     */
+    private static final String LOG_TAG = EarthquakeRequests.class.getSimpleName();
+
+    /* Requests running at the same time, enough for every query of EarthquakeFanOut and a page */
+    private static final int MAX_RUNNING_REQUESTS = 6;
+
+    /* Idle workers are stopped after this long */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final ExecutorService sExecutor = createExecutor();
+
+    /* Running requests by normalized query url, guarded by itself */
+    private static final Map<String, SharedRequest> sRunning = new HashMap<>();
+
+    /* Requests started, fetches that joined a running request, and requests aborted */
+    private static final AtomicLong sStartedRequests = new AtomicLong();
+    private static final AtomicLong sJoinedFetches = new AtomicLong();
+    private static final AtomicLong sAbortedRequests = new AtomicLong();
+
+    private EarthquakeRequests() {
+    }
+
+    /**
+     * Fetch the earthquakes of a query like {@link QueryUtils#fetchEarthquakeData(String,
+     * EarthquakeCache, EarthquakeCache.Entry, QueryUtils.OnBatchParsedListener)}, joining the
+     * request of the same query if one is already running. Blocks until the result is ready
+     * @param listener notified with the earthquakes parsed so far, from the request's worker,
+     *                 or null. A fetch that joins a running request only gets the later batches,
+     *                 if the fetch that started it had a listener
+     * @param cancellation stops waiting for the result when it is cancelled, or null
+     * @return the earthquakes, or null if the request failed or this fetch was cancelled
+     */
+    static EarthquakeCatalog fetch(String requestUrl, EarthquakeCache cache,
+                                   EarthquakeCache.Entry cached,
+                                   QueryUtils.OnBatchParsedListener listener,
+                                   FetchCancellation cancellation) {
+        String key = EarthquakeCache.normalizeUrl(requestUrl);
+
+        SharedRequest request;
+        boolean started = false;
+        synchronized (sRunning) {
+            request = sRunning.get(key);
+            if (request == null) {
+                request = new SharedRequest(key, requestUrl, cache, cached, listener != null);
+                sRunning.put(key, request);
+                started = true;
+            }
+            request.addWaiter(listener);
+        }
+
+        if (started) {
+            sStartedRequests.incrementAndGet();
+            sExecutor.execute(request);
+        } else {
+            sJoinedFetches.incrementAndGet();
+            Log.i(LOG_TAG, "Joined the running request of " + key + ". " + getSummary());
+        }
+        return request.await(listener, cancellation);
+    }
+
+    /**
+     * @return the number of requests started, so far
+     */
+    static long getStartedRequestCount() {
+        return sStartedRequests.get();
+    }
+
+    /**
+     * @return how many requests were started, joined and aborted
+     */
+    static String getSummary() {
+        return String.format(Locale.US, "%d requests started, %d fetches joined a running one,"
+                        + " %d requests aborted",
+                sStartedRequests.get(), sJoinedFetches.get(), sAbortedRequests.get());
+    }
+
+    private static ExecutorService createExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_RUNNING_REQUESTS,
+                MAX_RUNNING_REQUESTS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, LOG_TAG + " #" + mCount.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+
+    /**
+     * The request of one query, and the callers waiting for its result
+     */
+    private static final class SharedRequest implements Runnable, QueryUtils.OnBatchParsedListener {
+
+        private final String mKey;
+        private final String mRequestUrl;
+        private final EarthquakeCache mCache;
+        private final EarthquakeCache.Entry mCached;
+
+        /* True if the caller that started the request wants the batches parsed so far, only
+         * then are they built */
+        private final boolean mPublishesBatches;
+
+        /* Aborts the request once nobody is waiting for it anymore */
+        private final FetchCancellation mCancellation = new FetchCancellation();
+
+        /* Listeners of the waiting callers, guarded by this */
+        private final List<QueryUtils.OnBatchParsedListener> mListeners = new ArrayList<>();
+
+        /* Number of callers waiting for the result, guarded by this */
+        private int mWaiterCount;
+
+        /* The result, once mDone is set. Guarded by this */
+        private boolean mDone;
+        private EarthquakeCatalog mResult;
+
+        SharedRequest(String key, String requestUrl, EarthquakeCache cache,
+                      EarthquakeCache.Entry cached, boolean publishesBatches) {
+            mKey = key;
+            mRequestUrl = requestUrl;
+            mCache = cache;
+            mCached = cached;
+            mPublishesBatches = publishesBatches;
+        }
+
+        @Override
+        public void run() {
+            EarthquakeCatalog result = null;
+            try {
+                result = QueryUtils.fetchEarthquakeData(mRequestUrl, mCache, mCached,
+                        mPublishesBatches ? this : null, mCancellation);
+            } finally {
+                // Later fetches of the query start a new request
+                synchronized (sRunning) {
+                    if (sRunning.get(mKey) == this) {
+                        sRunning.remove(mKey);
+                    }
+                }
+                synchronized (this) {
+                    mResult = result;
+                    mDone = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public void onBatchParsed(EarthquakeCatalog earthquakesSoFar) {
+            List<QueryUtils.OnBatchParsedListener> listeners;
+            synchronized (this) {
+                listeners = new ArrayList<>(mListeners);
+            }
+            for (QueryUtils.OnBatchParsedListener listener : listeners) {
+                listener.onBatchParsed(earthquakesSoFar);
+            }
+        }
+
+        synchronized void addWaiter(QueryUtils.OnBatchParsedListener listener) {
+            mWaiterCount++;
+            if (listener != null) {
+                mListeners.add(listener);
+            }
+        }
+
+        /**
+         * Wait for the result, or for the cancellation of the caller
+         */
+        EarthquakeCatalog await(QueryUtils.OnBatchParsedListener listener,
+                                FetchCancellation cancellation) {
+            // The cancellation may be shared with the other queries of a load, each of them
+            // waits with its own listener
+            Runnable onCancelListener = new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (SharedRequest.this) {
+                        SharedRequest.this.notifyAll();
+                    }
+                }
+            };
+            if (cancellation != null) {
+                cancellation.addOnCancelListener(onCancelListener);
+            }
+
+            synchronized (this) {
+                try {
+                    while (!mDone && (cancellation == null || !cancellation.isCancelled())) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (cancellation != null) {
+                cancellation.removeOnCancelListener(onCancelListener);
+            }
+
+            // Locked in the same order as fetch(), so no caller can join the request
+            // between the last waiter leaving it and the request being aborted
+            synchronized (sRunning) {
+                synchronized (this) {
+                    mWaiterCount--;
+                    if (listener != null) {
+                        mListeners.remove(listener);
+                    }
+                    if (mDone) {
+                        return mResult;
+                    }
+                    if (mWaiterCount > 0) {
+                        return null;
+                    }
+                    // This caller gave up and was the last one waiting, later fetches of the
+                    // query start a new request
+                    if (sRunning.get(mKey) == this) {
+                        sRunning.remove(mKey);
+                    }
+                }
+            }
+
+            sAbortedRequests.incrementAndGet();
+            mCancellation.cancel();
+            Log.i(LOG_TAG, "Aborted the request of " + mKey + ". " + getSummary());
+            return null;
+        }
+    }
+}
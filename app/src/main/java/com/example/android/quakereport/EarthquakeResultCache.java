@@ -0,0 +1,184 @@
+package com.example.android.quakereport;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.SystemClock;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the last query results in memory for the whole process, formatted and ready to show,
+ * so a query that was loaded a moment ago (i.e before the order was toggled back in the
+ * settings) is shown again without a request or a parse.
+ *
+ * Results are keyed by the normalized urls of their queries (see
+ * {@link EarthquakeCache#normalizeUrl(String)}) and weighed by an estimate of the bytes they
+ * take. The least recently used results are evicted once the cache is over
+ * {@link #MAX_MEMORY_FRACTION} of the heap, and the cache shrinks or is cleared when the system
+ * is low on memory. Results older than the age the caller accepts are loaded again.
+ *
+ * Can be used from any thread.
+ */
+final class EarthquakeResultCache implements ComponentCallbacks2 {
+
+    /**
+     * Tag for the Log messages
+     */
+    private static final String LOG_TAG = EarthquakeResultCache.class.getSimpleName();
+
+    /* Share of the heap the cached results can take */
+    private static final int MAX_MEMORY_FRACTION = 16;
+
+    private static EarthquakeResultCache sInstance;
+
+    private final LruCache<String, Result> mResults;
+
+    /* Results found and fresh enough, results not found, and results found but too old */
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mStaleHits = new AtomicLong();
+
+    /**
+     * @return the cache shared by the whole app, trimmed when the system is low on memory
+     */
+    static synchronized EarthquakeResultCache getInstance(Context context) {
+        if (sInstance == null) {
+            long maxBytes = Runtime.getRuntime().maxMemory() / MAX_MEMORY_FRACTION;
+            sInstance = new EarthquakeResultCache((int) Math.min(maxBytes, Integer.MAX_VALUE));
+            context.getApplicationContext().registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the running cache, or null if nothing was cached yet
+     */
+    static synchronized EarthquakeResultCache peekInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @param maxBytes the most bytes all the results can take together
+     */
+    EarthquakeResultCache(int maxBytes) {
+        mResults = new LruCache<String, Result>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Result result) {
+                return result.mBytes;
+            }
+        };
+    }
+
+    /**
+     * @return the result of the given query urls if it is at most maxAge milliseconds old,
+     * or null. A result formatted for another configuration is formatted again, from the
+     * earthquakes that are already parsed
+     */
+    EarthquakeDisplayModel get(List<String> requestUrls, EarthquakeFormatter formatter, long maxAge) {
+        String key = keyOf(requestUrls);
+        Result result = mResults.get(key);
+        if (result == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() - result.mTime > maxAge) {
+            mStaleHits.incrementAndGet();
+            mResults.remove(key);
+            return null;
+        }
+        mHits.incrementAndGet();
+        if (!result.mFormatter.hasSameTables(formatter)) {
+            // The locale or the night mode changed, only the texts need to be built again
+            EarthquakeDisplayModel earthquakes =
+                    EarthquakeDisplayModel.build(result.mEarthquakes.getCatalog(), formatter);
+            mResults.put(key, new Result(earthquakes, formatter, result.mTime));
+            return earthquakes;
+        }
+        return result.mEarthquakes;
+    }
+
+    /**
+     * Keep the complete result of the given query urls, replacing any previous result
+     * @param formatter the formatter the result was formatted with
+     */
+    void put(List<String> requestUrls, EarthquakeDisplayModel earthquakes, EarthquakeFormatter formatter) {
+        mResults.put(keyOf(requestUrls),
+                new Result(earthquakes, formatter, SystemClock.elapsedRealtime()));
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE) {
+            // The process is next in line to be killed, the results are loaded again from disk
+            mResults.evictAll();
+        } else if (level >= TRIM_MEMORY_BACKGROUND
+                || (level >= TRIM_MEMORY_RUNNING_LOW && level < TRIM_MEMORY_UI_HIDDEN)) {
+            // Keep the most recent results, i.e the one on screen
+            mResults.trimToSize(mResults.maxSize() / 2);
+        }
+        Log.i(LOG_TAG, "Trimmed to level " + level + ". " + getSummary());
+    }
+
+    @Override
+    public void onLowMemory() {
+        mResults.evictAll();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        // Results of another configuration are formatted again when they are read
+    }
+
+    /**
+     * @return the hits, misses, evictions and size of the cache
+     */
+    String getSummary() {
+        return String.format(Locale.US, "Result cache: %d hits, %d misses, %d too old,"
+                        + " %d evictions, %d results in %d of %d KB",
+                mHits.get(), mMisses.get(), mStaleHits.get(), mResults.evictionCount(),
+                mResults.snapshot().size(), mResults.size() / 1024, mResults.maxSize() / 1024);
+    }
+
+    /**
+     * @return the key of the given query urls, their normalized urls in order
+     */
+    private static String keyOf(List<String> requestUrls) {
+        StringBuilder key = new StringBuilder();
+        for (String requestUrl : requestUrls) {
+            if (key.length() > 0) {
+                key.append(' ');
+            }
+            key.append(EarthquakeCache.normalizeUrl(requestUrl));
+        }
+        return key.toString();
+    }
+
+
+    /**
+     * A cached result, with the formatter it was formatted with and when it was loaded
+     */
+    private static final class Result {
+
+        private final EarthquakeDisplayModel mEarthquakes;
+
+        private final EarthquakeFormatter mFormatter;
+
+        /* SystemClock.elapsedRealtime() when the result was loaded */
+        private final long mTime;
+
+        /* Weight of the result in the cache, estimated once */
+        private final int mBytes;
+
+        Result(EarthquakeDisplayModel earthquakes, EarthquakeFormatter formatter, long time) {
+            mEarthquakes = earthquakes;
+            mFormatter = formatter;
+            mTime = time;
+            mBytes = (int) Math.min(earthquakes.estimateBytes(), Integer.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,789 @@
+package com.example.android.quakereport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads the earthquakes of a USGS GeoJSON stream straight from its UTF-8 bytes.
+ *
+ * The stream is read into a byte buffer and each feature is parsed in place once all of its
+ * bytes are in the buffer: numbers are parsed from the bytes, and the place and url are handed
+ * to the {@link EarthquakeCatalog.Builder} as bytes, to be decoded only when they are first
+ * read. Only the event id, and the strings that contain escapes, are decoded while parsing.
+ *
+ * Malformed JSON is reported with an IllegalStateException or a NumberFormatException, like
+ * {@link android.util.JsonReader} does, and a stream that ends too early with an EOFException.
+ */
+final class EarthquakeScanner {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /* Initial size of the buffer, it grows if a single feature does not fit */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /* The names read, and the deleted status, without their quotes */
+    private static final byte[] FEATURES = ascii("features");
+    private static final byte[] ID = ascii("id");
+    private static final byte[] PROPERTIES = ascii("properties");
+    private static final byte[] GEOMETRY = ascii("geometry");
+    private static final byte[] COORDINATES = ascii("coordinates");
+    private static final byte[] MAG = ascii("mag");
+    private static final byte[] PLACE = ascii("place");
+    private static final byte[] TIME = ascii("time");
+    private static final byte[] UPDATED = ascii("updated");
+    private static final byte[] URL = ascii("url");
+    private static final byte[] STATUS = ascii("status");
+    private static final byte[] DELETED = ascii("deleted");
+
+    /* Powers of ten that are exact doubles, see parseDouble */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /* The most digits of a number whose value is an exact double */
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    private final InputStream mInputStream;
+
+    private byte[] mBuffer = new byte[BUFFER_SIZE];
+
+    /* Position of the next byte to parse, and the end of the bytes read into the buffer */
+    private int mPosition;
+    private int mLimit;
+    private boolean mEndOfStream;
+
+    /* The fields of the feature being parsed, see resetFeature.
+     * A place or url that was decoded is in mPlace or mUrl, otherwise its bytes are at
+     * mPlaceStart or mUrlStart in the buffer */
+    private String mId;
+    private boolean mHasProperties;
+    private double mMagnitude;
+    private String mPlace;
+    private int mPlaceStart;
+    private int mPlaceEnd;
+    private long mTime;
+    private long mUpdated;
+    private String mUrl;
+    private int mUrlStart;
+    private int mUrlEnd;
+    private double mLatitude;
+    private double mLongitude;
+    private boolean mDeleted;
+
+    /* Split of the place, see splitPlace */
+    private int mLocationOffsetEnd;
+    private int mPrimaryLocationStart;
+
+    EarthquakeScanner(InputStream inputStream) {
+        mInputStream = inputStream;
+    }
+
+    /**
+     * Scan a response that is already in memory, the bytes are only read
+     */
+    EarthquakeScanner(byte[] response, int length) {
+        mInputStream = null;
+        mBuffer = response;
+        mLimit = length;
+        mEndOfStream = true;
+    }
+
+    /**
+     * Add every earthquake of the stream to the catalog builder
+     * @param listener notified of the earthquakes parsed so far, in batches, may be null
+     * @param firstBatchSize number of earthquakes of the first batch, the next ones double
+     * @param cancellation checked between two features, may be null
+     */
+    void scan(EarthquakeCatalog.Builder earthquakes, QueryUtils.OnBatchParsedListener listener,
+              int firstBatchSize, FetchCancellation cancellation) throws IOException {
+
+        if (!moveToFeatures()) {
+            return;
+        }
+
+        // Number of earthquakes to parse before the next batch is published
+        int nextBatchSize = firstBatchSize;
+
+        //  Loop through each feature in the array
+        int featureEnd;
+        while ((featureEnd = findNextFeature()) >= 0) {
+            if (cancellation != null) {
+                cancellation.throwIfCancelled();
+            }
+            scanFeature(mPosition, featureEnd, earthquakes);
+            mPosition = featureEnd;
+
+            if (listener != null && earthquakes.size() >= nextBatchSize) {
+                listener.onBatchParsed(earthquakes.build());
+                nextBatchSize = earthquakes.size() * 2;
+            }
+        }
+    }
+
+    /**
+     * Find where each feature of a response held in memory starts and ends, without parsing
+     * them. This only follows the brackets and quotes, so it is several times faster than
+     * parsing the features, which can then be parsed in any order with {@link #scanFeatures}
+     * @return the start and the end of every feature, one after the other
+     */
+    int[] findFeatures() throws IOException {
+        int[] bounds = new int[64];
+        int length = 0;
+        if (moveToFeatures()) {
+            int featureEnd;
+            while ((featureEnd = findNextFeature()) >= 0) {
+                if (length == bounds.length) {
+                    bounds = Arrays.copyOf(bounds, length * 2);
+                }
+                bounds[length++] = mPosition;
+                bounds[length++] = featureEnd;
+                mPosition = featureEnd;
+            }
+        }
+        return Arrays.copyOf(bounds, length);
+    }
+
+    /**
+     * Parse the features found by {@link #findFeatures} from the first one to the last one,
+     * excluded, and add them to the catalog builder
+     */
+    void scanFeatures(int[] bounds, int first, int last, EarthquakeCatalog.Builder earthquakes) {
+        for (int i = first; i < last; i++) {
+            scanFeature(bounds[2 * i], bounds[2 * i + 1], earthquakes);
+        }
+    }
+
+    /**
+     * Move to the first feature of the "features" array, skipping "metadata", "bbox" etc.
+     * @return false if the response has no features
+     */
+    private boolean moveToFeatures() throws IOException {
+        expect('{');
+        while (true) {
+            int c = peek();
+            if (c == '}') {
+                mPosition++;
+                return false;
+            }
+            if (c == ',') {
+                mPosition++;
+                continue;
+            }
+            int nameEnd = requireValue();
+            boolean features = matches(mPosition, nameEnd, FEATURES);
+            mPosition = nameEnd;
+            expect(':');
+            if (features && peek() == '[') {
+                mPosition++;
+                return true;
+            }
+            mPosition = requireValue();
+        }
+    }
+
+    /**
+     * Read the stream until the next feature is entirely in the buffer, from the current
+     * position on. The values of the array that are not objects are skipped
+     * @return the end of the feature, or -1 at the end of the array
+     */
+    private int findNextFeature() throws IOException {
+        while (true) {
+            int c = peek();
+            if (c == ']') {
+                // Whatever follows the array ("bbox") is not read
+                mPosition++;
+                return -1;
+            }
+            if (c == ',') {
+                mPosition++;
+                continue;
+            }
+            int end = requireValue();
+            if (c == '{') {
+                return end;
+            }
+            mPosition = end;
+        }
+    }
+
+    /**
+     * Parse the feature object between the given positions of the buffer and add it to the
+     * catalog, features without an "id" or a "properties" object are dropped
+     */
+    private void scanFeature(int start, int end, EarthquakeCatalog.Builder earthquakes) {
+        resetFeature();
+
+        byte[] buffer = mBuffer;
+        int position = start + 1;
+        while (true) {
+            position = skipWhitespace(position, end);
+            int c = buffer[position];
+            if (c == '}') {
+                break;
+            }
+            if (c == ',') {
+                position++;
+                continue;
+            }
+            int nameStart = position;
+            int nameEnd = findValueEnd(position, end);
+            position = skipWhitespace(nameEnd, end);
+            checkByte(position, ':');
+            position = skipWhitespace(position + 1, end);
+            int valueEnd = findValueEnd(position, end);
+
+            c = buffer[position];
+            if (c == '{' && matches(nameStart, nameEnd, PROPERTIES)) {
+                scanProperties(position, valueEnd);
+            } else if (c == '"' && matches(nameStart, nameEnd, ID)) {
+                // "id" comes after "properties", so the earthquake is only added at the end
+                mId = readString(position, valueEnd);
+            } else if (c == '{' && matches(nameStart, nameEnd, GEOMETRY)) {
+                scanGeometry(position, valueEnd);
+            }
+            // "type" is not used
+            position = valueEnd;
+        }
+
+        if (mId == null || !mHasProperties) {
+            return;
+        }
+        if (mDeleted) {
+            earthquakes.addDeleted(mId);
+            return;
+        }
+
+        // The place is split from its bytes, unless it has to be decoded for that
+        boolean encodedPlace = mPlace == null && splitPlace(mPlaceStart, mPlaceEnd);
+        if (mPlace == null && !encodedPlace) {
+            mPlace = new String(buffer, mPlaceStart, mPlaceEnd - mPlaceStart, UTF_8);
+        }
+        earthquakes.add(mId, mMagnitude, mPlace, mTime, mUpdated, mLatitude, mLongitude, mUrl);
+        if (encodedPlace) {
+            earthquakes.setLastPlace(buffer, mPlaceStart, mPlaceEnd - mPlaceStart,
+                    mLocationOffsetEnd, mPrimaryLocationStart);
+        }
+        if (mUrl == null && mUrlStart >= 0) {
+            earthquakes.setLastUrl(buffer, mUrlStart, mUrlEnd - mUrlStart);
+        }
+    }
+
+    /**
+     * Parse the "properties" object of a feature, keeping only
+     * "mag", "place", "time", "updated", "url" and "status"
+     */
+    private void scanProperties(int start, int end) {
+        mHasProperties = true;
+
+        byte[] buffer = mBuffer;
+        int position = start + 1;
+        while (true) {
+            position = skipWhitespace(position, end);
+            int c = buffer[position];
+            if (c == '}') {
+                return;
+            }
+            if (c == ',') {
+                position++;
+                continue;
+            }
+            int nameStart = position;
+            int nameEnd = findValueEnd(position, end);
+            position = skipWhitespace(nameEnd, end);
+            checkByte(position, ':');
+            position = skipWhitespace(position + 1, end);
+            int valueEnd = findValueEnd(position, end);
+
+            // USGS sends null for values it does not know yet (i.e a fresh event without a place)
+            if (buffer[position] == 'n') {
+                position = valueEnd;
+                continue;
+            }
+
+            if (matches(nameStart, nameEnd, MAG)) {
+                mMagnitude = readDouble(position, valueEnd);
+            } else if (matches(nameStart, nameEnd, PLACE)) {
+                if (isEncodable(position, valueEnd)) {
+                    mPlace = null;
+                    mPlaceStart = position + 1;
+                    mPlaceEnd = valueEnd - 1;
+                } else {
+                    mPlace = readString(position, valueEnd);
+                }
+            } else if (matches(nameStart, nameEnd, TIME)) {
+                mTime = readLong(position, valueEnd);
+            } else if (matches(nameStart, nameEnd, UPDATED)) {
+                mUpdated = readLong(position, valueEnd);
+            } else if (matches(nameStart, nameEnd, URL)) {
+                if (isEncodable(position, valueEnd)) {
+                    mUrl = null;
+                    mUrlStart = position + 1;
+                    mUrlEnd = valueEnd - 1;
+                } else {
+                    mUrl = readString(position, valueEnd);
+                    mUrlStart = -1;
+                }
+            } else if (matches(nameStart, nameEnd, STATUS)) {
+                // Incremental queries also return the earthquakes USGS deleted
+                mDeleted = isEncodable(position, valueEnd) ? matches(position, valueEnd, DELETED)
+                        : "deleted".equals(readString(position, valueEnd));
+            }
+            position = valueEnd;
+        }
+    }
+
+    /**
+     * Parse the "geometry" object of a feature, keeping the longitude and latitude
+     * of its "coordinates" point
+     */
+    private void scanGeometry(int start, int end) {
+        byte[] buffer = mBuffer;
+        int position = start + 1;
+        while (true) {
+            position = skipWhitespace(position, end);
+            int c = buffer[position];
+            if (c == '}') {
+                return;
+            }
+            if (c == ',') {
+                position++;
+                continue;
+            }
+            int nameStart = position;
+            int nameEnd = findValueEnd(position, end);
+            position = skipWhitespace(nameEnd, end);
+            checkByte(position, ':');
+            position = skipWhitespace(position + 1, end);
+            int valueEnd = findValueEnd(position, end);
+
+            if (buffer[position] == '[' && matches(nameStart, nameEnd, COORDINATES)) {
+                // Longitude, latitude and depth, the depth is not used
+                int element = position + 1;
+                for (int i = 0; ; i++) {
+                    element = skipWhitespace(element, valueEnd);
+                    if (buffer[element] == ']') {
+                        break;
+                    }
+                    if (buffer[element] == ',') {
+                        element = skipWhitespace(element + 1, valueEnd);
+                    }
+                    int elementEnd = findValueEnd(element, valueEnd);
+                    c = buffer[element];
+                    if (i < 2 && (c == '-' || (c >= '0' && c <= '9'))) {
+                        if (i == 0) {
+                            mLongitude = readDouble(element, elementEnd);
+                        } else {
+                            mLatitude = readDouble(element, elementEnd);
+                        }
+                    }
+                    element = elementEnd;
+                }
+            }
+            position = valueEnd;
+        }
+    }
+
+    private void resetFeature() {
+        mId = null;
+        mHasProperties = false;
+        mMagnitude = 0;
+        mPlace = "";
+        mPlaceStart = -1;
+        mTime = 0;
+        mUpdated = 0;
+        mUrl = null;
+        mUrlStart = -1;
+        mLatitude = Double.NaN;
+        mLongitude = Double.NaN;
+        mDeleted = false;
+    }
+
+    /**
+     * Work out the split of the place from its bytes, the same as
+     * {@link EarthquakeFormatter#findLocationOffsetEnd(String)} and
+     * {@link EarthquakeFormatter#findPrimaryLocationStart(String, int)} do from its characters
+     * @return false if the place has to be decoded first, because a non ASCII character comes
+     * before the split and the byte positions would not be character positions
+     */
+    private boolean splitPlace(int start, int end) {
+        byte[] buffer = mBuffer;
+        int locationOffsetEnd = 0;
+        if (start < end) {
+            int first = buffer[start] & 0xFF;
+            if (first >= 0x80) {
+                return false;
+            }
+            if (first >= '0' && first <= '9') {
+                for (int i = start; i + 1 < end; i++) {
+                    if ((buffer[i] & 0xFF) >= 0x80) {
+                        return false;
+                    }
+                    if (buffer[i] == 'o' && buffer[i + 1] == 'f') {
+                        locationOffsetEnd = i + 2 - start;
+                        break;
+                    }
+                }
+            }
+        }
+        int primaryLocationStart = locationOffsetEnd;
+        while (start + primaryLocationStart < end) {
+            int c = buffer[start + primaryLocationStart] & 0xFF;
+            if (c >= 0x80) {
+                return false;
+            }
+            if (!Character.isWhitespace((char) c)) {
+                break;
+            }
+            primaryLocationStart++;
+        }
+        mLocationOffsetEnd = locationOffsetEnd;
+        mPrimaryLocationStart = primaryLocationStart;
+        return true;
+    }
+
+    /**
+     * @return true if the value between the given positions is a string without escapes,
+     * whose bytes are its UTF-8 encoding
+     */
+    private boolean isEncodable(int start, int end) {
+        if (mBuffer[start] != '"') {
+            return false;
+        }
+        for (int i = start + 1; i < end - 1; i++) {
+            if (mBuffer[i] == '\\') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the string value between the given positions, or the text of any other value
+     */
+    private String readString(int start, int end) {
+        byte[] buffer = mBuffer;
+        if (buffer[start] != '"') {
+            return new String(buffer, start, end - start, UTF_8);
+        }
+        start++;
+        end--;
+
+        // Decode the runs of bytes between the escapes
+        StringBuilder value = null;
+        int runStart = start;
+        for (int i = start; i < end; i++) {
+            if (buffer[i] != '\\') {
+                continue;
+            }
+            if (value == null) {
+                value = new StringBuilder(end - start);
+            }
+            value.append(new String(buffer, runStart, i - runStart, UTF_8));
+            i++;
+            switch (buffer[i]) {
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case 'n': value.append('\n'); break;
+                case 'r': value.append('\r'); break;
+                case 't': value.append('\t'); break;
+                case 'u':
+                    if (i + 4 >= end) {
+                        throw new IllegalStateException("Unterminated escape sequence");
+                    }
+                    value.append((char) Integer.parseInt(new String(buffer, i + 1, 4, ASCII), 16));
+                    i += 4;
+                    break;
+                default:
+                    // \" \\ \/ and any other escaped character stand for themselves
+                    value.append((char) buffer[i]);
+            }
+            runStart = i + 1;
+        }
+        if (value == null) {
+            return new String(buffer, start, end - start, UTF_8);
+        }
+        value.append(new String(buffer, runStart, end - runStart, UTF_8));
+        return value.toString();
+    }
+
+    /**
+     * @return the number between the given positions, which may also be a string
+     */
+    private double readDouble(int start, int end) {
+        if (mBuffer[start] == '"') {
+            return Double.parseDouble(readString(start, end));
+        }
+        return parseDouble(start, end);
+    }
+
+    /**
+     * Parse a number. Most numbers have a few digits and no exponent, the digits are then an
+     * exact long, and dividing them by an exact power of ten gives the same correctly rounded
+     * double as {@link Double#parseDouble(String)}, which parses all the others
+     */
+    private double parseDouble(int start, int end) {
+        byte[] buffer = mBuffer;
+        int i = start;
+        boolean negative = buffer[i] == '-';
+        if (negative) {
+            i++;
+        }
+        long digits = 0;
+        int digitCount = 0;
+        int fractionDigits = 0;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            int c = buffer[i];
+            if (c >= '0' && c <= '9') {
+                digits = digits * 10 + (c - '0');
+                digitCount++;
+                if (fraction) {
+                    fractionDigits++;
+                }
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                digitCount = Integer.MAX_VALUE;
+                break;
+            }
+        }
+        if (digitCount == 0 || digitCount > MAX_EXACT_DIGITS) {
+            return Double.parseDouble(new String(buffer, start, end - start, ASCII));
+        }
+        double value = fractionDigits == 0 ? digits : digits / POWERS_OF_TEN[fractionDigits];
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return the whole number between the given positions, which may also be a string or
+     * a number with a fraction of zero
+     */
+    private long readLong(int start, int end) {
+        byte[] buffer = mBuffer;
+        if (buffer[start] == '"') {
+            return parseLong(readString(start, end));
+        }
+        int i = start;
+        boolean negative = buffer[i] == '-';
+        if (negative) {
+            i++;
+        }
+        // 18 digits always fit in a long
+        if (i == end || end - i > 18) {
+            return parseLong(new String(buffer, start, end - start, ASCII));
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int c = buffer[i];
+            if (c < '0' || c > '9') {
+                return parseLong(new String(buffer, start, end - start, ASCII));
+            }
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    private static long parseLong(String text) {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            double value = Double.parseDouble(text);
+            if (value != (long) value) {
+                throw new NumberFormatException("Expected a long but was " + text);
+            }
+            return (long) value;
+        }
+    }
+
+    /**
+     * @return true if the string value between the given positions is the given name
+     */
+    private boolean matches(int start, int end, byte[] name) {
+        if (end - start != name.length + 2 || mBuffer[start] != '"') {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (mBuffer[start + 1 + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the position right after the value starting at the given position, or -1 if the
+     * value does not end before the limit
+     */
+    private int findValueEnd(int start, int limit, boolean endOfStream) {
+        byte[] buffer = mBuffer;
+        int position = start;
+        int c = buffer[position];
+        if (c == '"') {
+            return findStringEnd(position, limit);
+        }
+        if (c == '{' || c == '[') {
+            int depth = 0;
+            while (position < limit) {
+                c = buffer[position];
+                if (c == '"') {
+                    position = findStringEnd(position, limit);
+                    if (position < 0) {
+                        return -1;
+                    }
+                    continue;
+                }
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                    if (depth == 0) {
+                        return position + 1;
+                    }
+                }
+                position++;
+            }
+            return -1;
+        }
+        if (c == ',' || c == ':' || c == '}' || c == ']') {
+            throw new IllegalStateException("Expected a value at byte " + start);
+        }
+        // A number, true, false or null ends at the next delimiter
+        while (position < limit) {
+            c = buffer[position];
+            if (c == ',' || c == '}' || c == ']' || c == ':' || isWhitespace(c)) {
+                return position;
+            }
+            position++;
+        }
+        return endOfStream ? limit : -1;
+    }
+
+    /**
+     * @return the position right after the value starting at the given position, which must
+     * end before the end of the enclosing value
+     */
+    private int findValueEnd(int start, int end) {
+        int valueEnd = findValueEnd(start, end, false);
+        if (valueEnd < 0) {
+            throw new IllegalStateException("Unterminated value at byte " + start);
+        }
+        return valueEnd;
+    }
+
+    private int findStringEnd(int start, int limit) {
+        byte[] buffer = mBuffer;
+        for (int position = start + 1; position < limit; position++) {
+            int c = buffer[position];
+            if (c == '\\') {
+                position++;
+            } else if (c == '"') {
+                return position + 1;
+            }
+        }
+        return -1;
+    }
+
+    private int skipWhitespace(int position, int end) {
+        while (position < end && isWhitespace(mBuffer[position])) {
+            position++;
+        }
+        if (position == end) {
+            throw new IllegalStateException("Unterminated object at byte " + position);
+        }
+        return position;
+    }
+
+    private void checkByte(int position, char expected) {
+        if (mBuffer[position] != expected) {
+            throw new IllegalStateException("Expected '" + expected + "' at byte " + position);
+        }
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    /**
+     * @return the next byte that is not whitespace, reading more of the stream if needed,
+     * or -1 at the end of the stream
+     */
+    private int peek() throws IOException {
+        while (true) {
+            while (mPosition < mLimit) {
+                int c = mBuffer[mPosition];
+                if (!isWhitespace(c)) {
+                    return c;
+                }
+                mPosition++;
+            }
+            if (!fill()) {
+                return -1;
+            }
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = peek();
+        if (c == -1) {
+            throw new EOFException("End of input, expected '" + expected + "'");
+        }
+        if (c != expected) {
+            throw new IllegalStateException("Expected '" + expected + "' but was '" + (char) c + "'");
+        }
+        mPosition++;
+    }
+
+    /**
+     * Read the stream until the value at the current position is entirely in the buffer
+     * @return the position right after the value
+     */
+    private int requireValue() throws IOException {
+        if (peek() == -1) {
+            throw new EOFException("End of input, expected a value");
+        }
+        while (true) {
+            int end = findValueEnd(mPosition, mLimit, mEndOfStream);
+            if (end >= 0) {
+                return end;
+            }
+            if (!fill()) {
+                throw new EOFException("End of input inside a value");
+            }
+        }
+    }
+
+    /**
+     * Read more of the stream into the buffer. The bytes before the current position are
+     * dropped first, and the buffer only grows if the current value fills it
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        if (mEndOfStream) {
+            return false;
+        }
+        if (mPosition > 0) {
+            System.arraycopy(mBuffer, mPosition, mBuffer, 0, mLimit - mPosition);
+            mLimit -= mPosition;
+            mPosition = 0;
+        }
+        if (mLimit == mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+        }
+        int count = mInputStream.read(mBuffer, mLimit, mBuffer.length - mLimit);
+        if (count < 0) {
+            mEndOfStream = true;
+            return false;
+        }
+        mLimit += count;
+        return true;
+    }
+
+    private static byte[] ascii(String name) {
+        return name.getBytes(ASCII);
+    }
+}
@@ -0,0 +1,432 @@
+package com.example.android.quakereport;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary file format for a cached query result.
+ *
+ * The file starts with a header (magic, format version, the time the server last confirmed the
+ * result, query url, ETag, Last-Modified and the number of earthquakes) followed by one record
+ * per earthquake:
+ * <ul>
+ *     <li>time, as a zig-zag varint delta from the previous earthquake's time</li>
+ *     <li>updated time, as a zig-zag varint delta from the earthquake's time</li>
+ *     <li>magnitude, as a zig-zag varint of twice its hundredths if it has at most 2 decimals
+ *     (every magnitude USGS reports), or 1 followed by the 8 bytes of the exact double, so
+ *     a cached magnitude always equals the one that was downloaded</li>
+ *     <li>place, as a varint index into the string table, or 0 followed by a new string that is
+ *     added to the table. Repeated places are only written once</li>
+ *     <li>event id, as a string</li>
+ *     <li>url, as a varint tag: null, the standard USGS event page of the id, or a string</li>
+ *     <li>location, as a byte that is 0 if it is unknown, or 1 followed by the latitude and the
+ *     longitude quantized to 1e-5 degrees (about a meter), as zig-zag varints</li>
+ * </ul>
+ * Strings are written as a varint byte length followed by UTF-8 bytes. The validation time is a
+ * fixed 8 byte number, so it can be updated in place when the server confirms the result again.
+ *
+ * The string table is built while the records are read, so the records can be decoded in order
+ * from the start of the file without reading the rest of it. {@link Reader} decodes a
+ * memory-mapped file a few rows at a time, which lets the first screen of earthquakes
+ * be shown before the whole file is decoded.
+ */
+final class EarthquakeSnapshot {
+
+    /* File header, used to reject files that were not written by this class */
+    private static final int MAGIC = 0x51525348; // "QRSH"
+
+    /* Version of the format, files with another version are ignored */
+    private static final int VERSION = 4;
+
+    /* Offset of the validation time, after the magic and the one byte version varint */
+    private static final int VALIDATED_TIME_OFFSET = 5;
+
+    /* Url of the USGS event page of an id, used for almost every earthquake */
+    private static final String EVENT_PAGE_URL = "https://earthquake.usgs.gov/earthquakes/eventpage/";
+
+    /* Url tags */
+    private static final int URL_NULL = 0;
+    private static final int URL_EVENT_PAGE = 1;
+    private static final int URL_STRING = 2;
+
+    /* Magnitudes are stored as hundredths when that is exact */
+    private static final double MAGNITUDE_SCALE = 100.0;
+
+    /* Tag of a magnitude stored as the bits of its double */
+    private static final long MAGNITUDE_EXACT = 1;
+
+    /* Latitudes and longitudes are stored as 1e-5 degrees */
+    private static final double COORDINATE_SCALE = 1e5;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private EarthquakeSnapshot() {
+    }
+
+    /**
+     * Write a query result to the given file
+     * @param validatedTime when the server last confirmed the result, in milliseconds since the
+     *                      epoch, or 0 if it never did
+     */
+    static void write(File file, String url, EarthquakeCache.Entry entry, long validatedTime)
+            throws IOException {
+        Writer writer = new Writer(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            writer.writeInt(MAGIC);
+            writer.writeVarint(VERSION);
+            writer.writeLong(validatedTime);
+            writer.writeString(url);
+            writer.writeNullableString(entry.getETag());
+            writer.writeNullableString(entry.getLastModified());
+
+            EarthquakeCatalog catalog = entry.getCatalog();
+            writer.writeVarint(catalog.size());
+
+            Map<String, Integer> stringTable = new HashMap<>();
+            long previousTime = 0;
+            for (int i = 0; i < catalog.size(); i++) {
+                long time = catalog.getTimeInMilliseconds(i);
+                writer.writeSignedVarint(time - previousTime);
+                writer.writeSignedVarint(catalog.getUpdatedInMilliseconds(i) - time);
+                writer.writeMagnitude(catalog.getMag(i));
+                previousTime = time;
+
+                String place = catalog.getPlace(i);
+                Integer index = stringTable.get(place);
+                if (index != null) {
+                    writer.writeVarint(index + 1);
+                } else {
+                    writer.writeVarint(0);
+                    writer.writeNullableString(place);
+                    stringTable.put(place, stringTable.size());
+                }
+
+                String id = catalog.getId(i);
+                writer.writeNullableString(id);
+
+                // Most urls are the event page of the id, checked without decoding the url
+                if (id != null && catalog.hasUrl(i, EVENT_PAGE_URL, id)) {
+                    writer.writeVarint(URL_EVENT_PAGE);
+                } else if (catalog.getUrl(i) == null) {
+                    writer.writeVarint(URL_NULL);
+                } else {
+                    writer.writeVarint(URL_STRING);
+                    writer.writeString(catalog.getUrl(i));
+                }
+
+                double latitude = catalog.getLatitude(i);
+                double longitude = catalog.getLongitude(i);
+                if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+                    writer.writeVarint(0);
+                } else {
+                    writer.writeVarint(1);
+                    writer.writeSignedVarint(Math.round(latitude * COORDINATE_SCALE));
+                    writer.writeSignedVarint(Math.round(longitude * COORDINATE_SCALE));
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+
+    /**
+     * @return when the server last confirmed the result of the given snapshot file, in
+     * milliseconds since the epoch, or 0 if it never did
+     * @throws IOException if the file can't be read or is not a snapshot of this version
+     */
+    static long readValidatedTime(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            checkHeader(in, file);
+            return in.readLong();
+        } catch (EOFException e) {
+            throw new IOException("Corrupt earthquake snapshot: " + file, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Update the time the server last confirmed the result of the given snapshot file, without
+     * writing the rest of the file again
+     * @throws IOException if the file can't be written or is not a snapshot of this version
+     */
+    static void writeValidatedTime(File file, long validatedTime) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            checkHeader(out, file);
+            out.writeLong(validatedTime);
+        } catch (EOFException e) {
+            throw new IOException("Corrupt earthquake snapshot: " + file, e);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Check the magic and the version, leaving the file at the validation time
+     */
+    private static void checkHeader(RandomAccessFile file, File path) throws IOException {
+        if (file.readInt() != MAGIC || file.readUnsignedByte() != VERSION) {
+            throw new IOException("Not an earthquake snapshot: " + path);
+        }
+    }
+
+
+    /**
+     * Decodes a snapshot file, mapped into memory, a few rows at a time
+     */
+    static final class Reader {
+
+        private final ByteBuffer mBuffer;
+
+        private final long mValidatedTime;
+        private final String mUrl;
+        private final String mETag;
+        private final String mLastModified;
+        private final int mSize;
+
+        /* Places read so far, referenced by index from later rows */
+        private final List<String> mStringTable = new ArrayList<>();
+
+        /* Rows decoded so far */
+        private final EarthquakeCatalog.Builder mBuilder;
+
+        private long mPreviousTime;
+
+        /* Scratch buffer for decoding strings */
+        private byte[] mStringBytes = new byte[64];
+
+        /**
+         * Map the given file into memory and read its header
+         * @throws IOException if the file can't be read or is not a snapshot of this version
+         */
+        Reader(File file) throws IOException {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                // The mapping stays valid after the channel is closed
+                in.close();
+            }
+
+            try {
+                if (mBuffer.getInt() != MAGIC || readVarint() != VERSION) {
+                    throw new IOException("Not an earthquake snapshot: " + file);
+                }
+                mValidatedTime = mBuffer.getLong();
+                mUrl = readString();
+                mETag = readNullableString();
+                mLastModified = readNullableString();
+                mSize = (int) readVarint();
+            } catch (RuntimeException e) {
+                // A truncated file runs past the end of the buffer
+                throw new IOException("Corrupt earthquake snapshot: " + file, e);
+            }
+            // Every row takes a few bytes, don't trust a corrupt size to size the columns
+            mBuilder = new EarthquakeCatalog.Builder(Math.min(mSize, mBuffer.remaining()));
+        }
+
+        long getValidatedTime() { return mValidatedTime; }
+
+        String getUrl() { return mUrl; }
+
+        String getETag() { return mETag; }
+
+        String getLastModified() { return mLastModified; }
+
+        /**
+         * @return the number of earthquakes in the snapshot
+         */
+        int size() { return mSize; }
+
+        /**
+         * @return the number of earthquakes decoded so far
+         */
+        int getDecodedCount() { return mBuilder.size(); }
+
+        /**
+         * Decode rows until the given number of rows have been decoded, or every row has
+         * @return a catalog of every row decoded so far
+         */
+        EarthquakeCatalog decode(int rowCount) throws IOException {
+            rowCount = Math.min(rowCount, mSize);
+            try {
+                while (mBuilder.size() < rowCount) {
+                    decodeRow();
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("Corrupt earthquake snapshot", e);
+            }
+            return mBuilder.build();
+        }
+
+        /**
+         * Decode every remaining row
+         * @return the whole query result
+         */
+        EarthquakeCache.Entry decodeAll() throws IOException {
+            return new EarthquakeCache.Entry(decode(mSize), mETag, mLastModified);
+        }
+
+        private void decodeRow() {
+            long time = mPreviousTime + readSignedVarint();
+            long updated = time + readSignedVarint();
+            double mag = readMagnitude();
+            mPreviousTime = time;
+
+            String place;
+            int placeIndex = (int) readVarint();
+            if (placeIndex == 0) {
+                place = readNullableString();
+                mStringTable.add(place);
+            } else {
+                place = mStringTable.get(placeIndex - 1);
+            }
+
+            String id = readNullableString();
+
+            String url;
+            int urlTag = (int) readVarint();
+            if (urlTag == URL_EVENT_PAGE) {
+                url = EVENT_PAGE_URL + id;
+            } else if (urlTag == URL_STRING) {
+                url = readString();
+            } else {
+                url = null;
+            }
+
+            double latitude = Double.NaN;
+            double longitude = Double.NaN;
+            if (readVarint() != 0) {
+                latitude = readSignedVarint() / COORDINATE_SCALE;
+                longitude = readSignedVarint() / COORDINATE_SCALE;
+            }
+
+            mBuilder.add(id, mag, place, time, updated, latitude, longitude, url);
+        }
+
+        private long readVarint() {
+            long value = 0;
+            int shift = 0;
+            while (true) {
+                byte b = mBuffer.get();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+            }
+        }
+
+        private long readSignedVarint() {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private double readMagnitude() {
+            long value = readSignedVarint();
+            if (value == MAGNITUDE_EXACT) {
+                return Double.longBitsToDouble(mBuffer.getLong());
+            }
+            return (value >> 1) / MAGNITUDE_SCALE;
+        }
+
+        private String readString() {
+            int length = (int) readVarint();
+            if (length > mStringBytes.length) {
+                mStringBytes = new byte[Math.max(length, mStringBytes.length * 2)];
+            }
+            mBuffer.get(mStringBytes, 0, length);
+            return new String(mStringBytes, 0, length, UTF_8);
+        }
+
+        private String readNullableString() {
+            return mBuffer.get() != 0 ? readString() : null;
+        }
+    }
+
+
+    /**
+     * Writes varints and strings to a stream
+     */
+    private static final class Writer {
+
+        private final OutputStream mOut;
+
+        Writer(OutputStream out) {
+            mOut = out;
+        }
+
+        void writeInt(int value) throws IOException {
+            mOut.write(value >>> 24);
+            mOut.write(value >>> 16);
+            mOut.write(value >>> 8);
+            mOut.write(value);
+        }
+
+        void writeLong(long value) throws IOException {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        void writeVarint(long value) throws IOException {
+            while ((value & ~0x7fL) != 0) {
+                mOut.write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            mOut.write((int) value);
+        }
+
+        void writeSignedVarint(long value) throws IOException {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        /**
+         * Write a magnitude as its hundredths if they give back the same double, else exactly
+         */
+        void writeMagnitude(double magnitude) throws IOException {
+            long hundredths = Math.round(magnitude * MAGNITUDE_SCALE);
+            // Compared as doubles, so -0.0 and NaN are kept exactly too
+            if (Double.compare(hundredths / MAGNITUDE_SCALE, magnitude) == 0
+                    && Math.abs(hundredths) < 1L << 52) {
+                writeSignedVarint(hundredths << 1);
+            } else {
+                writeSignedVarint(MAGNITUDE_EXACT);
+                writeLong(Double.doubleToRawLongBits(magnitude));
+            }
+        }
+
+        void writeString(String value) throws IOException {
+            byte[] bytes = value.getBytes(UTF_8);
+            writeVarint(bytes.length);
+            mOut.write(bytes);
+        }
+
+        void writeNullableString(String value) throws IOException {
+            mOut.write(value != null ? 1 : 0);
+            if (value != null) {
+                writeString(value);
+            }
+        }
+
+        void close() throws IOException {
+            mOut.close();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.android.quakereport;
+
+import android.app.Activity;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures a launch of {@link EarthquakeActivity}: the time from onCreate until its first frame
+ * is drawn, and until the first frame that shows rows of earthquakes. Work that is not needed
+ * to draw the first frame (i.e scheduling the sync) is queued here and runs right after it.
+ *
+ * The first launch of the process is a cold start, the next ones (i.e after the back button
+ * finished the activity) are warm starts, and an activity recreated after a configuration change
+ * (i.e a rotation) is restored. Both times are logged on every launch and recorded in
+ * {@link EarthquakeMetrics}, tools/startup_benchmark.py reads them from the log. Once the first
+ * rows are drawn the activity reports that it is fully drawn, from API 19, so the system logs
+ * its own measure of the launch too.
+ *
+ * Only used on the main thread.
+ */
+final class EarthquakeStartup {
+
+    /**
+     * Tag for the Log messages, tools/startup_benchmark.py looks for it
+     */
+    private static final String LOG_TAG = EarthquakeStartup.class.getSimpleName();
+
+    /* True once an activity was launched in this process, so the next launches are warm */
+    private static boolean sLaunchedBefore;
+
+    private final Activity mActivity;
+
+    /* "Cold", "Warm" or "Restored", see the class comment */
+    private final String mKind;
+
+    /* System.nanoTime() when the activity was created */
+    private final long mStartNanos;
+
+    /* True once the list had rows to draw */
+    private boolean mRowsShown;
+
+    /* Work that waits for the first frame, null once it ran */
+    private List<Runnable> mAfterFirstFrame = new ArrayList<>();
+
+    /**
+     * Start measuring, call it first thing in onCreate
+     * @param savedInstanceState the state handed to onCreate
+     */
+    EarthquakeStartup(Activity activity, Bundle savedInstanceState) {
+        mActivity = activity;
+        mStartNanos = System.nanoTime();
+        if (savedInstanceState != null) {
+            mKind = "Restored";
+        } else {
+            mKind = sLaunchedBefore ? "Warm" : "Cold";
+        }
+        sLaunchedBefore = true;
+    }
+
+    /**
+     * Wait for the first frame of the activity, call it once its content view is set
+     */
+    void watchFirstFrame() {
+        final View decorView = mActivity.getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                decorView.getViewTreeObserver().removeOnPreDrawListener(this);
+                long firstFrameMillis = millisSinceStart();
+                EarthquakeMetrics.STARTUP_FIRST_FRAME.record(firstFrameMillis);
+                Log.i(LOG_TAG, mKind + " start: first frame " + firstFrameMillis + " ms");
+
+                // Run the queued work once the frame is on its way to the screen
+                decorView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        List<Runnable> afterFirstFrame = mAfterFirstFrame;
+                        mAfterFirstFrame = null;
+                        for (Runnable runnable : afterFirstFrame) {
+                            runnable.run();
+                        }
+                    }
+                });
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Run work that is not needed to draw the first frame once it is drawn,
+     * or right away if it already was
+     */
+    void runAfterFirstFrame(Runnable runnable) {
+        if (mAfterFirstFrame != null) {
+            mAfterFirstFrame.add(runnable);
+        } else {
+            runnable.run();
+        }
+    }
+
+    /**
+     * Call it every time the rows of the list changed, the launch is measured until the
+     * next frame of the list after it first has rows
+     */
+    void onRowsChanged(final View listView, int rowCount) {
+        if (mRowsShown || rowCount == 0) {
+            return;
+        }
+        mRowsShown = true;
+        listView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                listView.getViewTreeObserver().removeOnPreDrawListener(this);
+                long firstRowMillis = millisSinceStart();
+                EarthquakeMetrics.STARTUP_FIRST_ROW.record(firstRowMillis);
+                Log.i(LOG_TAG, mKind + " start: first row " + firstRowMillis + " ms");
+                if (Build.VERSION.SDK_INT >= 19) {
+                    mActivity.reportFullyDrawn();
+                }
+                return true;
+            }
+        });
+    }
+
+    private long millisSinceStart() {
+        return (System.nanoTime() - mStartNanos) / 1000000;
+    }
+}
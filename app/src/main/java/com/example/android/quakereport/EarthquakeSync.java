@@ -0,0 +1,259 @@
+package com.example.android.quakereport;
+
+import android.util.Log;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Helper methods to bring a cached query result up to date incrementally.
+ *
+ * Instead of downloading the whole query again, only the earthquakes USGS updated after the
+ * latest "updated" time of the cached result are requested (with the updatedafter parameter),
+ * and then merged into the cached result by event id.
+ */
+final class EarthquakeSync {
+
+    /**
+     * Tag for the Log messages
+     */
+    private static final String LOG_TAG = EarthquakeSync.class.getSimpleName();
+
+    /* Time window USGS uses when a query has no starttime */
+    static final long DEFAULT_QUERY_WINDOW = TimeUnit.DAYS.toMillis(30);
+
+    /* Counters to compare incremental syncs with full reloads */
+    private static final AtomicLong sFullReloads = new AtomicLong();
+    private static final AtomicLong sFullReloadBytes = new AtomicLong();
+    private static final AtomicLong sIncrementalSyncs = new AtomicLong();
+    private static final AtomicLong sIncrementalSyncBytes = new AtomicLong();
+    private static final AtomicLong sMergeNanos = new AtomicLong();
+
+    private EarthquakeSync() {
+    }
+
+    /**
+     * @return the query url that only asks for the earthquakes updated after the given time,
+     * including the ones USGS deleted
+     */
+    static String buildIncrementalUrl(String requestUrl, long updatedAfterInMilliseconds) {
+        // USGS expects ISO 8601 times, in UTC
+        SimpleDateFormat isoFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.US);
+        isoFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        return requestUrl + (requestUrl.indexOf('?') < 0 ? '?' : '&')
+                + "updatedafter=" + isoFormat.format(new Date(updatedAfterInMilliseconds))
+                + "&includedeleted=true";
+    }
+
+    /**
+     * @return true if the incremental result was cut off by the query's limit,
+     * in which case it may be missing updates and a full reload is needed
+     */
+    static boolean isTruncated(String requestUrl, EarthquakeCatalog changes) {
+        int limit = getIntParameter(requestUrl, "limit", Integer.MAX_VALUE);
+        return changes.size() + changes.getDeletedIds().length >= limit;
+    }
+
+    /**
+     * Merge the changes of an incremental query into the cached result of the full query.
+     *
+     * Updated earthquakes replace the cached ones with the same id, deleted earthquakes are
+     * dropped, new earthquakes are added. The result is sorted by the query's "orderby" and cut
+     * to its "limit", just like the full query would be.
+     *
+     * A cached result that was cut to the limit hides the earthquakes ranked right after its
+     * last one. If the merge leaves fewer than limit earthquakes ranked up to that last one
+     * (some were deleted, fell out of the time window, or were updated to a lower rank), the
+     * hidden earthquakes would fill the rest of the result, and only the full query has them.
+     *
+     * @return the merged result, or null if the full query has to be loaded again
+     */
+    static EarthquakeCatalog merge(String requestUrl, EarthquakeCatalog cached,
+                                   EarthquakeCatalog changes) {
+        long startTime = System.nanoTime();
+
+        Set<String> replacedIds = new HashSet<>(Arrays.asList(changes.getDeletedIds()));
+        for (int i = 0; i < changes.size(); i++) {
+            replacedIds.add(changes.getId(i));
+        }
+
+        // Without a starttime USGS only returns the last 30 days,
+        // so drop the cached earthquakes that have fallen out of that window
+        long minTime = getParameter(requestUrl, "starttime") == null
+                ? System.currentTimeMillis() - DEFAULT_QUERY_WINDOW : Long.MIN_VALUE;
+
+        EarthquakeCatalog.Builder builder = new EarthquakeCatalog.Builder(cached.size() + changes.size());
+        for (int i = 0; i < cached.size(); i++) {
+            if (!replacedIds.contains(cached.getId(i)) && cached.getTimeInMilliseconds(i) >= minTime) {
+                builder.add(cached, i);
+            }
+        }
+        for (int i = 0; i < changes.size(); i++) {
+            if (changes.getTimeInMilliseconds(i) >= minTime) {
+                builder.add(changes, i);
+            }
+        }
+        EarthquakeCatalog merged = builder.build();
+
+        String orderBy = getParameter(requestUrl, "orderby");
+        int[] order = sortOrder(merged, orderBy);
+        int limit = getIntParameter(requestUrl, "limit", Integer.MAX_VALUE);
+        if (cached.size() >= limit && cached.size() > 0
+                && countRankedUpTo(merged, order, cached, lastRanked(cached, orderBy), orderBy) < limit) {
+            return null;
+        }
+        EarthquakeCatalog result = merged.select(order, Math.min(limit, order.length));
+
+        sMergeNanos.addAndGet(System.nanoTime() - startTime);
+        return result;
+    }
+
+    /**
+     * @return the position of the earthquake of the catalog ranked last by the given "orderby"
+     */
+    private static int lastRanked(EarthquakeCatalog catalog, String orderBy) {
+        int last = 0;
+        for (int i = 1; i < catalog.size(); i++) {
+            if (compare(catalog, i, catalog, last, orderBy) >= 0) {
+                last = i;
+            }
+        }
+        return last;
+    }
+
+    /**
+     * @return the number of earthquakes of the sorted catalog ranked before or with the given
+     * earthquake of another catalog
+     */
+    private static int countRankedUpTo(EarthquakeCatalog catalog, int[] order,
+                                       EarthquakeCatalog other, int position, String orderBy) {
+        int count = 0;
+        while (count < order.length
+                && compare(catalog, order[count], other, position, orderBy) <= 0) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Record the bytes downloaded by a full reload of a query
+     */
+    static void recordFullReload(long bytes) {
+        sFullReloads.incrementAndGet();
+        sFullReloadBytes.addAndGet(bytes);
+        Log.i(LOG_TAG, "Full reload: " + bytes + " bytes. " + getSummary());
+    }
+
+    /**
+     * Record the bytes downloaded by an incremental sync of a query
+     */
+    static void recordIncrementalSync(long bytes, int changed, int deleted) {
+        sIncrementalSyncs.incrementAndGet();
+        sIncrementalSyncBytes.addAndGet(bytes);
+        Log.i(LOG_TAG, "Incremental sync: " + bytes + " bytes, " + changed + " changed, "
+                + deleted + " deleted. " + getSummary());
+    }
+
+    /**
+     * @return the bytes downloaded by every full reload and incremental sync so far
+     */
+    static long getTotalBytes() {
+        return sFullReloadBytes.get() + sIncrementalSyncBytes.get();
+    }
+
+    /**
+     * @return the average bytes and merge time of incremental syncs compared to full reloads
+     */
+    static String getSummary() {
+        long fullReloads = sFullReloads.get();
+        long incrementalSyncs = sIncrementalSyncs.get();
+        return String.format(Locale.US,
+                "%d full reloads averaging %d bytes, %d incremental syncs averaging %d bytes"
+                        + " and %.2f ms to merge",
+                fullReloads, fullReloads == 0 ? 0 : sFullReloadBytes.get() / fullReloads,
+                incrementalSyncs, incrementalSyncs == 0 ? 0 : sIncrementalSyncBytes.get() / incrementalSyncs,
+                incrementalSyncs == 0 ? 0 : sMergeNanos.get() / 1e6 / incrementalSyncs);
+    }
+
+    /**
+     * @return the positions of the catalog's earthquakes sorted by the given USGS "orderby" value
+     */
+    static int[] sortOrder(final EarthquakeCatalog catalog, final String orderBy) {
+        Comparator<Integer> comparator = new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return EarthquakeSync.compare(catalog, a, catalog, b, orderBy);
+            }
+        };
+
+        Integer[] positions = new Integer[catalog.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = i;
+        }
+        Arrays.sort(positions, comparator);
+
+        int[] order = new int[positions.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = positions[i];
+        }
+        return order;
+    }
+
+    /**
+     * Compare two earthquakes, of the same catalog or not, by the given USGS "orderby" value
+     * @return a negative number if the first one is ranked first, 0 if they tie
+     */
+    static int compare(EarthquakeCatalog catalogA, int a, EarthquakeCatalog catalogB, int b,
+                       String orderBy) {
+        if ("magnitude".equals(orderBy) || "magnitude-asc".equals(orderBy)) {
+            int direction = "magnitude".equals(orderBy) ? -1 : 1;
+            return direction * Double.compare(catalogA.getMag(a), catalogB.getMag(b));
+        }
+        // USGS orders by "time", most recent first, by default
+        int direction = "time-asc".equals(orderBy) ? 1 : -1;
+        long difference = catalogA.getTimeInMilliseconds(a) - catalogB.getTimeInMilliseconds(b);
+        return direction * (difference < 0 ? -1 : (difference > 0 ? 1 : 0));
+    }
+
+    /**
+     * @return the value of the given query parameter of the url, or null if it is not set
+     */
+    static String getParameter(String requestUrl, String name) {
+        int queryStart = requestUrl.indexOf('?');
+        if (queryStart < 0) {
+            return null;
+        }
+        String prefix = name + "=";
+        for (String parameter : requestUrl.substring(queryStart + 1).split("&")) {
+            if (parameter.startsWith(prefix)) {
+                return parameter.substring(prefix.length());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the value of the given integer query parameter of the url,
+     * or defaultValue if it is not set or not a number
+     */
+    static int getIntParameter(String requestUrl, String name, int defaultValue) {
+        String value = getParameter(requestUrl, name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
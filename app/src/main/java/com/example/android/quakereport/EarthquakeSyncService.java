@@ -0,0 +1,185 @@
+package com.example.android.quakereport;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Keeps the cached results of the user's queries warm in the background, so the next launch can
+ * show them straight from the {@link EarthquakeCache} without waiting for the network.
+ *
+ * The sync runs through the same {@link QueryUtils} fetch path as the app, so a cached result
+ * is only synced incrementally and merged by event id. The query of every selected region is
+ * synced at the same time, see {@link EarthquakeFanOut}. It is scheduled with an inexact,
+ * non wakeup alarm: the system batches it with the alarms of other apps into the same network
+ * window, and it waits for the device to wake up instead of waking it. A failed sync is retried
+ * with an exponential backoff.
+ *
+ * Sync duration, bytes and the rate of launches that found a cached result are counted in
+ * shared preferences, so they add up across processes.
+ */
+public class EarthquakeSyncService extends IntentService {
+
+    /**
+     * Tag for the Log messages
+     */
+    private static final String LOG_TAG = EarthquakeSyncService.class.getSimpleName();
+
+    /* Time between two syncs */
+    private static final long SYNC_INTERVAL = AlarmManager.INTERVAL_HOUR;
+
+    /* A query validated more recently than this, i.e by the app itself, is not synced again */
+    private static final long MIN_SYNC_AGE = AlarmManager.INTERVAL_FIFTEEN_MINUTES;
+
+    /* Delay before retrying the first failed sync, doubled on every failure in a row */
+    private static final long MIN_BACKOFF = 60 * 1000;
+
+    /* Request codes of the alarm's pending intents */
+    private static final int REQUEST_PERIODIC_SYNC = 0;
+    private static final int REQUEST_RETRY = 1;
+
+    /* Shared preferences holding the backoff state and the counters */
+    private static final String PREFERENCES_NAME = "earthquake_sync";
+    private static final String KEY_FAILURES_IN_A_ROW = "failures_in_a_row";
+    private static final String KEY_SYNCS = "syncs";
+    private static final String KEY_FAILED_SYNCS = "failed_syncs";
+    private static final String KEY_SYNC_MILLIS = "sync_millis";
+    private static final String KEY_SYNC_BYTES = "sync_bytes";
+    private static final String KEY_LAUNCHES = "launches";
+    private static final String KEY_LAUNCH_CACHE_HITS = "launch_cache_hits";
+
+    public EarthquakeSyncService() {
+        super(LOG_TAG);
+    }
+
+    /**
+     * Schedule the periodic sync, replacing the schedule of a previous call.
+     * Meant to be called every time the app is launched
+     */
+    public static void schedule(Context context) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + SYNC_INTERVAL, SYNC_INTERVAL,
+                pendingIntent(context, REQUEST_PERIODIC_SYNC));
+    }
+
+    /**
+     * Record whether the app found the result of its query in the cache when it was launched
+     */
+    public static void recordLaunch(Context context, boolean cacheHit) {
+        SharedPreferences preferences = getPreferences(context);
+        SharedPreferences.Editor editor = preferences.edit()
+                .putLong(KEY_LAUNCHES, preferences.getLong(KEY_LAUNCHES, 0) + 1);
+        if (cacheHit) {
+            editor.putLong(KEY_LAUNCH_CACHE_HITS, preferences.getLong(KEY_LAUNCH_CACHE_HITS, 0) + 1);
+        }
+        editor.apply();
+    }
+
+    /**
+     * @return the average duration and bytes of the background syncs,
+     * and the rate of launches that found a cached result
+     */
+    public static String getSummary(Context context) {
+        SharedPreferences preferences = getPreferences(context);
+        long syncs = preferences.getLong(KEY_SYNCS, 0);
+        long launches = preferences.getLong(KEY_LAUNCHES, 0);
+        return String.format(Locale.US,
+                "%d background syncs (%d failed) averaging %d ms and %d bytes,"
+                        + " %d launches with a %.0f%% cache hit rate",
+                syncs, preferences.getLong(KEY_FAILED_SYNCS, 0),
+                syncs == 0 ? 0 : preferences.getLong(KEY_SYNC_MILLIS, 0) / syncs,
+                syncs == 0 ? 0 : preferences.getLong(KEY_SYNC_BYTES, 0) / syncs,
+                launches,
+                launches == 0 ? 0 : 100.0 * preferences.getLong(KEY_LAUNCH_CACHE_HITS, 0) / launches);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        // Without a connection there is nothing to do, wait for the next window
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetwork = connectivityManager.getActiveNetworkInfo();
+        if (activeNetwork == null || !activeNetwork.isConnected()) {
+            return;
+        }
+
+        EarthquakeCache cache = EarthquakeCache.getInstance(this);
+
+        // Skip the queries (one per region) the app brought up to date a moment ago
+        long syncStartTime = System.currentTimeMillis();
+        List<String> urls = new ArrayList<>();
+        for (String url : QueryUtils.buildQueryUrls(this)) {
+            if (syncStartTime - cache.getLastValidatedTime(url) >= MIN_SYNC_AGE) {
+                urls.add(url);
+            }
+        }
+        if (urls.isEmpty()) {
+            return;
+        }
+
+        long startTime = SystemClock.elapsedRealtime();
+        long bytesBefore = EarthquakeSync.getTotalBytes();
+
+        // Sync the cached results, or load the whole queries that are not cached, all at once.
+        // A successful request stores or touches the cached result, marking it as validated,
+        // a failed one leaves its validation time alone
+        EarthquakeFanOut.fetchAll(urls, cache, null, null);
+        boolean succeeded = true;
+        for (String url : urls) {
+            succeeded &= cache.getLastValidatedTime(url) >= syncStartTime;
+        }
+
+        long durationMillis = SystemClock.elapsedRealtime() - startTime;
+        long bytes = EarthquakeSync.getTotalBytes() - bytesBefore;
+        recordSync(succeeded, durationMillis, bytes);
+        Log.i(LOG_TAG, (succeeded ? "Sync done in " : "Sync failed after ") + durationMillis
+                + " ms. " + getSummary(this));
+    }
+
+    /**
+     * Update the counters, and schedule a retry if the sync failed
+     */
+    private void recordSync(boolean succeeded, long durationMillis, long bytes) {
+        SharedPreferences preferences = getPreferences(this);
+        int failuresInARow = succeeded ? 0 : preferences.getInt(KEY_FAILURES_IN_A_ROW, 0) + 1;
+        preferences.edit()
+                .putInt(KEY_FAILURES_IN_A_ROW, failuresInARow)
+                .putLong(KEY_SYNCS, preferences.getLong(KEY_SYNCS, 0) + 1)
+                .putLong(KEY_FAILED_SYNCS, preferences.getLong(KEY_FAILED_SYNCS, 0) + (succeeded ? 0 : 1))
+                .putLong(KEY_SYNC_MILLIS, preferences.getLong(KEY_SYNC_MILLIS, 0) + durationMillis)
+                .putLong(KEY_SYNC_BYTES, preferences.getLong(KEY_SYNC_BYTES, 0) + bytes)
+                .apply();
+
+        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        PendingIntent retry = pendingIntent(this, REQUEST_RETRY);
+        if (succeeded) {
+            alarmManager.cancel(retry);
+            return;
+        }
+
+        // 1, 2, 4... minutes, never longer than the time to the next periodic sync
+        long backoff = Math.min(MIN_BACKOFF << Math.min(failuresInARow - 1, 16), SYNC_INTERVAL);
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + backoff, retry);
+    }
+
+    private static PendingIntent pendingIntent(Context context, int requestCode) {
+        return PendingIntent.getService(context, requestCode,
+                new Intent(context, EarthquakeSyncService.class), PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+}
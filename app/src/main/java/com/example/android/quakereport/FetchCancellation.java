@@ -0,0 +1,135 @@
+package com.example.android.quakereport;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cancels a running fetch from another thread, i.e when its loader is cancelled or restarted.
+ *
+ * Cancelling aborts the response the fetch is reading from, which makes the blocked read
+ * fail right away, and the parse loop checks {@link #throwIfCancelled()} between features so it
+ * stops even if the rest of the response is already buffered. Works like
+ * android.os.CancellationSignal, which needs API 16.
+ *
+ * One cancellation can be shared by the concurrent queries of a load, every one of them that
+ * waits for a shared request adds its own listener.
+ */
+public final class FetchCancellation {
+
+    /* Workers aborting responses, a socket that is slow to close does not hold up the others */
+    private static final int ABORT_THREADS = 2;
+
+    /* Idle workers are stopped after this long */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /* Aborts the responses off the thread that cancels, closing a socket can block and loaders
+     * are cancelled from the main thread */
+    private static final ExecutorService sAbortExecutor = createExecutor();
+
+    private volatile boolean mCancelled;
+
+    /* The response of the running request, guarded by this */
+    private HttpTransport.Response mResponse;
+
+    /* Called once when the fetch is cancelled, guarded by this */
+    private final List<Runnable> mOnCancelListeners = new ArrayList<>();
+
+    /**
+     * Cancel the fetch. Can be called from any thread, more than once
+     */
+    public void cancel() {
+        final HttpTransport.Response response;
+        List<Runnable> onCancelListeners;
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            response = mResponse;
+            onCancelListeners = new ArrayList<>(mOnCancelListeners);
+            mOnCancelListeners.clear();
+        }
+        if (response != null) {
+            sAbortExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    response.abort();
+                }
+            });
+        }
+        for (Runnable onCancelListener : onCancelListeners) {
+            onCancelListener.run();
+        }
+    }
+
+    private static ExecutorService createExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(ABORT_THREADS, ABORT_THREADS, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "FetchCancellation #" + mCount.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @return true once the fetch was cancelled
+     */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @throws InterruptedIOException if the fetch was cancelled
+     */
+    void throwIfCancelled() throws InterruptedIOException {
+        if (mCancelled) {
+            throw new InterruptedIOException("Fetch cancelled");
+        }
+    }
+
+    /**
+     * Set the response to abort if the fetch is cancelled, or null once the request is done.
+     * A response set after the fetch was cancelled is aborted right away
+     */
+    void setResponse(HttpTransport.Response response) {
+        synchronized (this) {
+            mResponse = response;
+            if (!mCancelled || response == null) {
+                return;
+            }
+        }
+        response.abort();
+    }
+
+    /**
+     * Add a listener called when the fetch is cancelled, right away if it already was
+     */
+    void addOnCancelListener(Runnable onCancelListener) {
+        synchronized (this) {
+            if (!mCancelled) {
+                mOnCancelListeners.add(onCancelListener);
+                return;
+            }
+        }
+        onCancelListener.run();
+    }
+
+    /**
+     * Remove a listener that no longer needs to know about the cancellation
+     */
+    synchronized void removeOnCancelListener(Runnable onCancelListener) {
+        mOnCancelListeners.remove(onCancelListener);
+    }
+}
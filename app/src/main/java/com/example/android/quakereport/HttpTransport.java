@@ -0,0 +1,63 @@
+package com.example.android.quakereport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Sends the GET requests of {@link QueryUtils}.
+ *
+ * The default transport is {@link UrlConnectionTransport}, another one (i.e an in-process fake
+ * that serves canned responses) can be set with {@link QueryUtils#setTransport(HttpTransport)}.
+ */
+public interface HttpTransport {
+
+    /**
+     * Send a GET request and wait for the response headers
+     * @param url the url to get
+     * @param requestHeaders extra request headers, i.e the validators of a cached response
+     * @param cancellation aborts the request when it is cancelled, the transport must register
+     *                     the response with it before connecting. May be null
+     * @return the response, which must be closed
+     * @throws IOException if the request failed
+     */
+    Response get(URL url, Map<String, String> requestHeaders, FetchCancellation cancellation)
+            throws IOException;
+
+    /**
+     * The response of a request
+     */
+    interface Response {
+
+        /**
+         * @return the HTTP status code
+         */
+        int getCode() throws IOException;
+
+        /**
+         * @return the value of a response header, or null if it was not sent
+         */
+        String getHeader(String name);
+
+        /**
+         * @return the body, already decompressed if it was sent compressed
+         */
+        InputStream getBody() throws IOException;
+
+        /**
+         * @return the number of body bytes received so far, as sent on the wire
+         */
+        long getBytesReceived();
+
+        /**
+         * Release the response, letting its connection be reused if the body was read
+         */
+        void close();
+
+        /**
+         * Abort the request right away, from any thread. The connection is not reused
+         */
+        void abort();
+    }
+}
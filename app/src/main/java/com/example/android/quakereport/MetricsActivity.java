@@ -0,0 +1,94 @@
+package com.example.android.quakereport;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.support.v7.app.AppCompatActivity;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+import org.json.JSONException;
+
+/**
+ * Debug screen of the {@link EarthquakeMetrics}, refreshed every second while it is shown.
+ * The metrics can be turned on and off, reset, and shared as JSON from the menu
+ */
+public class MetricsActivity extends AppCompatActivity {
+
+    /* How often the shown metrics are refreshed */
+    private static final long REFRESH_MILLIS = 1000;
+
+    private final Handler mHandler = new Handler();
+
+    private TextView mMetricsText;
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            mMetricsText.setText(EarthquakeMetrics.dump());
+            mHandler.postDelayed(this, REFRESH_MILLIS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.metrics_activity);
+        mMetricsText = (TextView) findViewById(R.id.metrics_text);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mRefresh.run();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mHandler.removeCallbacks(mRefresh);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.metrics, menu);
+        return super.onCreateOptionsMenu(menu);
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.action_record_metrics).setChecked(EarthquakeMetrics.isEnabled());
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        int id = item.getItemId();
+
+        if (id == R.id.action_record_metrics) {
+            EarthquakeMetrics.setEnabled(!EarthquakeMetrics.isEnabled());
+            item.setChecked(EarthquakeMetrics.isEnabled());
+            mRefresh.run();
+            return true;
+        }
+        if (id == R.id.action_reset_metrics) {
+            EarthquakeMetrics.reset();
+            mRefresh.run();
+            return true;
+        }
+        if (id == R.id.action_share_metrics) {
+            // Send the snapshot to any app that takes text, i.e to attach it to a bug report
+            Intent shareIntent = new Intent(Intent.ACTION_SEND);
+            shareIntent.setType("application/json");
+            try {
+                shareIntent.putExtra(Intent.EXTRA_TEXT, EarthquakeMetrics.toJson().toString(2));
+            } catch (JSONException e) {
+                shareIntent.putExtra(Intent.EXTRA_TEXT, EarthquakeMetrics.toJson().toString());
+            }
+            startActivity(Intent.createChooser(shareIntent, getString(R.string.metrics_share)));
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+}
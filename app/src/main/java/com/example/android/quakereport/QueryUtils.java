@@ -1,5 +1,9 @@
 package com.example.android.quakereport;
 
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -7,16 +11,22 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
 import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 
 /**
@@ -29,6 +39,34 @@ public final class QueryUtils {
      */
     private static final String LOG_TAG = QueryUtils.class.getSimpleName();
 
+    /**
+     * Url for earthquake data from USGS dataset
+     */
+    private static final String USGS_URL = "https://earthquake.usgs.gov/fdsnws/event/1/query";
+
+    /* Number of features parsed before the first batch is published, about a screen full */
+    private static final int FIRST_BATCH_SIZE = 10;
+
+    /* Most bytes of a response read into memory to be parsed on every core, also limited to
+     * a share of the heap. Larger responses are parsed while they are read */
+    private static final int MAX_BUFFERED_RESPONSE_BYTES = 32 * 1024 * 1024;
+
+    /* Sends the requests, created on first use. Guarded by QueryUtils.class */
+    private static HttpTransport sTransport;
+
+    /**
+     * Notified while a response is still being parsed
+     */
+    public interface OnBatchParsedListener {
+        /**
+         * Called on the parsing thread every time another batch of features has been parsed.
+         * Batches double in size, so building every partial catalog costs about as much as
+         * building the final one
+         * @param earthquakesSoFar every earthquake parsed so far
+         */
+        void onBatchParsed(EarthquakeCatalog earthquakesSoFar);
+    }
+
 
     /**
      * Create a private constructor because no one should ever create a {@link QueryUtils} object.
@@ -38,41 +76,228 @@ public final class QueryUtils {
     private QueryUtils() {
     }
 
-    public static List<Earthquake> fetchEarthquakeData(String requestUrl){
+    /**
+     * @return the USGS query urls for the earthquakes the user asked for in the settings,
+     * one per selected region, in the order of the regions in the settings.
+     * The app and the background sync build the same urls, so they share the cached results
+     */
+    public static List<String> buildQueryUrls(Context context) {
+
+        // Get shared preferences
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+
+        // Create a minimum magnitude string by getting the key and value from the shared preferences
+        String minMagnitude = sharedPreferences.getString(
+                context.getString(R.string.settings_min_magnitude_key),
+                context.getString(R.string.settings_min_magnitude_default));
+
+        // create an order by string that holds the selected order by preference option
+        String orderBy = sharedPreferences.getString(
+                context.getString(R.string.settings_order_by_key),
+                context.getString(R.string.settings_order_by_default));
+
+        // create an maximum results string that holds the maximum result preference option
+        String maxResults = sharedPreferences.getString(
+                context.getString(R.string.settings_max_results_key),
+                context.getString(R.string.settings_max_results_default));
+
+        // create a set of the selected regions, the whole world if none is selected
+        String world = context.getString(R.string.settings_regions_world);
+        Set<String> regions = sharedPreferences.getStringSet(
+                context.getString(R.string.settings_regions_key), Collections.singleton(world));
+
+        // The whole world already holds every other region,
+        // it is also queried if none of the selected regions exists anymore
+        String[] knownRegions = context.getResources().getStringArray(R.array.settings_regions_values);
+        boolean wholeWorld = regions.contains(world) || Collections.disjoint(regions, Arrays.asList(knownRegions));
+
+        List<String> queryUrls = new ArrayList<>();
+        for (String region : knownRegions) {
+            if (wholeWorld ? !region.equals(world) : !regions.contains(region)) {
+                continue;
+            }
+
+            // create a base uri in order to parse through the basic USGS_URL queury string
+            Uri baseUri = Uri.parse(USGS_URL);
+
+            // Create a uri builder to add query parameter strings onto the base uri
+            Uri.Builder uriBuilder = baseUri.buildUpon();
+
+            // Add the following search params onto uri builder
+            // format to geojson, list item limit is maxResults, minimum magnitude to minMagnitude string,
+            // and order by orderBy preference string
+            uriBuilder.appendQueryParameter("format", "geojson");
+            uriBuilder.appendQueryParameter("limit", maxResults);
+            uriBuilder.appendQueryParameter("minmag", minMagnitude);
+            uriBuilder.appendQueryParameter("orderby", orderBy);
+
+            // A region other than the whole world is a bounding box: min latitude,
+            // max latitude, min longitude and max longitude
+            if (!region.equals(world)) {
+                String[] box = region.split(",");
+                uriBuilder.appendQueryParameter("minlatitude", box[0]);
+                uriBuilder.appendQueryParameter("maxlatitude", box[1]);
+                uriBuilder.appendQueryParameter("minlongitude", box[2]);
+                uriBuilder.appendQueryParameter("maxlongitude", box[3]);
+            }
+
+            queryUrls.add(uriBuilder.toString());
+        }
+        return queryUrls;
+    }
+
+    public static EarthquakeCatalog fetchEarthquakeData(String requestUrl){
+        return fetchEarthquakeData(requestUrl, null, null, null);
+    }
+
+    public static EarthquakeCatalog fetchEarthquakeData(String requestUrl, EarthquakeCache cache,
+                                                        EarthquakeCache.Entry cached){
+        return fetchEarthquakeData(requestUrl, cache, cached, null);
+    }
+
+    /**
+     * Fetch the earthquakes of the given query url, bringing the cached result up to date if there is one.
+     *
+     * A cached result is first synced incrementally, only asking USGS for the earthquakes that
+     * changed since it was stored (see {@link EarthquakeSync}). If that is not possible the whole
+     * query is revalidated: a 304 Not Modified response returns the cached catalog without
+     * downloading or parsing anything, a new response is parsed and stored in the cache.
+     * If the requests fail the cached catalog is returned, so the app keeps working offline.
+     *
+     * @param requestUrl the USGS query url
+     * @param cache where the result is stored, or null to skip caching
+     * @param cached the cached result for requestUrl, or null if there is none
+     * @param listener notified with the earthquakes parsed so far while a whole response is
+     *                 downloaded, or null. Incremental changes are never published
+     */
+    public static EarthquakeCatalog fetchEarthquakeData(String requestUrl, EarthquakeCache cache,
+                                                        EarthquakeCache.Entry cached,
+                                                        OnBatchParsedListener listener){
+        return fetchEarthquakeData(requestUrl, cache, cached, listener, null);
+    }
+
+    /**
+     * Same as {@link #fetchEarthquakeData(String, EarthquakeCache, EarthquakeCache.Entry,
+     * OnBatchParsedListener)}, aborting the request and the parse if it is cancelled
+     * @param cancellation cancels the fetch from another thread, or null
+     * @return the earthquakes, or null if the fetch was cancelled
+     */
+    public static EarthquakeCatalog fetchEarthquakeData(String requestUrl, EarthquakeCache cache,
+                                                        EarthquakeCache.Entry cached,
+                                                        OnBatchParsedListener listener,
+                                                        FetchCancellation cancellation){
+
+        // Only fetch what changed since the cached earthquakes were last updated
+        if (cached != null && cached.getCatalog().getMaxUpdatedInMilliseconds() > 0) {
+            EarthquakeCatalog synced = syncIncrementally(requestUrl, cache, cached, cancellation);
+            if (synced != null) {
+                return synced;
+            }
+        }
+        if (cancellation != null && cancellation.isCancelled()) {
+            return null;
+        }
 
         // Create new URL object
         URL url = createUrl(requestUrl);
 
-        // Create a null String for the JSON response
-        String jsonResponse = null;
+        // Create a null response for the earthquakes
+        EarthquakeCache.Entry response = null;
 
-        // Perform HTTP request and get JSON response back
+        // Perform HTTP request and parse the earthquakes straight from the response stream
         try {
-            jsonResponse = makeHttpRequest(url);
+            response = makeHttpRequest(url, cached, listener, cancellation);
         } catch (IOException e){
             Log.e(LOG_TAG, "Error making HTTP request: " + e);
         }
 
-        // Extract relevant fields from JSON response and create a list of {@link Earthquake} objects
-        List<Earthquake> earthquakes = extractFeatureFromJson(jsonResponse);
+        // A cancelled request has no result, nobody is waiting for it
+        if (cancellation != null && cancellation.isCancelled()) {
+            return null;
+        }
 
-        // Return list of {@link Earthquake}s
-        return earthquakes;
+        // If the request failed fall back to the cached earthquakes, if any
+        if (response == null) {
+            return cached != null ? cached.getCatalog() : null;
+        }
+
+        if (cache != null) {
+            if (response == cached) {
+                // Not modified, only mark the cached query as recently used
+                cache.touch(requestUrl);
+            } else {
+                cache.write(requestUrl, response);
+            }
+        }
+        if (response != cached) {
+            EarthquakeSync.recordFullReload(response.getBytesTransferred());
+        }
+
+        // Return catalog of earthquakes
+        return response.getCatalog();
     }
 
     /**
-     * Return a list of {@link Earthquake} objects that has been built up from
+     * Request only the earthquakes updated after the cached ones and merge them into the cached
+     * catalog. Returns null if the incremental request failed or was cut off by the query's limit,
+     * or if the merge left the result short of earthquakes only the full query has.
+     */
+    private static EarthquakeCatalog syncIncrementally(String requestUrl, EarthquakeCache cache,
+                                                       EarthquakeCache.Entry cached,
+                                                       FetchCancellation cancellation) {
+        EarthquakeCatalog cachedCatalog = cached.getCatalog();
+        URL url = createUrl(EarthquakeSync.buildIncrementalUrl(requestUrl,
+                cachedCatalog.getMaxUpdatedInMilliseconds()));
+
+        EarthquakeCache.Entry response = null;
+        try {
+            response = makeHttpRequest(url, null, null, cancellation);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error making incremental HTTP request: " + e);
+        }
+        if (response == null || EarthquakeSync.isTruncated(requestUrl, response.getCatalog())) {
+            return null;
+        }
+
+        EarthquakeCatalog changes = response.getCatalog();
+        int deleted = changes.getDeletedIds().length;
+        EarthquakeSync.recordIncrementalSync(response.getBytesTransferred(), changes.size(), deleted);
+        if (changes.isEmpty() && deleted == 0) {
+            if (cache != null) {
+                cache.touch(requestUrl);
+            }
+            return cachedCatalog;
+        }
+
+        EarthquakeCatalog merged = EarthquakeSync.merge(requestUrl, cachedCatalog, changes);
+        if (merged == null) {
+            return null;
+        }
+        if (cache != null) {
+            // The merged result no longer matches the response the validators came from
+            cache.write(requestUrl, new EarthquakeCache.Entry(merged, null, null));
+        }
+        return merged;
+    }
+
+    /**
+     * Return an {@link EarthquakeCatalog} that has been built up from
      * parsing a JSON response.
+     *
+     * This builds the whole org.json tree before the first {@link Earthquake} is created, so it
+     * is only kept as the reference implementation for {@link #extractFeatureFromStream}.
      */
-    private static List<Earthquake> extractFeatureFromJson(String earthquakeJSON) {
+    static EarthquakeCatalog extractFeatureFromJson(String earthquakeJSON) {
 
         //if JSON response is empty or null, return early
         if (TextUtils.isEmpty(earthquakeJSON)){
             return null;
         }
 
-        // Create an empty ArrayList that we can start adding earthquakes to
-        List<Earthquake> earthquakes = new ArrayList<>();
+        long parseStart = EarthquakeMetrics.start();
+
+        // Create an empty catalog builder that we can start adding earthquakes to
+        EarthquakeCatalog.Builder earthquakes = new EarthquakeCatalog.Builder();
 
         // Try to parse the jsonResponse. If there's a problem with making the http request from
         // the given url, a IOException exception object will be thrown.
@@ -89,32 +314,54 @@ public final class QueryUtils {
 
             // Extract “features” JSONArray
             JSONArray earthquakeArray = jsonObjectString.getJSONArray("features");
+            earthquakes = new EarthquakeCatalog.Builder(earthquakeArray.length());
 
             //  Loop through each feature in the array
             for (int i = 0; i < earthquakeArray.length(); i++) {
                 //Get earthquake JSONObject at position i
                 JSONObject currentEarthquakeJSONObject = earthquakeArray.getJSONObject(i);
 
+                // Extract "id" for the USGS event id
+                String id = currentEarthquakeJSONObject.getString("id");
+
                 // Get “properties” JSONObject
                 JSONObject properties = currentEarthquakeJSONObject.getJSONObject("properties");
 
+                // Incremental queries also return the earthquakes USGS deleted
+                if ("deleted".equals(properties.optString("status"))) {
+                    earthquakes.addDeleted(id);
+                    continue;
+                }
+
                 //Extract “mag” for magnitude
-                Double magnitude = properties.getDouble("mag");
+                double magnitude = properties.getDouble("mag");
 
                 //Extract “place” for location
                 String location = properties.getString("place");
 
                 //Extract “time” for time
-                Long time = properties.getLong("time");
+                long time = properties.getLong("time");
+
+                // Extract "updated" for the time USGS last updated the earthquake
+                long updated = properties.getLong("updated");
 
                 // Extract "url" for the url
                 String url = properties.getString("url");
 
-                //Create Earthquake java object from magnitude, location, and time
-                Earthquake newEarthquake = new Earthquake(magnitude, location, time, url);
-
-                //Add earthquake to list of earthquakes
-                earthquakes.add(newEarthquake);
+                // Extract the epicenter from the "geometry" point, its "coordinates" are
+                // longitude, latitude and depth
+                double latitude = Double.NaN;
+                double longitude = Double.NaN;
+                JSONObject geometry = currentEarthquakeJSONObject.optJSONObject("geometry");
+                JSONArray coordinates = geometry != null ? geometry.optJSONArray("coordinates") : null;
+                if (coordinates != null && coordinates.length() >= 2) {
+                    longitude = coordinates.getDouble(0);
+                    latitude = coordinates.getDouble(1);
+                }
+
+                //Add earthquake from id, magnitude, location, time, updated, epicenter and url
+                // to the catalog
+                earthquakes.add(id, magnitude, location, time, updated, latitude, longitude, url);
 
             }
 
@@ -126,10 +373,129 @@ public final class QueryUtils {
             Log.e(LOG_TAG, "Problem parsing the earthquake JSON results", e);
         }
 
-        // Return the list of earthquakes
-        return earthquakes;
+        // Return the catalog of earthquakes
+        EarthquakeCatalog catalog = earthquakes.build();
+        EarthquakeMetrics.recordParse(parseStart, catalog.size());
+        return catalog;
+    }
+
+    /**
+     * Return an {@link EarthquakeCatalog} parsed straight from the bytes of a GeoJSON stream.
+     *
+     * Unlike {@link #extractFeatureFromJson(String)} the response is never held in memory as a
+     * whole: each feature is added to the catalog as soon as it is read, only the epicenter is
+     * kept from "geometry", and every unused property is skipped without being built into objects.
+     * The places and urls are kept as UTF-8 bytes until they are first read, see {@link EarthquakeScanner}.
+     */
+    static EarthquakeCatalog extractFeatureFromStream(InputStream inputStream) throws IOException {
+        return extractFeatureFromStream(inputStream, null);
+    }
+
+    /**
+     * Same as {@link #extractFeatureFromStream(InputStream)}, publishing the earthquakes parsed
+     * so far to the listener while the rest of the stream is still being read
+     */
+    static EarthquakeCatalog extractFeatureFromStream(InputStream inputStream,
+                                                      OnBatchParsedListener listener) throws IOException {
+        return extractFeatureFromStream(inputStream, listener, null);
+    }
+
+    /**
+     * Same as {@link #extractFeatureFromStream(InputStream, OnBatchParsedListener)}, stopping
+     * with an InterruptedIOException between two features once the fetch is cancelled
+     */
+    static EarthquakeCatalog extractFeatureFromStream(InputStream inputStream,
+                                                      OnBatchParsedListener listener,
+                                                      FetchCancellation cancellation) throws IOException {
+
+        long parseStart = EarthquakeMetrics.start();
+        EarthquakeMetrics.beginSection("parse", parseStart);
+
+        // Create an empty catalog builder that we can start adding earthquakes to
+        EarthquakeCatalog.Builder earthquakes = new EarthquakeCatalog.Builder();
+
+        try {
+            new EarthquakeScanner(inputStream).scan(earthquakes, listener, FIRST_BATCH_SIZE, cancellation);
+        } catch (IllegalStateException | NumberFormatException e) {
+            // The scanner reports malformed JSON with unchecked exceptions,
+            // log them the same way the org.json path logs a JSONException
+            Log.e(LOG_TAG, "Problem parsing the earthquake JSON results", e);
+        } finally {
+            EarthquakeMetrics.endSection(parseStart);
+        }
+
+        // Return the catalog of earthquakes
+        EarthquakeCatalog catalog = earthquakes.build();
+        EarthquakeMetrics.recordParse(parseStart, catalog.size());
+        return catalog;
+    }
+
+    /**
+     * Return an {@link EarthquakeCatalog} parsed from a response held in memory, on every core
+     * if the response is large, see {@link EarthquakeParallelParser}
+     */
+    static EarthquakeCatalog extractFeatureFromBytes(byte[] response, int length,
+                                                     FetchCancellation cancellation) throws IOException {
+        return extractFeatureFromBytes(response, length, EarthquakeParallelParser.getExecutor(),
+                EarthquakeParallelParser.PARALLELISM, cancellation);
+    }
+
+    /**
+     * Same as {@link #extractFeatureFromBytes(byte[], int, FetchCancellation)}, on the given
+     * number of threads
+     * @param executor runs the parsing threads other than the calling thread
+     */
+    static EarthquakeCatalog extractFeatureFromBytes(byte[] response, int length,
+                                                     ExecutorService executor, int parallelism,
+                                                     FetchCancellation cancellation) throws IOException {
+
+        // A small response is parsed faster on this thread alone
+        if (parallelism <= 1 || length < EarthquakeParallelParser.PARALLEL_MIN_BYTES) {
+            return extractFeatureFromStream(new ByteArrayInputStream(response, 0, length),
+                    null, cancellation);
+        }
+
+        long parseStart = EarthquakeMetrics.start();
+        EarthquakeMetrics.beginSection("parse", parseStart);
+        EarthquakeCatalog catalog;
+        try {
+            catalog = EarthquakeParallelParser.parse(response, length, executor, parallelism, cancellation);
+        } catch (IllegalStateException | NumberFormatException e) {
+            // Parse it again on this thread, which logs the error and keeps
+            // the earthquakes before it
+            return extractFeatureFromStream(new ByteArrayInputStream(response, 0, length),
+                    null, cancellation);
+        } finally {
+            EarthquakeMetrics.endSection(parseStart);
+        }
+        EarthquakeMetrics.recordParse(parseStart, catalog.size());
+        return catalog;
     }
 
+    /**
+     * Return an {@link EarthquakeCatalog} parsed from a response body that nobody watches
+     * while it loads. The body is read into memory first, so a large one can be parsed on every
+     * core, unless it is too large to hold, then the rest is parsed while it is read
+     */
+    private static EarthquakeCatalog extractFeatureFromBody(InputStream body,
+                                                            FetchCancellation cancellation) throws IOException {
+        int maxLength = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, MAX_BUFFERED_RESPONSE_BYTES);
+
+        byte[] buffer = new byte[16 * 1024];
+        int length = 0;
+        while (length < maxLength) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, maxLength));
+            }
+            int read = body.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                return extractFeatureFromBytes(buffer, length, cancellation);
+            }
+            length += read;
+        }
+        return extractFeatureFromStream(new SequenceInputStream(
+                new ByteArrayInputStream(buffer, 0, length), body), null, cancellation);
+    }
 
     /**
      * Create a URL object from the given string URL
@@ -148,73 +514,126 @@ public final class QueryUtils {
     }
 
     /**
-     * Make an HTTP Request to the given URL and return the response as a String
+     * Make an HTTP Request to the given URL and return the earthquakes parsed from the response
+     * along with its validators, the cached entry itself if the server answered 304 Not Modified,
+     * or null if the request failed. The listener, if any, is notified while the response is parsed.
+     * If the cancellation, if any, is cancelled the request is aborted
      */
-    private static String makeHttpRequest(URL url) throws IOException{
-        String jsonResponse = "";
+    private static EarthquakeCache.Entry makeHttpRequest(URL url, EarthquakeCache.Entry cached,
+                                                         OnBatchParsedListener listener,
+                                                         FetchCancellation cancellation)
+            throws IOException{
+        EarthquakeCache.Entry earthquakes = null;
 
         //If url is null return early
         if (url == null){
-            return jsonResponse;
+            return earthquakes;
+        }
+
+        // Ask the server to only send the response if it changed since it was cached
+        Map<String, String> requestHeaders = new HashMap<>();
+        if (cached != null) {
+            if (cached.getETag() != null) {
+                requestHeaders.put("If-None-Match", cached.getETag());
+            }
+            if (cached.getLastModified() != null) {
+                requestHeaders.put("If-Modified-Since", cached.getLastModified());
+            }
         }
 
-        HttpURLConnection urlConnection = null;
-        InputStream inputStream = null;
+        HttpTransport.Response response = null;
 
         try {
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setReadTimeout(10000 /* Milliseconds */);
-            urlConnection.setConnectTimeout(15000 /* Milliseconds */);
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
+            response = getTransport().get(url, requestHeaders, cancellation);
 
             // If the request was successful (Response code 200)
-            // Read the input stream and parse the response
-            if (urlConnection.getResponseCode() == 200) {
-                inputStream = urlConnection.getInputStream();
-                jsonResponse = readFromStream(inputStream);
+            // Parse the response while it is still being read from the body, unless nobody
+            // is shown the earthquakes before the end and it can be parsed on every core
+            int responseCode = response.getCode();
+            if (responseCode == 200) {
+                EarthquakeCatalog catalog;
+                if (listener == null && EarthquakeParallelParser.PARALLELISM > 1) {
+                    catalog = extractFeatureFromBody(response.getBody(), cancellation);
+                } else {
+                    catalog = extractFeatureFromStream(response.getBody(), listener, cancellation);
+                }
+                earthquakes = new EarthquakeCache.Entry(catalog,
+                        response.getHeader("ETag"),
+                        response.getHeader("Last-Modified"),
+                        response.getBytesReceived());
+            } else if (cached != null && responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // The cached earthquakes are still up to date
+                earthquakes = cached;
             } else {
                 // Else Log the error response code
-                Log.e(LOG_TAG, "Error Response code is: " + urlConnection.getResponseCode());
+                Log.e(LOG_TAG, "Error Response code is: " + responseCode);
             }
 
         } catch (IOException e){
-            Log.e(LOG_TAG, "Error creating HTTP Request: ", e);
+            if (cancellation != null && cancellation.isCancelled()) {
+                Log.i(LOG_TAG, "HTTP Request cancelled: " + url);
+            } else {
+                Log.e(LOG_TAG, "Error creating HTTP Request: ", e);
+            }
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+            if (cancellation != null) {
+                cancellation.setResponse(null);
             }
-            if (inputStream != null) {
-                // Closing the input stream could throw an IOException, which is why
-                // the makeHttpRequest(URL url) method signature specifies that an IOException
-                // could be thrown.
-                inputStream.close();
+            if (response != null) {
+                // Hands the connection back for the next request, unless the response
+                // was not read to its end
+                response.close();
             }
         }
 
-        return jsonResponse;
+        return earthquakes;
     }
 
+    /**
+     * @return the transport the requests are sent with
+     */
+    static HttpTransport getTransport() {
+        synchronized (QueryUtils.class) {
+            if (sTransport == null) {
+                // Retried, hedged and short-circuited while USGS is failing
+                sTransport = new ResilientTransport(new UrlConnectionTransport(), true);
+            }
+            return sTransport;
+        }
+    }
 
     /**
-     * Convert InputStream into a String that returns the entire JSON response from the server
+     * Send the requests with another transport, i.e with other timeouts or a fake that serves
+     * canned responses. Null restores the default transport
      */
-    private static String readFromStream(InputStream inputStream) throws IOException {
+    public static void setTransport(HttpTransport transport) {
+        synchronized (QueryUtils.class) {
+            sTransport = transport;
+        }
+    }
 
-        StringBuilder output = new StringBuilder();
 
-        if (inputStream != null) {
-            InputStreamReader inputStreamReader = new InputStreamReader(inputStream, Charset.forName("UTF-8"));
-            BufferedReader reader = new BufferedReader(inputStreamReader);
+    /**
+     * Convert InputStream into a String that returns the entire JSON response from the server
+     */
+    static String readFromStream(InputStream inputStream) throws IOException {
 
-            String line = reader.readLine();
+        if (inputStream == null) {
+            return "";
+        }
 
-            while (line != null) {
-                output.append(line);
-                line = reader.readLine();
+        // Read the raw bytes into one growing buffer and decode them once, instead of
+        // decoding and copying the response line by line
+        byte[] buffer = new byte[16 * 1024];
+        int length = 0;
+        int read;
+        while ((read = inputStream.read(buffer, length, buffer.length - length)) >= 0) {
+            length += read;
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
             }
         }
-        return output.toString();
+        return new String(buffer, 0, length, Charset.forName("UTF-8"));
     }
 
 }
@@ -0,0 +1,579 @@
+package com.example.android.quakereport;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link HttpTransport} that makes the requests of another transport resilient to a slow or
+ * failing server. This is the transport {@link QueryUtils} uses by default.
+ *
+ * - A request that fails, or that the server answers with a 5xx or 429 code, is retried a few
+ *   times after a backoff with full jitter, so the clients that failed together do not all
+ *   retry together.
+ * - A request that did not get its response headers by the time most requests already had
+ *   (the 95th percentile of the recent ones) is hedged: a second request is sent, the first of
+ *   the two to answer is used and the other one is aborted. This cuts the tail latency caused
+ *   by the odd slow connection, for at most a few percent more requests.
+ * - After several attempts in a row failed, about two requests with their retries, the circuit
+ *   breaker opens and the requests fail right away for a while, so the callers fall back to
+ *   their cached earthquakes instead of waiting for every timeout. Then one request is let
+ *   through to probe the server, and the circuit closes again if it succeeds.
+ *
+ * Only the response headers are retried and hedged, a response whose body fails while it is
+ * parsed fails the fetch like before.
+ */
+public final class ResilientTransport implements HttpTransport {
+
+    /**
+     * Tag for the Log messages
+     */
+    private static final String LOG_TAG = ResilientTransport.class.getSimpleName();
+
+    /* Attempts of one request, the first one included */
+    private static final int MAX_ATTEMPTS = 3;
+
+    /* Backoff before the first retry, doubled for every later one, and its upper bound */
+    private static final long BASE_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 8000;
+
+    /* Requests are hedged after this percentile of the recent header latencies, once there
+     * are enough of them, but never sooner than the minimum delay */
+    private static final double HEDGE_PERCENTILE = 0.95;
+    private static final int MIN_HEDGE_SAMPLES = 20;
+    private static final long MIN_HEDGE_DELAY_MILLIS = 100;
+
+    /* Attempts failing in a row that open the circuit, and how long it stays open */
+    private static final int FAILURES_TO_OPEN = 5;
+    private static final long OPEN_MILLIS = 30 * 1000;
+
+    /* Number of recent latencies the percentiles are computed from */
+    private static final int LATENCY_SAMPLES = 128;
+
+    /* Enough workers for two attempts of every request of EarthquakeRequests */
+    private static final int MAX_RUNNING_ATTEMPTS = 12;
+
+    /* Idle workers are stopped after this long */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final ExecutorService sExecutor = createExecutor();
+
+    private final HttpTransport mTransport;
+    private final boolean mHedging;
+    private final long mBaseBackoffMillis;
+    private final long mOpenMillis;
+    private final Random mRandom;
+
+    /* Header latencies of the recent attempts, and time to data of the recent requests */
+    private final LatencySamples mHeaderLatencies = new LatencySamples();
+    private final LatencySamples mTimesToData = new LatencySamples();
+
+    /* State of the circuit breaker, guarded by this */
+    private int mConsecutiveFailures;
+    private long mOpenUntil;
+    private boolean mProbing;
+
+    /* Requests, attempts, retries, hedged requests, hedges that answered first, times the
+     * circuit opened and requests failed right away while it was open */
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mAttemptCount = new AtomicLong();
+    private final AtomicLong mRetries = new AtomicLong();
+    private final AtomicLong mHedges = new AtomicLong();
+    private final AtomicLong mHedgeWins = new AtomicLong();
+    private final AtomicLong mCircuitOpenings = new AtomicLong();
+    private final AtomicLong mShortCircuited = new AtomicLong();
+
+    /**
+     * @param transport sends the attempts
+     * @param hedging true to hedge the slow requests
+     */
+    public ResilientTransport(HttpTransport transport, boolean hedging) {
+        this(transport, hedging, BASE_BACKOFF_MILLIS, OPEN_MILLIS, new Random());
+    }
+
+    /**
+     * @param baseBackoffMillis backoff before the first retry, doubled for every later one
+     * @param openMillis how long the circuit stays open
+     * @param random draws the jitter of the backoffs
+     */
+    ResilientTransport(HttpTransport transport, boolean hedging, long baseBackoffMillis,
+                       long openMillis, Random random) {
+        mTransport = transport;
+        mHedging = hedging;
+        mBaseBackoffMillis = baseBackoffMillis;
+        mOpenMillis = openMillis;
+        mRandom = random;
+    }
+
+    /**
+     * @return the transport that sends the attempts
+     */
+    public HttpTransport getTransport() {
+        return mTransport;
+    }
+
+    @Override
+    public Response get(URL url, Map<String, String> requestHeaders,
+                        FetchCancellation cancellation) throws IOException {
+        mRequests.incrementAndGet();
+        long startTime = System.nanoTime();
+
+        ResilientResponse response = new ResilientResponse();
+        if (cancellation != null) {
+            cancellation.setResponse(response);
+        }
+
+        for (int attempt = 0; ; attempt++) {
+            if (!allowRequest()) {
+                mShortCircuited.incrementAndGet();
+                throw new IOException("Not sending the request, " + url.getHost()
+                        + " is failing. Retrying in " + getOpenMillis() + " ms");
+            }
+
+            boolean lastAttempt = attempt == MAX_ATTEMPTS - 1;
+            try {
+                Response attemptResponse = response.send(url, requestHeaders, getHedgeDelayMillis());
+                int responseCode = attemptResponse.getCode();
+                if (responseCode < 500 && responseCode != 429) {
+                    onSuccess();
+                    mTimesToData.add(System.nanoTime() - startTime);
+                    response.setResult(attemptResponse);
+                    return response;
+                }
+                onFailure();
+                if (lastAttempt) {
+                    // Let the caller see the error code
+                    response.setResult(attemptResponse);
+                    return response;
+                }
+                attemptResponse.close();
+                Log.i(LOG_TAG, "Retrying " + url + " after the response code " + responseCode);
+            } catch (IOException e) {
+                if (response.isAborted()) {
+                    onAborted();
+                    throw e;
+                }
+                onFailure();
+                if (lastAttempt) {
+                    throw e;
+                }
+                Log.i(LOG_TAG, "Retrying " + url + " after " + e);
+            }
+
+            mRetries.incrementAndGet();
+            response.sleep(getBackoffMillis(attempt));
+        }
+    }
+
+    /**
+     * @return the number of requests, retries, hedges and the time to data percentiles
+     */
+    public String getSummary() {
+        return String.format(Locale.US, "%d requests in %d attempts, %d retries,"
+                        + " %d hedged (%d answered first), circuit opened %d times"
+                        + " and failed %d requests right away,"
+                        + " time to data p50 %.0f ms, p99 %.0f ms",
+                mRequests.get(), mAttemptCount.get(), mRetries.get(), mHedges.get(),
+                mHedgeWins.get(), mCircuitOpenings.get(), mShortCircuited.get(),
+                mTimesToData.getPercentile(0.5) / 1e6, mTimesToData.getPercentile(0.99) / 1e6);
+    }
+
+    /**
+     * @return true while the circuit is open and the requests fail right away
+     */
+    public synchronized boolean isCircuitOpen() {
+        return mOpenUntil > System.currentTimeMillis();
+    }
+
+    private synchronized boolean allowRequest() {
+        if (mConsecutiveFailures < FAILURES_TO_OPEN) {
+            return true;
+        }
+        if (isCircuitOpen() || mProbing) {
+            return false;
+        }
+        // Half open, this request probes the server
+        mProbing = true;
+        return true;
+    }
+
+    private synchronized long getOpenMillis() {
+        return Math.max(mOpenUntil - System.currentTimeMillis(), 0);
+    }
+
+    private synchronized void onSuccess() {
+        mConsecutiveFailures = 0;
+        mProbing = false;
+    }
+
+    private synchronized void onAborted() {
+        // An aborted probe says nothing about the server, the next request probes it again
+        mProbing = false;
+    }
+
+    private synchronized void onFailure() {
+        mConsecutiveFailures++;
+        if (mProbing || mConsecutiveFailures == FAILURES_TO_OPEN) {
+            mProbing = false;
+            mOpenUntil = System.currentTimeMillis() + mOpenMillis;
+            mCircuitOpenings.incrementAndGet();
+            Log.e(LOG_TAG, "Too many failed requests, opening the circuit for "
+                    + mOpenMillis + " ms");
+        }
+    }
+
+    /**
+     * @return a random backoff between 0 and the exponential backoff of the attempt
+     */
+    private long getBackoffMillis(int attempt) {
+        long maxBackoff = Math.min(mBaseBackoffMillis << attempt, MAX_BACKOFF_MILLIS);
+        synchronized (mRandom) {
+            return (long) (mRandom.nextDouble() * maxBackoff);
+        }
+    }
+
+    /**
+     * @return how long to wait for the headers before hedging, or -1 to not hedge
+     */
+    private long getHedgeDelayMillis() {
+        if (!mHedging || mHeaderLatencies.size() < MIN_HEDGE_SAMPLES) {
+            return -1;
+        }
+        long percentile = mHeaderLatencies.getPercentile(HEDGE_PERCENTILE) / 1000000;
+        return Math.max(percentile, MIN_HEDGE_DELAY_MILLIS);
+    }
+
+    private static ExecutorService createExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_RUNNING_ATTEMPTS,
+                MAX_RUNNING_ATTEMPTS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, LOG_TAG + " #" + mCount.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+
+    /**
+     * A ring of recent latencies, in nanoseconds
+     */
+    private static final class LatencySamples {
+
+        private final long[] mSamples = new long[LATENCY_SAMPLES];
+        private int mCount;
+
+        synchronized void add(long nanos) {
+            mSamples[mCount % LATENCY_SAMPLES] = nanos;
+            mCount++;
+        }
+
+        synchronized int size() {
+            return Math.min(mCount, LATENCY_SAMPLES);
+        }
+
+        /**
+         * @return the latency the given share of the samples are below, or 0 if there are none
+         */
+        synchronized long getPercentile(double percentile) {
+            int size = size();
+            if (size == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(mSamples, size);
+            Arrays.sort(sorted);
+            return sorted[Math.min((int) (percentile * size), size - 1)];
+        }
+    }
+
+
+    /**
+     * The response of one request: the response of its attempt that answered first, once it did
+     */
+    private final class ResilientResponse implements Response {
+
+        /* The attempts sent for the current try, the second one is the hedge. Guarded by this */
+        private final Attempt[] mAttempts = new Attempt[2];
+
+        /* The response handed to the caller, guarded by this */
+        private Response mResult;
+
+        private volatile boolean mAborted;
+
+        /**
+         * Send an attempt, and hedge it if it has no answer after the delay. Blocks until one
+         * of them answers, or both failed
+         * @param hedgeDelayMillis how long to wait before hedging, or -1 to not hedge
+         * @return the response that answered first, the other attempt is aborted
+         */
+        Response send(URL url, Map<String, String> requestHeaders, long hedgeDelayMillis)
+                throws IOException {
+            synchronized (this) {
+                Arrays.fill(mAttempts, null);
+                mAttempts[0] = startAttempt(url, requestHeaders);
+                try {
+                    if (hedgeDelayMillis >= 0) {
+                        long deadline = System.currentTimeMillis() + hedgeDelayMillis;
+                        long remaining = hedgeDelayMillis;
+                        while (!mAborted && !mAttempts[0].isDone() && remaining > 0) {
+                            wait(remaining);
+                            remaining = deadline - System.currentTimeMillis();
+                        }
+                        if (!mAborted && !mAttempts[0].isDone()) {
+                            mHedges.incrementAndGet();
+                            mAttempts[1] = startAttempt(url, requestHeaders);
+                        }
+                    }
+                    while (!mAborted && getAnswer() == null && !allFailed()) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    mAborted = true;
+                }
+
+                Attempt answer = mAborted ? null : getAnswer();
+                // The attempts that lost, or all of them if the request was aborted
+                for (Attempt attempt : mAttempts) {
+                    if (attempt != null && attempt != answer) {
+                        attempt.cancel();
+                    }
+                }
+                if (mAborted) {
+                    throw new InterruptedIOException("Request aborted");
+                }
+                if (answer == null) {
+                    throw mAttempts[mAttempts[1] != null ? 1 : 0].getError();
+                }
+                if (answer == mAttempts[1]) {
+                    mHedgeWins.incrementAndGet();
+                }
+                return answer.getResponse();
+            }
+        }
+
+        /* Guarded by this */
+        private Attempt startAttempt(URL url, Map<String, String> requestHeaders) {
+            mAttemptCount.incrementAndGet();
+            Attempt attempt = new Attempt(this, url, requestHeaders);
+            sExecutor.execute(attempt);
+            return attempt;
+        }
+
+        /* Guarded by this */
+        private Attempt getAnswer() {
+            for (Attempt attempt : mAttempts) {
+                if (attempt != null && attempt.getResponse() != null) {
+                    return attempt;
+                }
+            }
+            return null;
+        }
+
+        /* Guarded by this */
+        private boolean allFailed() {
+            for (Attempt attempt : mAttempts) {
+                if (attempt != null && !attempt.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Wait before the next try, or until the request is aborted
+         */
+        synchronized void sleep(long millis) throws InterruptedIOException {
+            long deadline = System.currentTimeMillis() + millis;
+            long remaining = millis;
+            try {
+                while (!mAborted && remaining > 0) {
+                    wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mAborted = true;
+            }
+            if (mAborted) {
+                throw new InterruptedIOException("Request aborted");
+            }
+        }
+
+        synchronized void setResult(Response result) {
+            mResult = result;
+            if (mAborted) {
+                result.abort();
+            }
+        }
+
+        boolean isAborted() {
+            return mAborted;
+        }
+
+        private synchronized Response getResult() throws IOException {
+            if (mResult == null) {
+                throw new IOException("No response yet");
+            }
+            return mResult;
+        }
+
+        @Override
+        public int getCode() throws IOException {
+            return getResult().getCode();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            Response result;
+            synchronized (this) {
+                result = mResult;
+            }
+            return result != null ? result.getHeader(name) : null;
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            return getResult().getBody();
+        }
+
+        @Override
+        public long getBytesReceived() {
+            Response result;
+            synchronized (this) {
+                result = mResult;
+            }
+            return result != null ? result.getBytesReceived() : 0;
+        }
+
+        @Override
+        public void close() {
+            Response result;
+            synchronized (this) {
+                result = mResult;
+            }
+            if (result != null) {
+                result.close();
+            }
+        }
+
+        @Override
+        public void abort() {
+            Response result;
+            synchronized (this) {
+                mAborted = true;
+                result = mResult;
+                // Wakes up send() or sleep(), which abort the running attempts
+                notifyAll();
+            }
+            if (result != null) {
+                result.abort();
+            }
+        }
+    }
+
+
+    /**
+     * One attempt of a request, sent on a worker. Done once it got the response headers,
+     * or failed
+     */
+    private final class Attempt implements Runnable {
+
+        private final ResilientResponse mOwner;
+        private final URL mUrl;
+        private final Map<String, String> mRequestHeaders;
+
+        /* Aborts the attempt when it lost, or when the request was aborted */
+        private final FetchCancellation mCancellation = new FetchCancellation();
+
+        /* The outcome, guarded by mOwner */
+        private boolean mDone;
+        private Response mResponse;
+        private IOException mError;
+
+        Attempt(ResilientResponse owner, URL url, Map<String, String> requestHeaders) {
+            mOwner = owner;
+            mUrl = url;
+            mRequestHeaders = requestHeaders;
+        }
+
+        @Override
+        public void run() {
+            long startTime = System.nanoTime();
+            Response response = null;
+            IOException error = null;
+            try {
+                mCancellation.throwIfCancelled();
+                response = mTransport.get(mUrl, mRequestHeaders, mCancellation);
+                // Waits for the response headers
+                response.getCode();
+                mHeaderLatencies.add(System.nanoTime() - startTime);
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = new IOException(e);
+            } finally {
+                // The response is the caller's now, cancelling the attempt does not abort it
+                mCancellation.setResponse(null);
+            }
+
+            boolean lost;
+            synchronized (mOwner) {
+                mDone = true;
+                lost = mCancellation.isCancelled();
+                if (!lost) {
+                    mResponse = response;
+                    mError = error;
+                }
+                mOwner.notifyAll();
+            }
+            if (lost && response != null) {
+                response.abort();
+            }
+        }
+
+        /* Guarded by mOwner */
+        boolean isDone() {
+            return mDone;
+        }
+
+        /* Guarded by mOwner */
+        Response getResponse() {
+            return mResponse;
+        }
+
+        /* Guarded by mOwner */
+        IOException getError() {
+            return mError != null ? mError : new InterruptedIOException("Attempt cancelled");
+        }
+
+        /**
+         * Abort the attempt, called with mOwner locked
+         */
+        void cancel() {
+            mCancellation.cancel();
+            if (mResponse != null) {
+                mResponse.abort();
+                mResponse = null;
+            }
+        }
+    }
+}
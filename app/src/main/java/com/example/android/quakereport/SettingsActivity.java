@@ -3,12 +3,15 @@ package com.example.android.quakereport;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.preference.ListPreference;
+import android.preference.MultiSelectListPreference;
 import android.preference.Preference;
 import android.preference.PreferenceFragment;
 import android.preference.PreferenceManager;
 import android.support.annotation.Nullable;
 import android.support.v7.app.AppCompatActivity;
 
+import java.util.Collections;
+import java.util.Set;
 import java.util.prefs.PreferenceChangeListener;
 
 public class SettingsActivity extends AppCompatActivity {
@@ -39,6 +42,13 @@ public class SettingsActivity extends AppCompatActivity {
             Preference maxResults = findPreference(getString(R.string.settings_max_results_key));
             bindPreferenceSummaryToValue(maxResults);
 
+            // Find regions preference by its key
+            // Its value is a set of regions, displayed as their labels in its summary
+            Preference regions = findPreference(getString(R.string.settings_regions_key));
+            regions.setOnPreferenceChangeListener(this);
+            onPreferenceChange(regions, PreferenceManager.getDefaultSharedPreferences(regions.getContext())
+                    .getStringSet(regions.getKey(), Collections.singleton(getString(R.string.settings_regions_world))));
+
         }
 
         /**
@@ -48,6 +58,22 @@ public class SettingsActivity extends AppCompatActivity {
          */
         @Override
         public boolean onPreferenceChange(Preference preference, Object newValue) {
+            // Checks if the preference is a multi select list preference
+            if (preference instanceof MultiSelectListPreference) {
+                // set summary to the entries of the selected values, in the order of the list
+                MultiSelectListPreference listPreference = (MultiSelectListPreference) preference;
+                Set<?> values = (Set<?>) newValue;
+                CharSequence[] entryValues = listPreference.getEntryValues();
+                StringBuilder summary = new StringBuilder();
+                for (int i = 0; i < entryValues.length; i++) {
+                    if (values.contains(entryValues[i].toString())) {
+                        summary.append(summary.length() > 0 ? ", " : "").append(listPreference.getEntries()[i]);
+                    }
+                }
+                preference.setSummary(summary);
+                return true;
+            }
+
             // Create string from the newValue, and set it to the preference's summary
             String valueString = newValue.toString();
 
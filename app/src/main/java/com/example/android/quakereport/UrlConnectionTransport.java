@@ -0,0 +1,358 @@
+package com.example.android.quakereport;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The default {@link HttpTransport}, on top of HttpURLConnection.
+ *
+ * Responses are requested gzip compressed and decompressed while they are read, the JSON of
+ * USGS shrinks to about a tenth on the wire. A response that was read to its end is closed
+ * without disconnecting, so its connection goes back to HttpURLConnection's keep-alive pool and
+ * the next request to USGS skips the TCP and TLS handshakes. Only an aborted or partly read
+ * response is disconnected.
+ *
+ * HttpURLConnection does not tell if a request reused a pooled connection, so the reuse rate is
+ * an estimate: a request is counted as reused if a connection to its host was released to the
+ * pool within the keep-alive window and was not taken by another request since.
+ */
+public final class UrlConnectionTransport implements HttpTransport {
+
+    /**
+     * Tag for the Log messages
+     */
+    private static final String LOG_TAG = UrlConnectionTransport.class.getSimpleName();
+
+    /* Timeouts used by the default transport */
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 10000;
+
+    /* How long the pool of HttpURLConnection keeps an idle connection open */
+    private static final long KEEP_ALIVE_MILLIS = 5 * 60 * 1000;
+
+    /* Bytes left in a response that are still read on close to keep its connection */
+    private static final int MAX_DRAIN_BYTES = 8 * 1024;
+
+    /* Buffer of every thread to drain responses, so closing allocates nothing */
+    private static final ThreadLocal<byte[]> sDrainBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[MAX_DRAIN_BYTES];
+        }
+    };
+
+    private final int mConnectTimeoutMillis;
+    private final int mReadTimeoutMillis;
+
+    /* Release times of the connections that went back to the pool, by host. Guarded by itself */
+    private final Map<String, long[]> mIdleConnections = new HashMap<>();
+
+    /* Requests sent, of those the ones that likely reused a connection, and body bytes as
+     * received on the wire and after decompression */
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mReusedConnections = new AtomicLong();
+    private final AtomicLong mWireBytes = new AtomicLong();
+    private final AtomicLong mDecodedBytes = new AtomicLong();
+
+    public UrlConnectionTransport() {
+        this(DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
+    public UrlConnectionTransport(int connectTimeoutMillis, int readTimeoutMillis) {
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+    }
+
+    @Override
+    public Response get(URL url, Map<String, String> requestHeaders,
+                        FetchCancellation cancellation) throws IOException {
+        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        ConnectionResponse response = new ConnectionResponse(urlConnection, url.getHost());
+        if (cancellation != null) {
+            // Set before connecting, so a cancellation also aborts the connect
+            cancellation.setResponse(response);
+        }
+
+        boolean connected = false;
+        try {
+            urlConnection.setConnectTimeout(mConnectTimeoutMillis);
+            urlConnection.setReadTimeout(mReadTimeoutMillis);
+            urlConnection.setRequestMethod("GET");
+            // Setting it ourselves turns off the transparent decompression, so the wire bytes
+            // can be counted
+            urlConnection.setRequestProperty("Accept-Encoding", "gzip");
+            if (requestHeaders != null) {
+                for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                    urlConnection.setRequestProperty(header.getKey(), header.getValue());
+                }
+            }
+
+            mRequests.incrementAndGet();
+            EarthquakeMetrics.REQUESTS.increment();
+            if (takeIdleConnection(url.getHost())) {
+                mReusedConnections.incrementAndGet();
+            }
+
+            // HttpURLConnection resolves the host while it connects, resolve it first while the
+            // metrics are on so the lookup is timed apart. The connection then gets it from the
+            // cache of InetAddress
+            long dnsStart = EarthquakeMetrics.start();
+            if (dnsStart != 0) {
+                try {
+                    InetAddress.getAllByName(url.getHost());
+                } catch (UnknownHostException e) {
+                    // connect() fails the same way
+                }
+                EarthquakeMetrics.DNS.recordSince(dnsStart);
+            }
+
+            long connectStart = EarthquakeMetrics.start();
+            EarthquakeMetrics.beginSection("connect", connectStart);
+            try {
+                urlConnection.connect();
+            } finally {
+                EarthquakeMetrics.endSection(connectStart);
+            }
+            EarthquakeMetrics.CONNECT.recordSince(connectStart);
+            response.mRequestStart = EarthquakeMetrics.start();
+            connected = true;
+        } finally {
+            if (!connected) {
+                EarthquakeMetrics.FAILED_REQUESTS.increment();
+                response.abort();
+            }
+        }
+        return response;
+    }
+
+    /**
+     * @return the share of requests that likely reused a pooled connection, from 0 to 1
+     */
+    public double getConnectionReuseRate() {
+        long requests = mRequests.get();
+        return requests > 0 ? (double) mReusedConnections.get() / requests : 0;
+    }
+
+    /**
+     * @return the number of body bytes received on the wire, so far
+     */
+    public long getWireBytes() {
+        return mWireBytes.get();
+    }
+
+    /**
+     * @return the number of body bytes after decompression, so far
+     */
+    public long getDecodedBytes() {
+        return mDecodedBytes.get();
+    }
+
+    /**
+     * @return the requests sent, the connection reuse rate and the bytes saved by compression
+     */
+    public String getSummary() {
+        long wireBytes = mWireBytes.get();
+        long decodedBytes = mDecodedBytes.get();
+        return String.format(Locale.US, "%d requests, %.0f%% reused a connection,"
+                        + " %d bytes on the wire for %d decoded bytes (%.0f%% saved)",
+                mRequests.get(), getConnectionReuseRate() * 100, wireBytes, decodedBytes,
+                decodedBytes > 0 ? 100.0 * (decodedBytes - wireBytes) / decodedBytes : 0);
+    }
+
+    /**
+     * Take the most recently released connection to the host, if it is still kept alive
+     */
+    private boolean takeIdleConnection(String host) {
+        long now = System.currentTimeMillis();
+        synchronized (mIdleConnections) {
+            long[] releaseTimes = mIdleConnections.get(host);
+            if (releaseTimes == null) {
+                return false;
+            }
+            // Release times are in order, the first slot holds the count
+            int count = (int) releaseTimes[0];
+            while (count > 0 && now - releaseTimes[1] > KEEP_ALIVE_MILLIS) {
+                System.arraycopy(releaseTimes, 2, releaseTimes, 1, count - 1);
+                count--;
+            }
+            releaseTimes[0] = Math.max(count - 1, 0);
+            return count > 0;
+        }
+    }
+
+    private void releaseIdleConnection(String host) {
+        long now = System.currentTimeMillis();
+        synchronized (mIdleConnections) {
+            long[] releaseTimes = mIdleConnections.get(host);
+            if (releaseTimes == null) {
+                // HttpURLConnection keeps at most 5 idle connections
+                releaseTimes = new long[1 + 5];
+                mIdleConnections.put(host, releaseTimes);
+            }
+            int count = (int) releaseTimes[0];
+            if (count == releaseTimes.length - 1) {
+                // The pool evicts its oldest connection
+                System.arraycopy(releaseTimes, 2, releaseTimes, 1, count - 1);
+                count--;
+            }
+            releaseTimes[1 + count] = now;
+            releaseTimes[0] = count + 1;
+        }
+    }
+
+
+    /**
+     * The response of one HttpURLConnection
+     */
+    private final class ConnectionResponse implements Response {
+
+        private final HttpURLConnection mConnection;
+        private final String mHost;
+
+        /* The body as received, and after decompression. Guarded by this */
+        private CountingInputStream mWireStream;
+        private CountingInputStream mDecodedStream;
+
+        /* Set once the response is closed or aborted, guarded by this */
+        private boolean mReleased;
+
+        /* Set once the connection went back to the pool, guarded by this */
+        private boolean mPooled;
+
+        /* EarthquakeMetrics start times of the request once connected, and of the download
+         * once the headers arrived. 0 if they are not measured */
+        private volatile long mRequestStart;
+        private volatile long mDownloadStart;
+
+        ConnectionResponse(HttpURLConnection connection, String host) {
+            mConnection = connection;
+            mHost = host;
+        }
+
+        @Override
+        public int getCode() throws IOException {
+            try {
+                int responseCode = mConnection.getResponseCode();
+                if (mRequestStart != 0 && mDownloadStart == 0) {
+                    EarthquakeMetrics.TIME_TO_FIRST_BYTE.recordSince(mRequestStart);
+                    mDownloadStart = EarthquakeMetrics.start();
+                }
+                return responseCode;
+            } catch (IOException e) {
+                EarthquakeMetrics.FAILED_REQUESTS.increment();
+                throw e;
+            }
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        @Override
+        public synchronized InputStream getBody() throws IOException {
+            if (mDecodedStream == null) {
+                mWireStream = new CountingInputStream(mConnection.getInputStream());
+                InputStream body = mWireStream;
+                if ("gzip".equalsIgnoreCase(mConnection.getContentEncoding())) {
+                    body = new GZIPInputStream(body, 8 * 1024);
+                }
+                mDecodedStream = new CountingInputStream(body);
+            }
+            return mDecodedStream;
+        }
+
+        @Override
+        public synchronized long getBytesReceived() {
+            return mWireStream != null ? mWireStream.getCount() : 0;
+        }
+
+        @Override
+        public void close() {
+            CountingInputStream decodedStream;
+            synchronized (this) {
+                if (mReleased) {
+                    return;
+                }
+                decodedStream = mDecodedStream;
+            }
+
+            // The connection can only be reused once its body was read to the end, read the
+            // few bytes that may be left (i.e the gzip trailer) instead of dropping it
+            boolean reusable = false;
+            try {
+                InputStream body = decodedStream != null ? decodedStream : getBody();
+                byte[] buffer = sDrainBuffer.get();
+                int drained = 0;
+                int read;
+                while (drained < MAX_DRAIN_BYTES
+                        && (read = body.read(buffer, 0, MAX_DRAIN_BYTES - drained)) >= 0) {
+                    drained += read;
+                }
+                reusable = mWireStream.isAtEnd() || body.read() < 0;
+            } catch (IOException e) {
+                // No body (i.e 304 Not Modified) or a broken connection, it is not reused
+            }
+
+            synchronized (this) {
+                if (mReleased) {
+                    return;
+                }
+                mReleased = true;
+                countBytes();
+            }
+            if (reusable) {
+                try {
+                    // Closing without disconnect() returns the connection to the pool
+                    mConnection.getInputStream().close();
+                    synchronized (this) {
+                        mPooled = true;
+                    }
+                    releaseIdleConnection(mHost);
+                    return;
+                } catch (IOException e) {
+                    Log.i(LOG_TAG, "Problem releasing a connection: " + e);
+                }
+            }
+            mConnection.disconnect();
+        }
+
+        @Override
+        public void abort() {
+            synchronized (this) {
+                if (mPooled) {
+                    // Too late, another request may be using the connection already
+                    return;
+                }
+                if (!mReleased) {
+                    mReleased = true;
+                    countBytes();
+                }
+            }
+            // Makes a blocked read fail right away, even while the response is being closed
+            mConnection.disconnect();
+        }
+
+        /* Guarded by this */
+        private void countBytes() {
+            if (mWireStream != null) {
+                mWireBytes.addAndGet(mWireStream.getCount());
+                mDecodedBytes.addAndGet(mDecodedStream.getCount());
+                EarthquakeMetrics.WIRE_BYTES.add(mWireStream.getCount());
+            }
+            // From the headers until the body was read, or the response given up
+            EarthquakeMetrics.DOWNLOAD.recordSince(mDownloadStart);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.example.android.quakereport;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A column of strings of an {@link EarthquakeCatalog}, kept as the UTF-8 bytes they arrived in
+ * and only decoded into a String the first time they are read.
+ *
+ * The bytes of every value are packed one after the other into a single array, so the catalog
+ * holds neither the whole response nor a String per value, and the values that are never read
+ * (i.e the urls of the earthquakes that are never tapped) are never decoded.
+ * Values can also be added as Strings, they are then kept as they are.
+ */
+final class Utf8Column {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] NO_BYTES = new byte[0];
+
+    /* Offset of a value that was added as a String */
+    private static final int NOT_ENCODED = -1;
+
+    /* Values added as Strings, or encoded values once they were decoded */
+    private String[] mValues;
+
+    /* Where the bytes of each value start in mBytes, NOT_ENCODED if it was added as a String */
+    private int[] mOffsets;
+    private int[] mLengths;
+
+    /* The bytes of the encoded values */
+    private byte[] mBytes;
+    private int mByteCount;
+
+    Utf8Column(int capacity) {
+        this(new String[capacity], new int[capacity], new int[capacity], NO_BYTES);
+    }
+
+    private Utf8Column(String[] values, int[] offsets, int[] lengths, byte[] bytes) {
+        mValues = values;
+        mOffsets = offsets;
+        mLengths = lengths;
+        mBytes = bytes;
+        mByteCount = bytes.length;
+    }
+
+    /**
+     * @return the value at the given position, decoded on the first call
+     */
+    String get(int position) {
+        String value = mValues[position];
+        if (value == null && mOffsets[position] != NOT_ENCODED) {
+            // Two threads may both decode it, they store equal strings
+            value = new String(mBytes, mOffsets[position], mLengths[position], UTF_8);
+            mValues[position] = value;
+        }
+        return value;
+    }
+
+    /**
+     * Store a value that is already a String, which may be null
+     */
+    void set(int position, String value) {
+        mValues[position] = value;
+        mOffsets[position] = NOT_ENCODED;
+        mLengths[position] = 0;
+    }
+
+    /**
+     * Store a value as UTF-8 bytes, copied from the given array
+     */
+    void setEncoded(int position, byte[] source, int offset, int length) {
+        if (mByteCount + length > mBytes.length) {
+            mBytes = Arrays.copyOf(mBytes, Math.max(mBytes.length * 2, mByteCount + length));
+        }
+        System.arraycopy(source, offset, mBytes, mByteCount, length);
+        mValues[position] = null;
+        mOffsets[position] = mByteCount;
+        mLengths[position] = length;
+        mByteCount += length;
+    }
+
+    /**
+     * Store the value at the given position of another column, without decoding it
+     */
+    void copy(int position, Utf8Column from, int fromPosition) {
+        String value = from.mValues[fromPosition];
+        if (value != null || from.mOffsets[fromPosition] == NOT_ENCODED) {
+            set(position, value);
+        } else {
+            setEncoded(position, from.mBytes, from.mOffsets[fromPosition], from.mLengths[fromPosition]);
+        }
+    }
+
+    /**
+     * @return true if the value at the given position equals the one of another column,
+     * comparing the bytes when neither is decoded yet
+     */
+    boolean equals(int position, Utf8Column other, int otherPosition) {
+        if (mValues[position] == null && mOffsets[position] != NOT_ENCODED
+                && other.mValues[otherPosition] == null && other.mOffsets[otherPosition] != NOT_ENCODED) {
+            int length = mLengths[position];
+            if (length != other.mLengths[otherPosition]) {
+                return false;
+            }
+            int offset = mOffsets[position];
+            int otherOffset = other.mOffsets[otherPosition];
+            for (int i = 0; i < length; i++) {
+                if (mBytes[offset + i] != other.mBytes[otherOffset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        String value = get(position);
+        String otherValue = other.get(otherPosition);
+        return value == null ? otherValue == null : value.equals(otherValue);
+    }
+
+    /**
+     * @return true if the value at the given position is the prefix followed by the suffix,
+     * without decoding it when both are ASCII (i.e a url made of a base url and an event id)
+     */
+    boolean equals(int position, String prefix, String suffix) {
+        if (mValues[position] == null && mOffsets[position] != NOT_ENCODED) {
+            int length = mLengths[position];
+            if (length == prefix.length() + suffix.length()) {
+                int offset = mOffsets[position];
+                int matched = matchAscii(offset, prefix);
+                if (matched == prefix.length()) {
+                    matched = matchAscii(offset + prefix.length(), suffix);
+                    if (matched == suffix.length()) {
+                        return true;
+                    }
+                }
+                // A non ASCII character can only be compared once decoded
+                if (matched >= 0) {
+                    return false;
+                }
+            } else if (length < prefix.length() + suffix.length()) {
+                // UTF-8 takes at least one byte per character
+                return false;
+            }
+        }
+        String value = get(position);
+        return value != null && value.length() == prefix.length() + suffix.length()
+                && value.startsWith(prefix) && value.startsWith(suffix, prefix.length());
+    }
+
+    /**
+     * @return the number of characters of the text matching the bytes at the given offset,
+     * or -1 if the first mismatch is at a non ASCII character
+     */
+    private int matchAscii(int offset, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            int b = mBytes[offset + i] & 0xFF;
+            if (c >= 0x80 || b >= 0x80) {
+                return -1;
+            }
+            if (c != b) {
+                return i;
+            }
+        }
+        return text.length();
+    }
+
+    /**
+     * @return an estimate of the memory the column takes: its arrays, its bytes and the values
+     * that are Strings so far
+     */
+    long estimateBytes() {
+        long bytes = mValues.length * 12L + mBytes.length;
+        for (String value : mValues) {
+            if (value != null) {
+                // Object and char array headers, then the chars
+                bytes += 40 + value.length() * 2;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Resize the column to the given number of values
+     */
+    void grow(int capacity) {
+        mValues = Arrays.copyOf(mValues, capacity);
+        mOffsets = Arrays.copyOf(mOffsets, capacity);
+        mLengths = Arrays.copyOf(mLengths, capacity);
+    }
+
+    /**
+     * @return a copy of the first values of the column, its bytes trimmed to the ones in use
+     */
+    Utf8Column copyOf(int size) {
+        return new Utf8Column(Arrays.copyOf(mValues, size), Arrays.copyOf(mOffsets, size),
+                Arrays.copyOf(mLengths, size),
+                mByteCount == 0 ? NO_BYTES : Arrays.copyOf(mBytes, mByteCount));
+    }
+}
@@ -0,0 +1,173 @@
+package com.example.android.quakereport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that binding a row allocates nothing: {@link EarthquakeAdapter#bindRow} handing the
+ * texts and color of a row of the display model to its views, with the metrics on, and
+ * formatting the fields of an earthquake into the reused char arrays.
+ *
+ * The bytes allocated by the test's thread are read from the JVM, so the test is skipped on a
+ * JVM that does not count them. The JVM can allocate on its own now and then, so the test takes
+ * the fewest bytes of several passes.
+ */
+public class EarthquakeBindAllocationTest {
+
+    /* Rows bound by every measured pass */
+    private static final int ROW_COUNT = 200;
+
+    /* Passes run before measuring, so every class is loaded and every lazy field is set */
+    private static final int WARM_UP_PASSES = 50;
+
+    /* Passes measured, the fewest bytes of them must be 0 */
+    private static final int MEASURED_PASSES = 10;
+
+    private static final int[] MAGNITUDE_COLORS = {
+            0xFF4A7BA7, 0xFF4A7BA7, 0xFF04B4B3, 0xFF10CAC9, 0xFFF5A623,
+            0xFFFF7D50, 0xFFFC6644, 0xFFE75F40, 0xFFE13A20, 0xFFD93218
+    };
+
+    private EarthquakeFormatter mFormatter;
+
+    private EarthquakeDisplayModel mModel;
+
+    private EarthquakeCatalog.Row mRow;
+
+    /* Stands in for the views of a row, only the sum of what was bound is kept */
+    private final ChecksumRow mViews = new ChecksumRow();
+    private final char[] mScratch = new char[EarthquakeFormatter.MAX_LENGTH];
+
+    @Before
+    public void setUp() {
+        mFormatter = new EarthquakeFormatter(MAGNITUDE_COLORS, 0xFFC03823, "Near the");
+
+        EarthquakeCatalog.Builder builder = new EarthquakeCatalog.Builder();
+        long time = 1454124312220L;
+        for (int i = 0; i < ROW_COUNT; i++) {
+            // Every table magnitude from 0.0 to 9.9, places with and without a distance
+            String place = i % 3 == 0 ? "Pacific-Antarctic Ridge" : (i % 50) + "km SSW of Kokopo, Papua New Guinea";
+            builder.add("us" + i, i % 100 / 10.0, place, time - i * 3600000L * 7,
+                    time, "http://earthquake.usgs.gov/earthquakes/eventpage/us" + i);
+        }
+        EarthquakeCatalog catalog = builder.build();
+        mModel = EarthquakeDisplayModel.build(catalog, mFormatter);
+        mRow = catalog.newRow();
+        EarthquakeMetrics.setEnabled(true);
+        EarthquakeMetrics.reset();
+    }
+
+    @After
+    public void tearDown() {
+        EarthquakeMetrics.setEnabled(BuildConfig.DEBUG);
+        EarthquakeMetrics.reset();
+    }
+
+    @Test
+    public void bindingRowsDoesNotAllocate() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        for (int i = 0; i < WARM_UP_PASSES; i++) {
+            bindAllRows();
+        }
+        // Read once before measuring, so the read itself is warmed up too
+        allocationBean.getThreadAllocatedBytes(threadId);
+
+        long minAllocated = Long.MAX_VALUE;
+        for (int i = 0; i < MEASURED_PASSES; i++) {
+            long before = allocationBean.getThreadAllocatedBytes(threadId);
+            bindAllRows();
+            minAllocated = Math.min(minAllocated, allocationBean.getThreadAllocatedBytes(threadId) - before);
+        }
+
+        assertEquals("Bytes allocated binding " + ROW_COUNT + " rows", 0, minAllocated);
+        // Every bind was recorded, warm up passes included
+        assertEquals((WARM_UP_PASSES + MEASURED_PASSES) * ROW_COUNT, EarthquakeMetrics.ROW_BIND.getCount());
+    }
+
+    @Test
+    public void rowsAreBoundFromTheModel() {
+        EarthquakeAdapter.bindRow(mViews, mModel, 7);
+        assertEquals(mModel.getMagnitudeColor(7), mViews.mColor);
+        assertEquals(EarthquakeDisplayModel.TIME + 1, mViews.mTexts);
+
+        EarthquakeAdapter.bindRow(mViews, null, 7);
+        assertEquals(0, mViews.mTexts);
+    }
+
+    @Test
+    public void boundTextsMatchTheFormatter() {
+        char[] text = mModel.getText();
+        for (int position = 0; position < ROW_COUNT; position++) {
+            mRow.moveToPosition(position);
+            int length = mFormatter.formatMagnitude(mRow.getMag(), mScratch);
+            assertEquals(new String(mScratch, 0, length), new String(text,
+                    mModel.getTextStart(position, EarthquakeDisplayModel.MAGNITUDE),
+                    mModel.getTextLength(position, EarthquakeDisplayModel.MAGNITUDE)));
+            length = mFormatter.formatDate(mRow.getTimeInMilliseconds(), mScratch);
+            assertEquals(new String(mScratch, 0, length), new String(text,
+                    mModel.getTextStart(position, EarthquakeDisplayModel.DATE),
+                    mModel.getTextLength(position, EarthquakeDisplayModel.DATE)));
+            length = mFormatter.formatTime(mRow.getTimeInMilliseconds(), mScratch);
+            assertEquals(new String(mScratch, 0, length), new String(text,
+                    mModel.getTextStart(position, EarthquakeDisplayModel.TIME),
+                    mModel.getTextLength(position, EarthquakeDisplayModel.TIME)));
+            assertEquals(mFormatter.getMagnitudeColor(mRow.getMag()), mModel.getMagnitudeColor(position));
+        }
+    }
+
+    /**
+     * Bind every row to the views, and format the fields again like a row bound without a model
+     */
+    private void bindAllRows() {
+        for (int position = 0; position < ROW_COUNT; position++) {
+            EarthquakeAdapter.bindRow(mViews, mModel, position);
+
+            mRow.moveToPosition(position);
+            mViews.mChecksum += mFormatter.formatMagnitude(mRow.getMag(), mScratch);
+            mViews.mChecksum += mFormatter.formatDate(mRow.getTimeInMilliseconds(), mScratch);
+            mViews.mChecksum += mFormatter.formatTime(mRow.getTimeInMilliseconds(), mScratch);
+            mViews.mChecksum += mFormatter.getMagnitudeColor(mRow.getMag());
+        }
+    }
+
+    /**
+     * The views of a row, keeping the sum of what was bound so none of it is optimized away
+     */
+    private static final class ChecksumRow implements EarthquakeAdapter.Row {
+
+        long mChecksum;
+        int mColor;
+        int mTexts;
+
+        @Override
+        public void setMagnitudeColor(int color) {
+            mColor = color;
+            mChecksum += color;
+            mTexts = 0;
+        }
+
+        @Override
+        public void setText(int field, char[] text, int start, int length) {
+            mChecksum += length > 0 ? text[start] + text[start + length - 1] : 0;
+            mTexts++;
+        }
+
+        @Override
+        public void clear() {
+            mTexts = 0;
+        }
+    }
+}
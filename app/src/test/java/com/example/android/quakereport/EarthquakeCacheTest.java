@@ -0,0 +1,350 @@
+package com.example.android.quakereport;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the on disk cache of {@link QueryUtils#fetchEarthquakeData} against a local HTTP server:
+ * the validators a response is stored with, the conditional requests that revalidate it, a 304
+ * answered from the cache, the cached result returned when the server fails, the eviction of
+ * the least recently used queries at the size bound, and reads decoding while other queries are
+ * read and written.
+ */
+public class EarthquakeCacheTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /* Without update times there is nothing to sync incrementally, so a cached query is
+     * always revalidated as a whole */
+    private static final String RESPONSE_V1 = "{\"type\":\"FeatureCollection\",\"features\":["
+            + "{\"type\":\"Feature\",\"properties\":{\"mag\":4.5,\"place\":\"10km N of Tokyo, Japan\","
+            + "\"time\":1454124312220,\"url\":\"https://x/us1\"},\"id\":\"us1\"}]}";
+    private static final String RESPONSE_V2 = "{\"type\":\"FeatureCollection\",\"features\":["
+            + "{\"type\":\"Feature\",\"properties\":{\"mag\":6.1,\"place\":\"Pacific-Antarctic Ridge\","
+            + "\"time\":1454124400000,\"url\":\"https://x/us2\"},\"id\":\"us2\"},"
+            + "{\"type\":\"Feature\",\"properties\":{\"mag\":4.5,\"place\":\"10km N of Tokyo, Japan\","
+            + "\"time\":1454124312220,\"url\":\"https://x/us1\"},\"id\":\"us1\"}]}";
+
+    private static final String LAST_MODIFIED_V1 = "Sat, 30 Jan 2016 03:25:12 GMT";
+
+    private HttpServer mServer;
+    private UsgsHandler mHandler;
+    private String mUrl;
+
+    private File mDirectory;
+    private EarthquakeCache mCache;
+
+    @Before
+    public void setUp() throws IOException {
+        mHandler = new UsgsHandler();
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", mHandler);
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort()
+                + "/fdsnws/event/1/query?format=geojson&limit=10&minmag=4";
+        QueryUtils.setTransport(new UrlConnectionTransport());
+
+        mDirectory = Files.createTempDirectory("earthquakes").toFile();
+        mCache = new EarthquakeCache(mDirectory, EarthquakeCache.DEFAULT_MAX_BYTES);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        QueryUtils.setTransport(null);
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void responseIsStoredWithItsValidators() {
+        mHandler.serve(RESPONSE_V1, "\"v1\"", LAST_MODIFIED_V1);
+
+        EarthquakeCatalog earthquakes = QueryUtils.fetchEarthquakeData(mUrl, mCache, null);
+
+        assertEquals(1, earthquakes.size());
+        assertNull(mHandler.mIfNoneMatch);
+        EarthquakeCache.Entry cached = mCache.read(mUrl);
+        assertNotNull(cached);
+        assertEquals("\"v1\"", cached.getETag());
+        assertEquals(LAST_MODIFIED_V1, cached.getLastModified());
+        assertEquals("us1", cached.getCatalog().getId(0));
+        assertTrue(mCache.getLastValidatedTime(mUrl) > 0);
+    }
+
+    @Test
+    public void notModifiedReturnsTheCachedEntry() {
+        mHandler.serve(RESPONSE_V1, "\"v1\"", LAST_MODIFIED_V1);
+        QueryUtils.fetchEarthquakeData(mUrl, mCache, null);
+        mCache.write(mUrl, mCache.read(mUrl), 1);
+
+        EarthquakeCache.Entry cached = mCache.read(mUrl);
+        EarthquakeCatalog earthquakes = QueryUtils.fetchEarthquakeData(mUrl, mCache, cached);
+
+        // Revalidated with both validators, nothing was downloaded
+        assertEquals(2, mHandler.mRequests.get());
+        assertEquals("\"v1\"", mHandler.mIfNoneMatch);
+        assertEquals(LAST_MODIFIED_V1, mHandler.mIfModifiedSince);
+        assertEquals(1, mHandler.mNotModified.get());
+        assertSame(cached.getCatalog(), earthquakes);
+        // Confirmed by the server just now
+        assertTrue(mCache.getLastValidatedTime(mUrl) > 1);
+    }
+
+    @Test
+    public void notModifiedSinceTheLastModifiedDate() {
+        // A server that only sends Last-Modified
+        mHandler.serve(RESPONSE_V1, null, LAST_MODIFIED_V1);
+        QueryUtils.fetchEarthquakeData(mUrl, mCache, null);
+
+        EarthquakeCache.Entry cached = mCache.read(mUrl);
+        assertNull(cached.getETag());
+        EarthquakeCatalog earthquakes = QueryUtils.fetchEarthquakeData(mUrl, mCache, cached);
+
+        assertNull(mHandler.mIfNoneMatch);
+        assertEquals(LAST_MODIFIED_V1, mHandler.mIfModifiedSince);
+        assertEquals(1, mHandler.mNotModified.get());
+        assertSame(cached.getCatalog(), earthquakes);
+    }
+
+    @Test
+    public void changedResponseReplacesTheCachedEntry() {
+        mHandler.serve(RESPONSE_V1, "\"v1\"", LAST_MODIFIED_V1);
+        QueryUtils.fetchEarthquakeData(mUrl, mCache, null);
+
+        mHandler.serve(RESPONSE_V2, "\"v2\"", "Sat, 30 Jan 2016 03:26:40 GMT");
+        EarthquakeCatalog earthquakes = QueryUtils.fetchEarthquakeData(mUrl, mCache, mCache.read(mUrl));
+
+        assertEquals("\"v1\"", mHandler.mIfNoneMatch);
+        assertEquals(0, mHandler.mNotModified.get());
+        assertEquals(2, earthquakes.size());
+        EarthquakeCache.Entry cached = mCache.read(mUrl);
+        assertEquals("\"v2\"", cached.getETag());
+        assertEquals(2, cached.getCatalog().size());
+        assertEquals("us2", cached.getCatalog().getId(0));
+    }
+
+    @Test
+    public void failedRequestFallsBackToTheCachedEntry() {
+        mHandler.serve(RESPONSE_V1, "\"v1\"", LAST_MODIFIED_V1);
+        QueryUtils.fetchEarthquakeData(mUrl, mCache, null);
+        mCache.write(mUrl, mCache.read(mUrl), 1);
+
+        // The server fails
+        mHandler.fail(503);
+        EarthquakeCache.Entry cached = mCache.read(mUrl);
+        assertSame(cached.getCatalog(), QueryUtils.fetchEarthquakeData(mUrl, mCache, cached));
+
+        // The server is gone
+        mServer.stop(0);
+        assertSame(cached.getCatalog(), QueryUtils.fetchEarthquakeData(mUrl, mCache, cached));
+
+        // Nothing was confirmed, and the entry is kept as it was
+        assertEquals(1, mCache.getLastValidatedTime(mUrl));
+        assertEquals("\"v1\"", mCache.read(mUrl).getETag());
+
+        // Without a cached entry there is nothing to show
+        assertNull(QueryUtils.fetchEarthquakeData(mUrl + "&orderby=magnitude", mCache, null));
+    }
+
+    @Test
+    public void leastRecentlyUsedQueriesAreEvictedAtTheBound() {
+        // Queries of about 1.1 MB, so the bound holds 3 of them
+        EarthquakeCache.Entry entry = new EarthquakeCache.Entry(buildCatalog(15000), null, null);
+        List<String> urls = new ArrayList<>();
+        Set<String> files = new HashSet<>();
+        long time = System.currentTimeMillis() - 3600 * 1000;
+        for (int i = 0; i < 3; i++) {
+            String url = mUrl + "&offset=" + (i + 1);
+            urls.add(url);
+            mCache.write(url, entry);
+            // One second apart, as file times may only have seconds
+            time = setTimeOfNewFile(files, time + 1000);
+        }
+        long fileLength = new File(mDirectory, files.iterator().next()).length();
+        assertTrue(fileLength * 3 <= EarthquakeCache.DEFAULT_MAX_BYTES);
+        assertTrue(fileLength * 4 > EarthquakeCache.DEFAULT_MAX_BYTES);
+
+        // Reading the first query makes the second one the least recently used
+        assertNotNull(mCache.read(urls.get(0)));
+        String url = mUrl + "&offset=4";
+        mCache.write(url, entry);
+
+        assertNotNull(mCache.read(urls.get(0)));
+        assertNull(mCache.read(urls.get(1)));
+        assertNotNull(mCache.read(urls.get(2)));
+        assertNotNull(mCache.read(url));
+        assertFalse(directoryBytes() > EarthquakeCache.DEFAULT_MAX_BYTES);
+    }
+
+    @Test
+    public void readsDecodeWithoutHoldingTheCache() throws Exception {
+        String otherUrl = mUrl + "&offset=1";
+        mCache.write(mUrl, new EarthquakeCache.Entry(buildCatalog(2000), "\"v1\"", null));
+        mCache.write(otherUrl, new EarthquakeCache.Entry(buildCatalog(10), null, null));
+
+        // Hold a read between its first rows and the rest of its result
+        final CountDownLatch firstRowsRead = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        final AtomicReference<EarthquakeCache.Entry> held = new AtomicReference<>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                held.set(mCache.read(mUrl, 10, new EarthquakeCache.OnFirstRowsReadListener() {
+                    @Override
+                    public void onFirstRowsRead(EarthquakeCatalog firstRows) {
+                        firstRowsRead.countDown();
+                        try {
+                            resume.await(5, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }));
+            }
+        });
+        reader.start();
+        assertTrue(firstRowsRead.await(5, TimeUnit.SECONDS));
+
+        // Other queries are read and written meanwhile, even the held one is replaced. Waiting
+        // for the held read would take the 5 s it waits to resume
+        long startTime = System.nanoTime();
+        assertEquals(10, mCache.read(otherUrl).getCatalog().size());
+        mCache.write(mUrl, new EarthquakeCache.Entry(buildCatalog(5), "\"v2\"", null));
+        long elapsedMillis = (System.nanoTime() - startTime) / 1000000;
+        assertTrue("Waited " + elapsedMillis + " ms for the held read", elapsedMillis < 2000);
+
+        // The held read still gets the whole result it started on
+        resume.countDown();
+        reader.join(5000);
+        assertEquals(2000, held.get().getCatalog().size());
+        assertEquals("\"v1\"", held.get().getETag());
+        assertEquals(5, mCache.read(mUrl).getCatalog().size());
+    }
+
+    /**
+     * Set the time of the file the cache just wrote, the one not in the given names yet
+     * @return the time that was set
+     */
+    private long setTimeOfNewFile(Set<String> names, long time) {
+        for (File file : mDirectory.listFiles()) {
+            if (names.add(file.getName())) {
+                assertTrue(file.setLastModified(time));
+            }
+        }
+        return time;
+    }
+
+    private long directoryBytes() {
+        long bytes = 0;
+        for (File file : mDirectory.listFiles()) {
+            bytes += file.length();
+        }
+        return bytes;
+    }
+
+    private static EarthquakeCatalog buildCatalog(int count) {
+        EarthquakeCatalog.Builder builder = new EarthquakeCatalog.Builder(count);
+        for (int i = 0; i < count; i++) {
+            String id = "us" + (10000000 + i);
+            builder.add(id, i % 80 / 10.0, (i % 97) + "km SSW of Kokopo, Papua New Guinea " + i,
+                    1454124312220L - i * 60000L, 1454124312999L, 35.25, -117.5,
+                    "https://earthquake.usgs.gov/earthquakes/eventpage/" + id);
+        }
+        return builder.build();
+    }
+
+
+    /**
+     * Answers queries like USGS does, honoring the conditional request headers
+     */
+    private static final class UsgsHandler implements HttpHandler {
+
+        private volatile byte[] mBody;
+        private volatile String mETag;
+        private volatile String mLastModified;
+        private volatile int mFailureCode;
+
+        /* Requests received, the validators of the last one, and the 304 sent */
+        private final AtomicInteger mRequests = new AtomicInteger();
+        private volatile String mIfNoneMatch;
+        private volatile String mIfModifiedSince;
+        private final AtomicInteger mNotModified = new AtomicInteger();
+
+        void serve(String body, String eTag, String lastModified) {
+            mBody = body.getBytes(UTF_8);
+            mETag = eTag;
+            mLastModified = lastModified;
+            mFailureCode = 0;
+        }
+
+        void fail(int code) {
+            mFailureCode = code;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            mRequests.incrementAndGet();
+            mIfNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            mIfModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+            try {
+                if (mFailureCode != 0) {
+                    exchange.sendResponseHeaders(mFailureCode, -1);
+                    return;
+                }
+                if (mETag != null) {
+                    exchange.getResponseHeaders().set("ETag", mETag);
+                }
+                if (mLastModified != null) {
+                    exchange.getResponseHeaders().set("Last-Modified", mLastModified);
+                }
+                // If-None-Match wins over If-Modified-Since when both are sent
+                boolean notModified = mIfNoneMatch != null ? mIfNoneMatch.equals(mETag)
+                        : mIfModifiedSince != null && mIfModifiedSince.equals(mLastModified);
+                if (notModified) {
+                    mNotModified.incrementAndGet();
+                    exchange.sendResponseHeaders(304, -1);
+                    return;
+                }
+                exchange.sendResponseHeaders(200, mBody.length);
+                OutputStream body = exchange.getResponseBody();
+                body.write(mBody);
+                body.close();
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
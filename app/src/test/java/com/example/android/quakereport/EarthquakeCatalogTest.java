@@ -0,0 +1,271 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares an {@link EarthquakeCatalog} with the list of {@link Earthquake} objects the app kept
+ * before: the heap both take for a large feed, and the earthquakes read back from a catalog,
+ * from the rows copied by its builder and from a selection of it. Also checks the estimate of
+ * its size the result cache weighs it with.
+ */
+public class EarthquakeCatalogTest {
+
+    /* About the size of the USGS feed of all the earthquakes of the past month */
+    private static final int FEED_SIZE = 20000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /* Heap taken by a row of the catalog besides its Strings and UTF-8 bytes: the references to
+       its id, place and url, the offsets and lengths of the place and url, the magnitude, times
+       and coordinates, and the two ints splitting the place */
+    private static final int ROW_BYTES = 4 + 12 + 12 + 5 * 8 + 2 * 4;
+
+    /* Times the heap taken by the catalog and by the list is measured */
+    private static final int HEAP_MEASURES = 3;
+
+    @Test
+    public void catalogTakesLessHeapThanAListOfEarthquakes() throws IOException {
+        byte[] payload = buildPayload(FEED_SIZE);
+
+        // The heap is shared with the threads of the other tests, the fewest bytes of a few
+        // measures are the closest to what each one takes
+        long catalogBytes = Long.MAX_VALUE;
+        long listBytes = Long.MAX_VALUE;
+        for (int i = 0; i < HEAP_MEASURES; i++) {
+            long before = usedHeap();
+            EarthquakeCatalog catalog = QueryUtils.extractFeatureFromStream(new ByteArrayInputStream(payload));
+            catalogBytes = Math.min(catalogBytes, usedHeap() - before);
+            assertEquals(FEED_SIZE, catalog.size());
+            catalog = null;
+
+            before = usedHeap();
+            List<ListedEarthquake> list = toListedEarthquakes(
+                    QueryUtils.extractFeatureFromStream(new ByteArrayInputStream(payload)));
+            listBytes = Math.min(listBytes, usedHeap() - before);
+            assertEquals(FEED_SIZE, list.size());
+            list = null;
+        }
+
+        assertTrue("The catalog takes " + catalogBytes + " bytes, the list " + listBytes,
+                catalogBytes < listBytes * 3 / 4);
+    }
+
+    @Test
+    public void estimateAddsUpTheColumns() {
+        EarthquakeCatalog.Builder builder = new EarthquakeCatalog.Builder();
+        long expected = 0;
+        long decoded = 0;
+        for (int i = 0; i < 1000; i++) {
+            String id = "us" + (10000000 + i);
+            String place = i + "km NE of Ñandú, Chile";
+            String url = "https://earthquake.usgs.gov/earthquakes/eventpage/" + id;
+            builder.add(id, 4.5, place, 1454124312220L, 1454124312220L, 35.25, -117.5, url);
+            expected += ROW_BYTES + stringBytes(id);
+            if (i % 2 == 0) {
+                // Kept as UTF-8 bytes like the parser does, until they are read
+                byte[] placeBytes = place.getBytes(UTF_8);
+                int locationOffsetEnd = EarthquakeFormatter.findLocationOffsetEnd(place);
+                builder.setLastPlace(placeBytes, 0, placeBytes.length, locationOffsetEnd,
+                        EarthquakeFormatter.findPrimaryLocationStart(place, locationOffsetEnd));
+                byte[] urlBytes = url.getBytes(UTF_8);
+                builder.setLastUrl(urlBytes, 0, urlBytes.length);
+                expected += placeBytes.length + urlBytes.length;
+                decoded += stringBytes(place) + stringBytes(url);
+            } else {
+                expected += stringBytes(place) + stringBytes(url);
+            }
+        }
+        EarthquakeCatalog catalog = builder.build();
+        assertEquals(expected, catalog.estimateBytes());
+
+        // Read values are counted as Strings too
+        for (int i = 0; i < catalog.size(); i++) {
+            catalog.getPlace(i);
+            catalog.getUrl(i);
+        }
+        assertEquals(expected + decoded, catalog.estimateBytes());
+    }
+
+    @Test
+    public void catalogReadsBackLikeTheListOfEarthquakes() throws IOException {
+        byte[] payload = buildPayload(300);
+        EarthquakeCatalog catalog = QueryUtils.extractFeatureFromStream(new ByteArrayInputStream(payload));
+        List<Earthquake> list = toList(QueryUtils.extractFeatureFromStream(new ByteArrayInputStream(payload)));
+
+        assertEquals(list.size(), catalog.size());
+        EarthquakeCatalog.Row row = catalog.newRow();
+        for (int i = 0; i < list.size(); i++) {
+            assertSameEarthquake(list.get(i), catalog.get(i));
+            row.moveToPosition(i);
+            assertEquals(list.get(i).getPlace(), row.getPlace());
+            assertEquals(list.get(i).getUrl(), row.getUrl());
+            assertEquals(list.get(i).getMag(), row.getMag(), 0);
+            assertEquals(list.get(i).getTimeInMilliseconds(), row.getTimeInMilliseconds());
+        }
+    }
+
+    @Test
+    public void copiedAndSelectedRowsMatchTheEarthquakes() throws IOException {
+        byte[] payload = buildPayload(300);
+        EarthquakeCatalog catalog = QueryUtils.extractFeatureFromStream(new ByteArrayInputStream(payload));
+        List<Earthquake> list = toList(QueryUtils.extractFeatureFromStream(new ByteArrayInputStream(payload)));
+
+        // Every third earthquake, from the last one back
+        int[] positions = new int[list.size() / 3];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = list.size() - 1 - i * 3;
+        }
+
+        EarthquakeCatalog.Builder builder = new EarthquakeCatalog.Builder();
+        for (int position : positions) {
+            builder.add(catalog, position);
+        }
+        EarthquakeCatalog copied = builder.build();
+        EarthquakeCatalog selected = catalog.select(positions, positions.length);
+
+        assertEquals(positions.length, copied.size());
+        assertEquals(positions.length, selected.size());
+        for (int i = 0; i < positions.length; i++) {
+            Earthquake earthquake = list.get(positions[i]);
+            assertSameEarthquake(earthquake, copied.get(i));
+            assertSameEarthquake(earthquake, selected.get(i));
+            assertEquals(catalog.getId(positions[i]), selected.getId(i));
+            assertEquals(catalog.getUpdatedInMilliseconds(positions[i]), selected.getUpdatedInMilliseconds(i));
+        }
+    }
+
+    @Test
+    public void builderPoolsRepeatedPlacesAndUrls() {
+        EarthquakeCatalog.Builder builder = new EarthquakeCatalog.Builder();
+        for (int i = 0; i < 10; i++) {
+            builder.add("us" + i, 4.5, new String("Pacific-Antarctic Ridge"), i, i,
+                    new String("https://earthquake.usgs.gov/"));
+        }
+        EarthquakeCatalog catalog = builder.build();
+        for (int i = 1; i < catalog.size(); i++) {
+            assertTrue(catalog.getPlace(0) == catalog.getPlace(i));
+            assertTrue(catalog.getUrl(0) == catalog.getUrl(i));
+        }
+    }
+
+    private static void assertSameEarthquake(Earthquake expected, Earthquake actual) {
+        assertEquals(expected.getMag(), actual.getMag(), 0);
+        assertEquals(expected.getPlace(), actual.getPlace());
+        assertEquals(expected.getTimeInMilliseconds(), actual.getTimeInMilliseconds());
+        assertEquals(expected.getUrl(), actual.getUrl());
+    }
+
+    /**
+     * @return the earthquakes of the catalog as a list of objects, with their own Strings like
+     * a parse straight into objects makes
+     */
+    private static List<Earthquake> toList(EarthquakeCatalog catalog) {
+        List<Earthquake> earthquakes = new ArrayList<>();
+        for (int i = 0; i < catalog.size(); i++) {
+            earthquakes.add(catalog.get(i));
+        }
+        return earthquakes;
+    }
+
+    /**
+     * @return the earthquakes of the catalog as a list of {@link ListedEarthquake} objects
+     */
+    private static List<ListedEarthquake> toListedEarthquakes(EarthquakeCatalog catalog) {
+        List<ListedEarthquake> earthquakes = new ArrayList<>();
+        for (int i = 0; i < catalog.size(); i++) {
+            earthquakes.add(new ListedEarthquake(catalog.getId(i), catalog.getMag(i),
+                    catalog.getPlace(i), catalog.getTimeInMilliseconds(i),
+                    catalog.getUpdatedInMilliseconds(i), catalog.getLatitude(i),
+                    catalog.getLongitude(i), catalog.getUrl(i)));
+        }
+        return earthquakes;
+    }
+
+    /**
+     * @return a USGS response with the given number of earthquakes, with places and urls as
+     * varied as in a real feed
+     */
+    private static byte[] buildPayload(int count) {
+        String[] regions = {"Tokyo, Japan", "Kokopo, Papua New Guinea", "The Geysers, CA",
+                "Anchorage, Alaska", "Ñandú, Chile"};
+        StringBuilder json = new StringBuilder("{\"type\":\"FeatureCollection\",\"features\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            String id = "us" + (10000000 + i);
+            json.append("{\"type\":\"Feature\",\"properties\":{\"mag\":").append(i % 80 / 10.0)
+                    .append(",\"place\":\"").append(i % 97).append("km ").append(i % 2 == 0 ? "SSW" : "NE")
+                    .append(" of ").append(regions[i % regions.length])
+                    .append("\",\"time\":").append(1454124312220L - i * 60000L)
+                    .append(",\"updated\":").append(1454124312999L - i * 1000L)
+                    .append(",\"url\":\"https://earthquake.usgs.gov/earthquakes/eventpage/").append(id)
+                    .append("\",\"status\":\"reviewed\"},\"geometry\":{\"type\":\"Point\",")
+                    .append("\"coordinates\":[-117.5,35.25,10]},\"id\":\"").append(id).append("\"}");
+        }
+        return json.append("]}").toString().getBytes(UTF_8);
+    }
+
+    /**
+     * @return the heap a String takes: the headers of the object and of its chars, then the chars
+     */
+    private static long stringBytes(String value) {
+        return 40 + value.length() * 2;
+    }
+
+    /**
+     * @return the bytes used on the heap, once the garbage is collected
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // Collect until nothing more is freed
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long nowUsed = runtime.totalMemory() - runtime.freeMemory();
+            if (nowUsed >= used) {
+                return nowUsed;
+            }
+            used = nowUsed;
+        }
+        return used;
+    }
+
+
+    /**
+     * An earthquake of the list the app kept before the catalog, with boxed numbers like its
+     * Earthquake had, and the fields the catalog has gained since
+     */
+    private static final class ListedEarthquake {
+
+        private final String mId;
+        private final Double mMag;
+        private final String mPlace;
+        private final Long mTimeInMilliseconds;
+        private final Long mUpdatedInMilliseconds;
+        private final Double mLatitude;
+        private final Double mLongitude;
+        private final String mUrl;
+
+        ListedEarthquake(String id, Double mag, String place, Long timeInMilliseconds,
+                         Long updatedInMilliseconds, Double latitude, Double longitude, String url) {
+            mId = id;
+            mMag = mag;
+            mPlace = place;
+            mTimeInMilliseconds = timeInMilliseconds;
+            mUpdatedInMilliseconds = updatedInMilliseconds;
+            mLatitude = latitude;
+            mLongitude = longitude;
+            mUrl = url;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.android.quakereport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.DecimalFormat;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the hand written rounding of {@link EarthquakeFormatter#formatMagnitude} formats
+ * every magnitude like DecimalFormat("0.0"), which the list used before.
+ */
+public class EarthquakeFormatterTest {
+
+    private static final int[] MAGNITUDE_COLORS = {10, 11, 12, 13, 14, 15, 16, 17, 18, 19};
+
+    private static final int MAGNITUDE_10_PLUS_COLOR = 20;
+
+    private Locale mDefaultLocale;
+
+    private EarthquakeFormatter mFormatter;
+
+    private DecimalFormat mDecimalFormat;
+
+    private final char[] mText = new char[EarthquakeFormatter.MAX_LENGTH];
+
+    @Before
+    public void setUp() {
+        // The table texts always use a dot, like DecimalFormat in this locale
+        mDefaultLocale = Locale.getDefault();
+        Locale.setDefault(Locale.US);
+        mFormatter = new EarthquakeFormatter(MAGNITUDE_COLORS, MAGNITUDE_10_PLUS_COLOR, "Near the");
+        mDecimalFormat = new DecimalFormat("0.0");
+    }
+
+    @After
+    public void tearDown() {
+        Locale.setDefault(mDefaultLocale);
+    }
+
+    @Test
+    public void everyHundredthIsFormattedLikeDecimalFormat() {
+        for (int hundredths = -100; hundredths <= 1000; hundredths++) {
+            assertFormattedLikeDecimalFormat(hundredths / 100.0);
+        }
+    }
+
+    @Test
+    public void neighboursOfEveryHundredthAreFormattedLikeDecimalFormat() {
+        // The doubles right next to a hundredth, most of them fall back to DecimalFormat
+        for (int hundredths = -100; hundredths <= 1000; hundredths++) {
+            double magnitude = hundredths / 100.0;
+            assertFormattedLikeDecimalFormat(Math.nextUp(magnitude));
+            assertFormattedLikeDecimalFormat(Math.nextAfter(magnitude, Double.NEGATIVE_INFINITY));
+        }
+    }
+
+    @Test
+    public void magnitudesWithMoreDecimalsAreFormattedLikeDecimalFormat() {
+        for (int thousandths = -1000; thousandths <= 10000; thousandths++) {
+            assertFormattedLikeDecimalFormat(thousandths / 1000.0);
+        }
+        double[] magnitudes = {0.04999999, 0.05000001, 2.449999, 2.450001, 4.2512345,
+                -0.0499, 9.95, 9.9500001, 10.05, 123.45, 1e7, -0.0};
+        for (double magnitude : magnitudes) {
+            assertFormattedLikeDecimalFormat(magnitude);
+        }
+    }
+
+    @Test
+    public void magnitudeColorsFollowTheFloor() {
+        assertEquals(MAGNITUDE_10_PLUS_COLOR, mFormatter.getMagnitudeColor(-0.5));
+        for (int hundredths = 0; hundredths < 1000; hundredths++) {
+            double magnitude = hundredths / 100.0;
+            assertEquals(MAGNITUDE_COLORS[hundredths / 100], mFormatter.getMagnitudeColor(magnitude));
+        }
+        assertEquals(MAGNITUDE_10_PLUS_COLOR, mFormatter.getMagnitudeColor(10.0));
+    }
+
+    private void assertFormattedLikeDecimalFormat(double magnitude) {
+        int length = mFormatter.formatMagnitude(magnitude, mText);
+        assertEquals("Magnitude " + magnitude, mDecimalFormat.format(magnitude),
+                new String(mText, 0, length));
+    }
+}
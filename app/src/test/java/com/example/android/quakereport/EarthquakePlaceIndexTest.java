@@ -0,0 +1,117 @@
+package com.example.android.quakereport;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link EarthquakePlaceIndex} finds the same earthquakes as a scan of every place,
+ * and that it stops growing when results keep being attached, like a live feed polled for hours.
+ */
+public class EarthquakePlaceIndexTest {
+
+    private static final int[] MAGNITUDE_COLORS = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+
+    private static final String[] QUERIES = {"", "ca", "km", "of tokyo", "japan", "12km n",
+            "NEAR THE", "reykjavik"};
+
+    /* Earthquakes of every polled result, and how many of them are new at each poll */
+    private static final int RESULT_SIZE = 500;
+    private static final int NEW_PER_POLL = 100;
+
+    private EarthquakeFormatter mFormatter;
+
+    @Before
+    public void setUp() {
+        mFormatter = new EarthquakeFormatter(MAGNITUDE_COLORS, 11, "Near the");
+    }
+
+    @Test
+    public void searchFindsWhatAScanFinds() {
+        EarthquakePlaceIndex index = new EarthquakePlaceIndex();
+        EarthquakeDisplayModel earthquakes = poll(0);
+        index.attach(earthquakes);
+
+        for (String query : QUERIES) {
+            assertArrayEquals("Search " + query, scan(earthquakes, query), index.search(query));
+        }
+    }
+
+    @Test
+    public void placesSeenBeforeAreNotIndexedAgain() {
+        EarthquakePlaceIndex index = new EarthquakePlaceIndex();
+        index.attach(poll(0));
+        int placeCount = index.getPlaceCount();
+
+        index.attach(poll(0));
+        assertEquals(placeCount, index.getPlaceCount());
+        index.attach(poll(1));
+        assertEquals(placeCount + NEW_PER_POLL, index.getPlaceCount());
+    }
+
+    @Test
+    public void placesNoLongerShownAreDroppedOverTime() {
+        EarthquakePlaceIndex index = new EarthquakePlaceIndex();
+        int maxPlaceCount = 0;
+        EarthquakeDisplayModel earthquakes = null;
+        for (int i = 0; i < 200; i++) {
+            earthquakes = poll(i);
+            index.attach(earthquakes);
+            maxPlaceCount = Math.max(maxPlaceCount, index.getPlaceCount());
+        }
+
+        // 20000 distinct places were attached, at most the stale ones before a rebuild are kept
+        assertTrue("Indexed " + maxPlaceCount + " places", maxPlaceCount < 2000);
+        // Searches still find the earthquakes of the result after the places were indexed again
+        for (String query : QUERIES) {
+            assertArrayEquals("Search " + query, scan(earthquakes, query), index.search(query));
+        }
+    }
+
+    /**
+     * @return the result of the given poll of a live feed: the earthquakes of the previous poll,
+     * with the oldest ones replaced by new ones at new places
+     */
+    private EarthquakeDisplayModel poll(int poll) {
+        String[] regions = {"Tokyo, Japan", "The Geysers, CA", "Anchorage, Alaska", "Ñandú, Chile"};
+        EarthquakeCatalog.Builder builder = new EarthquakeCatalog.Builder();
+        int first = poll * NEW_PER_POLL;
+        for (int i = first + RESULT_SIZE - 1; i >= first; i--) {
+            // Every earthquake has its own place, one in ten has no location offset
+            String place = i % 10 == 0
+                    ? "Region " + i + " of " + regions[i % regions.length]
+                    : i + "km N of " + regions[i % regions.length];
+            builder.add("us" + i, 4.5, place, 1454124312220L + i * 60000L, 1454124312220L + i * 60000L,
+                    "https://earthquake.usgs.gov/earthquakes/eventpage/us" + i);
+        }
+        return EarthquakeDisplayModel.build(builder.build(), mFormatter);
+    }
+
+    /**
+     * @return the positions of the earthquakes whose shown place contains the query
+     */
+    private static int[] scan(EarthquakeDisplayModel earthquakes, String query) {
+        String searchText = query.trim().toLowerCase(Locale.US);
+        int[] positions = new int[earthquakes.size()];
+        int count = 0;
+        for (int i = 0; i < earthquakes.size(); i++) {
+            String place = text(earthquakes, i, EarthquakeDisplayModel.LOCATION_OFFSET) + " "
+                    + text(earthquakes, i, EarthquakeDisplayModel.PRIMARY_LOCATION);
+            if (place.toLowerCase(Locale.US).contains(searchText)) {
+                positions[count++] = i;
+            }
+        }
+        return Arrays.copyOf(positions, count);
+    }
+
+    private static String text(EarthquakeDisplayModel earthquakes, int position, int field) {
+        return new String(earthquakes.getText(), earthquakes.getTextStart(position, field),
+                earthquakes.getTextLength(position, field));
+    }
+}
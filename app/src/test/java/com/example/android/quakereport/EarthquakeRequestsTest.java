@@ -0,0 +1,212 @@
+package com.example.android.quakereport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link EarthquakeRequests} sends one request for the fetches of the same query
+ * that run at the same time, and aborts it once every fetch waiting for it was cancelled.
+ * The requests go to a {@link FakeTransport}, held until the test lets them through.
+ */
+public class EarthquakeRequestsTest {
+
+    private static final String RESPONSE = "{\"type\":\"FeatureCollection\",\"features\":["
+            + "{\"type\":\"Feature\",\"properties\":{\"mag\":4.5,\"place\":\"10km N of Tokyo, Japan\","
+            + "\"time\":1454124312220,\"updated\":1454124312999,\"url\":\"https://x/us1\"},\"id\":\"us1\"},"
+            + "{\"type\":\"Feature\",\"properties\":{\"mag\":6.1,\"place\":\"Pacific-Antarctic Ridge\","
+            + "\"time\":1454124000000,\"updated\":1454124312000,\"url\":\"https://x/us2\"},\"id\":\"us2\"}]}";
+
+    /* Every test uses its own query, so no request of another test is joined */
+    private static final AtomicInteger sQueryCount = new AtomicInteger();
+
+    private FakeTransport mTransport;
+
+    private String mUrl;
+
+    @Before
+    public void setUp() {
+        mTransport = new FakeTransport().respond(200, RESPONSE.getBytes(Charset.forName("UTF-8")));
+        QueryUtils.setTransport(mTransport);
+        mUrl = "https://earthquake.usgs.gov/fdsnws/event/1/query?format=geojson&limit=10&test="
+                + sQueryCount.incrementAndGet();
+    }
+
+    @After
+    public void tearDown() {
+        mTransport.release();
+        QueryUtils.setTransport(null);
+    }
+
+    @Test
+    public void concurrentFetchesOfTheSameQuerySendOneRequest() throws Exception {
+        mTransport.hold();
+        // The same query, its parameters in another order
+        String reordered = mUrl.replace("format=geojson&limit=10", "limit=10&format=geojson");
+        Fetch[] fetches = new Fetch[5];
+        for (int i = 0; i < fetches.length; i++) {
+            fetches[i] = new Fetch(i % 2 == 0 ? mUrl : reordered, null).begin();
+        }
+        mTransport.awaitRequests(1);
+        awaitWaiting(fetches);
+        mTransport.release();
+
+        EarthquakeCatalog result = fetches[0].end();
+        assertNotNull(result);
+        assertEquals(2, result.size());
+        for (Fetch fetch : fetches) {
+            assertSame(result, fetch.end());
+        }
+        assertEquals(1, mTransport.getRequestCount());
+        assertTrue(mTransport.getResponse(0).isClosed());
+    }
+
+    @Test
+    public void fetchesAfterTheRequestEndedSendANewOne() throws Exception {
+        assertNotNull(new Fetch(mUrl, null).begin().end());
+        assertNotNull(new Fetch(mUrl, null).begin().end());
+        assertEquals(2, mTransport.getRequestCount());
+    }
+
+    @Test
+    public void cancelledFetchStopsWaitingWhileOthersGetTheResult() throws Exception {
+        mTransport.hold();
+        FetchCancellation cancellation = new FetchCancellation();
+        Fetch cancelled = new Fetch(mUrl, cancellation).begin();
+        Fetch waiting = new Fetch(mUrl, null).begin();
+        mTransport.awaitRequests(1);
+        awaitWaiting(cancelled, waiting);
+
+        cancellation.cancel();
+        assertNull(cancelled.end());
+
+        mTransport.release();
+        assertEquals(2, waiting.end().size());
+        assertEquals(1, mTransport.getRequestCount());
+        assertFalse(mTransport.getResponse(0).isAborted());
+    }
+
+    @Test
+    public void cancellingEveryFetchAbortsTheResponse() throws Exception {
+        mTransport.hold();
+        FetchCancellation first = new FetchCancellation();
+        FetchCancellation second = new FetchCancellation();
+        Fetch firstFetch = new Fetch(mUrl, first).begin();
+        Fetch secondFetch = new Fetch(mUrl, second).begin();
+        mTransport.awaitRequests(1);
+        awaitWaiting(firstFetch, secondFetch);
+
+        first.cancel();
+        second.cancel();
+        assertNull(firstFetch.end());
+        assertNull(secondFetch.end());
+
+        // The request was cancelled before its response existed, which is aborted as soon as
+        // the transport hands it over, before anything is read
+        mTransport.release();
+        FakeTransport.FakeResponse response = awaitResponse(0);
+        awaitClosed(response);
+        assertTrue(response.isAborted());
+        assertEquals(0, response.getBytesReceived());
+
+        // The next fetch of the query does not join the aborted request
+        assertEquals(2, new Fetch(mUrl, null).begin().end().size());
+        assertEquals(2, mTransport.getRequestCount());
+    }
+
+    @Test
+    public void cancellationSharedByTwoQueriesStopsBoth() throws Exception {
+        mTransport.hold();
+        // Like the queries of two regions of one load
+        FetchCancellation cancellation = new FetchCancellation();
+        Fetch first = new Fetch(mUrl, cancellation).begin();
+        Fetch second = new Fetch(mUrl + "&minmagnitude=5", cancellation).begin();
+        mTransport.awaitRequests(2);
+        awaitWaiting(first, second);
+
+        cancellation.cancel();
+        assertNull(first.end());
+        assertNull(second.end());
+
+        // Nobody waits for either request anymore, both are aborted
+        mTransport.release();
+        for (int i = 0; i < 2; i++) {
+            FakeTransport.FakeResponse response = awaitResponse(i);
+            awaitClosed(response);
+            assertTrue(response.isAborted());
+        }
+    }
+
+    /**
+     * Wait until every fetch is blocked waiting for its result
+     */
+    private static void awaitWaiting(Fetch... fetches) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        for (Fetch fetch : fetches) {
+            while (fetch.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(Thread.State.WAITING, fetch.getState());
+        }
+    }
+
+    private FakeTransport.FakeResponse awaitResponse(int request) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mTransport.getResponse(request) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        return mTransport.getResponse(request);
+    }
+
+    private static void awaitClosed(FakeTransport.FakeResponse response) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!response.isClosed() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+
+    /**
+     * A fetch on its own thread, like a loader's
+     */
+    private static final class Fetch extends Thread {
+
+        private final String mRequestUrl;
+        private final FetchCancellation mCancellation;
+        private volatile EarthquakeCatalog mResult;
+
+        Fetch(String requestUrl, FetchCancellation cancellation) {
+            mRequestUrl = requestUrl;
+            mCancellation = cancellation;
+        }
+
+        Fetch begin() {
+            start();
+            return this;
+        }
+
+        @Override
+        public void run() {
+            mResult = EarthquakeRequests.fetch(mRequestUrl, null, null, null, mCancellation);
+        }
+
+        /**
+         * @return the result of the fetch, once it is done
+         */
+        EarthquakeCatalog end() throws InterruptedException {
+            join(5000);
+            assertFalse("The fetch is still running", isAlive());
+            return mResult;
+        }
+    }
+}
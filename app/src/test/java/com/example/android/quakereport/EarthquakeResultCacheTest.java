@@ -0,0 +1,186 @@
+package com.example.android.quakereport;
+
+import android.content.ComponentCallbacks2;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks what {@link EarthquakeResultCache} hands back: the very model that was put for a fresh
+ * hit, so nothing is fetched, parsed or formatted again, nothing for a result that is too old,
+ * the same earthquakes formatted again after a configuration change, and what is left after the
+ * system asked the app to trim its memory.
+ */
+public class EarthquakeResultCacheTest {
+
+    private static final String QUERY = "https://earthquake.usgs.gov/fdsnws/event/1/query?"
+            + "format=geojson&limit=10&minmag=6&orderby=time";
+
+    private static final int[] MAGNITUDE_COLORS = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+
+    private EarthquakeFormatter mFormatter;
+
+    /* Weight of every model built by model(), all of the same size */
+    private long mModelBytes;
+
+    @Before
+    public void setUp() {
+        mFormatter = new EarthquakeFormatter(MAGNITUDE_COLORS, 11, "Near the");
+        mModelBytes = model().estimateBytes();
+    }
+
+    @Test
+    public void freshHitReturnsTheCachedModel() {
+        EarthquakeResultCache cache = new EarthquakeResultCache(Integer.MAX_VALUE);
+        EarthquakeDisplayModel earthquakes = model();
+        cache.put(urls(QUERY), earthquakes, mFormatter);
+
+        assertSame(earthquakes, cache.get(urls(QUERY), mFormatter, Long.MAX_VALUE));
+        // The same query, its parameters in another order
+        assertSame(earthquakes, cache.get(urls(QUERY.replace("limit=10&minmag=6", "minmag=6&limit=10")),
+                mFormatter, Long.MAX_VALUE));
+        assertNull(cache.get(urls(QUERY.replace("minmag=6", "minmag=5")), mFormatter, Long.MAX_VALUE));
+        // The urls of a fan out are one key, in order
+        assertNull(cache.get(Arrays.asList(QUERY, QUERY), mFormatter, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void staleHitIsEvicted() {
+        EarthquakeResultCache cache = new EarthquakeResultCache(Integer.MAX_VALUE);
+        cache.put(urls(QUERY), model(), mFormatter);
+
+        assertNull(cache.get(urls(QUERY), mFormatter, -1));
+        // Gone, even for a caller that accepts any age
+        assertNull(cache.get(urls(QUERY), mFormatter, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void resultIsFormattedAgainAfterAConfigurationChange() {
+        EarthquakeResultCache cache = new EarthquakeResultCache(Integer.MAX_VALUE);
+        EarthquakeDisplayModel earthquakes = model();
+        cache.put(urls(QUERY), earthquakes, mFormatter);
+
+        // Other tables, like the formatter of another locale or night mode
+        int[] nightColors = {21, 22, 23, 24, 25, 26, 27, 28, 29, 30};
+        EarthquakeFormatter nightFormatter = new EarthquakeFormatter(nightColors, 31, "Cerca de");
+        EarthquakeDisplayModel reformatted = cache.get(urls(QUERY), nightFormatter, Long.MAX_VALUE);
+
+        assertNotNull(reformatted);
+        assertNotSame(earthquakes, reformatted);
+        // Formatted from the earthquakes already parsed
+        assertSame(earthquakes.getCatalog(), reformatted.getCatalog());
+        for (int i = 0; i < reformatted.size(); i++) {
+            double magnitude = reformatted.getCatalog().getMag(i);
+            assertEquals(nightFormatter.getMagnitudeColor(magnitude), reformatted.getMagnitudeColor(i));
+        }
+        assertEquals("Cerca de", text(reformatted, 0, EarthquakeDisplayModel.LOCATION_OFFSET));
+
+        // Kept formatted for the new configuration
+        assertSame(reformatted, cache.get(urls(QUERY), nightFormatter, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void trimMemoryKeepsTheMostRecentResults() {
+        EarthquakeResultCache cache = newCacheOf(4);
+
+        // Nothing is dropped while the app is in front and memory is fine, or its UI is hidden
+        cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertCached(cache, true, true, true, true);
+
+        // Half is kept while the app runs low, the least recently used results go first
+        cache = newCacheOf(4);
+        cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertCached(cache, false, false, true, true);
+
+        cache = newCacheOf(4);
+        cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+        assertCached(cache, false, false, true, true);
+
+        cache = newCacheOf(4);
+        cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        assertCached(cache, false, false, true, true);
+    }
+
+    @Test
+    public void trimMemoryClearsTheCacheOfABackgroundProcess() {
+        EarthquakeResultCache cache = newCacheOf(4);
+        cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_MODERATE);
+        assertCached(cache, false, false, false, false);
+
+        cache = newCacheOf(4);
+        cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertCached(cache, false, false, false, false);
+
+        cache = newCacheOf(4);
+        cache.onLowMemory();
+        assertCached(cache, false, false, false, false);
+    }
+
+    @Test
+    public void leastRecentlyUsedResultIsEvictedOverTheBound() {
+        EarthquakeResultCache cache = newCacheOf(4);
+        // Reading the first result makes the second one the least recently used
+        assertNotNull(cache.get(urls(query(0)), mFormatter, Long.MAX_VALUE));
+        cache.put(urls(query(4)), model(), mFormatter);
+
+        assertNull(cache.get(urls(query(1)), mFormatter, Long.MAX_VALUE));
+        for (int i : new int[]{0, 2, 3, 4}) {
+            assertNotNull(cache.get(urls(query(i)), mFormatter, Long.MAX_VALUE));
+        }
+    }
+
+    /**
+     * @return a cache that holds exactly the given number of results, full of them
+     */
+    private EarthquakeResultCache newCacheOf(int count) {
+        EarthquakeResultCache cache = new EarthquakeResultCache((int) (mModelBytes * count));
+        for (int i = 0; i < count; i++) {
+            cache.put(urls(query(i)), model(), mFormatter);
+        }
+        return cache;
+    }
+
+    /**
+     * Check which of the results of newCacheOf() are still cached, without reordering them
+     */
+    private void assertCached(EarthquakeResultCache cache, boolean... cached) {
+        // Read from the most recently used, so the ones not read yet keep their order
+        for (int i = cached.length - 1; i >= 0; i--) {
+            EarthquakeDisplayModel earthquakes = cache.get(urls(query(i)), mFormatter, Long.MAX_VALUE);
+            assertEquals("Result " + i, cached[i], earthquakes != null);
+        }
+    }
+
+    private EarthquakeDisplayModel model() {
+        EarthquakeCatalog.Builder builder = new EarthquakeCatalog.Builder();
+        builder.add("us1", 7.2, "Near the coast of Peru", 1454124312220L, 1454124312999L, "https://x/us1");
+        builder.add("us2", 6.1, "10km SSW of Kokopo, Papua New Guinea", 1454124000000L, 1454124312000L,
+                "https://x/us2");
+        builder.add("us3", 6.5, "Pacific-Antarctic Ridge", 1454120000000L, 1454124310000L, "https://x/us3");
+        return EarthquakeDisplayModel.build(builder.build(), mFormatter);
+    }
+
+    private static String query(int index) {
+        return QUERY + "&offset=" + (index + 1);
+    }
+
+    private static List<String> urls(String url) {
+        return Collections.singletonList(url);
+    }
+
+    private static String text(EarthquakeDisplayModel earthquakes, int position, int field) {
+        return new String(earthquakes.getText(), earthquakes.getTextStart(position, field),
+                earthquakes.getTextLength(position, field));
+    }
+}
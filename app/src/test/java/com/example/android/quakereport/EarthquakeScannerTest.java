@@ -0,0 +1,202 @@
+package com.example.android.quakereport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the places and urls the scanner keeps as UTF-8 bytes read back the same as the
+ * Strings decoded eagerly, for every row of the same payload, whether it is read from a stream
+ * in small chunks, at once, or on several threads.
+ */
+public class EarthquakeScannerTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /* Places as they are written in the JSON, and as they read once decoded */
+    private static final String[][] PLACES = {
+            {"38km SE of Tokyo, Japan", "38km SE of Tokyo, Japan"},
+            {"Pacific-Antarctic Ridge", "Pacific-Antarctic Ridge"},
+            {"12km NNE of \\\"Quoted\\\" \\u00c9town", "12km NNE of \"Quoted\" Étown"},
+            {"Ñandú, Chile", "Ñandú, Chile"},
+            {"5km SW of   Chūō, Japan", "5km SW of   Chūō, Japan"},
+            {"5 km à l'ouest of  Brest", "5 km à l'ouest of  Brest"},
+            {"7km N of Back\\\\slash\\/Slash", "7km N of Back\\slash/Slash"},
+            {"\\u0034km E of Escaped digit", "4km E of Escaped digit"},
+            {"Tab\\tand\\nnew line", "Tab\tand\nnew line"},
+            {"  near X ", "  near X "},
+            {"", ""},
+            {"🌋 Volcano, Iceland", "🌋 Volcano, Iceland"},
+    };
+
+    /* Urls as they are written in the JSON, followed by the event id */
+    private static final String[][] URLS = {
+            {"https://earthquake.usgs.gov/earthquakes/eventpage/", "https://earthquake.usgs.gov/earthquakes/eventpage/"},
+            {"https:\\/\\/earthquake.usgs.gov\\/earthquakes\\/eventpage\\/", "https://earthquake.usgs.gov/earthquakes/eventpage/"},
+            {"https://example.com/événement/", "https://example.com/événement/"},
+    };
+
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void streamedPlacesAndUrlsMatchEagerDecoding() throws IOException {
+        int count = PLACES.length * URLS.length + 3;
+        byte[] payload = buildPayload(count);
+        EarthquakeCatalog eager = buildEagerCatalog(count);
+
+        for (int chunk : new int[]{1, 7, payload.length}) {
+            assertSameRows("chunk " + chunk, eager, QueryUtils.extractFeatureFromStream(
+                    new ChunkedInputStream(payload, chunk)));
+        }
+    }
+
+    @Test
+    public void parallelPlacesAndUrlsMatchEagerDecoding() throws IOException {
+        // Large enough to be split between the threads
+        int count = 4000;
+        byte[] payload = buildPayload(count);
+        assertTrue(payload.length >= EarthquakeParallelParser.PARALLEL_MIN_BYTES);
+
+        assertSameRows("parallel", buildEagerCatalog(count),
+                QueryUtils.extractFeatureFromBytes(payload, payload.length, mExecutor, 4, null));
+    }
+
+    @Test
+    public void copiedRowsKeepTheirPlacesAndUrls() throws IOException {
+        int count = PLACES.length * URLS.length;
+        byte[] payload = buildPayload(count);
+        EarthquakeCatalog lazy = QueryUtils.extractFeatureFromStream(new ByteArrayInputStream(payload));
+        EarthquakeCatalog eager = buildEagerCatalog(count);
+
+        // Reversed, so the copied bytes land at other offsets than in the response
+        int[] positions = new int[count];
+        for (int i = 0; i < count; i++) {
+            positions[i] = count - 1 - i;
+        }
+        assertSameRows("select", eager.select(positions, count), lazy.select(positions, count));
+    }
+
+    @Test
+    public void undecodedPlacesCompareLikeDecodedOnes() throws IOException {
+        int count = PLACES.length * URLS.length;
+        byte[] payload = buildPayload(count);
+        EarthquakeCatalog lazy = QueryUtils.extractFeatureFromStream(new ByteArrayInputStream(payload));
+        EarthquakeCatalog other = QueryUtils.extractFeatureFromStream(new ByteArrayInputStream(payload));
+        EarthquakeCatalog eager = buildEagerCatalog(count);
+
+        // Compared by their bytes, neither catalog had a place decoded yet
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < count; j++) {
+                assertEquals("rows " + i + " and " + j, eager.getPlace(i).equals(eager.getPlace(j)),
+                        lazy.hasSamePlace(i, other, j));
+            }
+        }
+    }
+
+    /**
+     * Compare every row, the lazy values undecoded first, then decoded
+     */
+    private static void assertSameRows(String message, EarthquakeCatalog expected, EarthquakeCatalog actual) {
+        assertEquals(message, expected.size(), actual.size());
+        EarthquakeCatalog.Row expectedRow = expected.newRow();
+        EarthquakeCatalog.Row actualRow = actual.newRow();
+        for (int i = 0; i < expected.size(); i++) {
+            String row = message + ", row " + i;
+            assertEquals(row, expected.getId(i), actual.getId(i));
+            assertTrue(row, actual.hasSamePlace(i, expected, i));
+            String url = expected.getUrl(i);
+            int idStart = url.length() - expected.getId(i).length();
+            assertTrue(row, actual.hasUrl(i, url.substring(0, idStart), url.substring(idStart)));
+
+            assertEquals(row, expected.getPlace(i), actual.getPlace(i));
+            assertEquals(row, url, actual.getUrl(i));
+            expectedRow.moveToPosition(i);
+            actualRow.moveToPosition(i);
+            assertEquals(row, expectedRow.getLocationOffsetEnd(), actualRow.getLocationOffsetEnd());
+            assertEquals(row, expectedRow.getPrimaryLocationStart(), actualRow.getPrimaryLocationStart());
+            assertEquals(row, expected.getMag(i), actual.getMag(i), 0);
+            assertEquals(row, expected.getTimeInMilliseconds(i), actual.getTimeInMilliseconds(i));
+        }
+        assertArrayEquals(message, expected.getDeletedIds(), actual.getDeletedIds());
+    }
+
+    /**
+     * @return a USGS response with the given number of earthquakes, cycling through the
+     * places and urls, followed by a deleted earthquake
+     */
+    private static byte[] buildPayload(int count) {
+        StringBuilder json = new StringBuilder("{\"type\":\"FeatureCollection\",\"features\":[");
+        for (int i = 0; i < count; i++) {
+            String id = "us" + i;
+            json.append("{\"type\":\"Feature\",\"properties\":{\"mag\":").append(magnitude(i))
+                    .append(",\"place\":\"").append(PLACES[i % PLACES.length][0])
+                    .append("\",\"time\":").append(time(i))
+                    .append(",\"updated\":").append(time(i) + 1000)
+                    .append(",\"url\":\"").append(URLS[i / PLACES.length % URLS.length][0]).append(id)
+                    .append("\",\"status\":\"reviewed\"},\"geometry\":{\"type\":\"Point\",")
+                    .append("\"coordinates\":[-117.5,35.25,10]},\"id\":\"").append(id).append("\"},");
+        }
+        json.append("{\"type\":\"Feature\",\"properties\":{\"status\":\"deleted\",\"time\":1},")
+                .append("\"id\":\"gone\"}]}");
+        return json.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * @return the earthquakes of {@link #buildPayload(int)}, added as decoded Strings
+     */
+    private static EarthquakeCatalog buildEagerCatalog(int count) {
+        EarthquakeCatalog.Builder builder = new EarthquakeCatalog.Builder(count);
+        for (int i = 0; i < count; i++) {
+            String id = "us" + i;
+            builder.add(id, magnitude(i), PLACES[i % PLACES.length][1], time(i),
+                    time(i) + 1000, 35.25, -117.5, URLS[i / PLACES.length % URLS.length][1] + id);
+        }
+        return builder.addDeleted("gone").build();
+    }
+
+    private static double magnitude(int i) {
+        return i % 97 / 10.0;
+    }
+
+    private static long time(int i) {
+        return 1454124312220L - i * 60000L;
+    }
+
+    /**
+     * Hands out at most the given number of bytes per read, like a slow network
+     */
+    private static final class ChunkedInputStream extends ByteArrayInputStream {
+
+        private final int mChunk;
+
+        ChunkedInputStream(byte[] bytes, int chunk) {
+            super(bytes);
+            mChunk = chunk;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, mChunk));
+        }
+    }
+}
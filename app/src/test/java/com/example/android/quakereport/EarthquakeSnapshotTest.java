@@ -0,0 +1,88 @@
+package com.example.android.quakereport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a snapshot reads back the earthquakes it was written with, magnitudes included to
+ * the last bit, so a cached result shows and diffs the same as the downloaded one.
+ */
+public class EarthquakeSnapshotTest {
+
+    private static final double[] MAGNITUDES = {4.5, 4.56, 4.567, 1.0 / 3, -0.25, -1.234, 0,
+            -0.0, 10.0, 9.995, 123.45, Double.NaN, 1e300, Math.nextUp(2.5)};
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("snapshot", null);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void snapshotKeepsEveryMagnitudeExactly() throws IOException {
+        EarthquakeCatalog written = buildCatalog(MAGNITUDES);
+        EarthquakeCatalog read = writeAndRead(written);
+
+        assertEquals(written.size(), read.size());
+        for (int i = 0; i < written.size(); i++) {
+            assertEquals("Magnitude " + written.getMag(i),
+                    Double.doubleToRawLongBits(written.getMag(i)), Double.doubleToRawLongBits(read.getMag(i)));
+            assertEquals(written.getId(i), read.getId(i));
+            assertEquals(written.getPlace(i), read.getPlace(i));
+            assertEquals(written.getUrl(i), read.getUrl(i));
+            assertEquals(written.getTimeInMilliseconds(i), read.getTimeInMilliseconds(i));
+            assertEquals(written.getUpdatedInMilliseconds(i), read.getUpdatedInMilliseconds(i));
+        }
+    }
+
+    @Test
+    public void cachedResultDiffsEmptyAgainstTheDownloadedOne() throws IOException {
+        EarthquakeCatalog downloaded = buildCatalog(MAGNITUDES);
+        assertTrue(EarthquakeDiff.compute(writeAndRead(downloaded), downloaded).isEmpty());
+    }
+
+    @Test
+    public void usualMagnitudesStayCompact() throws IOException {
+        double[] usual = new double[1000];
+        double[] exact = new double[1000];
+        for (int i = 0; i < usual.length; i++) {
+            usual[i] = (i % 1000) / 100.0;
+            exact[i] = usual[i] + 1e-9;
+        }
+        writeAndRead(buildCatalog(usual));
+        long usualLength = mFile.length();
+        writeAndRead(buildCatalog(exact));
+        // Magnitudes with up to 2 decimals take a varint of a byte or two, not 9 bytes
+        assertTrue(usualLength + 1000 * 6 < mFile.length());
+    }
+
+    private EarthquakeCatalog writeAndRead(EarthquakeCatalog catalog) throws IOException {
+        EarthquakeSnapshot.write(mFile, "https://earthquake.usgs.gov/fdsnws/event/1/query?limit=10",
+                new EarthquakeCache.Entry(catalog, "\"v1\"", null), 1);
+        return new EarthquakeSnapshot.Reader(mFile).decodeAll().getCatalog();
+    }
+
+    private static EarthquakeCatalog buildCatalog(double[] magnitudes) {
+        EarthquakeCatalog.Builder builder = new EarthquakeCatalog.Builder();
+        for (int i = 0; i < magnitudes.length; i++) {
+            String id = "us" + i;
+            builder.add(id, magnitudes[i], (i % 50) + "km SSW of Kokopo, Papua New Guinea",
+                    1454124312220L - i * 60000L, 1454124312999L, 35.25, -117.5,
+                    "https://earthquake.usgs.gov/earthquakes/eventpage/" + id);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,303 @@
+package com.example.android.quakereport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An in-process {@link HttpTransport} for the tests, set with
+ * {@link QueryUtils#setTransport(HttpTransport)}. Every request gets the same canned response,
+ * optionally sent gzip compressed, and can be held until the test lets it through. A script of
+ * codes can answer the next requests differently, or make them fail.
+ */
+class FakeTransport implements HttpTransport {
+
+    /* Scripted code of a request that fails before it gets a response, like a reset connection */
+    static final int FAIL = -1;
+
+    private int mCode = 200;
+    private byte[] mBody = new byte[0];
+    private final Map<String, String> mHeaders = new HashMap<>();
+    private boolean mGzip;
+
+    /* Requests wait for it before they get their response, null to answer right away */
+    private volatile CountDownLatch mGate;
+
+    /* The next request waits for it, and the ones that already took it. Guarded by this */
+    private CountDownLatch mNextGate;
+    private final List<CountDownLatch> mStallGates = new ArrayList<>();
+
+    /* Codes of the next requests, before the canned code. Guarded by this */
+    private final Queue<Integer> mScript = new ArrayDeque<>();
+
+    /* Every request sent, in order, guarded by this */
+    private final List<URL> mUrls = new ArrayList<>();
+    private final List<Map<String, String>> mRequestHeaders = new ArrayList<>();
+    private final List<FakeResponse> mResponses = new ArrayList<>();
+
+    /**
+     * Answer the next requests with the given status code and body
+     */
+    synchronized FakeTransport respond(int code, byte[] body) {
+        mCode = code;
+        mBody = body;
+        return this;
+    }
+
+    /**
+     * Send a response header with the next responses
+     */
+    synchronized FakeTransport setHeader(String name, String value) {
+        mHeaders.put(name, value);
+        return this;
+    }
+
+    /**
+     * Send the body of the next responses gzip compressed, decompressed again while it is read
+     */
+    synchronized FakeTransport setGzip(boolean gzip) {
+        mGzip = gzip;
+        return this;
+    }
+
+    /**
+     * Answer the next requests with the given codes, one each, {@link #FAIL} to fail one.
+     * The requests after them get the canned response again
+     */
+    synchronized FakeTransport script(int... codes) {
+        for (int code : codes) {
+            mScript.add(code);
+        }
+        return this;
+    }
+
+    /**
+     * Make the next requests wait before their response exists, until {@link #release()}
+     */
+    void hold() {
+        mGate = new CountDownLatch(1);
+    }
+
+    /**
+     * Make only the next request wait before its response exists, until {@link #release()}
+     */
+    synchronized void stallNext() {
+        mNextGate = new CountDownLatch(1);
+    }
+
+    /**
+     * Let the held and stalled requests through
+     */
+    void release() {
+        CountDownLatch gate = mGate;
+        mGate = null;
+        if (gate != null) {
+            gate.countDown();
+        }
+        synchronized (this) {
+            for (CountDownLatch stallGate : mStallGates) {
+                stallGate.countDown();
+            }
+            mStallGates.clear();
+            mNextGate = null;
+        }
+    }
+
+    synchronized int getRequestCount() {
+        return mUrls.size();
+    }
+
+    synchronized URL getUrl(int request) {
+        return mUrls.get(request);
+    }
+
+    synchronized Map<String, String> getRequestHeaders(int request) {
+        return mRequestHeaders.get(request);
+    }
+
+    /**
+     * @return the response of the given request, null while it is held or if it failed
+     */
+    synchronized FakeResponse getResponse(int request) {
+        return request < mResponses.size() ? mResponses.get(request) : null;
+    }
+
+    /**
+     * Wait until the given number of requests were sent
+     */
+    void awaitRequests(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (getRequestCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Override
+    public Response get(URL url, Map<String, String> requestHeaders,
+                        FetchCancellation cancellation) throws IOException {
+        CountDownLatch gate;
+        int request;
+        int code;
+        synchronized (this) {
+            request = mUrls.size();
+            mUrls.add(url);
+            mRequestHeaders.add(requestHeaders != null
+                    ? new HashMap<>(requestHeaders) : new HashMap<String, String>());
+            mResponses.add(null);
+            code = mScript.isEmpty() ? mCode : mScript.remove();
+            gate = mGate;
+            if (mNextGate != null) {
+                gate = mNextGate;
+                mStallGates.add(gate);
+                mNextGate = null;
+            }
+        }
+        if (gate != null) {
+            try {
+                if (!gate.await(5, TimeUnit.SECONDS)) {
+                    throw new IOException("The test never released the request");
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        if (code == FAIL) {
+            throw new IOException("Connection reset");
+        }
+
+        FakeResponse response;
+        synchronized (this) {
+            Map<String, String> headers = new HashMap<>(mHeaders);
+            byte[] wireBody = mBody;
+            if (mGzip) {
+                headers.put("Content-Encoding", "gzip");
+                wireBody = gzip(mBody);
+            }
+            response = new FakeResponse(code, headers, wireBody, mGzip);
+            mResponses.set(request, response);
+        }
+        if (cancellation != null) {
+            // Aborted right away if the fetch was cancelled while it was held
+            cancellation.setResponse(response);
+        }
+        return response;
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzipStream = new GZIPOutputStream(compressed);
+        gzipStream.write(body);
+        gzipStream.close();
+        return compressed.toByteArray();
+    }
+
+
+    /**
+     * A canned response, which fails to read once it is aborted
+     */
+    static final class FakeResponse implements Response {
+
+        private final int mCode;
+        private final Map<String, String> mHeaders;
+        private final boolean mGzip;
+        private final ByteArrayInputStream mWireStream;
+        private InputStream mBody;
+
+        /* Wire bytes read from the body so far, guarded by this */
+        private long mBytesReceived;
+
+        private volatile boolean mClosed;
+        private volatile boolean mAborted;
+
+        FakeResponse(int code, Map<String, String> headers, byte[] wireBody, boolean gzip) {
+            mCode = code;
+            mHeaders = headers;
+            mGzip = gzip;
+            mWireStream = new ByteArrayInputStream(wireBody);
+        }
+
+        boolean isClosed() { return mClosed; }
+
+        boolean isAborted() { return mAborted; }
+
+        @Override
+        public int getCode() throws IOException {
+            throwIfAborted();
+            return mCode;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mHeaders.get(name);
+        }
+
+        @Override
+        public synchronized InputStream getBody() throws IOException {
+            throwIfAborted();
+            if (mBody == null) {
+                InputStream wire = new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        throwIfAborted();
+                        int read = mWireStream.read();
+                        if (read >= 0) {
+                            countBytes(1);
+                        }
+                        return read;
+                    }
+
+                    @Override
+                    public int read(byte[] buffer, int offset, int length) throws IOException {
+                        throwIfAborted();
+                        int read = mWireStream.read(buffer, offset, length);
+                        if (read > 0) {
+                            countBytes(read);
+                        }
+                        return read;
+                    }
+                };
+                mBody = mGzip ? new GZIPInputStream(wire) : wire;
+            }
+            return mBody;
+        }
+
+        @Override
+        public synchronized long getBytesReceived() {
+            return mBytesReceived;
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+        }
+
+        @Override
+        public void abort() {
+            mAborted = true;
+        }
+
+        private synchronized void countBytes(int count) {
+            mBytesReceived += count;
+        }
+
+        private void throwIfAborted() throws IOException {
+            if (mAborted) {
+                throw new IOException("Response aborted");
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.android.quakereport;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the requests of {@link QueryUtils} go through the transport that is set, and the
+ * bytes they are counted with: a {@link FakeTransport} serving gzip compressed responses in
+ * process, and the default {@link UrlConnectionTransport} against a local server.
+ */
+public class HttpTransportTest {
+
+    private static final String URL = "https://earthquake.usgs.gov/fdsnws/event/1/query?"
+            + "format=geojson&limit=200&minmag=4";
+
+    private byte[] mResponse;
+
+    @Before
+    public void setUp() {
+        StringBuilder json = new StringBuilder("{\"type\":\"FeatureCollection\",\"features\":[");
+        for (int i = 0; i < 200; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            // No update times, so a cached query is revalidated as a whole
+            json.append("{\"type\":\"Feature\",\"properties\":{\"mag\":").append(i % 60 / 10.0 + 4)
+                    .append(",\"place\":\"").append(i % 97).append("km SSW of Kokopo, Papua New Guinea")
+                    .append("\",\"time\":").append(1454124312220L - i * 60000L)
+                    .append(",\"url\":\"https://earthquake.usgs.gov/earthquakes/eventpage/us").append(i)
+                    .append("\"},\"id\":\"us").append(i).append("\"}");
+        }
+        mResponse = json.append("]}").toString().getBytes(Charset.forName("UTF-8"));
+    }
+
+    @After
+    public void tearDown() {
+        QueryUtils.setTransport(null);
+    }
+
+    @Test
+    public void fetchGoesThroughTheTransportThatIsSet() throws IOException {
+        FakeTransport transport = new FakeTransport().respond(200, mResponse)
+                .setGzip(true).setHeader("ETag", "\"v1\"");
+        QueryUtils.setTransport(transport);
+        assertSame(transport, QueryUtils.getTransport());
+
+        long bytesBefore = EarthquakeSync.getTotalBytes();
+        EarthquakeCatalog earthquakes = QueryUtils.fetchEarthquakeData(URL);
+
+        assertEquals(200, earthquakes.size());
+        assertEquals(1, transport.getRequestCount());
+        assertEquals(URL, transport.getUrl(0).toString());
+        // Read to its end and closed, so a real connection could be reused
+        FakeTransport.FakeResponse response = transport.getResponse(0);
+        assertTrue(response.isClosed());
+        // The bytes downloaded are counted as they came over the wire, compressed
+        assertEquals(gzip(mResponse).length, response.getBytesReceived());
+        assertEquals(response.getBytesReceived(), EarthquakeSync.getTotalBytes() - bytesBefore);
+        assertTrue(response.getBytesReceived() * 3 < mResponse.length);
+    }
+
+    @Test
+    public void notModifiedDownloadsNothing() {
+        FakeTransport transport = new FakeTransport().respond(200, mResponse).setGzip(true)
+                .setHeader("ETag", "\"v1\"");
+        QueryUtils.setTransport(transport);
+        EarthquakeCatalog earthquakes = QueryUtils.fetchEarthquakeData(URL);
+        EarthquakeCache.Entry cached = new EarthquakeCache.Entry(earthquakes, "\"v1\"", null);
+
+        transport.respond(304, new byte[0]);
+        long bytesBefore = EarthquakeSync.getTotalBytes();
+        assertSame(earthquakes, QueryUtils.fetchEarthquakeData(URL, null, cached));
+
+        assertEquals("\"v1\"", transport.getRequestHeaders(1).get("If-None-Match"));
+        assertEquals(0, EarthquakeSync.getTotalBytes() - bytesBefore);
+    }
+
+    @Test
+    public void urlConnectionTransportCountsCompressedAndDecodedBytes() throws IOException {
+        final byte[] compressed = gzip(mResponse);
+        final String[] acceptEncoding = new String[1];
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                acceptEncoding[0] = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                exchange.sendResponseHeaders(200, compressed.length);
+                OutputStream body = exchange.getResponseBody();
+                body.write(compressed);
+                body.close();
+            }
+        });
+        server.start();
+        try {
+            UrlConnectionTransport transport = new UrlConnectionTransport();
+            QueryUtils.setTransport(transport);
+            String url = "http://127.0.0.1:" + server.getAddress().getPort()
+                    + "/fdsnws/event/1/query?format=geojson&limit=200";
+
+            EarthquakeCatalog earthquakes = QueryUtils.fetchEarthquakeData(url);
+            assertNotNull(earthquakes);
+            assertEquals(200, earthquakes.size());
+            assertEquals(200, QueryUtils.fetchEarthquakeData(url).size());
+
+            assertEquals("gzip", acceptEncoding[0]);
+            assertEquals(2L * compressed.length, transport.getWireBytes());
+            assertEquals(2L * mResponse.length, transport.getDecodedBytes());
+            // The first response was read to its end, the second request likely reused its connection
+            assertEquals(0.5, transport.getConnectionReuseRate(), 0);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzipStream = new GZIPOutputStream(compressed);
+        gzipStream.write(body);
+        gzipStream.close();
+        return compressed.toByteArray();
+    }
+}
@@ -0,0 +1,275 @@
+package com.example.android.quakereport;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks how {@link ResilientTransport} handles a failing or slow server, played by a
+ * {@link FakeTransport}: the requests it retries, the hedge it sends for a stalled request,
+ * the circuit breaker and its probe, and a cancelled request that waits for its next try.
+ */
+public class ResilientTransportTest {
+
+    private static final String RESPONSE = "{\"type\":\"FeatureCollection\",\"features\":[]}";
+
+    /* Backoff of the tests that retry, short so they don't wait */
+    private static final long SHORT_BACKOFF_MILLIS = 1;
+
+    /* Attempts failing in a row that open the circuit */
+    private static final int FAILURES_TO_OPEN = 5;
+
+    private FakeTransport mFake;
+    private URL mUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        mFake = new FakeTransport().respond(200, RESPONSE.getBytes(Charset.forName("UTF-8")));
+        mUrl = new URL("https://earthquake.usgs.gov/fdsnws/event/1/query?format=geojson&limit=10");
+    }
+
+    @Test
+    public void serverErrorsAndTooManyRequestsAreRetried() throws IOException {
+        ResilientTransport transport = newTransport(false, 60000);
+        mFake.script(503, 429);
+
+        HttpTransport.Response response = get(transport);
+        assertEquals(200, response.getCode());
+        response.close();
+
+        assertEquals(3, mFake.getRequestCount());
+        // The error responses were closed before the next try
+        assertTrue(mFake.getResponse(0).isClosed());
+        assertTrue(mFake.getResponse(1).isClosed());
+    }
+
+    @Test
+    public void failedConnectionIsRetried() throws IOException {
+        ResilientTransport transport = newTransport(false, 60000);
+        mFake.script(FakeTransport.FAIL);
+
+        assertEquals(200, get(transport).getCode());
+        assertEquals(2, mFake.getRequestCount());
+    }
+
+    @Test
+    public void lastErrorCodeIsReturnedAfterEveryAttempt() throws IOException {
+        ResilientTransport transport = newTransport(false, 60000);
+        mFake.script(503, 503, 503);
+
+        assertEquals(503, get(transport).getCode());
+        assertEquals(3, mFake.getRequestCount());
+    }
+
+    @Test
+    public void clientErrorIsNotRetried() throws IOException {
+        ResilientTransport transport = newTransport(false, 60000);
+        mFake.script(404);
+
+        assertEquals(404, get(transport).getCode());
+        assertEquals(1, mFake.getRequestCount());
+    }
+
+    @Test
+    public void hedgeAnswersForAStalledAttempt() throws Exception {
+        ResilientTransport transport = newTransport(true, 60000);
+        // Hedging waits for the latencies of enough requests
+        for (int i = 0; i < 20; i++) {
+            get(transport).close();
+        }
+
+        mFake.stallNext();
+        long startTime = System.nanoTime();
+        HttpTransport.Response response = get(transport);
+        long elapsedMillis = (System.nanoTime() - startTime) / 1000000;
+
+        assertEquals(200, response.getCode());
+        // The stalled attempt would have waited 5 s for the test to release it
+        assertTrue("Answered after " + elapsedMillis + " ms", elapsedMillis < 2000);
+        assertEquals(22, mFake.getRequestCount());
+        assertTrue(transport.getSummary(), transport.getSummary().contains("1 hedged (1 answered first)"));
+
+        // The stalled attempt lost, its response is aborted as soon as it exists
+        mFake.release();
+        FakeTransport.FakeResponse loser = awaitResponse(20);
+        assertTrue(loser.isAborted());
+        assertFalse(mFake.getResponse(21).isAborted());
+    }
+
+    @Test
+    public void circuitOpensAfterFiveFailedAttempts() throws IOException {
+        ResilientTransport transport = newTransport(false, 60000);
+        openCircuit(transport);
+        assertTrue(transport.isCircuitOpen());
+        assertEquals(FAILURES_TO_OPEN, mFake.getRequestCount());
+
+        // Requests fail right away while it is open, nothing is sent
+        try {
+            get(transport);
+            fail("The circuit is open");
+        } catch (IOException e) {
+            assertEquals(FAILURES_TO_OPEN, mFake.getRequestCount());
+        }
+    }
+
+    @Test
+    public void halfOpenCircuitLetsOneProbeThrough() throws Exception {
+        ResilientTransport transport = newTransport(false, 200);
+        openCircuit(transport);
+        Thread.sleep(300);
+        assertFalse(transport.isCircuitOpen());
+
+        // One request probes the server, the others fail right away while it runs
+        mFake.stallNext();
+        Get probe = new Get(transport, null).begin();
+        mFake.awaitRequests(FAILURES_TO_OPEN + 1);
+        try {
+            get(transport);
+            fail("The circuit is probing");
+        } catch (IOException e) {
+            assertEquals(FAILURES_TO_OPEN + 1, mFake.getRequestCount());
+        }
+
+        // The probe succeeded, the circuit is closed again
+        mFake.release();
+        assertEquals(200, probe.end().getCode());
+        assertEquals(200, get(transport).getCode());
+        assertEquals(FAILURES_TO_OPEN + 2, mFake.getRequestCount());
+    }
+
+    @Test
+    public void failedProbeOpensTheCircuitAgain() throws Exception {
+        ResilientTransport transport = newTransport(false, 200);
+        openCircuit(transport);
+        Thread.sleep(300);
+
+        mFake.script(FakeTransport.FAIL);
+        try {
+            get(transport);
+            fail("The probe failed");
+        } catch (IOException e) {
+            // The probe was not retried
+            assertEquals(FAILURES_TO_OPEN + 1, mFake.getRequestCount());
+        }
+        assertTrue(transport.isCircuitOpen());
+    }
+
+    @Test
+    public void cancelAbortsTheBackoff() throws Exception {
+        // Seeded, the first backoff draws about 5.8 s of the 8 s it can take at most
+        ResilientTransport transport = new ResilientTransport(mFake, false, 8000, 60000, new Random(1));
+        mFake.script(503);
+        FetchCancellation cancellation = new FetchCancellation();
+        Get request = new Get(transport, cancellation).begin();
+
+        // Waiting for its next try, the wait for an answer has no timeout
+        mFake.awaitRequests(1);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (request.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(Thread.State.TIMED_WAITING, request.getState());
+
+        long startTime = System.nanoTime();
+        cancellation.cancel();
+        request.join(2000);
+        long elapsedMillis = (System.nanoTime() - startTime) / 1000000;
+
+        assertFalse("The request is still waiting", request.isAlive());
+        assertTrue("Stopped after " + elapsedMillis + " ms", elapsedMillis < 1000);
+        assertTrue(request.getError() instanceof InterruptedIOException);
+        assertEquals(1, mFake.getRequestCount());
+    }
+
+    private ResilientTransport newTransport(boolean hedging, long openMillis) {
+        return new ResilientTransport(mFake, hedging, SHORT_BACKOFF_MILLIS, openMillis, new Random(1));
+    }
+
+    private HttpTransport.Response get(ResilientTransport transport) throws IOException {
+        return transport.get(mUrl, Collections.<String, String>emptyMap(), null);
+    }
+
+    /**
+     * Fail enough attempts in a row to open the circuit: every attempt of a first request,
+     * then the ones of a second request until the circuit opened
+     */
+    private void openCircuit(ResilientTransport transport) {
+        for (int i = 0; i < FAILURES_TO_OPEN; i++) {
+            mFake.script(FakeTransport.FAIL);
+        }
+        for (int i = 0; i < 2; i++) {
+            try {
+                get(transport);
+                fail("Every attempt failed");
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    private FakeTransport.FakeResponse awaitResponse(int request) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mFake.getResponse(request) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        return mFake.getResponse(request);
+    }
+
+
+    /**
+     * A request on its own thread, like a loader's
+     */
+    private final class Get extends Thread {
+
+        private final ResilientTransport mTransport;
+        private final FetchCancellation mCancellation;
+        private volatile HttpTransport.Response mResponse;
+        private volatile IOException mError;
+
+        Get(ResilientTransport transport, FetchCancellation cancellation) {
+            mTransport = transport;
+            mCancellation = cancellation;
+        }
+
+        Get begin() {
+            start();
+            return this;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mResponse = mTransport.get(mUrl, Collections.<String, String>emptyMap(), mCancellation);
+            } catch (IOException e) {
+                mError = e;
+            }
+        }
+
+        /**
+         * @return the response of the request, once it answered
+         */
+        HttpTransport.Response end() throws InterruptedException {
+            join(5000);
+            assertFalse("The request is still running", isAlive());
+            if (mError != null) {
+                throw new AssertionError(mError);
+            }
+            return mResponse;
+        }
+
+        IOException getError() {
+            return mError;
+        }
+    }
+}
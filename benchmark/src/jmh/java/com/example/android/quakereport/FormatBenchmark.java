@@ -0,0 +1,124 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The formatting of one row of the list, see {@link EarthquakeFormatter}. Every benchmark
+ * formats the same 1000 earthquakes and reports the time of one of them
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FormatBenchmark {
+
+    private static final int EVENT_COUNT = 1000;
+
+    private double[] mMagnitudes;
+    private double[] mMagnitudeTenths;
+    private long[] mTimes;
+    private String[] mPlaces;
+    private EarthquakeFormatter mFormatter;
+    private final char[] mOut = new char[EarthquakeFormatter.MAX_LENGTH];
+
+    /**
+     * @return a formatter with the colors and texts of the app's resources
+     */
+    static EarthquakeFormatter createFormatter() {
+        int[] magnitudeColors = {
+                0xFF4A7BA7, 0xFF4A7BA7, 0xFF04B4B3, 0xFF10CAC9, 0xFFF5A623,
+                0xFFFF7D50, 0xFFFC6644, 0xFFE75F40, 0xFFE13A20, 0xFFD93218
+        };
+        return new EarthquakeFormatter(magnitudeColors, 0xFFC03823, "Near");
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        EarthquakeCatalog catalog = QueryUtils.extractFeatureFromStream(
+                new ByteArrayInputStream(Payloads.buildBytes(EVENT_COUNT)));
+        mMagnitudes = new double[EVENT_COUNT];
+        mMagnitudeTenths = new double[EVENT_COUNT];
+        mTimes = new long[EVENT_COUNT];
+        mPlaces = new String[EVENT_COUNT];
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            mMagnitudes[i] = catalog.getMag(i);
+            // Most USGS magnitudes have a single decimal
+            mMagnitudeTenths[i] = Math.round(catalog.getMag(i) * 10) / 10.0;
+            mTimes[i] = catalog.getTimeInMilliseconds(i);
+            mPlaces[i] = catalog.getPlace(i);
+        }
+        mFormatter = createFormatter();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENT_COUNT)
+    public int formatMagnitude() {
+        int length = 0;
+        for (double magnitude : mMagnitudes) {
+            length += mFormatter.formatMagnitude(magnitude, mOut);
+        }
+        return length;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENT_COUNT)
+    public int formatMagnitudeTenths() {
+        int length = 0;
+        for (double magnitude : mMagnitudeTenths) {
+            length += mFormatter.formatMagnitude(magnitude, mOut);
+        }
+        return length;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENT_COUNT)
+    public int getMagnitudeColor() {
+        int colors = 0;
+        for (double magnitude : mMagnitudes) {
+            colors ^= mFormatter.getMagnitudeColor(magnitude);
+        }
+        return colors;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENT_COUNT)
+    public int formatDate() {
+        int length = 0;
+        for (long time : mTimes) {
+            length += mFormatter.formatDate(time, mOut);
+        }
+        return length;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENT_COUNT)
+    public int formatTime() {
+        int length = 0;
+        for (long time : mTimes) {
+            length += mFormatter.formatTime(time, mOut);
+        }
+        return length;
+    }
+
+    /** Splitting the place into its location offset and primary location */
+    @Benchmark
+    @OperationsPerInvocation(EVENT_COUNT)
+    public int splitPlace() {
+        int starts = 0;
+        for (String place : mPlaces) {
+            int locationOffsetEnd = EarthquakeFormatter.findLocationOffsetEnd(place);
+            starts += EarthquakeFormatter.findPrimaryLocationStart(place, locationOffsetEnd);
+        }
+        return starts;
+    }
+}
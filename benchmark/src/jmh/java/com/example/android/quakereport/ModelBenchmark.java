@@ -0,0 +1,64 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the earthquakes of a response: the catalog the parser fills, the {@link Earthquake}
+ * objects of the old list, and the formatted {@link EarthquakeDisplayModel} the list shows
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ModelBenchmark {
+
+    @Param({"100", "1000", "10000", "20000"})
+    public int eventCount;
+
+    private EarthquakeCatalog mCatalog;
+    private EarthquakeFormatter mFormatter;
+
+    @Setup
+    public void setUp() throws IOException {
+        mCatalog = QueryUtils.extractFeatureFromStream(
+                new ByteArrayInputStream(Payloads.buildBytes(eventCount)));
+        mFormatter = FormatBenchmark.createFormatter();
+    }
+
+    /** Adding every earthquake to a catalog, which also splits its place */
+    @Benchmark
+    public EarthquakeCatalog buildCatalog() {
+        EarthquakeCatalog.Builder builder = new EarthquakeCatalog.Builder(mCatalog.size());
+        for (int i = 0; i < mCatalog.size(); i++) {
+            builder.add(mCatalog.getId(i), mCatalog.getMag(i), mCatalog.getPlace(i),
+                    mCatalog.getTimeInMilliseconds(i), mCatalog.getUpdatedInMilliseconds(i),
+                    mCatalog.getLatitude(i), mCatalog.getLongitude(i), mCatalog.getUrl(i));
+        }
+        return builder.build();
+    }
+
+    /** An {@link Earthquake} object for every earthquake */
+    @Benchmark
+    public void createEarthquakes(Blackhole blackhole) {
+        for (int i = 0; i < mCatalog.size(); i++) {
+            blackhole.consume(mCatalog.get(i));
+        }
+    }
+
+    /** Formatting every earthquake for the list */
+    @Benchmark
+    public EarthquakeDisplayModel buildDisplayModel() {
+        return EarthquakeDisplayModel.build(mCatalog, mFormatter);
+    }
+}
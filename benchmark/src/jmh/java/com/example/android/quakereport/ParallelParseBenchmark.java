@@ -0,0 +1,52 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing large responses held in memory on 1 to 8 threads, see {@link EarthquakeParallelParser}.
+ * One thread is the sequential parse, the speedup levels off at the number of cores
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ParallelParseBenchmark {
+
+    @Param({"10000", "50000", "100000"})
+    public int eventCount;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private byte[] mBytes;
+    private ExecutorService mExecutor;
+
+    @Setup
+    public void setUp() {
+        mBytes = Payloads.buildBytes(eventCount);
+        // The benchmark thread parses too
+        mExecutor = Executors.newFixedThreadPool(Math.max(threads - 1, 1));
+    }
+
+    @TearDown
+    public void tearDown() {
+        mExecutor.shutdown();
+    }
+
+    @Benchmark
+    public EarthquakeCatalog extractFeatureFromBytes() throws IOException {
+        return QueryUtils.extractFeatureFromBytes(mBytes, mBytes.length, mExecutor, threads, null);
+    }
+}
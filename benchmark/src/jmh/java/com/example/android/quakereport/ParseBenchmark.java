@@ -0,0 +1,65 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and parsing USGS responses of 100 to 20k events, the work of a load after the
+ * response arrived
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ParseBenchmark {
+
+    @Param({"100", "1000", "10000", "20000"})
+    public int eventCount;
+
+    private String mJson;
+    private byte[] mBytes;
+
+    @Setup
+    public void setUp() {
+        mJson = Payloads.buildJson(eventCount);
+        mBytes = Payloads.buildBytes(eventCount);
+    }
+
+    /** The whole response parsed into a JSONObject tree first */
+    @Benchmark
+    public EarthquakeCatalog extractFeatureFromJson() {
+        return QueryUtils.extractFeatureFromJson(mJson);
+    }
+
+    /** The response parsed while it is read, as loads do */
+    @Benchmark
+    public EarthquakeCatalog extractFeatureFromStream() throws IOException {
+        return QueryUtils.extractFeatureFromStream(new ByteArrayInputStream(mBytes));
+    }
+
+    /** The response parsed while it is read, then every place decoded as the list does */
+    @Benchmark
+    public int extractFeatureFromStreamAndReadPlaces() throws IOException {
+        EarthquakeCatalog catalog = QueryUtils.extractFeatureFromStream(new ByteArrayInputStream(mBytes));
+        int length = 0;
+        for (int i = 0; i < catalog.size(); i++) {
+            length += catalog.getPlace(i).length();
+        }
+        return length;
+    }
+
+    /** Only reading the response into a String */
+    @Benchmark
+    public String readFromStream() throws IOException {
+        return QueryUtils.readFromStream(new ByteArrayInputStream(mBytes));
+    }
+}
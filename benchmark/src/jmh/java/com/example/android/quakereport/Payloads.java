@@ -0,0 +1,104 @@
+package com.example.android.quakereport;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * USGS GeoJSON responses for the benchmarks.
+ *
+ * The features have every property a real USGS response has, with values in the same ranges
+ * (magnitudes, places with and without a location offset, times of the last 30 days), so the
+ * parser does the same work as on a real response of that many events. A fixed seed makes every
+ * run parse the same bytes.
+ *
+ * Every benchmark builds its payload first, which turns the metrics of the app's debug classes
+ * off: their trace sections read android.os.Build, whose native code only runs on a device.
+ */
+final class Payloads {
+
+    static {
+        EarthquakeMetrics.setEnabled(false);
+    }
+
+    private static final String[] DIRECTIONS = {
+            "N", "NNE", "NE", "ENE", "E", "ESE", "SE", "SSE",
+            "S", "SSW", "SW", "WSW", "W", "WNW", "NW", "NNW"
+    };
+
+    private static final String[] PLACES = {
+            "Tokyo, Japan", "Anchorage, Alaska", "Ridgecrest, CA", "Ovalle, Chile",
+            "Sola, Vanuatu", "Pacific-Antarctic Ridge", "Kermadec Islands, New Zealand",
+            "Bengkulu, Indonesia", "Hilo, Hawaii", "the Fiji Islands"
+    };
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private Payloads() {
+    }
+
+    /**
+     * @return a USGS GeoJSON response of the given number of events
+     */
+    static String buildJson(int eventCount) {
+        Random random = new Random(eventCount);
+        long now = 1500000000000L;
+
+        StringBuilder json = new StringBuilder(eventCount * 1100);
+        json.append("{\"type\":\"FeatureCollection\",\"metadata\":{\"generated\":").append(now)
+                .append(",\"url\":\"https://earthquake.usgs.gov/fdsnws/event/1/query?format=geojson\"")
+                .append(",\"title\":\"USGS Earthquakes\",\"status\":200,\"api\":\"1.5.8\",\"count\":")
+                .append(eventCount).append("},\"features\":[");
+        for (int i = 0; i < eventCount; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            appendFeature(json, random, i, now);
+        }
+        json.append("],\"bbox\":[-179.9,-65.2,0.1,179.9,78.3,650.5]}");
+        return json.toString();
+    }
+
+    /**
+     * @return the UTF-8 bytes of a USGS GeoJSON response of the given number of events
+     */
+    static byte[] buildBytes(int eventCount) {
+        return buildJson(eventCount).getBytes(Charset.forName("UTF-8"));
+    }
+
+    private static void appendFeature(StringBuilder json, Random random, int index, long now) {
+        String id = String.format(Locale.US, "us%08d", 10000000 + index);
+        double mag = Math.round((2.5 + random.nextDouble() * 5) * 100) / 100.0;
+        String place = random.nextInt(10) < 8
+                ? String.format(Locale.US, "%dkm %s of %s", 1 + random.nextInt(300),
+                DIRECTIONS[random.nextInt(DIRECTIONS.length)], PLACES[random.nextInt(PLACES.length)])
+                : PLACES[random.nextInt(PLACES.length)];
+        long time = now - (long) (random.nextDouble() * 30 * DAY_MILLIS);
+        long updated = time + random.nextInt(7 * 24 * 60) * 60000L;
+        double longitude = random.nextDouble() * 360 - 180;
+        double latitude = random.nextDouble() * 150 - 75;
+        double depth = random.nextDouble() * 600;
+
+        json.append("{\"type\":\"Feature\",\"properties\":{\"mag\":").append(mag)
+                .append(",\"place\":\"").append(place)
+                .append("\",\"time\":").append(time)
+                .append(",\"updated\":").append(updated)
+                .append(",\"tz\":null,\"url\":\"https://earthquake.usgs.gov/earthquakes/eventpage/")
+                .append(id).append("\",\"detail\":\"https://earthquake.usgs.gov/fdsnws/event/1/query?eventid=")
+                .append(id).append("&format=geojson\",\"felt\":null,\"cdi\":null,\"mmi\":null,")
+                .append("\"alert\":null,\"status\":\"reviewed\",\"tsunami\":0,\"sig\":")
+                .append(random.nextInt(1000)).append(",\"net\":\"us\",\"code\":\"")
+                .append(id.substring(2)).append("\",\"ids\":\",").append(id)
+                .append(",\",\"sources\":\",us,\",\"types\":\",origin,phase-data,\",\"nst\":null,")
+                .append("\"dmin\":").append(Math.round(random.nextDouble() * 10000) / 1000.0)
+                .append(",\"rms\":").append(Math.round(random.nextDouble() * 1500) / 1000.0)
+                .append(",\"gap\":").append(random.nextInt(360))
+                .append(",\"magType\":\"mb\",\"type\":\"earthquake\",\"title\":\"M ").append(mag)
+                .append(" - ").append(place)
+                .append("\"},\"geometry\":{\"type\":\"Point\",\"coordinates\":[")
+                .append(Math.round(longitude * 10000) / 10000.0).append(',')
+                .append(Math.round(latitude * 10000) / 10000.0).append(',')
+                .append(Math.round(depth * 100) / 100.0)
+                .append("]},\"id\":\"").append(id).append("\"}");
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Answering a settings change (a higher minimum magnitude, another order, a smaller limit) of
+ * a query over 1k to 100k earthquakes: locally with the {@link EarthquakeQueryEngine}, from the
+ * cached result of the broader query, and with the work a network reload does once the
+ * compressed response arrived. The reload leaves out the round trip to USGS, which alone takes
+ * longer than any of these on a phone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QueryEngineBenchmark {
+
+    /* The payloads hold the 30 days before 2017-07-14, a starttime keeps all of them */
+    private static final String QUERY_URL = "https://earthquake.usgs.gov/fdsnws/event/1/query?"
+            + "format=geojson&starttime=2017-06-01";
+
+    /* The query as it was cached, and as it is after the settings changed. The cached one has
+       no limit, so it is not cut off and can answer a query in another order */
+    private static final String CACHED_URL = QUERY_URL + "&minmag=2&orderby=time";
+    private static final String CHANGED_URL = QUERY_URL + "&minmag=6&orderby=magnitude&limit=100";
+
+    @Param({"1000", "10000", "20000", "100000"})
+    public int eventCount;
+
+    private File mDirectory;
+    private EarthquakeCache mCache;
+    private EarthquakeCatalog mCatalog;
+    private EarthquakeQueryEngine mEngine;
+    private EarthquakeQueryEngine.Query mQuery;
+    private byte[] mCompressedResponse;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] response = Payloads.buildBytes(eventCount);
+        EarthquakeCatalog catalog = QueryUtils.extractFeatureFromStream(new ByteArrayInputStream(response));
+        mCatalog = catalog;
+
+        mDirectory = File.createTempFile("queries", null);
+        mDirectory.delete();
+        mDirectory.mkdirs();
+        // Unbounded, the snapshot of 100k earthquakes is larger than the app's cache
+        mCache = new EarthquakeCache(mDirectory, Long.MAX_VALUE);
+        mCache.write(CACHED_URL, new EarthquakeCache.Entry(catalog, "\"v1\"", null));
+        if (answerFromCache() == null) {
+            throw new IllegalStateException("The cached query can't answer " + CHANGED_URL);
+        }
+
+        mEngine = new EarthquakeQueryEngine(catalog);
+        mQuery = EarthquakeQueryEngine.Query.fromUrl(CHANGED_URL).setLimit(100);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzipStream = new GZIPOutputStream(compressed);
+        // The response of the changed query, as many earthquakes as its limit
+        gzipStream.write(Payloads.buildBytes(100));
+        gzipStream.close();
+        mCompressedResponse = compressed.toByteArray();
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (File file : mDirectory.listFiles()) {
+            file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    /** The query alone, on an engine already built over the earthquakes in memory */
+    @Benchmark
+    public EarthquakeCatalog queryEngine() {
+        return mEngine.query(mQuery);
+    }
+
+    /** Indexing the earthquakes, once per result */
+    @Benchmark
+    public EarthquakeQueryEngine buildEngine() {
+        return new EarthquakeQueryEngine(mCatalog);
+    }
+
+    /** What a load does for the changed query: read the broader result, build the engine, query */
+    @Benchmark
+    public EarthquakeCatalog answerFromCache() {
+        return EarthquakeQueryEngine.answerFromCache(mCache, CHANGED_URL);
+    }
+
+    /** What a reload does once the response of the changed query arrived: inflate and parse it */
+    @Benchmark
+    public EarthquakeCatalog networkReload() throws IOException {
+        return QueryUtils.extractFeatureFromStream(
+                new GZIPInputStream(new ByteArrayInputStream(mCompressedResponse)));
+    }
+}
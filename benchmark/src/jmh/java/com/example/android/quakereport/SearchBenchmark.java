@@ -0,0 +1,74 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Searching the places of 10k to 100k earthquakes for one keystroke, with the
+ * {@link EarthquakePlaceIndex} and with a scan of every place, and building the index
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SearchBenchmark {
+
+    @Param({"10000", "100000"})
+    public int eventCount;
+
+    /* A region, a place after its offset, a short prefix and a text found nowhere */
+    @Param({"alaska", "of tokyo", "ca", "reykjavik"})
+    public String query;
+
+    private EarthquakeDisplayModel mEarthquakes;
+    private EarthquakePlaceIndex mIndex;
+
+    @Setup
+    public void setUp() throws IOException {
+        EarthquakeCatalog catalog = QueryUtils.extractFeatureFromStream(
+                new ByteArrayInputStream(Payloads.buildBytes(eventCount)));
+        mEarthquakes = EarthquakeDisplayModel.build(catalog, FormatBenchmark.createFormatter());
+        mIndex = new EarthquakePlaceIndex();
+        mIndex.attach(mEarthquakes);
+    }
+
+    /** The work of a keystroke, with the index of the result already built */
+    @Benchmark
+    public int[] searchIndex() {
+        return mIndex.search(query);
+    }
+
+    /** The same search, lower casing and scanning the place of every earthquake */
+    @Benchmark
+    public int[] scanPlaces() {
+        String searchText = query.trim().toLowerCase(Locale.US);
+        EarthquakeCatalog catalog = mEarthquakes.getCatalog();
+        int[] positions = new int[catalog.size()];
+        int count = 0;
+        for (int i = 0; i < catalog.size(); i++) {
+            if (catalog.getPlace(i).toLowerCase(Locale.US).contains(searchText)) {
+                positions[count++] = i;
+            }
+        }
+        return Arrays.copyOf(positions, count);
+    }
+
+    /** Indexing a whole result the first time the search is opened */
+    @Benchmark
+    public int buildIndex() {
+        EarthquakePlaceIndex index = new EarthquakePlaceIndex();
+        index.attach(mEarthquakes);
+        return index.getPlaceCount();
+    }
+}
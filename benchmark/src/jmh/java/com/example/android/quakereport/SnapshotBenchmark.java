@@ -0,0 +1,131 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writing and reading back the query results of 100 to 20k events as an
+ * {@link EarthquakeSnapshot}, as the GeoJSON response the snapshot replaced, and as that
+ * response gzip compressed. The size of each file is printed once per setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SnapshotBenchmark {
+
+    private static final String URL = "https://earthquake.usgs.gov/fdsnws/event/1/query?"
+            + "format=geojson&orderby=time";
+
+    @Param({"100", "1000", "10000", "20000"})
+    public int eventCount;
+
+    private byte[] mJson;
+    private EarthquakeCache.Entry mEntry;
+
+    private File mSnapshotFile;
+    private File mJsonFile;
+    private File mGzipFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        mJson = Payloads.buildBytes(eventCount);
+        mEntry = new EarthquakeCache.Entry(
+                QueryUtils.extractFeatureFromStream(new ByteArrayInputStream(mJson)), "\"v1\"", null);
+
+        mSnapshotFile = File.createTempFile("snapshot", null);
+        mJsonFile = File.createTempFile("snapshot", ".json");
+        mGzipFile = File.createTempFile("snapshot", ".json.gz");
+        writeSnapshot();
+        writeJson();
+        writeGzip();
+
+        System.out.println(String.format(Locale.US,
+                "%d events: snapshot %d bytes, GeoJSON %d bytes, gzip %d bytes", eventCount,
+                mSnapshotFile.length(), mJsonFile.length(), mGzipFile.length()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        mSnapshotFile.delete();
+        mJsonFile.delete();
+        mGzipFile.delete();
+    }
+
+    /** Saving a query result, as the cache does after a download */
+    @Benchmark
+    public long writeSnapshot() throws IOException {
+        EarthquakeSnapshot.write(mSnapshotFile, URL, mEntry, 1);
+        return mSnapshotFile.length();
+    }
+
+    /** Saving the response as it was downloaded */
+    @Benchmark
+    public long writeJson() throws IOException {
+        OutputStream out = new FileOutputStream(mJsonFile);
+        try {
+            out.write(mJson);
+        } finally {
+            out.close();
+        }
+        return mJsonFile.length();
+    }
+
+    /** Saving the response compressed */
+    @Benchmark
+    public long writeGzip() throws IOException {
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(mGzipFile));
+        try {
+            out.write(mJson);
+        } finally {
+            out.close();
+        }
+        return mGzipFile.length();
+    }
+
+    /** Loading a saved query result, as a launch does */
+    @Benchmark
+    public EarthquakeCatalog readSnapshot() throws IOException {
+        return new EarthquakeSnapshot.Reader(mSnapshotFile).decodeAll().getCatalog();
+    }
+
+    /** Loading the saved response, parsed as it is read */
+    @Benchmark
+    public EarthquakeCatalog readJson() throws IOException {
+        InputStream in = new FileInputStream(mJsonFile);
+        try {
+            return QueryUtils.extractFeatureFromStream(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Loading the compressed response, inflated and parsed as it is read */
+    @Benchmark
+    public EarthquakeCatalog readGzip() throws IOException {
+        InputStream in = new GZIPInputStream(new FileInputStream(mGzipFile));
+        try {
+            return QueryUtils.extractFeatureFromStream(in);
+        } finally {
+            in.close();
+        }
+    }
+}
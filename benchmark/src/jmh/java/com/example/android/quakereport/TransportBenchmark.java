@@ -0,0 +1,90 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests to a stand-in for USGS that fails and stalls some of them, with the plain transport
+ * and with the {@link ResilientTransport} around it. The sampled times give the p99 of a
+ * request, from the request to the end of its body, and the count of requests that failed is
+ * printed at the end. Start the stand-in first:
+ *
+ *     python3 tools/flaky_usgs_server.py --port 8001 --error-rate 0.05 --stall-rate 0.02
+ *
+ * The warmup iterations also give the resilient transport the latencies it hedges after.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TransportBenchmark {
+
+    @Param({"http://localhost:8001/fdsnws/event/1/query?format=geojson&limit=100"})
+    public String url;
+
+    @Param({"plain", "resilient"})
+    public String transport;
+
+    private URL mUrl;
+    private HttpTransport mTransport;
+    private byte[] mBuffer;
+    private int mRequests;
+    private int mFailedRequests;
+
+    @Setup
+    public void setUp() throws IOException {
+        // The transports time their requests in the app's debug classes, see Payloads
+        EarthquakeMetrics.setEnabled(false);
+        mUrl = new URL(url);
+        HttpTransport plain = new UrlConnectionTransport();
+        mTransport = "resilient".equals(transport) ? new ResilientTransport(plain, true) : plain;
+        mBuffer = new byte[8192];
+    }
+
+    @TearDown
+    public void tearDown() {
+        String summary = mTransport instanceof ResilientTransport
+                ? ((ResilientTransport) mTransport).getSummary() : "";
+        System.out.println();
+        System.out.println(transport + ": " + mFailedRequests + " of " + mRequests
+                + " requests failed. " + summary);
+    }
+
+    /** @return the response code, or -1 if the request failed */
+    @Benchmark
+    public int get() {
+        mRequests++;
+        HttpTransport.Response response = null;
+        try {
+            response = mTransport.get(mUrl, Collections.<String, String>emptyMap(), null);
+            int code = response.getCode();
+            InputStream body = response.getBody();
+            while (body.read(mBuffer) != -1) {
+                // Read to the end, like the parser
+            }
+            if (code != 200) {
+                mFailedRequests++;
+            }
+            return code;
+        } catch (IOException e) {
+            mFailedRequests++;
+            return -1;
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+#!/usr/bin/env python3
+"""Stand-in for the USGS query API that fails and stalls, to measure the resilient transport.
+
+Serves /fdsnws/event/1/query with a fixed GeoJSON response of --count earthquakes,
+after a short --latency. A share of the requests is answered with a 503 instead
+(--error-rate), and another share stalls for --stall seconds before the response
+headers are sent (--stall-rate), like the odd slow connection. With --outage, every
+request of the first seconds gets a 503, long enough to open the circuit. A --seed
+makes every run fail and stall the same requests.
+
+    python3 tools/flaky_usgs_server.py --port 8001 --error-rate 0.05 --stall-rate 0.02
+    ./gradlew :benchmark:jmh -PjmhInclude=Transport
+"""
+
+import argparse
+import json
+import random
+import threading
+import time
+from http.server import BaseHTTPRequestHandler, ThreadingHTTPServer
+
+PLACES = ["Tokyo, Japan", "Anchorage, Alaska", "Ridgecrest, CA", "Santiago, Chile",
+          "Padang, Indonesia"]
+
+lock = threading.Lock()
+counts = {"ok": 0, "error": 0, "stall": 0}
+args = None
+rng = None
+body = b""
+start_time = 0.0
+
+
+def build_body(count):
+    now = int(time.time() * 1000)
+    features = []
+    for i in range(count):
+        event_id = "flaky%d" % i
+        features.append({
+            "type": "Feature",
+            "properties": {
+                "mag": round(rng.uniform(2.5, 7.5), 1),
+                "place": "%dkm N of %s" % (rng.randint(1, 99), rng.choice(PLACES)),
+                "time": now - i * 60000,
+                "updated": now - i * 60000,
+                "url": "https://earthquake.usgs.gov/earthquakes/eventpage/" + event_id,
+                "status": "reviewed",
+            },
+            "geometry": {
+                "type": "Point",
+                "coordinates": [round(rng.uniform(-180, 180), 3),
+                                round(rng.uniform(-60, 60), 3), 10.0],
+            },
+            "id": event_id,
+        })
+    feed = {
+        "type": "FeatureCollection",
+        "metadata": {"generated": now, "title": "Flaky stand-in", "count": count},
+        "features": features,
+    }
+    return json.dumps(feed).encode("utf-8")
+
+
+def pick_fault():
+    """The fault of the next request: None, "error" or "stall" """
+    with lock:
+        if time.time() - start_time < args.outage:
+            fault = "error"
+        else:
+            draw = rng.random()
+            if draw < args.error_rate:
+                fault = "error"
+            elif draw < args.error_rate + args.stall_rate:
+                fault = "stall"
+            else:
+                fault = None
+        counts[fault or "ok"] += 1
+        return fault
+
+
+class QueryHandler(BaseHTTPRequestHandler):
+
+    def do_GET(self):
+        if self.path.split("?")[0] != "/fdsnws/event/1/query":
+            self.send_error(404)
+            return
+        fault = pick_fault()
+        time.sleep(args.latency)
+        if fault == "error":
+            self.send_error(503, "Service Unavailable")
+            return
+        if fault == "stall":
+            time.sleep(args.stall)
+        try:
+            self.send_response(200)
+            self.send_header("Content-Type", "application/json")
+            self.send_header("Content-Length", str(len(body)))
+            self.end_headers()
+            self.wfile.write(body)
+        except (BrokenPipeError, ConnectionResetError):
+            # The client gave up on the stalled request, i.e. a hedge answered first
+            pass
+
+    def log_message(self, format, *log_args):
+        # One line per request would hide the counts
+        pass
+
+
+def report():
+    while True:
+        time.sleep(10)
+        with lock:
+            print("%(ok)d answered, %(error)d failed, %(stall)d stalled" % counts)
+
+
+def main():
+    global args, rng, body, start_time
+    parser = argparse.ArgumentParser(description=__doc__.splitlines()[0])
+    parser.add_argument("--port", type=int, default=8001)
+    parser.add_argument("--count", type=int, default=100,
+                        help="earthquakes of the response")
+    parser.add_argument("--latency", type=float, default=0.02,
+                        help="seconds before any request is answered")
+    parser.add_argument("--error-rate", type=float, default=0.05,
+                        help="share of the requests answered with a 503")
+    parser.add_argument("--stall-rate", type=float, default=0.02,
+                        help="share of the requests that stall before their headers")
+    parser.add_argument("--stall", type=float, default=2.0,
+                        help="seconds a stalled request waits")
+    parser.add_argument("--outage", type=float, default=0,
+                        help="seconds after the start when every request gets a 503")
+    parser.add_argument("--seed", type=int, default=1)
+    args = parser.parse_args()
+
+    rng = random.Random(args.seed)
+    body = build_body(args.count)
+    start_time = time.time()
+
+    threading.Thread(target=report, daemon=True).start()
+    print("Serving http://localhost:%d/fdsnws/event/1/query" % args.port)
+    ThreadingHTTPServer(("", args.port), QueryHandler).serve_forever()
+
+
+if __name__ == "__main__":
+    main()
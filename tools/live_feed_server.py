@@ -0,0 +1,121 @@
+#!/usr/bin/env python3
+"""Stand-in for the USGS summary feed of the past hour, to try live mode.
+
+Serves /all_hour.geojson with an ETag and a Last-Modified header, answers 304 to
+conditional requests while the feed is unchanged, and publishes a scripted
+update every --period seconds: a new earthquake, or a new magnitude for one that
+is already in the feed.
+
+    python3 tools/live_feed_server.py --port 8000 --period 30
+"""
+
+import argparse
+import email.utils
+import json
+import random
+import threading
+import time
+from http.server import BaseHTTPRequestHandler, ThreadingHTTPServer
+
+PLACES = ["Tokyo, Japan", "Anchorage, Alaska", "Ridgecrest, CA", "Santiago, Chile",
+          "Padang, Indonesia"]
+
+lock = threading.Lock()
+features = []
+body = b""
+etag = ""
+last_modified = ""
+
+
+def publish():
+    global body, etag, last_modified
+    now = int(time.time() * 1000)
+    feed = {
+        "type": "FeatureCollection",
+        "metadata": {"generated": now, "title": "Stand-in feed", "count": len(features)},
+        "features": sorted(features, key=lambda f: -f["properties"]["time"]),
+    }
+    body = json.dumps(feed).encode("utf-8")
+    etag = '"%d"' % now
+    last_modified = email.utils.formatdate(usegmt=True)
+
+
+def update(count):
+    """Add an earthquake, or update one of the feed one time out of three"""
+    now = int(time.time() * 1000)
+    if features and count % 3 == 2:
+        feature = random.choice(features)
+        feature["properties"]["mag"] = round(feature["properties"]["mag"] + 0.1, 1)
+        feature["properties"]["updated"] = now
+        print("updated %s" % feature["id"])
+    else:
+        event_id = "standin%d" % count
+        features.append({
+            "type": "Feature",
+            "properties": {
+                "mag": round(random.uniform(2.5, 7.5), 1),
+                "place": "%dkm N of %s" % (random.randint(1, 99), random.choice(PLACES)),
+                "time": now,
+                "updated": now,
+                "url": "https://earthquake.usgs.gov/earthquakes/eventpage/" + event_id,
+                "status": "automatic",
+            },
+            "geometry": {
+                "type": "Point",
+                "coordinates": [round(random.uniform(-180, 180), 3),
+                                round(random.uniform(-60, 60), 3), 10.0],
+            },
+            "id": event_id,
+        })
+        print("added %s" % event_id)
+    publish()
+
+
+class FeedHandler(BaseHTTPRequestHandler):
+
+    def do_GET(self):
+        if self.path.split("?")[0] != "/all_hour.geojson":
+            self.send_error(404)
+            return
+        with lock:
+            current_body, current_etag, current_last_modified = body, etag, last_modified
+        if self.headers.get("If-None-Match") == current_etag:
+            self.send_response(304)
+            self.send_header("ETag", current_etag)
+            self.end_headers()
+            return
+        self.send_response(200)
+        self.send_header("Content-Type", "application/json")
+        self.send_header("Content-Length", str(len(current_body)))
+        self.send_header("ETag", current_etag)
+        self.send_header("Last-Modified", current_last_modified)
+        self.end_headers()
+        self.wfile.write(current_body)
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__.splitlines()[0])
+    parser.add_argument("--port", type=int, default=8000)
+    parser.add_argument("--period", type=float, default=30,
+                        help="seconds between two updates of the feed")
+    args = parser.parse_args()
+
+    with lock:
+        for count in range(3):
+            update(count)
+
+    def run_updates():
+        count = 3
+        while True:
+            time.sleep(args.period)
+            with lock:
+                update(count)
+            count += 1
+
+    threading.Thread(target=run_updates, daemon=True).start()
+    print("Serving http://localhost:%d/all_hour.geojson" % args.port)
+    ThreadingHTTPServer(("", args.port), FeedHandler).serve_forever()
+
+
+if __name__ == "__main__":
+    main()
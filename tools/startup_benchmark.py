@@ -0,0 +1,97 @@
+#!/usr/bin/env python3
+"""Measure cold and warm starts of the app on a connected device.
+
+A cold start force-stops the app first, so the process is started again. A warm
+start clears the task of the running app and starts the list activity again in
+the same process. Every run reports the launch time of the system (am start -W),
+and the time from onCreate to the first frame and to the first frame with
+earthquakes, as logged by EarthquakeStartup. Launch the app once and let it load
+before measuring, so the list is shown from the cache.
+
+    python3 tools/startup_benchmark.py --runs 10 --mode both
+"""
+
+import argparse
+import re
+import statistics
+import subprocess
+import time
+
+PACKAGE = "com.example.android.quakereport"
+ACTIVITY = PACKAGE + "/.EarthquakeActivity"
+
+# FLAG_ACTIVITY_NEW_TASK | FLAG_ACTIVITY_CLEAR_TASK, the activity is created again
+CLEAR_TASK_FLAGS = "0x10008000"
+
+STARTUP_LINE = re.compile(
+    r"EarthquakeStartup\s*(?:\(\s*\d+\))?: (Cold|Warm) start: first (frame|row) (\d+) ms")
+FULLY_DRAWN_LINE = re.compile(r"Fully drawn " + re.escape(ACTIVITY) + r": \+(?:(\d+)s)?(\d+)ms")
+
+
+def adb(args, serial):
+    command = ["adb"] + (["-s", serial] if serial else []) + args
+    return subprocess.run(command, check=True, stdout=subprocess.PIPE,
+                          universal_newlines=True).stdout
+
+
+def launch(kind, serial, timeout):
+    """Start the activity and wait for its first row, returns the times of the run in ms"""
+    if kind == "cold":
+        adb(["shell", "am", "force-stop", PACKAGE], serial)
+        start_args = ["shell", "am", "start", "-W", "-n", ACTIVITY]
+    else:
+        start_args = ["shell", "am", "start", "-W", "-f", CLEAR_TASK_FLAGS, "-n", ACTIVITY]
+    adb(["logcat", "-c"], serial)
+
+    times = {}
+    output = adb(start_args, serial)
+    total_time = re.search(r"TotalTime: (\d+)", output)
+    if total_time:
+        times["am_total"] = int(total_time.group(1))
+
+    deadline = time.time() + timeout
+    while "first_row" not in times and time.time() < deadline:
+        time.sleep(0.5)
+        log = adb(["logcat", "-d", "-v", "brief"], serial)
+        for match in STARTUP_LINE.finditer(log):
+            if match.group(1).lower() == kind:
+                times["first_" + match.group(2)] = int(match.group(3))
+        fully_drawn = FULLY_DRAWN_LINE.search(log)
+        if fully_drawn:
+            times["fully_drawn"] = int(fully_drawn.group(1) or 0) * 1000 + int(fully_drawn.group(2))
+    return times
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__.splitlines()[0])
+    parser.add_argument("--runs", type=int, default=10, help="launches of every kind")
+    parser.add_argument("--mode", choices=["cold", "warm", "both"], default="both")
+    parser.add_argument("--serial", help="device to use, when more than one is connected")
+    parser.add_argument("--timeout", type=float, default=30,
+                        help="seconds to wait for the first row of a launch")
+    args = parser.parse_args()
+
+    kinds = ["cold", "warm"] if args.mode == "both" else [args.mode]
+    columns = ["am_total", "first_frame", "first_row", "fully_drawn"]
+    for kind in kinds:
+        if kind == "warm":
+            # The process has to be running for a warm start
+            launch("cold", args.serial, args.timeout)
+        results = {column: [] for column in columns}
+        print("%s starts, ms:  %s" % (kind, "  ".join("%11s" % column for column in columns)))
+        for run in range(args.runs):
+            times = launch(kind, args.serial, args.timeout)
+            for column in columns:
+                if column in times:
+                    results[column].append(times[column])
+            print("  run %2d        %s" % (run + 1, "  ".join(
+                "%11s" % times.get(column, "-") for column in columns)))
+        for name, summarize in (("median", statistics.median), ("min", min), ("max", max)):
+            print("  %-12s  %s" % (name, "  ".join(
+                "%11s" % (int(summarize(results[column])) if results[column] else "-")
+                for column in columns)))
+        print()
+
+
+if __name__ == "__main__":
+    main()